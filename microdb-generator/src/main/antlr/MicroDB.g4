@@ -15,8 +15,17 @@ packageName
     : ID (DOT ID)*
     ;
 
-dbo : DBO name=ID LPAREN exprlist RPAREN
-    | DBO name=ID 'extends' extend=ID LPAREN exprlist RPAREN
+dbo : annotation* DBO name=ID LPAREN exprlist RPAREN
+    | annotation* DBO name=ID 'extends' extend=ID LPAREN exprlist RPAREN
+    ;
+
+annotation
+    : ANNO name=ID (OPEN args+=annotationArg (COMMA args+=annotationArg)* CLOSE)?
+    ;
+
+annotationArg
+    : (key=ID EQUALS)? values+=ID
+    | (key=ID EQUALS)? OPEN values+=ID (COMMA values+=ID)* CLOSE
     ;
 
 exprlist
@@ -30,7 +39,7 @@ field
     ;
 
 type
-    : (ANNO anno+=ID)* type1 ARRAYTYPE?
+    : annotation* type1 ARRAYTYPE?
     ;
 
 type1
@@ -51,6 +60,10 @@ DBO : 'dbo' ;
 ARRAYTYPE : '[]' ;
 LPAREN : '{' ;
 RPAREN : '}' ;
+OPEN : '(' ;
+CLOSE : ')' ;
+COMMA : ',' ;
+EQUALS : '=' ;
 SEMI : ';' ;
 ANNO : '@' ;
 BYTE : 'byte' ;
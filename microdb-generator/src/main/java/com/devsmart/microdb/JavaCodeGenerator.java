@@ -7,11 +7,15 @@ import com.squareup.javapoet.*;
 
 import javax.lang.model.element.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 public class JavaCodeGenerator {
 
@@ -65,16 +69,17 @@ public class JavaCodeGenerator {
                         .build());
 
 
+        ClassName typeSetClassName = ClassName.get(MICRODB_PACKAGE, "TypeSet");
         CodeBlock.Builder subtypesInitBuilder = CodeBlock.builder();
-        subtypesInitBuilder.add("new UBString[]{ ");
+        subtypesInitBuilder.add("new $T(", typeSetClassName);
         for(Nodes.DBONode extend : mDBO.dboThatExtend){
-            subtypesInitBuilder.add("$T.createString($S), ", UBValueFactory.class, extend.name);
+            subtypesInitBuilder.add("$S, ", extend.name);
         }
-        subtypesInitBuilder.add("$T.TYPE }", getThisClassName());
+        subtypesInitBuilder.add("$S)", mDBO.name);
 
 
         classBuilder.addField(
-                FieldSpec.builder(UBString[].class, "SUBTYPES", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                FieldSpec.builder(typeSetClassName, "SUBTYPES", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
                         .initializer(subtypesInitBuilder.build())
                         .build()
         );
@@ -137,6 +142,9 @@ public class JavaCodeGenerator {
 
         classBuilder.addMethod(generateWriteToUBObjectMethod(fieldCodeGane));
         classBuilder.addMethod(generateReadFromUBObjectMethod(fieldCodeGane));
+        classBuilder.addMethod(generateWriteToMethod());
+        classBuilder.addMethod(generateWriteFieldsMethod(fieldCodeGane));
+        classBuilder.addMethod(generateReadFieldMethod(fieldCodeGane));
 
         for(FieldCodeGen codeGen : fieldCodeGane) {
             classBuilder.addField(codeGen.genField());
@@ -201,6 +209,80 @@ public class JavaCodeGenerator {
         return builder.build();
     }
 
+    private static MethodSpec generateWriteToMethod() {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("writeTo");
+        builder.addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                .returns(TypeName.VOID)
+                .addParameter(DataOutput.class, "out")
+                .addException(IOException.class);
+
+        builder.addStatement("$T.writeObjectStart(out)", UBCodec.class);
+        builder.addStatement("writeFields(out)");
+        builder.addStatement("$T.writeKey(out, $S)", UBCodec.class, "type");
+        builder.addStatement("$T.writeString(out, TYPE.asString())", UBCodec.class);
+        builder.addStatement("$T.writeObjectEnd(out)", UBCodec.class);
+
+        return builder.build();
+    }
+
+    private static MethodSpec generateWriteFieldsMethod(ArrayList<FieldCodeGen> fieldCodeGens) {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("writeFields");
+        builder.addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .returns(TypeName.VOID)
+                .addParameter(DataOutput.class, "out")
+                .addException(IOException.class);
+
+        builder.addStatement("super.writeFields(out)");
+        builder.addStatement("final $T db = getDB()", MicroDB.class);
+
+        for(FieldCodeGen fieldCodeGen : fieldCodeGens) {
+            if(!fieldCodeGen.mField.type.annotations.contains(NO_SERIALIZE)) {
+                builder.addStatement("$T.writeKey(out, $S)", UBCodec.class, fieldCodeGen.mField.name);
+                fieldCodeGen.genWriteTo(builder);
+            }
+        }
+
+        return builder.build();
+    }
+
+    private static MethodSpec generateReadFieldMethod(ArrayList<FieldCodeGen> fieldCodeGens) {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("readField");
+        builder.addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .returns(TypeName.BOOLEAN)
+                .addParameter(String.class, "key")
+                .addParameter(DataInput.class, "in")
+                .addException(IOException.class);
+
+        builder.addStatement("final $T db = getDB()", MicroDB.class);
+
+        boolean first = true;
+        for(FieldCodeGen fieldCodeGen : fieldCodeGens) {
+            if(!fieldCodeGen.mField.type.annotations.contains(NO_SERIALIZE)) {
+                if(first) {
+                    builder.beginControlFlow("if ($S.equals(key))", fieldCodeGen.mField.name);
+                    first = false;
+                } else {
+                    builder.nextControlFlow("else if ($S.equals(key))", fieldCodeGen.mField.name);
+                }
+                fieldCodeGen.genReadField(builder);
+            }
+        }
+
+        if(first) {
+            builder.addStatement("return super.readField(key, in)");
+        } else {
+            builder.nextControlFlow("else");
+            builder.addStatement("return super.readField(key, in)");
+            builder.endControlFlow();
+            builder.addStatement("return true");
+        }
+
+        return builder.build();
+    }
+
     private void generateInstallMethod(TypeSpec.Builder classBuilder, ArrayList<FieldCodeGen> fields) {
         MethodSpec.Builder builder = MethodSpec.methodBuilder("install")
                 .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
@@ -215,6 +297,12 @@ public class JavaCodeGenerator {
             builder.addCode(blockBuilder.build());
         }
 
+        for(Nodes.IndexNode index : mDBO.indices) {
+            CodeBlock.Builder blockBuilder = CodeBlock.builder();
+            excptionsTypes.addAll(new CompositeIndexCodeGen(index).genInstallCode(blockBuilder));
+            builder.addCode(blockBuilder.build());
+        }
+
         for(Class execType : excptionsTypes) {
             builder.addException(execType);
         }
@@ -225,10 +313,20 @@ public class JavaCodeGenerator {
 
     private void generateOtherMethods(TypeSpec.Builder classBuilder, ArrayList<FieldCodeGen> fields) {
         for(FieldCodeGen fieldCodeGen : fields) {
-            if(fieldCodeGen.mField.type.annotations.contains(INDEX)) {
-                fieldCodeGen.genOtherMethods(classBuilder);
+            Nodes.FieldNode field = fieldCodeGen.mField;
+            if(field.type.annotations.contains(INDEX)) {
+                if(field.type.indexKind != MicroDB.IndexKind.Tree) {
+                    final String indexName = String.format("%s.%s_idx", mDBO.name, field.name);
+                    classBuilder.addMethod(createLookupMethod(indexName, field.type.indexKind, Collections.singletonList(field), false));
+                } else {
+                    fieldCodeGen.genOtherMethods(classBuilder);
+                }
             }
         }
+
+        for(Nodes.IndexNode index : mDBO.indices) {
+            new CompositeIndexCodeGen(index).genOtherMethods(classBuilder);
+        }
     }
 
     static TypeName getTypeName(Nodes.TypeNode type) {
@@ -297,6 +395,177 @@ public class JavaCodeGenerator {
         return retval;
     }
 
+    /**
+     * starts the {@link MicroDB#addIndex} call of an index and its map function
+     */
+    private static void beginAddIndex(CodeBlock.Builder codeBuilder, String indexName, MicroDB.IndexKind kind, Class<?> keyType) {
+        codeBuilder.add("db.addIndex($S, ", indexName);
+        if(kind != MicroDB.IndexKind.Tree) {
+            codeBuilder.add("$T.$L, ", MicroDB.IndexKind.class, kind.name());
+        }
+        codeBuilder.add("new $T<$T>() {\n", MapFunction.class, keyType);
+    }
+
+    /**
+     * @return a method that looks up the ids of the objects whose index key is made of the
+     * values of {@code fields}, or for a unique index the one object, without opening a cursor
+     */
+    private MethodSpec createLookupMethod(String indexName, MicroDB.IndexKind kind, List<Nodes.FieldNode> fields, boolean composite) {
+        final boolean unique = kind == MicroDB.IndexKind.Unique;
+        StringBuilder methodName = new StringBuilder(unique ? "getBy" : "lookupBy");
+        StringBuilder args = new StringBuilder();
+        for(Nodes.FieldNode field : fields) {
+            methodName.append(field.name.substring(0, 1).toUpperCase()).append(field.name.substring(1));
+            if(args.length() > 0) {
+                args.append(", ");
+            }
+            args.append(field.name);
+        }
+        methodName.append("Index");
+
+        MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName.toString())
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(unique ? getThisClassName() : ParameterizedTypeName.get(List.class, UUID.class))
+                .addParameter(MicroDB.class, "db");
+        for(Nodes.FieldNode field : fields) {
+            builder.addParameter(getTypeName(field.type), field.name);
+        }
+        builder.addException(IOException.class);
+
+        CodeBlock.Builder key = CodeBlock.builder();
+        if(composite) {
+            key.add("$T.of($L)", CompositeKey.class, args);
+        } else {
+            key.add("$L", args);
+        }
+        if(unique) {
+            builder.addStatement("return db.getByUniqueKey($S, $L, new $T())", indexName, key.build(), getThisClassName());
+        } else {
+            builder.addStatement("return db.lookupIndex($S, $L)", indexName, key.build());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the trailing arguments of {@link MicroDB#addIndex(String, MapFunction, String...)}
+     * for an index that includes {@code include}, or nothing for an index without includes
+     */
+    private static String createIncludeArgs(List<String> include) {
+        StringBuilder builder = new StringBuilder();
+        for(String field : include) {
+            builder.append(", \"").append(field).append('"');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * An index over several fields, keyed by a {@link CompositeKey} of their values. Objects
+     * missing any of the values are not indexed. The query method takes the values of all but
+     * the last field as the prefix, and a range over the last one.
+     */
+    private class CompositeIndexCodeGen {
+        final Nodes.IndexNode mIndex;
+
+        CompositeIndexCodeGen(Nodes.IndexNode index) {
+            mIndex = index;
+        }
+
+        String createIndexName() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(mDBO.name).append('.');
+            for(Nodes.FieldNode field : mIndex.fields) {
+                builder.append(field.name).append('_');
+            }
+            builder.append("idx");
+            return builder.toString();
+        }
+
+        public Set<Class<? extends Exception>> genInstallCode(CodeBlock.Builder codeBuilder) {
+            ClassName thisClassName = getThisClassName();
+            beginAddIndex(codeBuilder, createIndexName(), mIndex.kind, CompositeKey.class);
+            codeBuilder.indent();
+            codeBuilder.add("@$T\npublic void map($T value, $T<$T> emitter) {\n", Override.class, UBValue.class, Emitter.class, CompositeKey.class);
+            codeBuilder.indent();
+            codeBuilder.beginControlFlow("if ($T.isValidObject(value, $T.SUBTYPES))", Utils.class, thisClassName);
+            codeBuilder.addStatement("$T obj = value.asObject()", UBObject.class);
+
+            StringBuilder condition = new StringBuilder();
+            StringBuilder keyValues = new StringBuilder();
+            for(int i=0;i<mIndex.fields.size();i++) {
+                Nodes.FieldNode field = mIndex.fields.get(i);
+                final String v = "v" + i;
+                codeBuilder.addStatement("$T $L = obj.get($S)", UBValue.class, v, field.name);
+                if(i > 0) {
+                    condition.append(" && ");
+                    keyValues.append(", ");
+                }
+                condition.append(v).append(" != null && ").append(v);
+                if(field.type.type == Nodes.TypeNode.STRING) {
+                    condition.append(".isString()");
+                    keyValues.append(v).append(".asString()");
+                } else if(((Nodes.NumberType) field.type).size == 64) {
+                    condition.append(".isInteger()");
+                    keyValues.append(v).append(".asLong()");
+                } else {
+                    condition.append(".isInteger()");
+                    keyValues.append(v).append(".asInt()");
+                }
+            }
+            codeBuilder.beginControlFlow("if ($L)", condition);
+            codeBuilder.addStatement("emitter.emit($T.of($L))", CompositeKey.class, keyValues);
+            codeBuilder.endControlFlow();
+            codeBuilder.endControlFlow();
+            codeBuilder.unindent();
+            codeBuilder.add("}\n");
+            codeBuilder.unindent();
+            codeBuilder.addStatement("}$L)", createIncludeArgs(mIndex.include));
+
+            Set<Class<? extends Exception>> retval = new HashSet<Class<? extends Exception>>();
+            retval.add(IOException.class);
+            return retval;
+        }
+
+        public void genOtherMethods(TypeSpec.Builder classBuilder) {
+            if(mIndex.kind != MicroDB.IndexKind.Tree) {
+                classBuilder.addMethod(createLookupMethod(createIndexName(), mIndex.kind, mIndex.fields, true));
+                return;
+            }
+
+            StringBuilder methodName = new StringBuilder("queryBy");
+            for(Nodes.FieldNode field : mIndex.fields) {
+                methodName.append(field.name.substring(0, 1).toUpperCase()).append(field.name.substring(1));
+            }
+            methodName.append("Index");
+
+            MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName.toString())
+                    .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                    .returns(Cursor.class)
+                    .addParameter(MicroDB.class, "db");
+
+            StringBuilder prefix = new StringBuilder();
+            final int last = mIndex.fields.size() - 1;
+            for(int i=0;i<last;i++) {
+                Nodes.FieldNode field = mIndex.fields.get(i);
+                builder.addParameter(getTypeName(field.type), field.name);
+                if(i > 0) {
+                    prefix.append(", ");
+                }
+                prefix.append(field.name);
+            }
+
+            TypeName rangeType = getTypeName(mIndex.fields.get(last).type).box();
+            builder.addParameter(rangeType, "min")
+                    .addParameter(boolean.class, "includeMin")
+                    .addParameter(rangeType, "max")
+                    .addParameter(boolean.class, "includeMax")
+                    .addException(IOException.class)
+                    .addStatement("return db.queryIndex($S, $T.of($L), min, includeMin, max, includeMax)",
+                            createIndexName(), CompositeKey.class, prefix);
+
+            classBuilder.addMethod(builder.build());
+        }
+    }
+
     private abstract class FieldCodeGen {
         Nodes.FieldNode mField;
 
@@ -323,6 +592,16 @@ public class JavaCodeGenerator {
         }
         abstract void genReadFromUBObject(MethodSpec.Builder builder);
         abstract void genWriteToUBObject(MethodSpec.Builder builder);
+
+        /**
+         * writes the field's value with {@link UBCodec}; the key has already been written
+         */
+        abstract void genWriteTo(MethodSpec.Builder builder);
+
+        /**
+         * reads the field's value, which is next in {@code in}, with {@link UBCodec}
+         */
+        abstract void genReadField(MethodSpec.Builder builder);
         MethodSpec genGetterMethod() {
             final String getterName = createGetterName();
             return MethodSpec.methodBuilder(getterName)
@@ -351,6 +630,70 @@ public class JavaCodeGenerator {
         }
     }
 
+    /**
+     * Arrays of primitives may be stored out of line, in which case they are only read when
+     * the getter is first called. Everything that reads the field goes through the getter,
+     * except saving the object, which writes back an array that was not read as it is stored.
+     * Reading the object from a UBObject keeps such an array unread too.
+     */
+    private abstract class PrimitiveArrayFieldCodeGen extends FieldCodeGen {
+
+        PrimitiveArrayFieldCodeGen(Nodes.FieldNode field) {
+            super(field);
+        }
+
+        @Override
+        MethodSpec genGetterMethod() {
+            return MethodSpec.methodBuilder(createGetterName())
+                    .addModifiers(Modifier.PUBLIC)
+                    .returns(getTypeName(mField.type))
+                    .addStatement("loadArray($S)", mField.name)
+                    .addStatement("return $L", mField.name)
+                    .build();
+        }
+
+        @Override
+        MethodSpec genSetterMethod() {
+            return MethodSpec.methodBuilder(createSetterName())
+                    .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                    .returns(TypeName.VOID)
+                    .addParameter(getTypeName(mField.type), "value")
+                    .addStatement("this.$L = value", mField.name)
+                    .addStatement("clearArrayRef($S)", mField.name)
+                    .addStatement("setDirty()")
+                    .build();
+        }
+
+        /**
+         * @return the UBValue method that reads the array
+         */
+        abstract String getAsArrayMethod();
+
+        @Override
+        void genReadFromUBObject(MethodSpec.Builder methodBuilder) {
+            methodBuilder.beginControlFlow("if (!readArrayRef(obj, $S))", mField.name);
+            methodBuilder.addStatement("value = obj.get($S)", mField.name);
+            methodBuilder.beginControlFlow("if (value != null && value.isArray())");
+            methodBuilder.addStatement("this.$L = value.$L()", mField.name, getAsArrayMethod());
+            methodBuilder.endControlFlow();
+            methodBuilder.endControlFlow();
+        }
+
+        @Override
+        void genWriteToUBObject(MethodSpec.Builder methodBuilder) {
+            methodBuilder.beginControlFlow("if (!putArrayRef(obj, $S))", mField.name);
+            methodBuilder.addStatement("obj.put($S, $T.createArrayOrNull($L()))", mField.name, UBValueFactory.class, createGetterName());
+            methodBuilder.endControlFlow();
+        }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.beginControlFlow("if (!writeArrayRef(out, $S))", mField.name);
+            methodBuilder.addStatement("$T.writeArray(out, $L())", UBCodec.class, createGetterName());
+            methodBuilder.endControlFlow();
+        }
+    }
+
     class BoolFieldCodeGen extends FieldCodeGen {
 
         BoolFieldCodeGen(Nodes.FieldNode field) {
@@ -373,29 +716,32 @@ public class JavaCodeGenerator {
                     .addStatement("obj.put($S, $T.createBool($L))", mField.name, UBValueFactory.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeBool(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readBool(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
     }
 
-    class BoolArrayFieldCodeGen extends FieldCodeGen {
+    class BoolArrayFieldCodeGen extends PrimitiveArrayFieldCodeGen {
 
         BoolArrayFieldCodeGen(Nodes.FieldNode field) {
             super(field);
         }
 
         @Override
-        void genReadFromUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder.addStatement("value = obj.get($S)", mField.name);
-            methodBuilder.beginControlFlow("if (value != null && value.isArray())");
-            methodBuilder.addStatement("this.$L = value.asBoolArray()", mField.name);
-            methodBuilder.endControlFlow();
-
-
+        String getAsArrayMethod() {
+            return "asBoolArray";
         }
 
         @Override
-        void genWriteToUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder
-                    .addStatement("obj.put($S, $T.createArrayOrNull($L))", mField.name, UBValueFactory.class, mField.name);
-
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readBoolArray(in, this.$L)", mField.name, UBCodec.class, mField.name);
         }
     }
 
@@ -421,29 +767,32 @@ public class JavaCodeGenerator {
                     .addStatement("obj.put($S, $T.createInt($L))", mField.name, UBValueFactory.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeInt(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = (byte) $T.readLong(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
     }
 
-    class ByteArrayFieldCodeGen extends FieldCodeGen {
+    class ByteArrayFieldCodeGen extends PrimitiveArrayFieldCodeGen {
 
         ByteArrayFieldCodeGen(Nodes.FieldNode field) {
             super(field);
         }
 
         @Override
-        void genReadFromUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder.addStatement("value = obj.get($S)", mField.name);
-            methodBuilder.beginControlFlow("if (value != null && value.isArray())");
-            methodBuilder.addStatement("this.$L = value.asByteArray()", mField.name);
-            methodBuilder.endControlFlow();
-
-
+        String getAsArrayMethod() {
+            return "asByteArray";
         }
 
         @Override
-        void genWriteToUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder
-                    .addStatement("obj.put($S, $T.createArrayOrNull($L))", mField.name, UBValueFactory.class, mField.name);
-
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readByteArray(in, this.$L)", mField.name, UBCodec.class, mField.name);
         }
     }
 
@@ -469,29 +818,32 @@ public class JavaCodeGenerator {
                     .addStatement("obj.put($S, $T.createInt($L))", mField.name, UBValueFactory.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeInt(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = (short) $T.readLong(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
     }
 
-    class ShortArrayFieldCodeGen extends FieldCodeGen {
+    class ShortArrayFieldCodeGen extends PrimitiveArrayFieldCodeGen {
 
         ShortArrayFieldCodeGen(Nodes.FieldNode field) {
             super(field);
         }
 
         @Override
-        void genReadFromUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder.addStatement("value = obj.get($S)", mField.name);
-            methodBuilder.beginControlFlow("if (value != null && value.isArray())");
-            methodBuilder.addStatement("this.$L = value.asShortArray()", mField.name);
-            methodBuilder.endControlFlow();
-
-
+        String getAsArrayMethod() {
+            return "asShortArray";
         }
 
         @Override
-        void genWriteToUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder
-                    .addStatement("obj.put($S, $T.createArrayOrNull($L))", mField.name, UBValueFactory.class, mField.name);
-
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readShortArray(in, this.$L)", mField.name, UBCodec.class, mField.name);
         }
     }
 
@@ -517,6 +869,16 @@ public class JavaCodeGenerator {
                     .addStatement("obj.put($S, $T.createInt($L))", mField.name, UBValueFactory.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeInt(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readChar(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
     }
 
     class IntFieldCodeGen extends FieldCodeGen {
@@ -542,6 +904,16 @@ public class JavaCodeGenerator {
 
         }
 
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeInt(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = (int) $T.readLong(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
+
         @Override
         public Set<Class<? extends Exception>> genInstallCode(CodeBlock.Builder codeBuilder) {
             Set<Class<? extends Exception>> retval = new HashSet<Class<? extends Exception>>();
@@ -549,7 +921,7 @@ public class JavaCodeGenerator {
             if(mField.type.annotations.contains(INDEX)) {
                 ClassName thisClassName = getThisClassName();
                 final String indexName = String.format("%s.%s_idx", thisClassName.simpleName(), mField.name);
-                codeBuilder.add("db.addIndex($S, new $T<$T>() {\n", indexName, MapFunction.class, Integer.class);
+                beginAddIndex(codeBuilder, indexName, mField.type.indexKind, Integer.class);
                 codeBuilder.indent();
                 codeBuilder.add("@$T\npublic void map($T value, $T<$T> emitter) {\n", Override.class, UBValue.class, Emitter.class, Integer.class);
                 codeBuilder.indent();
@@ -562,7 +934,7 @@ public class JavaCodeGenerator {
                 codeBuilder.unindent();
                 codeBuilder.add("}\n");
                 codeBuilder.unindent();
-                codeBuilder.addStatement("})");
+                codeBuilder.addStatement("}$L)", createIncludeArgs(mField.type.indexInclude));
                 codeBuilder.build();
                 retval.add(IOException.class);
 
@@ -594,27 +966,20 @@ public class JavaCodeGenerator {
         }
     }
 
-    class IntArrayFieldCodeGen extends FieldCodeGen {
+    class IntArrayFieldCodeGen extends PrimitiveArrayFieldCodeGen {
 
         IntArrayFieldCodeGen(Nodes.FieldNode field) {
             super(field);
         }
 
         @Override
-        void genReadFromUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder.addStatement("value = obj.get($S)", mField.name);
-            methodBuilder.beginControlFlow("if (value != null && value.isArray())");
-            methodBuilder.addStatement("this.$L = value.asInt32Array()", mField.name);
-            methodBuilder.endControlFlow();
-
-
+        String getAsArrayMethod() {
+            return "asInt32Array";
         }
 
         @Override
-        void genWriteToUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder
-                    .addStatement("obj.put($S, $T.createArrayOrNull($L))", mField.name, UBValueFactory.class, mField.name);
-
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readInt32Array(in, this.$L)", mField.name, UBCodec.class, mField.name);
         }
     }
 
@@ -641,6 +1006,16 @@ public class JavaCodeGenerator {
 
         }
 
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeInt(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readLong(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
+
         @Override
         public Set<Class<? extends Exception>> genInstallCode(CodeBlock.Builder codeBuilder) {
             Set<Class<? extends Exception>> retval = new HashSet<Class<? extends Exception>>();
@@ -669,7 +1044,7 @@ public class JavaCodeGenerator {
             if(mField.type.annotations.contains(INDEX)) {
                 ClassName thisClassName = getThisClassName();
                 final String indexName = String.format("%s.%s_idx", thisClassName.simpleName(), mField.name);
-                codeBuilder.add("db.addIndex($S, new $T<$T>() {\n", indexName, MapFunction.class, Long.class);
+                beginAddIndex(codeBuilder, indexName, mField.type.indexKind, Long.class);
                 codeBuilder.indent();
                 codeBuilder.add("@$T\npublic void map($T value, $T<$T> emitter) {\n", Override.class, UBValue.class, Emitter.class, Long.class);
                 codeBuilder.indent();
@@ -682,7 +1057,7 @@ public class JavaCodeGenerator {
                 codeBuilder.unindent();
                 codeBuilder.add("}\n");
                 codeBuilder.unindent();
-                codeBuilder.addStatement("})");
+                codeBuilder.addStatement("}$L)", createIncludeArgs(mField.type.indexInclude));
                 codeBuilder.build();
                 retval.add(IOException.class);
 
@@ -715,27 +1090,20 @@ public class JavaCodeGenerator {
         }
     }
 
-    class LongArrayFieldCodeGen extends FieldCodeGen {
+    class LongArrayFieldCodeGen extends PrimitiveArrayFieldCodeGen {
 
         LongArrayFieldCodeGen(Nodes.FieldNode field) {
             super(field);
         }
 
         @Override
-        void genReadFromUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder.addStatement("value = obj.get($S)", mField.name);
-            methodBuilder.beginControlFlow("if (value != null && value.isArray())");
-            methodBuilder.addStatement("this.$L = value.asInt64Array()", mField.name);
-            methodBuilder.endControlFlow();
-
-
+        String getAsArrayMethod() {
+            return "asInt64Array";
         }
 
         @Override
-        void genWriteToUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder
-                    .addStatement("obj.put($S, $T.createArrayOrNull($L))", mField.name, UBValueFactory.class, mField.name);
-
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readInt64Array(in, this.$L)", mField.name, UBCodec.class, mField.name);
         }
     }
 
@@ -761,29 +1129,32 @@ public class JavaCodeGenerator {
                     .addStatement("obj.put($S, $T.createFloat32($L))", mField.name, UBValueFactory.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeFloat32(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = (float) $T.readDouble(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
     }
 
-    class FloatArrayFieldCodeGen extends FieldCodeGen {
+    class FloatArrayFieldCodeGen extends PrimitiveArrayFieldCodeGen {
 
         FloatArrayFieldCodeGen(Nodes.FieldNode field) {
             super(field);
         }
 
         @Override
-        void genReadFromUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder.addStatement("value = obj.get($S)", mField.name);
-            methodBuilder.beginControlFlow("if (value != null && value.isArray())");
-            methodBuilder.addStatement("this.$L = value.asFloat32Array()", mField.name);
-            methodBuilder.endControlFlow();
-
-
+        String getAsArrayMethod() {
+            return "asFloat32Array";
         }
 
         @Override
-        void genWriteToUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder
-                    .addStatement("obj.put($S, $T.createArrayOrNull($L))", mField.name, UBValueFactory.class, mField.name);
-
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readFloat32Array(in, this.$L)", mField.name, UBCodec.class, mField.name);
         }
     }
 
@@ -809,29 +1180,32 @@ public class JavaCodeGenerator {
                     .addStatement("obj.put($S, $T.createFloat64($L))", mField.name, UBValueFactory.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeFloat64(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readDouble(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
     }
 
-    class DoubleArrayFieldCodeGen extends FieldCodeGen {
+    class DoubleArrayFieldCodeGen extends PrimitiveArrayFieldCodeGen {
 
         DoubleArrayFieldCodeGen(Nodes.FieldNode field) {
             super(field);
         }
 
         @Override
-        void genReadFromUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder.addStatement("value = obj.get($S)", mField.name);
-            methodBuilder.beginControlFlow("if (value != null && value.isArray())");
-            methodBuilder.addStatement("this.$L = value.asFloat64Array()", mField.name);
-            methodBuilder.endControlFlow();
-
-
+        String getAsArrayMethod() {
+            return "asFloat64Array";
         }
 
         @Override
-        void genWriteToUBObject(MethodSpec.Builder methodBuilder) {
-            methodBuilder
-                    .addStatement("obj.put($S, $T.createArrayOrNull($L))", mField.name, UBValueFactory.class, mField.name);
-
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readFloat64Array(in, this.$L)", mField.name, UBCodec.class, mField.name);
         }
     }
 
@@ -861,6 +1235,16 @@ public class JavaCodeGenerator {
 
         }
 
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeString(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readString(in)", mField.name, UBCodec.class);
+        }
+
         @Override
         public Set<Class<? extends Exception>> genInstallCode(CodeBlock.Builder codeBuilder) {
             Set<Class<? extends Exception>> retval = new HashSet<Class<? extends Exception>>();
@@ -868,7 +1252,7 @@ public class JavaCodeGenerator {
             if(mField.type.annotations.contains(INDEX)) {
                 ClassName thisClassName = getThisClassName();
                 final String indexName = String.format("%s.%s_idx", thisClassName.simpleName(), mField.name);
-                codeBuilder.add("db.addIndex($S, new $T<$T>() {\n", indexName, MapFunction.class, String.class);
+                beginAddIndex(codeBuilder, indexName, mField.type.indexKind, String.class);
                 codeBuilder.indent();
                 codeBuilder.add("@$T\npublic void map($T value, $T<$T> emitter) {\n", Override.class, UBValue.class, Emitter.class, String.class);
                 codeBuilder.indent();
@@ -881,7 +1265,7 @@ public class JavaCodeGenerator {
                 codeBuilder.unindent();
                 codeBuilder.add("}\n");
                 codeBuilder.unindent();
-                codeBuilder.addStatement("})");
+                codeBuilder.addStatement("}$L)", createIncludeArgs(mField.type.indexInclude));
                 codeBuilder.build();
                 retval.add(IOException.class);
 
@@ -934,6 +1318,16 @@ public class JavaCodeGenerator {
                     .addStatement("obj.put($S, $T.createArrayOrNull($L))", mField.name, UBValueFactory.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeArray(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readStringArray(in, this.$L)", mField.name, UBCodec.class, mField.name);
+        }
     }
 
     class DBOFieldCodeGen extends FieldCodeGen {
@@ -962,6 +1356,18 @@ public class JavaCodeGenerator {
                     mField.name, Utils.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeValue(out, $T.writeDBObj(db, $L))",
+                    UBCodec.class, Utils.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("this.$L = $T.readDBObj(db, $T.readValue(in), new $T())",
+                    mField.name, Utils.class, UBCodec.class, mClassName);
+        }
     }
 
     class DBOArrayFieldCodeGen extends FieldCodeGen {
@@ -994,6 +1400,27 @@ public class JavaCodeGenerator {
                     mField.name, Utils.class, mField.name);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T.writeValue(out, $T.createArrayOrNull(db, $L))",
+                    UBCodec.class, Utils.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder methodBuilder) {
+            methodBuilder.addStatement("$T value = $T.readValue(in)", UBValue.class, UBCodec.class);
+            methodBuilder.beginControlFlow("if (value.isArray())");
+            methodBuilder.addStatement("$T array = value.asArray()", UBArray.class);
+            methodBuilder.addStatement("final int size = array.size()");
+            methodBuilder.addStatement("this.$L = new $T[size]", mField.name, mClassName);
+            methodBuilder.beginControlFlow("for (int i=0;i<size;i++)");
+            methodBuilder.addStatement("this.$L[i] = $T.readDBObj(db, array.get(i), new $T())", mField.name, Utils.class, mClassName);
+            methodBuilder.endControlFlow();
+            methodBuilder.nextControlFlow("else");
+            methodBuilder.addStatement("this.$L = null", mField.name);
+            methodBuilder.endControlFlow();
+        }
     }
 
     class UBObjectFieldCodeGen extends FieldCodeGen {
@@ -1016,6 +1443,19 @@ public class JavaCodeGenerator {
                     mField.name, mField.name, mField.name, UBValueFactory.class);
 
         }
+
+        @Override
+        void genWriteTo(MethodSpec.Builder builder) {
+            builder.addStatement("$T.writeValue(out, $L)", UBCodec.class, mField.name);
+        }
+
+        @Override
+        void genReadField(MethodSpec.Builder builder) {
+            builder.addStatement("$T value = $T.readValue(in)", UBValue.class, UBCodec.class);
+            builder.beginControlFlow("if (value.isObject())");
+            builder.addStatement("this.$L = value.asObject()", mField.name);
+            builder.endControlFlow();
+        }
     }
 
 
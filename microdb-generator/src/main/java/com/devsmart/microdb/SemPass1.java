@@ -5,6 +5,8 @@ import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
+import java.util.List;
+
 
 public class SemPass1 extends MicroDBBaseVisitor<Nodes.Node> {
 
@@ -35,11 +37,72 @@ public class SemPass1 extends MicroDBBaseVisitor<Nodes.Node> {
         String extend = ctx.extend != null ? ctx.extend.getText() : null;
 
         mCurrentDBO = new Nodes.DBONode(name, extend);
+        for(MicroDBParser.AnnotationContext annotation : ctx.annotation()) {
+            visit(annotation);
+        }
         visit(ctx.exprlist());
         mContext.allDBO.add(mCurrentDBO);
         return putMap(ctx, mCurrentDBO);
     }
 
+    @Override
+    public Nodes.Node visitAnnotation(MicroDBParser.AnnotationContext ctx) {
+        String name = ctx.name.getText();
+        if(!"Index".equals(name)) {
+            error("unknown dbo annotation '" + name + "'", ctx.name);
+            return null;
+        }
+
+        Nodes.IndexNode indexNode = new Nodes.IndexNode();
+        for(MicroDBParser.AnnotationArgContext arg : ctx.args) {
+            if(arg.key == null && arg.values.size() == 1) {
+                indexNode.fieldNames.add(arg.values.get(0).getText());
+            } else if(isArg(arg, "include")) {
+                addNames(arg, indexNode.include);
+            } else if(isArg(arg, "kind")) {
+                indexNode.kind = getIndexKind(arg);
+            } else {
+                error("unknown @Index argument", arg.start);
+            }
+        }
+        if(indexNode.fieldNames.isEmpty()) {
+            error("@Index on a dbo needs the fields to index, as in @Index(field1, field2)", ctx.name);
+            return null;
+        }
+        if(indexNode.kind != MicroDB.IndexKind.Tree && !indexNode.include.isEmpty()) {
+            error("a " + indexNode.kind.name().toLowerCase() + " index can not include fields", ctx.name);
+        }
+        mCurrentDBO.indices.add(indexNode);
+        return putMap(ctx, indexNode);
+    }
+
+    private static boolean isArg(MicroDBParser.AnnotationArgContext arg, String key) {
+        return arg.key != null && key.equals(arg.key.getText());
+    }
+
+    /**
+     * @return the index kind of kind=TREE, kind=HASH or kind=UNIQUE
+     */
+    private MicroDB.IndexKind getIndexKind(MicroDBParser.AnnotationArgContext arg) {
+        final String kind = arg.values.size() == 1 ? arg.values.get(0).getText() : null;
+        if("HASH".equals(kind)) {
+            return MicroDB.IndexKind.Hash;
+        }
+        if("UNIQUE".equals(kind)) {
+            return MicroDB.IndexKind.Unique;
+        }
+        if(!"TREE".equals(kind)) {
+            error("unknown index kind, expected TREE, HASH or UNIQUE", arg.start);
+        }
+        return MicroDB.IndexKind.Tree;
+    }
+
+    private static void addNames(MicroDBParser.AnnotationArgContext arg, List<String> names) {
+        for(Token value : arg.values) {
+            names.add(value.getText());
+        }
+    }
+
     @Override
     public Nodes.Node visitField(MicroDBParser.FieldContext ctx) {
 
@@ -94,8 +157,22 @@ public class SemPass1 extends MicroDBBaseVisitor<Nodes.Node> {
     @Override
     public Nodes.Node visitType(MicroDBParser.TypeContext ctx) {
         Nodes.TypeNode retval = (Nodes.TypeNode) visit(ctx.type1());
-        for(Token anno : ctx.anno){
-            retval.annotations.add(anno.getText());
+        for(MicroDBParser.AnnotationContext anno : ctx.annotation()){
+            String name = anno.name.getText();
+            retval.annotations.add(name);
+            for(MicroDBParser.AnnotationArgContext arg : anno.args) {
+                if("Index".equals(name) && isArg(arg, "include")) {
+                    addNames(arg, retval.indexInclude);
+                } else if("Index".equals(name) && isArg(arg, "kind")) {
+                    retval.indexKind = getIndexKind(arg);
+                } else {
+                    error("unknown @" + name + " argument", arg.start);
+                }
+            }
+            if(retval.indexKind != MicroDB.IndexKind.Tree && !retval.indexInclude.isEmpty()) {
+                error("a " + retval.indexKind.name().toLowerCase() + " index can not include fields", anno.name);
+            }
+            putMap(anno, retval);
         }
         retval.isArray = ctx.ARRAYTYPE() != null;
         return retval;
@@ -2,13 +2,16 @@ package com.devsmart.microdb;
 
 
 import com.devsmart.microdb.ast.Nodes;
+import org.antlr.v4.runtime.Token;
 
+import java.util.HashSet;
 import java.util.List;
 
 public class SemPass2 extends MicroDBBaseVisitor<Void> {
 
     private final CompilerContext mContext;
     private String mCurrentPackage;
+    private Nodes.DBONode mCurrentDBO;
 
     public SemPass2(CompilerContext ctx) {
         mContext = ctx;
@@ -42,6 +45,95 @@ public class SemPass2 extends MicroDBBaseVisitor<Void> {
         }
     }
 
+    @Override
+    public Void visitDbo(MicroDBParser.DboContext ctx) {
+        mCurrentDBO = (Nodes.DBONode) mContext.nodeMap.get(ctx);
+        return super.visitDbo(ctx);
+    }
+
+    @Override
+    public Void visitAnnotation(MicroDBParser.AnnotationContext ctx) {
+        Nodes.Node node = mContext.nodeMap.get(ctx);
+        if(node instanceof Nodes.IndexNode) {
+            Nodes.IndexNode indexNode = (Nodes.IndexNode) node;
+            for(MicroDBParser.AnnotationArgContext arg : ctx.args) {
+                if(arg.key != null) {
+                    continue;
+                }
+                Token name = arg.values.get(0);
+                Nodes.FieldNode field = findField(mCurrentDBO, name.getText());
+                if(field == null) {
+                    mContext.error("no field named '" + name.getText() + "' to index", name);
+                } else if(!isIndexable(field.type)) {
+                    mContext.error("field '" + name.getText() + "' can not be indexed, only int, long and string fields can", name);
+                } else {
+                    indexNode.fields.add(field);
+                }
+            }
+        }
+        if(node != null) {
+            for(MicroDBParser.AnnotationArgContext arg : ctx.args) {
+                if(arg.key != null) {
+                    checkIncluded(arg);
+                }
+            }
+        }
+        return super.visitAnnotation(ctx);
+    }
+
+    /**
+     * the fields an index includes are copied from the stored object, so they must be stored
+     */
+    private void checkIncluded(MicroDBParser.AnnotationArgContext arg) {
+        for(Token name : arg.values) {
+            Nodes.FieldNode field = findField(mCurrentDBO, name.getText());
+            if(field == null) {
+                mContext.error("no field named '" + name.getText() + "' to include", name);
+            } else if(field.type.annotations.contains("NoSerialize")) {
+                mContext.error("field '" + name.getText() + "' is not stored and can not be included", name);
+            }
+        }
+    }
+
+    /**
+     * @return the field named {@code name} of {@code dbo} or of one of the dbos it extends
+     */
+    private Nodes.FieldNode findField(Nodes.DBONode dbo, String name) {
+        HashSet<Nodes.DBONode> visited = new HashSet<Nodes.DBONode>();
+        while(dbo != null && visited.add(dbo)) {
+            for(Nodes.FieldNode field : dbo.fields) {
+                if(field.name.equals(name)) {
+                    return field;
+                }
+            }
+            dbo = findDBO(dbo.extend);
+        }
+        return null;
+    }
+
+    private Nodes.DBONode findDBO(String name) {
+        for(Nodes.DBONode dboNode : mContext.allDBO) {
+            if(dboNode.name.equals(name)) {
+                return dboNode;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isIndexable(Nodes.TypeNode type) {
+        if(type.isArray) {
+            return false;
+        }
+        if(type.type == Nodes.TypeNode.STRING) {
+            return true;
+        }
+        if(type.type == Nodes.TypeNode.INT) {
+            final int size = ((Nodes.NumberType) type).size;
+            return size == 32 || size == 64;
+        }
+        return false;
+    }
+
     @Override
     public Void visitObjType(MicroDBParser.ObjTypeContext ctx) {
         Nodes.ObjType objNode = (Nodes.ObjType) mContext.nodeMap.get(ctx);
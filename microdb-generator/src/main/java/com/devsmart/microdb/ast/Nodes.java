@@ -1,6 +1,7 @@
 package com.devsmart.microdb.ast;
 
 
+import com.devsmart.microdb.MicroDB;
 import com.squareup.javapoet.ClassName;
 
 import java.util.ArrayList;
@@ -24,6 +25,7 @@ public class Nodes {
         public final ArrayList<FieldNode> fields = new ArrayList<FieldNode>();
         public final ArrayList<String> codeblocks = new ArrayList<String>();
         public final ArrayList<DBONode> dboThatExtend = new ArrayList<DBONode>();
+        public final ArrayList<IndexNode> indices = new ArrayList<IndexNode>();
 
         public DBONode(String name, String extend) {
             this.name = name;
@@ -42,6 +44,17 @@ public class Nodes {
 
     }
 
+    /**
+     * An index over several fields, declared on the dbo with {@code @Index(field1, field2)}.
+     * The fields may be inherited; they are resolved by name in the second pass.
+     */
+    public static class IndexNode extends Node {
+        public final ArrayList<String> fieldNames = new ArrayList<String>();
+        public final ArrayList<FieldNode> fields = new ArrayList<FieldNode>();
+        public final ArrayList<String> include = new ArrayList<String>();
+        public MicroDB.IndexKind kind = MicroDB.IndexKind.Tree;
+    }
+
     public static class TypeNode extends Node {
         public static final int BOOL = 0;
         public static final int CHAR = 1;
@@ -52,6 +65,8 @@ public class Nodes {
 
         public final int type;
         public ArrayList<String> annotations = new ArrayList<String>();
+        public final ArrayList<String> indexInclude = new ArrayList<String>();
+        public MicroDB.IndexKind indexKind = MicroDB.IndexKind.Tree;
         public boolean isArray;
 
         private TypeNode(int type) {
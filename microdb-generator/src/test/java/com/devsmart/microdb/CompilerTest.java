@@ -28,6 +28,33 @@ public class CompilerTest {
         assertFalse(compileSuccess);
     }
 
+    @Test
+    public void testBad3UnknownIndexField() throws Exception{
+        Generator gen = new Generator();
+        InputStream in = Resources.getResource("com/devsmart/microdb/bad3.dbo").openStream();
+        ANTLRInputStream antlrIn = new ANTLRInputStream(in);
+        final boolean compileSuccess = gen.compileInputStream(antlrIn);
+        assertFalse(compileSuccess);
+    }
+
+    @Test
+    public void testBad4UnknownIncludeField() throws Exception{
+        Generator gen = new Generator();
+        InputStream in = Resources.getResource("com/devsmart/microdb/bad4.dbo").openStream();
+        ANTLRInputStream antlrIn = new ANTLRInputStream(in);
+        final boolean compileSuccess = gen.compileInputStream(antlrIn);
+        assertFalse(compileSuccess);
+    }
+
+    @Test
+    public void testBad5HashIndexInclude() throws Exception{
+        Generator gen = new Generator();
+        InputStream in = Resources.getResource("com/devsmart/microdb/bad5.dbo").openStream();
+        ANTLRInputStream antlrIn = new ANTLRInputStream(in);
+        final boolean compileSuccess = gen.compileInputStream(antlrIn);
+        assertFalse(compileSuccess);
+    }
+
     @Test
     public void testCodeBlock() throws Exception{
         Generator gen = new Generator();
@@ -6,17 +6,23 @@ import com.devsmart.microdb.Driver;
 import com.devsmart.microdb.Emitter;
 import com.devsmart.microdb.MapFunction;
 import com.devsmart.microdb.MicroDB;
+import com.devsmart.microdb.TypeSet;
+import com.devsmart.microdb.UBCodec;
 import com.devsmart.microdb.Utils;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBString;
 import com.devsmart.ubjson.UBValue;
 import com.devsmart.ubjson.UBValueFactory;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
 
 public class ExtendObj extends MyDBObj {
     public static final UBString TYPE = UBValueFactory.createString("ExtendObj");
 
-    private static final UBString[] SUBTYPES = new UBString[]{ ExtendObj.TYPE };
+    private static final TypeSet SUBTYPES = new TypeSet("ExtendObj");
 
     private int myExtendInt;
 
@@ -46,6 +52,38 @@ public class ExtendObj extends MyDBObj {
         }
     }
 
+    @Override
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        UBCodec.writeObjectStart(out);
+        writeFields(out);
+        UBCodec.writeKey(out, "type");
+        UBCodec.writeString(out, TYPE.asString());
+        UBCodec.writeObjectEnd(out);
+    }
+
+    @Override
+    protected void writeFields(DataOutput out) throws IOException {
+        super.writeFields(out);
+        final MicroDB db = getDB();
+        UBCodec.writeKey(out, "myExtendInt");
+        UBCodec.writeInt(out, myExtendInt);
+        UBCodec.writeKey(out, "myTestId");
+        UBCodec.writeInt(out, myTestId);
+    }
+
+    @Override
+    protected boolean readField(String key, DataInput in) throws IOException {
+        final MicroDB db = getDB();
+        if ("myExtendInt".equals(key)) {
+            this.myExtendInt = (int) UBCodec.readLong(in, this.myExtendInt);
+        } else if ("myTestId".equals(key)) {
+            this.myTestId = UBCodec.readLong(in, this.myTestId);
+        } else {
+            return super.readField(key, in);
+        }
+        return true;
+    }
+
     public int getMyExtendInt() {
         return myExtendInt;
     }
@@ -60,6 +98,17 @@ public class ExtendObj extends MyDBObj {
     }
 
     public static void install(MicroDB db) throws IOException {
+        db.addIndex("ExtendObj.myExtendInt_idx", MicroDB.IndexKind.Hash, new MapFunction<Integer>() {
+            @Override
+            public void map(UBValue value, Emitter<Integer> emitter) {
+                if (Utils.isValidObject(value, ExtendObj.SUBTYPES)) {
+                    UBValue v = value.asObject().get("myExtendInt");
+                    if (v != null && v.isInteger()) {
+                        emitter.emit(v.asInt());
+                    }
+                }
+            }
+        });
         db.addChangeListener(new DefaultChangeListener() {
             @Override
             public void onBeforeInsert(Driver driver, UBValue value) {
@@ -82,6 +131,10 @@ public class ExtendObj extends MyDBObj {
         });
     }
 
+    public static List<UUID> lookupByMyExtendIntIndex(MicroDB db, int myExtendInt) throws IOException {
+        return db.lookupIndex("ExtendObj.myExtendInt_idx", myExtendInt);
+    }
+
     public static Cursor queryByMyTestIdIndex(MicroDB db, Long min, boolean includeMin, Long max, boolean includeMax) throws IOException {
         return db.queryIndex("ExtendObj.myTestId_idx", min, includeMin, max, includeMax);
     }
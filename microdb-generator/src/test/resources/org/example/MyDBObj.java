@@ -1,5 +1,6 @@
 package org.example;
 
+import com.devsmart.microdb.CompositeKey;
 import com.devsmart.microdb.Cursor;
 import com.devsmart.microdb.DBObject;
 import com.devsmart.microdb.DefaultChangeListener;
@@ -7,19 +8,25 @@ import com.devsmart.microdb.Driver;
 import com.devsmart.microdb.Emitter;
 import com.devsmart.microdb.MapFunction;
 import com.devsmart.microdb.MicroDB;
+import com.devsmart.microdb.TypeSet;
+import com.devsmart.microdb.UBCodec;
 import com.devsmart.microdb.Utils;
 import com.devsmart.ubjson.UBArray;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBString;
 import com.devsmart.ubjson.UBValue;
 import com.devsmart.ubjson.UBValueFactory;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
 
 public class MyDBObj extends DBObject {
 
     public static final UBString TYPE = UBValueFactory.createString("MyDBObj");
 
-    private static final UBString[] SUBTYPES = new UBString[]{ UBValueFactory.createString("ExtendObj"), MyDBObj.TYPE };
+    private static final TypeSet SUBTYPES = new TypeSet("ExtendObj", "MyDBObj");
 
     private boolean myBool;
 
@@ -85,13 +92,27 @@ public class MyDBObj extends DBObject {
         obj.put("myString", UBValueFactory.createStringOrNull(myString));
         obj.put("myDBO", Utils.writeDBObj(db, myDBO));
         obj.put("myExtendo", Utils.writeDBObj(db, myExtendo));
-        obj.put("myBoolArray", UBValueFactory.createArrayOrNull(myBoolArray));
-        obj.put("myByteArray", UBValueFactory.createArrayOrNull(myByteArray));
-        obj.put("myShortArray", UBValueFactory.createArrayOrNull(myShortArray));
-        obj.put("myIntArray", UBValueFactory.createArrayOrNull(myIntArray));
-        obj.put("myLongArray", UBValueFactory.createArrayOrNull(myLongArray));
-        obj.put("myFloatArray", UBValueFactory.createArrayOrNull(myFloatArray));
-        obj.put("myDoubleArray", UBValueFactory.createArrayOrNull(myDoubleArray));
+        if (!putArrayRef(obj, "myBoolArray")) {
+            obj.put("myBoolArray", UBValueFactory.createArrayOrNull(getMyBoolArray()));
+        }
+        if (!putArrayRef(obj, "myByteArray")) {
+            obj.put("myByteArray", UBValueFactory.createArrayOrNull(getMyByteArray()));
+        }
+        if (!putArrayRef(obj, "myShortArray")) {
+            obj.put("myShortArray", UBValueFactory.createArrayOrNull(getMyShortArray()));
+        }
+        if (!putArrayRef(obj, "myIntArray")) {
+            obj.put("myIntArray", UBValueFactory.createArrayOrNull(getMyIntArray()));
+        }
+        if (!putArrayRef(obj, "myLongArray")) {
+            obj.put("myLongArray", UBValueFactory.createArrayOrNull(getMyLongArray()));
+        }
+        if (!putArrayRef(obj, "myFloatArray")) {
+            obj.put("myFloatArray", UBValueFactory.createArrayOrNull(getMyFloatArray()));
+        }
+        if (!putArrayRef(obj, "myDoubleArray")) {
+            obj.put("myDoubleArray", UBValueFactory.createArrayOrNull(getMyDoubleArray()));
+        }
         obj.put("myStringArray", UBValueFactory.createArrayOrNull(myStringArray));
         obj.put("myExtendoArray", Utils.createArrayOrNull(db, myExtendoArray));
         obj.put("myUBObject", myUBObject != null ? myUBObject : UBValueFactory.createNull());
@@ -156,33 +177,47 @@ public class MyDBObj extends DBObject {
         } else {
             this.myExtendo = null;
         }
-        value = obj.get("myBoolArray");
-        if (value != null && value.isArray()) {
-            this.myBoolArray = value.asBoolArray();
+        if (!readArrayRef(obj, "myBoolArray")) {
+            value = obj.get("myBoolArray");
+            if (value != null && value.isArray()) {
+                this.myBoolArray = value.asBoolArray();
+            }
         }
-        value = obj.get("myByteArray");
-        if (value != null && value.isArray()) {
-            this.myByteArray = value.asByteArray();
+        if (!readArrayRef(obj, "myByteArray")) {
+            value = obj.get("myByteArray");
+            if (value != null && value.isArray()) {
+                this.myByteArray = value.asByteArray();
+            }
         }
-        value = obj.get("myShortArray");
-        if (value != null && value.isArray()) {
-            this.myShortArray = value.asShortArray();
+        if (!readArrayRef(obj, "myShortArray")) {
+            value = obj.get("myShortArray");
+            if (value != null && value.isArray()) {
+                this.myShortArray = value.asShortArray();
+            }
         }
-        value = obj.get("myIntArray");
-        if (value != null && value.isArray()) {
-            this.myIntArray = value.asInt32Array();
+        if (!readArrayRef(obj, "myIntArray")) {
+            value = obj.get("myIntArray");
+            if (value != null && value.isArray()) {
+                this.myIntArray = value.asInt32Array();
+            }
         }
-        value = obj.get("myLongArray");
-        if (value != null && value.isArray()) {
-            this.myLongArray = value.asInt64Array();
+        if (!readArrayRef(obj, "myLongArray")) {
+            value = obj.get("myLongArray");
+            if (value != null && value.isArray()) {
+                this.myLongArray = value.asInt64Array();
+            }
         }
-        value = obj.get("myFloatArray");
-        if (value != null && value.isArray()) {
-            this.myFloatArray = value.asFloat32Array();
+        if (!readArrayRef(obj, "myFloatArray")) {
+            value = obj.get("myFloatArray");
+            if (value != null && value.isArray()) {
+                this.myFloatArray = value.asFloat32Array();
+            }
         }
-        value = obj.get("myDoubleArray");
-        if (value != null && value.isArray()) {
-            this.myDoubleArray = value.asFloat64Array();
+        if (!readArrayRef(obj, "myDoubleArray")) {
+            value = obj.get("myDoubleArray");
+            if (value != null && value.isArray()) {
+                this.myDoubleArray = value.asFloat64Array();
+            }
         }
         value = obj.get("myStringArray");
         if (value != null && value.isArray()) {
@@ -217,6 +252,149 @@ public class MyDBObj extends DBObject {
         }
     }
 
+    @Override
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        UBCodec.writeObjectStart(out);
+        writeFields(out);
+        UBCodec.writeKey(out, "type");
+        UBCodec.writeString(out, TYPE.asString());
+        UBCodec.writeObjectEnd(out);
+    }
+
+    @Override
+    protected void writeFields(DataOutput out) throws IOException {
+        super.writeFields(out);
+        final MicroDB db = getDB();
+        UBCodec.writeKey(out, "myBool");
+        UBCodec.writeBool(out, myBool);
+        UBCodec.writeKey(out, "myByte");
+        UBCodec.writeInt(out, myByte);
+        UBCodec.writeKey(out, "myChar");
+        UBCodec.writeInt(out, myChar);
+        UBCodec.writeKey(out, "myShort");
+        UBCodec.writeInt(out, myShort);
+        UBCodec.writeKey(out, "myInt");
+        UBCodec.writeInt(out, myInt);
+        UBCodec.writeKey(out, "myLong");
+        UBCodec.writeInt(out, myLong);
+        UBCodec.writeKey(out, "myFloat");
+        UBCodec.writeFloat32(out, myFloat);
+        UBCodec.writeKey(out, "myDouble");
+        UBCodec.writeFloat64(out, myDouble);
+        UBCodec.writeKey(out, "myString");
+        UBCodec.writeString(out, myString);
+        UBCodec.writeKey(out, "myDBO");
+        UBCodec.writeValue(out, Utils.writeDBObj(db, myDBO));
+        UBCodec.writeKey(out, "myExtendo");
+        UBCodec.writeValue(out, Utils.writeDBObj(db, myExtendo));
+        UBCodec.writeKey(out, "myBoolArray");
+        if (!writeArrayRef(out, "myBoolArray")) {
+            UBCodec.writeArray(out, getMyBoolArray());
+        }
+        UBCodec.writeKey(out, "myByteArray");
+        if (!writeArrayRef(out, "myByteArray")) {
+            UBCodec.writeArray(out, getMyByteArray());
+        }
+        UBCodec.writeKey(out, "myShortArray");
+        if (!writeArrayRef(out, "myShortArray")) {
+            UBCodec.writeArray(out, getMyShortArray());
+        }
+        UBCodec.writeKey(out, "myIntArray");
+        if (!writeArrayRef(out, "myIntArray")) {
+            UBCodec.writeArray(out, getMyIntArray());
+        }
+        UBCodec.writeKey(out, "myLongArray");
+        if (!writeArrayRef(out, "myLongArray")) {
+            UBCodec.writeArray(out, getMyLongArray());
+        }
+        UBCodec.writeKey(out, "myFloatArray");
+        if (!writeArrayRef(out, "myFloatArray")) {
+            UBCodec.writeArray(out, getMyFloatArray());
+        }
+        UBCodec.writeKey(out, "myDoubleArray");
+        if (!writeArrayRef(out, "myDoubleArray")) {
+            UBCodec.writeArray(out, getMyDoubleArray());
+        }
+        UBCodec.writeKey(out, "myStringArray");
+        UBCodec.writeArray(out, myStringArray);
+        UBCodec.writeKey(out, "myExtendoArray");
+        UBCodec.writeValue(out, Utils.createArrayOrNull(db, myExtendoArray));
+        UBCodec.writeKey(out, "myUBObject");
+        UBCodec.writeValue(out, myUBObject);
+        UBCodec.writeKey(out, "myAutoIncrement");
+        UBCodec.writeInt(out, myAutoIncrement);
+        UBCodec.writeKey(out, "myStrIndex");
+        UBCodec.writeString(out, myStrIndex);
+    }
+
+    @Override
+    protected boolean readField(String key, DataInput in) throws IOException {
+        final MicroDB db = getDB();
+        if ("myBool".equals(key)) {
+            this.myBool = UBCodec.readBool(in, this.myBool);
+        } else if ("myByte".equals(key)) {
+            this.myByte = (byte) UBCodec.readLong(in, this.myByte);
+        } else if ("myChar".equals(key)) {
+            this.myChar = UBCodec.readChar(in, this.myChar);
+        } else if ("myShort".equals(key)) {
+            this.myShort = (short) UBCodec.readLong(in, this.myShort);
+        } else if ("myInt".equals(key)) {
+            this.myInt = (int) UBCodec.readLong(in, this.myInt);
+        } else if ("myLong".equals(key)) {
+            this.myLong = UBCodec.readLong(in, this.myLong);
+        } else if ("myFloat".equals(key)) {
+            this.myFloat = (float) UBCodec.readDouble(in, this.myFloat);
+        } else if ("myDouble".equals(key)) {
+            this.myDouble = UBCodec.readDouble(in, this.myDouble);
+        } else if ("myString".equals(key)) {
+            this.myString = UBCodec.readString(in);
+        } else if ("myDBO".equals(key)) {
+            this.myDBO = Utils.readDBObj(db, UBCodec.readValue(in), new MyDBObj());
+        } else if ("myExtendo".equals(key)) {
+            this.myExtendo = Utils.readDBObj(db, UBCodec.readValue(in), new ExtendObj());
+        } else if ("myBoolArray".equals(key)) {
+            this.myBoolArray = UBCodec.readBoolArray(in, this.myBoolArray);
+        } else if ("myByteArray".equals(key)) {
+            this.myByteArray = UBCodec.readByteArray(in, this.myByteArray);
+        } else if ("myShortArray".equals(key)) {
+            this.myShortArray = UBCodec.readShortArray(in, this.myShortArray);
+        } else if ("myIntArray".equals(key)) {
+            this.myIntArray = UBCodec.readInt32Array(in, this.myIntArray);
+        } else if ("myLongArray".equals(key)) {
+            this.myLongArray = UBCodec.readInt64Array(in, this.myLongArray);
+        } else if ("myFloatArray".equals(key)) {
+            this.myFloatArray = UBCodec.readFloat32Array(in, this.myFloatArray);
+        } else if ("myDoubleArray".equals(key)) {
+            this.myDoubleArray = UBCodec.readFloat64Array(in, this.myDoubleArray);
+        } else if ("myStringArray".equals(key)) {
+            this.myStringArray = UBCodec.readStringArray(in, this.myStringArray);
+        } else if ("myExtendoArray".equals(key)) {
+            UBValue value = UBCodec.readValue(in);
+            if (value.isArray()) {
+                UBArray array = value.asArray();
+                final int size = array.size();
+                this.myExtendoArray = new ExtendObj[size];
+                for (int i=0;i<size;i++) {
+                    this.myExtendoArray[i] = Utils.readDBObj(db, array.get(i), new ExtendObj());
+                }
+            } else {
+                this.myExtendoArray = null;
+            }
+        } else if ("myUBObject".equals(key)) {
+            UBValue value = UBCodec.readValue(in);
+            if (value.isObject()) {
+                this.myUBObject = value.asObject();
+            }
+        } else if ("myAutoIncrement".equals(key)) {
+            this.myAutoIncrement = UBCodec.readLong(in, this.myAutoIncrement);
+        } else if ("myStrIndex".equals(key)) {
+            this.myStrIndex = UBCodec.readString(in);
+        } else {
+            return super.readField(key, in);
+        }
+        return true;
+    }
+
     public boolean getMyBool() {
         return myBool;
     }
@@ -317,65 +495,79 @@ public class MyDBObj extends DBObject {
     }
 
     public boolean[] getMyBoolArray() {
+        loadArray("myBoolArray");
         return myBoolArray;
     }
 
     public synchronized void setMyBoolArray(boolean[] value) {
         this.myBoolArray = value;
+        clearArrayRef("myBoolArray");
         setDirty();
     }
 
     public byte[] getMyByteArray() {
+        loadArray("myByteArray");
         return myByteArray;
     }
 
     public synchronized void setMyByteArray(byte[] value) {
         this.myByteArray = value;
+        clearArrayRef("myByteArray");
         setDirty();
     }
 
     public short[] getMyShortArray() {
+        loadArray("myShortArray");
         return myShortArray;
     }
 
     public synchronized void setMyShortArray(short[] value) {
         this.myShortArray = value;
+        clearArrayRef("myShortArray");
         setDirty();
     }
 
     public int[] getMyIntArray() {
+        loadArray("myIntArray");
         return myIntArray;
     }
 
     public synchronized void setMyIntArray(int[] value) {
         this.myIntArray = value;
+        clearArrayRef("myIntArray");
         setDirty();
     }
 
     public long[] getMyLongArray() {
+        loadArray("myLongArray");
         return myLongArray;
     }
 
     public synchronized void setMyLongArray(long[] value) {
         this.myLongArray = value;
+        clearArrayRef("myLongArray");
         setDirty();
     }
 
     public float[] getMyFloatArray() {
+        loadArray("myFloatArray");
         return myFloatArray;
     }
 
     public synchronized void setMyFloatArray(float[] value) {
         this.myFloatArray = value;
+        clearArrayRef("myFloatArray");
         setDirty();
     }
 
     public double[] getMyDoubleArray() {
+        loadArray("myDoubleArray");
         return myDoubleArray;
     }
 
     public synchronized void setMyDoubleArray(double[] value) {
         this.myDoubleArray = value;
+        clearArrayRef("myDoubleArray");
         setDirty();
     }
 
@@ -448,6 +640,45 @@ public class MyDBObj extends DBObject {
                     }
                 }
             }
+        }, "myString", "myLong");
+        db.addIndex("MyDBObj.myString_myLong_idx", new MapFunction<CompositeKey>() {
+            @Override
+            public void map(UBValue value, Emitter<CompositeKey> emitter) {
+                if (Utils.isValidObject(value, MyDBObj.SUBTYPES)) {
+                    UBObject obj = value.asObject();
+                    UBValue v0 = obj.get("myString");
+                    UBValue v1 = obj.get("myLong");
+                    if (v0 != null && v0.isString() && v1 != null && v1.isInteger()) {
+                        emitter.emit(CompositeKey.of(v0.asString(), v1.asLong()));
+                    }
+                }
+            }
+        }, "myInt");
+        db.addIndex("MyDBObj.myString_myInt_idx", MicroDB.IndexKind.Hash, new MapFunction<CompositeKey>() {
+            @Override
+            public void map(UBValue value, Emitter<CompositeKey> emitter) {
+                if (Utils.isValidObject(value, MyDBObj.SUBTYPES)) {
+                    UBObject obj = value.asObject();
+                    UBValue v0 = obj.get("myString");
+                    UBValue v1 = obj.get("myInt");
+                    if (v0 != null && v0.isString() && v1 != null && v1.isInteger()) {
+                        emitter.emit(CompositeKey.of(v0.asString(), v1.asInt()));
+                    }
+                }
+            }
+        });
+        db.addIndex("MyDBObj.myInt_myLong_idx", MicroDB.IndexKind.Unique, new MapFunction<CompositeKey>() {
+            @Override
+            public void map(UBValue value, Emitter<CompositeKey> emitter) {
+                if (Utils.isValidObject(value, MyDBObj.SUBTYPES)) {
+                    UBObject obj = value.asObject();
+                    UBValue v0 = obj.get("myInt");
+                    UBValue v1 = obj.get("myLong");
+                    if (v0 != null && v0.isInteger() && v1 != null && v1.isInteger()) {
+                        emitter.emit(CompositeKey.of(v0.asInt(), v1.asLong()));
+                    }
+                }
+            }
         });
     }
 
@@ -455,6 +686,18 @@ public class MyDBObj extends DBObject {
         return db.queryIndex("MyDBObj.myStrIndex_idx", min, includeMin, max, includeMax);
     }
 
+    public static Cursor queryByMyStringMyLongIndex(MicroDB db, String myString, Long min, boolean includeMin, Long max, boolean includeMax) throws IOException {
+        return db.queryIndex("MyDBObj.myString_myLong_idx", CompositeKey.of(myString), min, includeMin, max, includeMax);
+    }
+
+    public static List<UUID> lookupByMyStringMyIntIndex(MicroDB db, String myString, int myInt) throws IOException {
+        return db.lookupIndex("MyDBObj.myString_myInt_idx", CompositeKey.of(myString, myInt));
+    }
+
+    public static MyDBObj getByMyIntMyLongIndex(MicroDB db, int myInt, long myLong) throws IOException {
+        return db.getByUniqueKey("MyDBObj.myInt_myLong_idx", CompositeKey.of(myInt, myLong), new MyDBObj());
+    }
+
     @Override
     protected void beforeWrite() {
         System.out.println("about to write");
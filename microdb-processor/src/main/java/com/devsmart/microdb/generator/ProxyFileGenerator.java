@@ -53,7 +53,7 @@ public class ProxyFileGenerator {
                     .addParameter(TypeName.get(field.asType()), "value")
                     .addAnnotation(Override.class)
                     .addStatement("super.$L(value)", setterName)
-                    .addStatement("mDirty = true")
+                    .addStatement("setDirty()")
                     .build();
         }
 
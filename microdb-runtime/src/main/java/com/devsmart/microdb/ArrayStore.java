@@ -0,0 +1,149 @@
+package com.devsmart.microdb;
+
+
+import org.mapdb.BTreeMap;
+import org.mapdb.Fun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Keeps large primitive arrays out of the records of the objects that own them, so reading an
+ * object (to check a scalar field, or to evaluate an index) does not have to load every
+ * sample of a big array along with it.
+ *
+ * While a record is encoded for a known owner (see {@link #setOwner(UUID)}), every array field
+ * whose encoding is at least {@link #getMinSize()} bytes and whose elements are fixed size
+ * numbers or booleans is replaced by {@link UBScanner#MARKER_ARRAY_REF} followed by the
+ * owner's 16 byte id. The array itself, still UBJSON encoded, is collected as pending and has
+ * to be stored with {@link #flush(UUID, List)} before the record is.
+ *
+ * Arrays are keyed by owner and field name, so writing an object again overwrites its arrays
+ * in place. They are removed when their owner is deleted; an array field that shrinks below the
+ * threshold leaves its last out of line copy behind until then.
+ */
+final class ArrayStore {
+
+    static final int DEFAULT_MIN_SIZE = 16 * 1024;
+
+    static final class Pending {
+        final String field;
+        final byte[] data;
+
+        Pending(String field, byte[] data) {
+            this.field = field;
+            this.data = data;
+        }
+    }
+
+    private final BTreeMap<Fun.Tuple2<UUID, String>, byte[]> mArrays;
+    private volatile int mMinSize = DEFAULT_MIN_SIZE;
+
+    private final ThreadLocal<UUID> mOwner = new ThreadLocal<UUID>();
+    private final ThreadLocal<ArrayList<Pending>> mPending = new ThreadLocal<ArrayList<Pending>>() {
+        @Override
+        protected ArrayList<Pending> initialValue() {
+            return new ArrayList<Pending>();
+        }
+    };
+
+    ArrayStore(BTreeMap<Fun.Tuple2<UUID, String>, byte[]> arrays) {
+        mArrays = arrays;
+    }
+
+    /**
+     * @param minSize arrays encoded in fewer bytes stay in their record. 0 keeps every array in
+     *                its record.
+     */
+    void setMinSize(int minSize) {
+        mMinSize = minSize;
+    }
+
+    int getMinSize() {
+        return mMinSize;
+    }
+
+    /**
+     * sets the object whose record is about to be encoded on this thread, or null when done
+     */
+    void setOwner(UUID owner) {
+        mOwner.set(owner);
+    }
+
+    /**
+     * @return the arrays taken out of records encoded on this thread since the last call
+     */
+    List<Pending> takePending() {
+        ArrayList<Pending> pending = mPending.get();
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        mPending.set(new ArrayList<Pending>());
+        return pending;
+    }
+
+    /**
+     * stores arrays returned by {@link #takePending()} for {@code owner}
+     */
+    void flush(UUID owner, List<Pending> pending) {
+        for (Pending array : pending) {
+            mArrays.put(Fun.t2(owner, array.field), array.data);
+        }
+    }
+
+    /**
+     * @return the UBJSON encoded array stored for {@code field} of {@code owner}, or null
+     */
+    byte[] get(UUID owner, String field) {
+        return mArrays.get(Fun.t2(owner, field));
+    }
+
+    void deleteAll(UUID owner) {
+        //null sorts before every field name, Fun.HI after
+        mArrays.subMap((Fun.Tuple2) Fun.t2(owner, null), true, (Fun.Tuple2) Fun.t2(owner, Fun.HI), true).clear();
+    }
+
+    /**
+     * If an owner is set and the encoded value {@code data[start, end)} is an array that should
+     * be stored out of line, writes a reference to it instead and keeps it as pending.
+     *
+     * @return false if nothing was written
+     */
+    boolean divert(OutputStream out, String field, byte[] data, int start, int end) throws IOException {
+        final UUID owner = mOwner.get();
+        final int minSize = mMinSize;
+        if (owner == null || minSize <= 0 || end - start < minSize || !isPrimitiveArray(data, start, end)) {
+            return false;
+        }
+        byte[] array = new byte[end - start];
+        System.arraycopy(data, start, array, 0, array.length);
+        mPending.get().add(new Pending(field, array));
+
+        out.write(UBScanner.MARKER_ARRAY_REF);
+        SchemaRegistry.writeLong(out, owner.getMostSignificantBits());
+        SchemaRegistry.writeLong(out, owner.getLeastSignificantBits());
+        return true;
+    }
+
+    /**
+     * @return true for strongly typed arrays of fixed size numbers, and for arrays of booleans
+     */
+    private static boolean isPrimitiveArray(byte[] data, int start, int end) {
+        if (data[start] != UBScanner.MARKER_ARRAY_START) {
+            return false;
+        }
+        if (data[start + 1] == UBScanner.MARKER_OPTIMIZED_TYPE) {
+            return UBScanner.fixedSize(data[start + 2]) > 0;
+        }
+        for (int i = start + 1; i < end - 1; i++) {
+            if (data[i] != UBScanner.MARKER_TRUE && data[i] != UBScanner.MARKER_FALSE) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
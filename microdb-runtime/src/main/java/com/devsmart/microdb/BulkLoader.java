@@ -0,0 +1,203 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Inserts a large number of new objects in one step. Unlike {@link MicroDB#insert(Class)}, objects
+ * added to a BulkLoader do not get their own write operation. When {@link #load()} is called they are
+ * serialized in parallel, sorted by id and handed to the driver in a single call, which lets
+ * {@link MapDBDriver} build the objects tree and its indexes with MapDB's data pump. This is
+ * intended for the initial import of data into an empty database. Objects are serialized the same
+ * way as by {@code insert}, so their records are no different from those of inserted objects.
+ *
+ * <pre>
+ * BulkLoader loader = db.createBulkLoader();
+ * for (...) {
+ *     MyDBObj obj = db.create(MyDBObj.class);
+ *     obj.setName(...);
+ *     loader.add(obj);
+ * }
+ * loader.load();
+ * </pre>
+ *
+ * Like objects inserted one by one, loaded objects are kept in the database's live object cache,
+ * so {@link MicroDB#get(UUID)} returns the same instance.
+ */
+public class BulkLoader {
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    private static final Comparator<Map.Entry<UUID, UBValue>> KEY_COMPARATOR = new Comparator<Map.Entry<UUID, UBValue>>() {
+        @Override
+        public int compare(Map.Entry<UUID, UBValue> a, Map.Entry<UUID, UBValue> b) {
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    private final MicroDB mDB;
+    private final ExecutorService mWorkers;
+    private final int mNumThreads;
+    private ArrayList<DBObject> mObjects = new ArrayList<DBObject>();
+
+    /**
+     * @param workers    the database's pool of serialization workers, which is shared by its loaders
+     * @param numThreads max number of workers one load uses
+     */
+    BulkLoader(MicroDB db, ExecutorService workers, int numThreads) {
+        mDB = db;
+        mWorkers = workers;
+        mNumThreads = numThreads;
+    }
+
+    /**
+     * queue {@code obj} to be inserted by the next call to {@link #load()}.
+     * @param obj a new object created with {@link MicroDB#create(Class)}
+     */
+    public void add(DBObject obj) {
+        if (obj.getDB() != mDB) {
+            throw new IllegalArgumentException("object was not created by this database");
+        }
+        if (obj.getId() != null) {
+            throw new IllegalArgumentException("object has already been inserted: " + obj.getId());
+        }
+        mObjects.add(obj);
+    }
+
+    public void addAll(Iterator<? extends DBObject> objects) {
+        while (objects.hasNext()) {
+            add(objects.next());
+        }
+    }
+
+    public void addAll(Iterable<? extends DBObject> objects) {
+        addAll(objects.iterator());
+    }
+
+    /**
+     * @return number of objects waiting to be loaded
+     */
+    public int size() {
+        return mObjects.size();
+    }
+
+    /**
+     * inserts and commits every object added since the last call to {@code load}. This
+     * method blocks until the data has been committed.
+     *
+     * @return the number of objects inserted
+     * @throws IOException
+     */
+    public int load() throws IOException {
+        final List<DBObject> objects = mObjects;
+        mObjects = new ArrayList<DBObject>();
+        if (objects.isEmpty()) {
+            return 0;
+        }
+
+        final Driver driver = mDB.getDriver();
+        for (DBObject obj : objects) {
+            obj.setId(driver.genId());
+        }
+
+        final List<Map.Entry<UUID, UBValue>> entries = serialize(objects);
+        Collections.sort(entries, KEY_COMPARATOR);
+
+        mDB.bulkInsert(objects, entries);
+        return entries.size();
+    }
+
+    private List<Map.Entry<UUID, UBValue>> serialize(final List<DBObject> objects) throws IOException {
+        final int size = objects.size();
+        final UBObject[] data = new UBObject[size];
+
+        final int numChunks = Math.max(1, Math.min(mNumThreads, size / MIN_CHUNK_SIZE));
+        if (numChunks == 1) {
+            writeObjects(objects, data, 0, size);
+        } else {
+            ArrayList<Future<Void>> tasks = new ArrayList<Future<Void>>(numChunks);
+            final int chunkSize = (size + numChunks - 1) / numChunks;
+            for (int start = 0; start < size; start += chunkSize) {
+                final int from = start;
+                final int to = Math.min(size, start + chunkSize);
+                tasks.add(mWorkers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeObjects(objects, data, from, to);
+                        return null;
+                    }
+                }));
+            }
+            //every chunk is waited for, so none is still writing when a failure is thrown
+            Throwable failure = null;
+            for (Future<Void> task : tasks) {
+                try {
+                    Uninterruptibles.getUninterruptibly(task);
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+            if (failure != null) {
+                Throwables.propagateIfInstanceOf(failure, IOException.class);
+                throw Throwables.propagate(failure);
+            }
+        }
+
+        //change listeners (such as AutoIncrement fields) run in the order the objects were added
+        final List<ChangeListener> listeners = mDB.getChangeListeners();
+        if (!listeners.isEmpty()) {
+            final Driver driver = mDB.getDriver();
+            for (int i = 0; i < size; i++) {
+                for (ChangeListener l : listeners) {
+                    l.onBeforeInsert(driver, data[i]);
+                }
+                DBObject obj = objects.get(i);
+                synchronized (obj) {
+                    MicroDB.readChanges(obj, data[i]);
+                }
+            }
+        }
+
+        ArrayList<Map.Entry<UUID, UBValue>> retval = new ArrayList<Map.Entry<UUID, UBValue>>(size);
+        for (int i = 0; i < size; i++) {
+            retval.add(new AbstractMap.SimpleImmutableEntry<UUID, UBValue>(objects.get(i).getId(), data[i]));
+        }
+        return retval;
+    }
+
+    /**
+     * snapshots the objects from {@code from} to {@code to} as {@code MicroDB.insert} does,
+     * through their binary codec if they have one
+     */
+    private void writeObjects(List<DBObject> objects, UBObject[] data, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            DBObject obj = objects.get(i);
+            UBObject value;
+            synchronized (obj) {
+                obj.beforeWrite();
+                value = MicroDB.writeObject(obj);
+                mDB.markClean(obj);
+            }
+            data[i] = value;
+        }
+    }
+}
@@ -12,5 +12,9 @@ public interface ChangeListener {
 
     void onBeforeDelete(Driver driver, UUID key);
 
+    /**
+     * called on the write thread before {@code newValue} is stored. {@code newValue} may already
+     * have been encoded, so it must not be modified.
+     */
     void onBeforeUpdate(Driver driver, UUID key, UBValue newValue);
 }
@@ -0,0 +1,68 @@
+package com.devsmart.microdb;
+
+
+import java.util.Arrays;
+
+/**
+ * The key of a composite index: the values of several fields, ordered by the first value, then
+ * by the second and so on. A key that is a prefix of another sorts before it.
+ *
+ * Map functions emit composite keys with {@link #of(Comparable[])}, and
+ * {@link MicroDB#queryIndex(String, CompositeKey, Comparable, boolean, Comparable, boolean)}
+ * takes one as the prefix of the keys to scan.
+ */
+public final class CompositeKey implements Comparable<CompositeKey> {
+
+    private final Comparable[] mValues;
+
+    private CompositeKey(Comparable[] values) {
+        mValues = values;
+    }
+
+    /**
+     * @param values the field values, none of them null
+     */
+    public static CompositeKey of(Comparable... values) {
+        for (Comparable value : values) {
+            if (value == null) {
+                throw new NullPointerException("composite key values can not be null");
+            }
+        }
+        return new CompositeKey(values.clone());
+    }
+
+    public int size() {
+        return mValues.length;
+    }
+
+    public Comparable get(int i) {
+        return mValues[i];
+    }
+
+    @Override
+    public int compareTo(CompositeKey o) {
+        final int length = Math.min(mValues.length, o.mValues.length);
+        for (int i = 0; i < length; i++) {
+            int retval = mValues[i].compareTo(o.mValues[i]);
+            if (retval != 0) {
+                return retval;
+            }
+        }
+        return mValues.length - o.mValues.length;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof CompositeKey && Arrays.equals(mValues, ((CompositeKey) obj).mValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mValues);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(mValues);
+    }
+}
@@ -9,6 +9,39 @@ import java.io.IOException;
 
 public class DBBuilder {
 
+    /**
+     * How a file database trades durability for write latency.
+     */
+    public enum Durability {
+        /**
+         * Write ahead log, fsync on every commit. {@code MicroDB.sync()} returns once all
+         * queued writes are durable. This is the default.
+         */
+        FullWAL,
+
+        /**
+         * Write ahead log with MapDB's asynchronous writer thread. Commits are still atomic and
+         * {@code MicroDB.sync()} still commits, but individual writes return before they reach
+         * the store. Records are encoded before they are handed to MapDB, so they are stored in
+         * the same format as with {@code FullWAL}.
+         */
+        AsyncWAL,
+
+        /**
+         * No transactions. Writes go straight to the store and are flushed to disk by a periodic
+         * checkpoint (see {@link #checkpointInterval(long)}) or an explicit {@code MicroDB.commit()}.
+         * {@code MicroDB.sync()} only waits for queued writes to reach the store. A crash may lose
+         * writes since the last checkpoint and may leave the file inconsistent.
+         */
+        Checkpoint,
+
+        /**
+         * Write ahead log on a memory mapped volume (where the JVM supports it). Same guarantees
+         * as {@code FullWAL} with fewer system calls.
+         */
+        MemoryMapped
+    }
+
     static class NullCallback implements DBCallback {
 
         @Override
@@ -20,6 +53,19 @@ public class DBBuilder {
     private DBCallback mCallback = new NullCallback();
     private int mSchemaVersion = 0;
     private Integer mCacheSize;
+    private int mMaxBatchSize = 1;
+    private long mMaxLingerMillis = 0;
+    private int mWriteQueueCapacity = 0;
+    private MicroDB.OverflowPolicy mOverflowPolicy = MicroDB.OverflowPolicy.Block;
+    private long mOverflowTimeoutMillis = 0;
+    private int mSerializationThreads = 0;
+    private Durability mDurability = Durability.FullWAL;
+    private long mCheckpointIntervalMillis = 1000;
+    private long mAutoSaveDelayMillis = MicroDB.DEFAULT_AUTO_SAVE_DELAY_MILLIS;
+    private int mAutoSaveThreshold = MicroDB.DEFAULT_AUTO_SAVE_THRESHOLD;
+    private int mCompressionMinRecordSize = 0;
+    private int mOutOfLineArraySize = ArrayStore.DEFAULT_MIN_SIZE;
+    private IdGenerator mIdGenerator = new RandomIdGenerator();
 
     public static DBBuilder builder() {
         return new DBBuilder();
@@ -43,16 +89,185 @@ public class DBBuilder {
         return this;
     }
 
+    /**
+     * Enable group commit. Concurrent calls to {@code MicroDB.sync()} will share a single
+     * commit instead of each paying for their own.
+     *
+     * @param maxBatchSize max number of queued operations applied per commit
+     * @param maxLingerMillis max time to wait for a batch to fill before committing
+     * @return this builder
+     */
+    public DBBuilder groupCommit(int maxBatchSize, long maxLingerMillis) {
+        mMaxBatchSize = maxBatchSize;
+        mMaxLingerMillis = maxLingerMillis;
+        return this;
+    }
+
+    /**
+     * Bound the write queue. By default the queue is unbounded, so producers that outpace the
+     * disk can queue writes until the heap is exhausted.
+     *
+     * @param capacity max number of write operations waiting to be written
+     * @param policy what {@code insert}, {@code save} and {@code delete} do when the queue is full
+     * @return this builder
+     */
+    public DBBuilder writeQueueCapacity(int capacity, MicroDB.OverflowPolicy policy) {
+        return writeQueueCapacity(capacity, policy, 0);
+    }
+
+    /**
+     * Bound the write queue. By default the queue is unbounded, so producers that outpace the
+     * disk can queue writes until the heap is exhausted.
+     *
+     * @param capacity max number of write operations waiting to be written
+     * @param policy what {@code insert}, {@code save} and {@code delete} do when the queue is full
+     * @param timeoutMillis max time to wait for room when {@code policy} is {@code BlockWithTimeout}
+     * @return this builder
+     */
+    public DBBuilder writeQueueCapacity(int capacity, MicroDB.OverflowPolicy policy, long timeoutMillis) {
+        mWriteQueueCapacity = capacity;
+        mOverflowPolicy = policy;
+        mOverflowTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Serialize objects on {@code numThreads} worker threads ahead of the write thread, so
+     * encoding large objects is not limited to one core.
+     *
+     * @param numThreads number of serialization workers. 0 (the default) serializes on the write thread.
+     * @return this builder
+     */
+    public DBBuilder parallelSerialization(int numThreads) {
+        mSerializationThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * Select the durability profile used by {@link #build(File)}. Memory databases are not affected.
+     *
+     * @param durability
+     * @return this builder
+     */
+    public DBBuilder durability(Durability durability) {
+        mDurability = durability;
+        return this;
+    }
+
+    /**
+     * How often the {@code Checkpoint} durability profile flushes writes to disk.
+     *
+     * @param intervalMillis time in milliseconds between checkpoints
+     * @return this builder
+     */
+    public DBBuilder checkpointInterval(long intervalMillis) {
+        mCheckpointIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    /**
+     * When objects that were changed but not saved are written. Changes are always written by
+     * {@code MicroDB.flush()} and {@code close()}; in between, a changed object is written once
+     * the delay has passed or once enough objects have changed, so that one write takes all the
+     * changes made to the object in that time.
+     *
+     * @param delayMillis time in milliseconds after its first change that an object is written.
+     *                    The default is 1 second. 0 writes an object as soon as it is changed.
+     * @param threshold   number of changed objects at which they are all written without
+     *                    waiting for the delay. The default is 1000.
+     * @return this builder
+     */
+    public DBBuilder autoSave(long delayMillis, int threshold) {
+        mAutoSaveDelayMillis = delayMillis;
+        mAutoSaveThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Compress stored objects with a dictionary trained per DBO type. Objects of one type share
+     * most of their bytes, so this shrinks large databases considerably. Dictionaries are trained
+     * and existing records rewritten by a background job once enough objects of a type exist.
+     *
+     * @param minRecordSize objects whose encoding is shorter than this many bytes are stored
+     *                      uncompressed. 0 (the default) disables compression.
+     * @return this builder
+     */
+    public DBBuilder recordCompression(int minRecordSize) {
+        mCompressionMinRecordSize = minRecordSize;
+        return this;
+    }
+
+    /**
+     * Store large primitive array fields (such as sensor samples) apart from their object. Reading
+     * the object then only loads such an array when its getter is called.
+     *
+     * @param minBytes arrays whose encoding is shorter than this many bytes are stored with their
+     *                 object. 0 stores every array with its object. The default is 16 KB.
+     * @return this builder
+     */
+    public DBBuilder outOfLineArrays(int minBytes) {
+        mOutOfLineArraySize = minBytes;
+        return this;
+    }
+
+    /**
+     * Select how keys of new objects are generated. Random keys (the default) spread inserts
+     * over the whole objects tree; a {@link TimeOrderedIdGenerator} appends them near its end,
+     * which keeps writes local once the database outgrows memory.
+     *
+     * @param generator
+     * @return this builder
+     */
+    public DBBuilder idGenerator(IdGenerator generator) {
+        mIdGenerator = generator;
+        return this;
+    }
+
+    /**
+     * @param checkpointIntervalMillis 0 if the driver has transactions that {@code sync()} commits
+     */
+    private MicroDB create(Driver driver, long checkpointIntervalMillis) throws IOException {
+        MicroDB retval = new MicroDB(driver, mSchemaVersion, mCallback, false);
+        retval.setGroupCommit(mMaxBatchSize, mMaxLingerMillis);
+        retval.setSerializationThreads(mSerializationThreads);
+        retval.setAutoSave(mAutoSaveDelayMillis, mAutoSaveThreshold);
+        if (mWriteQueueCapacity > 0) {
+            retval.setWriteQueueCapacity(mWriteQueueCapacity, mOverflowPolicy, mOverflowTimeoutMillis);
+        }
+        retval.setCheckpointInterval(checkpointIntervalMillis);
+        retval.start();
+        return retval;
+    }
+
     public MicroDB build(File path) throws IOException {
         DBMaker mapdbBuilder = DBMaker.newFileDB(path);
         if(mCacheSize != null) {
             mapdbBuilder.cacheSize(mCacheSize);
         }
+        switch (mDurability) {
+            case FullWAL:
+                break;
+
+            case AsyncWAL:
+                mapdbBuilder.asyncWriteEnable();
+                break;
+
+            case Checkpoint:
+                mapdbBuilder.transactionDisable();
+                break;
+
+            case MemoryMapped:
+                mapdbBuilder.mmapFileEnableIfSupported();
+                break;
+        }
         DB db = mapdbBuilder.make();
 
         MapDBDriver driver = new MapDBDriver(db);
+        driver.setCompression(mCompressionMinRecordSize);
+        driver.setOutOfLineArrays(mOutOfLineArraySize);
+        driver.setIdGenerator(mIdGenerator);
 
-        return new MicroDB(driver, mSchemaVersion, mCallback);
+        return create(driver, mDurability == Durability.Checkpoint ? mCheckpointIntervalMillis : 0);
 
     }
 
@@ -62,7 +277,10 @@ public class DBBuilder {
                 .make();
 
         MapDBDriver driver = new MapDBDriver(db);
-        return new MicroDB(driver, mSchemaVersion, mCallback);
+        driver.setCompression(mCompressionMinRecordSize);
+        driver.setOutOfLineArrays(mOutOfLineArraySize);
+        driver.setIdGenerator(mIdGenerator);
+        return create(driver, 0);
     }
 
 
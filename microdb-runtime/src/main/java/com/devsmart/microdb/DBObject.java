@@ -3,10 +3,15 @@ package com.devsmart.microdb;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBValue;
 import com.devsmart.ubjson.UBValueFactory;
+import org.mapdb.DataInput2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.UUID;
 
 public class DBObject {
@@ -17,17 +22,18 @@ public class DBObject {
     private MicroDB mDB;
     protected boolean mDirty;
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            if (mDB != null) {
-                mDB.finalizing(this);
-            }
+    /**
+     * array fields that were stored out of line (see {@link ArrayStore}) and have not been read
+     * yet: field name -> id of the object that owns the stored array
+     */
+    private volatile HashMap<String, UUID> mArrayRefs;
+    private ArrayStore mArrayStore;
 
-        } finally {
-            super.finalize();
-        }
-    }
+    /**
+     * the thread that is writing this object's record for its own database, during
+     * {@link MicroDB}'s snapshot; see {@link #writeArrayRef(DataOutput, String)}
+     */
+    Thread mRecordWriter;
 
     protected void init(MicroDB microDB) {
         mDB = microDB;
@@ -44,12 +50,233 @@ public class DBObject {
     }
 
     public void readFromUBObject(UBObject data) {
+        mArrayRefs = null;
         UBValue value = data.get("id");
         if (value != null && value.isString()) {
             mId = UUID.fromString(value.asString());
         }
     }
 
+    /**
+     * Writes this object as UBJSON directly to {@code out}, producing the same fields as
+     * {@link #writeToUBObject(UBObject)} without building a UBObject first. The DBO compiler
+     * generates this method for every type; MicroDB only calls it on classes that declare it
+     * themselves, so hand written subclasses that just override writeToUBObject keep working.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        UBCodec.writeObjectStart(out);
+        writeFields(out);
+        UBCodec.writeObjectEnd(out);
+    }
+
+    protected void writeFields(DataOutput out) throws IOException {
+        if (mId != null) {
+            UBCodec.writeKey(out, "id");
+            UBCodec.writeUUID(out, mId);
+        }
+    }
+
+    /**
+     * Reads an object written by {@link #writeTo(DataOutput)}, or by writeToUBObject, calling
+     * {@link #readField(String, DataInput)} for every field.
+     */
+    public void readFrom(DataInput in) throws IOException {
+        readFrom(in, null, null);
+    }
+
+    /**
+     * @param schema if not null, fields are keyed by their id in this schema instead of by name
+     * @param arrays the store that arrays written out of line are kept in, or null if the record
+     *               has none
+     */
+    void readFrom(DataInput in, SchemaRegistry.TypeSchema schema, ArrayStore arrays) throws IOException {
+        mArrayRefs = null;
+        if (UBCodec.readMarker(in) != UBScanner.MARKER_OBJ_START) {
+            throw new IOException("expected an object");
+        }
+        int m = in.readUnsignedByte();
+        long count = -1;
+        if (m == UBScanner.MARKER_OPTIMIZED_TYPE) {
+            throw new IOException("strongly typed objects are not supported");
+        } else if (m == UBScanner.MARKER_OPTIMIZED_SIZE) {
+            count = UBCodec.readIntPayload(in.readUnsignedByte(), in);
+            m = count > 0 ? in.readUnsignedByte() : UBScanner.MARKER_OBJ_END;
+        }
+
+        while (count != 0 && m != UBScanner.MARKER_OBJ_END) {
+            if (m != UBScanner.MARKER_NOOP) {
+                final String key = schema != null
+                        ? schema.getFieldName((int) UBCodec.readIntPayload(m, in))
+                        : UBCodec.readStringPayload(m, in);
+                if (key == null) {
+                    UBCodec.skipValue(in);
+                } else if (arrays != null && isArrayRef(in)) {
+                    readArrayRef(key, (DataInput2) in, arrays);
+                } else if (!readField(key, in)) {
+                    UBCodec.skipValue(in);
+                }
+                if (count > 0 && --count == 0) {
+                    break;
+                }
+            }
+            m = in.readUnsignedByte();
+        }
+    }
+
+    /**
+     * Reads the value of field {@code key}, which is next in {@code in}.
+     *
+     * @return false if this class does not know the field, in which case its value has not been
+     * read
+     */
+    protected boolean readField(String key, DataInput in) throws IOException {
+        if ("id".equals(key)) {
+            mId = UBCodec.readUUID(in, mId);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isArrayRef(DataInput in) {
+        if (in instanceof DataInput2) {
+            DataInput2 in2 = (DataInput2) in;
+            return (in2.buf.get(in2.pos) & 0xFF) == UBScanner.MARKER_ARRAY_REF;
+        }
+        return false;
+    }
+
+    private void readArrayRef(String key, DataInput2 in, ArrayStore arrays) throws IOException {
+        in.readUnsignedByte();
+        addArrayRef(key, new UUID(in.readLong(), in.readLong()), arrays);
+    }
+
+    /**
+     * If array field {@code key} of {@code data} was stored out of line, remembers where instead
+     * of loading it, as {@link #readFrom(DataInput)} does. Generated readFromUBObject call this,
+     * so the array is only loaded by its getter.
+     *
+     * @return false if the field has to be read from {@code data}
+     */
+    protected final boolean readArrayRef(UBObject data, String key) {
+        if (!(data instanceof LazyUBObject)) {
+            return false;
+        }
+        final LazyUBObject lazy = (LazyUBObject) data;
+        final UUID owner = lazy.getArrayRef(key);
+        if (owner == null) {
+            return false;
+        }
+        synchronized (this) {
+            addArrayRef(key, owner, lazy.getArrayStore());
+        }
+        return true;
+    }
+
+    private void addArrayRef(String key, UUID owner, ArrayStore arrays) {
+        HashMap<String, UUID> refs = mArrayRefs;
+        if (refs == null) {
+            refs = new HashMap<String, UUID>();
+        }
+        refs.put(key, owner);
+        mArrayStore = arrays;
+        mArrayRefs = refs;
+    }
+
+    /**
+     * Reads array field {@code key} if it was stored out of line and has not been read yet.
+     * Generated getters of array fields call this, so large arrays are only loaded when they
+     * are used.
+     */
+    protected final void loadArray(String key) {
+        if (mArrayRefs == null) {
+            return;
+        }
+        synchronized (this) {
+            final HashMap<String, UUID> refs = mArrayRefs;
+            final UUID owner = refs != null ? refs.remove(key) : null;
+            if (owner == null) {
+                return;
+            }
+            final byte[] data = mArrayStore.get(owner, key);
+            if (data == null) {
+                throw new IllegalStateException("missing out of line array " + key + " of " + owner);
+            }
+            try {
+                readField(key, new DataInput2(ByteBuffer.wrap(data), 0));
+            } catch (IOException e) {
+                throw new IllegalStateException("corrupt out of line array " + key + " of " + owner, e);
+            }
+        }
+    }
+
+    /**
+     * Forgets the stored copy of array field {@code key}. Generated setters of array fields call
+     * this, so a later {@link #loadArray(String)} does not replace the new value.
+     */
+    protected final synchronized void clearArrayRef(String key) {
+        final HashMap<String, UUID> refs = mArrayRefs;
+        if (refs != null) {
+            refs.remove(key);
+        }
+    }
+
+    /**
+     * @return the store the arrays in {@link #mArrayRefs} are kept in, or null
+     */
+    ArrayStore getArrayStore() {
+        return mArrayStore;
+    }
+
+    /**
+     * @return the id of the object that owns the stored copy of array field {@code key}, if it
+     * was stored out of line and has not been read yet; otherwise null
+     */
+    UUID getArrayRef(String key) {
+        final HashMap<String, UUID> refs = mArrayRefs;
+        return refs != null ? refs.get(key) : null;
+    }
+
+    /**
+     * Writes array field {@code key} as a reference to its stored copy if it was stored out of
+     * line, has not been read since, and this object is being written to its own database.
+     * Generated writeFields call this, so saving an object does not load, encode and store
+     * again the large arrays it did not change.
+     *
+     * @return false if nothing was written, and the array has to be written as a value
+     */
+    protected final boolean writeArrayRef(DataOutput out, String key) throws IOException {
+        if (mRecordWriter != Thread.currentThread()) {
+            return false;
+        }
+        final UUID owner = getArrayRef(key);
+        if (owner == null) {
+            return false;
+        }
+        out.write(UBScanner.MARKER_ARRAY_REF);
+        out.writeLong(owner.getMostSignificantBits());
+        out.writeLong(owner.getLeastSignificantBits());
+        return true;
+    }
+
+    /**
+     * Like {@link #writeArrayRef(DataOutput, String)}, for writeToUBObject: keeps array field
+     * {@code key} in {@code data} as a reference to its stored copy, if {@code data} is the
+     * record MicroDB saves this object with.
+     *
+     * @return false if nothing was put, and the array has to be put as a value
+     */
+    protected final boolean putArrayRef(UBObject data, String key) {
+        if (!(data instanceof RecordObject)) {
+            return false;
+        }
+        final UUID owner = getArrayRef(key);
+        if (owner == null) {
+            return false;
+        }
+        ((RecordObject) data).putArrayRef(key, owner, mArrayStore);
+        return true;
+    }
+
     protected void beforeWrite() {
 
     }
@@ -82,7 +309,12 @@ public class DBObject {
         }
     }
 
-    public void setDirty() {
-        mDirty = true;
+    public synchronized void setDirty() {
+        if (!mDirty) {
+            mDirty = true;
+            if (mDB != null && mId != null) {
+                mDB.onDirty(this);
+            }
+        }
     }
 }
\ No newline at end of file
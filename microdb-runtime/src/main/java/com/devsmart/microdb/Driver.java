@@ -5,6 +5,8 @@ import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBValue;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public interface Driver {
@@ -33,8 +35,40 @@ public interface Driver {
      */
     void insert(UUID id, UBValue value) throws IOException;
 
+    /**
+     * same as {@code insert(id, value)}, but {@code encoded} (if not null) is the result of
+     * {@code encode(id, value)} and is stored as is instead of encoding {@code value} again.
+     */
+    void insert(UUID id, UBValue value, byte[] encoded) throws IOException;
+
+    /**
+     * serializes {@code value} to the driver's storage format. This method is thread safe so
+     * that values can be encoded ahead of the write thread.
+     *
+     * @param id    the key {@code value} will be stored under
+     * @param value
+     * @return the encoded value, to be passed to {@code insert} or {@code update}
+     * @throws IOException
+     */
+    byte[] encode(UUID id, UBValue value) throws IOException;
+
+    /**
+     * @return a key for a new object, from the configured {@link IdGenerator}. Keys are not
+     * checked against the database.
+     */
     UUID genId();
 
+    /**
+     * inserts many new values into the database at once. This is intended for the initial
+     * import of a large amount of data and may be much faster than calling {@code insert}
+     * once per value.
+     *
+     * @param values the new key-value pairs sorted by key in ascending order. The keys should
+     *               have originated from calls to {@code genId()}
+     * @throws IOException
+     */
+    void bulkInsert(List<Map.Entry<UUID, UBValue>> values) throws IOException;
+
     /**
      * replace value with key {@code id} with new value {@code value}.
      * If a value with with {@code id} does not exist, insert the key-value
@@ -46,6 +80,12 @@ public interface Driver {
      */
     void update(UUID id, UBValue value) throws IOException;
 
+    /**
+     * same as {@code update(id, value)}, but {@code encoded} (if not null) is the result of
+     * {@code encode(id, value)} and is stored as is instead of encoding {@code value} again.
+     */
+    void update(UUID id, UBValue value, byte[] encoded) throws IOException;
+
     /**
      * delete the database object with key {@code key}
      *
@@ -56,12 +96,68 @@ public interface Driver {
 
     long incrementLongField(String fieldName);
 
+    /**
+     * @return the compact id the DBO type {@code typeName} is registered under in this database,
+     * or -1 if no object of that type has been stored yet
+     */
+    int getTypeId(String typeName);
+
+    /**
+     * @return the id of the type of the object {@code value}, registering the type if it is new,
+     * or -1 if {@code value} is not an object with a string "type" field
+     */
+    int getTypeIdOf(UBValue value);
+
     <T extends Comparable<T>> Cursor queryIndex(String indexName, T min, boolean minInclusive, T max, boolean maxInclusive) throws IOException;
 
+    /**
+     * Query a composite index over the keys that start with the values of {@code prefix}, and
+     * whose next value is in the range [min, max]. A null {@code min} or {@code max} leaves that
+     * end of the range open.
+     */
+    <T extends Comparable<T>> Cursor queryIndex(String indexName, CompositeKey prefix, T min, boolean minInclusive, T max, boolean maxInclusive) throws IOException;
+
+    /**
+     * @return the ids of the objects whose index key is {@code key}
+     */
+    <T extends Comparable<T>> List<UUID> lookupIndex(String indexName, T key) throws IOException;
+
+    /**
+     * @return the id of the object whose key in the unique index {@code indexName} is
+     * {@code key}, or null if there is none
+     * @throws IllegalArgumentException if {@code indexName} is not a unique index
+     */
+    <T extends Comparable<T>> UUID lookupUniqueKey(String indexName, T key) throws IOException;
+
     <T extends Comparable<T>> void addIndex(String indexName, MapFunction<T> mapFunction) throws IOException;
 
+    /**
+     * Add a covering index, which stores the values of {@code includeFields} with each of its
+     * entries, so that queries can read them without loading the objects.
+     */
+    <T extends Comparable<T>> void addIndex(String indexName, MapFunction<T> mapFunction, String... includeFields) throws IOException;
+
+    /**
+     * Add an index of the given kind. Hash and unique indexes only answer equality queries, and
+     * can not include fields. Inserts, updates and bulk inserts that would give two objects the
+     * same key in a unique index throw {@link UniqueConstraintException} and store nothing.
+     */
+    <T extends Comparable<T>> void addIndex(String indexName, MicroDB.IndexKind kind, MapFunction<T> mapFunction, String... includeFields) throws IOException;
+
+    /**
+     * Empties the index and indexes every object again. Other than unique indexes, the index is
+     * rebuilt in the background, as when it is added to a database with objects.
+     */
     void recomputeIndex(String indexName);
 
+    /**
+     * @return false while the index is being filled with the objects stored before it was
+     * added. Queries on it are answered in the meantime by scanning the objects. A build that
+     * fails is tried again; if it keeps failing, the index stays not ready and queries on it
+     * throw an IOException with the cause, until it is recomputed or added again.
+     */
+    boolean isIndexReady(String indexName);
+
     void deleteIndex(String indexName);
 
     void beginTransaction() throws IOException;
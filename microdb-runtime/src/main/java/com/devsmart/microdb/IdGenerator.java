@@ -0,0 +1,16 @@
+package com.devsmart.microdb;
+
+
+import java.util.UUID;
+
+/**
+ * Generates the keys of new objects. Keys must be unique; a generator is not asked to check
+ * them against the database, so it has to make collisions practically impossible by itself.
+ * {@link #generateId()} may be called from any thread.
+ *
+ * @see DBBuilder#idGenerator(IdGenerator)
+ */
+public interface IdGenerator {
+
+    UUID generateId();
+}
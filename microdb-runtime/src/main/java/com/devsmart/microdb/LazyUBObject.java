@@ -0,0 +1,506 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.ExtensibleUBObject;
+import com.devsmart.ubjson.UBReader;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+
+import org.mapdb.DataInput2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A UBObject backed by its UBJSON encoded bytes. The first time a field is looked up, the
+ * object's keys are scanned to build a table of value offsets; after that, {@link #get(Object)}
+ * decodes only the value asked for. Anything that changes the object, or exposes it through
+ * a collection view, decodes every field first and from then on it behaves like a plain
+ * UBObject.
+ *
+ * {@link #mData} holds the whole stored record, including the format marker in front of the
+ * object, so an unmodified object can be written back as is. Schema encoded records (see
+ * {@link SchemaRegistry}) have field ids instead of names; these are resolved through the
+ * record's type.
+ *
+ * Instances may be shared between threads through MapDB's instance cache, so every method is
+ * synchronized.
+ */
+final class LazyUBObject extends ExtensibleUBObject {
+
+    private final byte[] mData;
+    private final int mOffset;
+    private final int mLength;
+    private final SchemaRegistry.TypeSchema mType;
+
+    /**
+     * the store out of line arrays of a plain record are loaded from; schema encoded records
+     * use their registry's
+     */
+    private final ArrayStore mArrays;
+
+    /**
+     * field name -> {start, end} of the encoded value. null until the first lookup.
+     */
+    private TreeMap<String, int[]> mFields;
+    private boolean mMaterialized;
+
+    /**
+     * the "type" field found by {@link #getTypeName()}, while this object is unmodified
+     */
+    private String mTypeName;
+
+    /**
+     * the type {@link #mTypeName} was last resolved to by {@link #getType(SchemaRegistry)},
+     * while this object is unmodified
+     */
+    private SchemaRegistry.TypeSchema mResolvedType;
+
+    /**
+     * true as long as {@link #mData} still describes this object exactly. Cleared on any
+     * modification, and when a nested object or array is handed out, since the caller could
+     * change it in place.
+     */
+    private boolean mEncodedValid = true;
+
+    /**
+     * @param data the stored record
+     * @param offset position of the object's start marker in {@code data}
+     * @param length length of the encoded object
+     * @param type the type of a schema encoded record, otherwise null
+     */
+    LazyUBObject(byte[] data, int offset, int length, SchemaRegistry.TypeSchema type) {
+        this(data, offset, length, type, null);
+    }
+
+    private LazyUBObject(byte[] data, int offset, int length, SchemaRegistry.TypeSchema type, ArrayStore arrays) {
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+        mType = type;
+        mArrays = arrays;
+    }
+
+    /**
+     * wraps plain UBJSON, such as the output of {@link DBObject#writeTo(java.io.DataOutput)},
+     * in a stored record
+     */
+    static LazyUBObject wrap(byte[] ubjson, int length) {
+        byte[] data = new byte[length + 1];
+        data[0] = (byte) MapDBDriver.UBValueSerializer.FORMAT_V1;
+        System.arraycopy(ubjson, 0, data, 1, length);
+        return new LazyUBObject(data, 1, length, null);
+    }
+
+    /**
+     * wraps a stored record of plain UBJSON, which starts with its format marker
+     *
+     * @param arrays the store the record's out of line arrays are kept in, or null if it has
+     *               none
+     */
+    static LazyUBObject wrapRecord(byte[] record, ArrayStore arrays) {
+        return new LazyUBObject(record, 1, record.length - 1, null, arrays);
+    }
+
+    ArrayStore getArrayStore() {
+        return mType != null ? mType.registry.getArrayStore() : mArrays;
+    }
+
+    private static UBValue decode(byte[] data, int start, int end) {
+        if (data[start] == UBScanner.MARKER_UUID) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            return UBValueFactory.createString(new UUID(buf.getLong(start + 1), buf.getLong(start + 9)).toString());
+        }
+        try {
+            UBReader reader = new UBReader(new ByteArrayInputStream(data, start, end - start));
+            UBValue retval = reader.read();
+            reader.close();
+            return retval;
+        } catch (IOException e) {
+            throw new IllegalStateException("corrupt UBJSON object", e);
+        }
+    }
+
+    /**
+     * decodes the value of field {@code key}, loading it from the array store if it was stored
+     * out of line
+     */
+    private UBValue decodeField(String key, int start, int end) {
+        if (mData[start] != UBScanner.MARKER_ARRAY_REF) {
+            return decode(mData, start, end);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(mData);
+        final UUID owner = new UUID(buf.getLong(start + 1), buf.getLong(start + 9));
+        final ArrayStore arrays = getArrayStore();
+        final byte[] array = arrays != null ? arrays.get(owner, key) : null;
+        if (array == null) {
+            throw new IllegalStateException("missing out of line array " + key + " of " + owner);
+        }
+        return decode(array, 0, array.length);
+    }
+
+    private void buildFieldTable() {
+        if (mFields != null || mMaterialized) {
+            return;
+        }
+        final TreeMap<String, int[]> fields = new TreeMap<String, int[]>();
+        try {
+            final UBScanner scanner = new UBScanner(ByteBuffer.wrap(mData));
+            if (mType != null) {
+                buildSchemaFieldTable(scanner, fields);
+                mFields = fields;
+                return;
+            }
+
+            final long[] header = new long[3];
+            scanner.readContainerHeader(mOffset + 1, header);
+            if (header[0] >= 0) {
+                //values of a strongly typed object have no markers of their own, so they can't
+                //be decoded one at a time
+                for (Map.Entry<String, UBValue> field : decode(mData, mOffset, mOffset + mLength).asObject().entrySet()) {
+                    super.put(field.getKey(), field.getValue());
+                }
+                mMaterialized = true;
+                return;
+            }
+
+            final long count = header[1];
+            int pos = (int) header[2];
+            for (long i = 0; count < 0 || i < count; i++) {
+                if (count < 0) {
+                    while (mData[pos] == UBScanner.MARKER_NOOP) {
+                        pos++;
+                    }
+                    if (mData[pos] == UBScanner.MARKER_OBJ_END) {
+                        break;
+                    }
+                }
+                final String key = scanner.readString(pos);
+                final int valueStart = scanner.skipString(pos);
+                pos = scanner.skipValue(valueStart);
+                fields.put(key, new int[]{valueStart, pos});
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("corrupt UBJSON object", e);
+        }
+        mFields = fields;
+    }
+
+    private void buildSchemaFieldTable(UBScanner scanner, TreeMap<String, int[]> fields) throws IOException {
+        int pos = mOffset + 1;
+        int m;
+        while ((m = mData[pos] & 0xFF) != UBScanner.MARKER_OBJ_END) {
+            final int fieldId = (int) scanner.readInt(m, pos + 1);
+            final String name = mType.getFieldName(fieldId);
+            if (name == null) {
+                throw new IOException("unknown field id " + fieldId + " for type " + mType.name);
+            }
+            final int valueStart = scanner.skipPayload(m, pos + 1);
+            pos = scanner.skipValue(valueStart);
+            fields.put(name, new int[]{valueStart, pos});
+        }
+
+        //the type is not stored as a field
+        super.put(SchemaRegistry.TYPE_FIELD, mType.nameValue);
+        fields.put(SchemaRegistry.TYPE_FIELD, null);
+    }
+
+    private void materialize() {
+        buildFieldTable();
+        if (mMaterialized) {
+            return;
+        }
+        for (Map.Entry<String, int[]> field : mFields.entrySet()) {
+            if (field.getValue() != null && !super.containsKey(field.getKey())) {
+                int[] range = field.getValue();
+                super.put(field.getKey(), decodeField(field.getKey(), range[0], range[1]));
+            }
+        }
+        mMaterialized = true;
+        mFields = null;
+    }
+
+    private void modified() {
+        materialize();
+        mEncodedValid = false;
+    }
+
+    /**
+     * @return the value of the "type" field if it is a string, otherwise null. Until some other
+     * field is looked up, this scans the keys for it instead of building the field table, since
+     * writing a fresh snapshot only needs to know its type.
+     */
+    synchronized String getTypeName() {
+        if (mType != null) {
+            return mType.name;
+        }
+        if (mTypeName != null && mEncodedValid) {
+            return mTypeName;
+        }
+        if (mFields == null && !mMaterialized) {
+            try {
+                mTypeName = scanTypeName();
+                return mTypeName;
+            } catch (IOException e) {
+                throw new IllegalStateException("corrupt UBJSON object", e);
+            }
+        }
+        UBValue retval = get(SchemaRegistry.TYPE_FIELD);
+        return retval != null && retval.isString() ? retval.asString() : null;
+    }
+
+    private String scanTypeName() throws IOException {
+        final UBScanner scanner = new UBScanner(ByteBuffer.wrap(mData));
+        final long[] header = new long[3];
+        scanner.readContainerHeader(mOffset + 1, header);
+        if (header[0] >= 0) {
+            UBValue retval = get(SchemaRegistry.TYPE_FIELD);
+            return retval != null && retval.isString() ? retval.asString() : null;
+        }
+
+        final long count = header[1];
+        int pos = (int) header[2];
+        for (long i = 0; count < 0 || i < count; i++) {
+            if (count < 0) {
+                while (mData[pos] == UBScanner.MARKER_NOOP) {
+                    pos++;
+                }
+                if (mData[pos] == UBScanner.MARKER_OBJ_END) {
+                    break;
+                }
+            }
+            final int lengthMarker = mData[pos] & 0xFF;
+            final int keyLength = (int) scanner.readInt(lengthMarker, pos + 1);
+            final int keyStart = scanner.skipPayload(lengthMarker, pos + 1);
+            final int valueStart = keyStart + keyLength;
+            if (SchemaRegistry.matches(SchemaRegistry.TYPE_FIELD_KEY, mData, keyStart, keyLength)) {
+                return mData[valueStart] == UBScanner.MARKER_STRING ? scanner.readString(valueStart + 1) : null;
+            }
+            pos = scanner.skipValue(valueStart);
+        }
+        return null;
+    }
+
+    /**
+     * @return the type this object is stored as in {@code registry}, adding it if it is new, or
+     * null if this object has no string "type" field. The type is kept, so a fresh snapshot is
+     * only looked up by name once however many times it is checked while being written.
+     */
+    synchronized SchemaRegistry.TypeSchema getType(SchemaRegistry registry) {
+        if (mType != null && mType.registry == registry) {
+            return mType;
+        }
+        SchemaRegistry.TypeSchema retval = getKnownType();
+        if (retval != null && retval.registry == registry) {
+            return retval;
+        }
+        final String name = getTypeName();
+        if (name == null) {
+            return null;
+        }
+        retval = registry.getType(name);
+        if (mEncodedValid) {
+            mResolvedType = retval;
+        }
+        return retval;
+    }
+
+    /**
+     * @return the type of a schema encoded record, or the type a plain record was last resolved
+     * to if it is still current, otherwise null. Never scans the record.
+     */
+    synchronized SchemaRegistry.TypeSchema getKnownType() {
+        if (mType != null) {
+            return mType;
+        }
+        final SchemaRegistry.TypeSchema retval = mResolvedType;
+        //a rollback may have dropped the type, and given its id to another one
+        if (retval != null && mEncodedValid && retval.registry.getType(retval.id) == retval) {
+            return retval;
+        }
+        return null;
+    }
+
+    /**
+     * @return the type of a schema encoded record, otherwise null
+     */
+    SchemaRegistry.TypeSchema getSchemaType() {
+        return mType;
+    }
+
+    /**
+     * @return the stored record if this object has not been modified, otherwise null
+     */
+    synchronized byte[] getRecord() {
+        return mEncodedValid ? mData : null;
+    }
+
+    /**
+     * @return a new object over the same record, which can be read in full without affecting
+     * this object's encoding, or null if this object has been modified
+     */
+    synchronized LazyUBObject copy() {
+        return mEncodedValid ? new LazyUBObject(mData, mOffset, mLength, mType, mArrays) : null;
+    }
+
+    /**
+     * @return position of the object's start marker in {@link #getRecord()}
+     */
+    int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Reads the fields of this object into {@code obj} straight from the stored record, through
+     * {@link DBObject#readFrom(java.io.DataInput)}.
+     *
+     * @return false if the record can't be used, because this object has been modified or the
+     * record is strongly typed; the caller should fall back to readFromUBObject
+     */
+    synchronized boolean readInto(DBObject obj) throws IOException {
+        if (!mEncodedValid || (mType == null && mData[mOffset + 1] == UBScanner.MARKER_OPTIMIZED_TYPE)) {
+            return false;
+        }
+        obj.readFrom(new DataInput2(ByteBuffer.wrap(mData), mOffset), mType, getArrayStore());
+        return true;
+    }
+
+    /**
+     * @return the id of the object that owns the stored array, if field {@code key} was stored
+     * out of line and has not been decoded; otherwise null
+     */
+    synchronized UUID getArrayRef(String key) {
+        if (super.containsKey(key)) {
+            return null;
+        }
+        buildFieldTable();
+        final int[] range = mFields != null ? mFields.get(key) : null;
+        if (range == null || mData[range[0]] != UBScanner.MARKER_ARRAY_REF) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(mData);
+        return new UUID(buf.getLong(range[0] + 1), buf.getLong(range[0] + 9));
+    }
+
+    @Override
+    public synchronized UBValue get(Object key) {
+        UBValue retval = super.get(key);
+        if (retval == null && !mMaterialized) {
+            buildFieldTable();
+            retval = super.get(key);
+            if (retval == null && mFields != null) {
+                int[] range = mFields.get(key);
+                if (range != null) {
+                    retval = decodeField((String) key, range[0], range[1]);
+                    super.put((String) key, retval);
+                }
+            }
+        }
+        if (retval != null && (retval.isObject() || retval.isArray())) {
+            mEncodedValid = false;
+        }
+        return retval;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        if (mMaterialized) {
+            return super.containsKey(key);
+        }
+        buildFieldTable();
+        return mMaterialized ? super.containsKey(key) : mFields.containsKey(key);
+    }
+
+    @Override
+    public synchronized int size() {
+        if (mMaterialized) {
+            return super.size();
+        }
+        buildFieldTable();
+        return mMaterialized ? super.size() : mFields.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public synchronized boolean containsValue(Object value) {
+        materialize();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public synchronized UBValue put(String key, UBValue value) {
+        modified();
+        return super.put(key, value);
+    }
+
+    @Override
+    public synchronized UBValue remove(Object key) {
+        modified();
+        return super.remove(key);
+    }
+
+    @Override
+    public synchronized void putAll(Map<? extends String, ? extends UBValue> m) {
+        modified();
+        for (Map.Entry<? extends String, ? extends UBValue> field : m.entrySet()) {
+            super.put(field.getKey(), field.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        modified();
+        super.clear();
+    }
+
+    @Override
+    public synchronized Set<String> keySet() {
+        modified();
+        return super.keySet();
+    }
+
+    @Override
+    public synchronized Collection<UBValue> values() {
+        modified();
+        return super.values();
+    }
+
+    @Override
+    public synchronized Set<Map.Entry<String, UBValue>> entrySet() {
+        modified();
+        return super.entrySet();
+    }
+
+    private synchronized void ensureMaterialized() {
+        materialize();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        //UBObject.equals compares the backing maps, so both sides need to be decoded. Each
+        //object is locked on its own to avoid lock ordering problems.
+        if (o instanceof LazyUBObject && o != this) {
+            ((LazyUBObject) o).ensureMaterialized();
+        }
+        synchronized (this) {
+            materialize();
+            return super.equals(o);
+        }
+    }
+
+    @Override
+    public synchronized int hashCode() {
+        materialize();
+        return super.hashCode();
+    }
+}
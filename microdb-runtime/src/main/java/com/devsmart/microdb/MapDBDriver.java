@@ -3,41 +3,377 @@ package com.devsmart.microdb;
 
 import com.devsmart.ubjson.*;
 import org.mapdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class MapDBDriver implements Driver {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(MapDBDriver.class);
+
     final DB mMapDB;
     final Atomic.Var<UBObject> mMetadata;
-    BTreeMap<UUID, UBValue> mObjects;
+    final SchemaRegistry mSchema;
+    final RecordCompressor mCompressor;
+    final ArrayStore mArrays;
+
+    /**
+     * Read without a lock by every thread, so it is volatile: {@link #bulkInsert(List)} may
+     * replace an empty tree with one built by the data pump.
+     */
+    volatile BTreeMap<UUID, UBValue> mObjects;
+
+    /**
+     * the indexes still being built, each with the id of the last object it has indexed
+     */
+    final BTreeMap<String, UUID> mIndexBuilds;
+    private ExecutorService mCompressionJobs;
+    private ScheduledThreadPoolExecutor mIndexBuildJobs;
+    private volatile boolean mClosing;
+
+    /**
+     * see {@link #BACKFILL_RETRY_DELAY_MILLIS}
+     */
+    volatile long mBackfillRetryDelayMillis = BACKFILL_RETRY_DELAY_MILLIS;
+    private volatile IdGenerator mIdGenerator = new RandomIdGenerator();
+
+    /**
+     * true if MapDB serializes values on a writer thread of its own (see
+     * {@link org.mapdb.DBMaker#asyncWriteEnable()}), where the thread locals the serializer
+     * uses for the schema registry and pre-encoded records are not set. Values are then put
+     * already encoded, in a form that carries its type.
+     */
+    private final boolean mAsyncWrites;
+
+    /**
+     * arrays taken out of records by {@link #encode(UUID, UBValue)}, until the record is stored.
+     * Weak, so records that are never stored don't leak.
+     */
+    private final Map<byte[], List<ArrayStore.Pending>> mEncodedArrays =
+            Collections.synchronizedMap(new WeakHashMap<byte[], List<ArrayStore.Pending>>());
     private Map<String, IndexObject> mIndicies = new HashMap<String, IndexObject>();
 
     public static class UBValueSerializer implements Serializer<UBValue>, Serializable {
 
-        @Override
-        public void serialize(DataOutput out, UBValue value) throws IOException {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            UBWriter writer = new UBWriter(bout);
+        private static final class PreEncoded {
+            UBValue value;
+            byte[] data;
+        }
+
+        /**
+         * lets the write thread store a value that was already encoded on another thread.
+         * Matching is by identity, so only the value being put is affected. The data is a
+         * complete record, as returned by {@link #encode(UBValue)}.
+         */
+        private static final ThreadLocal<PreEncoded> PRE_ENCODED = new ThreadLocal<PreEncoded>() {
+            @Override
+            protected PreEncoded initialValue() {
+                return new PreEncoded();
+            }
+        };
+
+        static void setPreEncoded(UBValue value, byte[] data) {
+            PreEncoded preEncoded = PRE_ENCODED.get();
+            preEncoded.value = value;
+            preEncoded.data = data;
+        }
+
+        /**
+         * reads a complete record, as returned by {@link #encode(UBValue)}. Schema encoded
+         * records can only be read while their registry is active.
+         */
+        static UBValue decode(byte[] record) throws IOException {
+            return SERIALIZER_UBVALUE.deserialize(new DataInput2(ByteBuffer.wrap(record), 0), record.length);
+        }
+
+        static void clearPreEncoded() {
+            PreEncoded preEncoded = PRE_ENCODED.get();
+            preEncoded.value = null;
+            preEncoded.data = null;
+        }
+
+        /**
+         * First byte of a record in the current format: the marker is followed directly by the
+         * UBJSON encoded value. Records written by older versions start with a big-endian int
+         * length, whose first byte is never greater than 0x7F.
+         */
+        static final int FORMAT_V1 = 0x81;
+
+        /**
+         * First byte of a schema encoded record, see {@link SchemaRegistry}. Only written for
+         * the objects tree, while its driver has made its registry active on the current thread.
+         */
+        static final int FORMAT_SCHEMA = 0x82;
+
+        /**
+         * First byte of a schema encoded record that was compressed with its type's dictionary,
+         * see {@link RecordCompressor}.
+         */
+        static final int FORMAT_COMPRESSED = 0x83;
+
+        private static final ThreadLocal<SchemaRegistry> ACTIVE_SCHEMA = new ThreadLocal<SchemaRegistry>();
+
+        /**
+         * makes {@code schema} the registry used to write and read schema encoded records on
+         * this thread.
+         *
+         * @return the previously active registry, to be passed back when done
+         */
+        static SchemaRegistry setActiveSchema(SchemaRegistry schema) {
+            SchemaRegistry retval = ACTIVE_SCHEMA.get();
+            ACTIVE_SCHEMA.set(schema);
+            return retval;
+        }
+
+        private static final ThreadLocal<ScratchBuffer> SCRATCH_OUT = ScratchBuffer.newThreadLocal();
+
+        /**
+         * holds schema records on their way to the compressor, which writes into SCRATCH_OUT
+         */
+        private static final ThreadLocal<ScratchBuffer> SCRATCH_RAW = ScratchBuffer.newThreadLocal();
+
+        private static final ThreadLocal<DataInputStream> SCRATCH_IN = new ThreadLocal<DataInputStream>() {
+            @Override
+            protected DataInputStream initialValue() {
+                return new DataInputStream();
+            }
+        };
+
+        /**
+         * Adapts a MapDB DataInput to the InputStream UBReader wants, without copying. Reads are
+         * limited to the bytes MapDB says are available for this record.
+         */
+        private static final class DataInputStream extends InputStream {
+            private DataInput mIn;
+            private int mRemaining;
+
+            void reset(DataInput in, int available) {
+                mIn = in;
+                mRemaining = available > 0 ? available : Integer.MAX_VALUE;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (mRemaining <= 0) {
+                    return -1;
+                }
+                mRemaining--;
+                return mIn.readUnsignedByte();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (mRemaining <= 0) {
+                    return -1;
+                }
+                len = Math.min(len, mRemaining);
+                mIn.readFully(b, off, len);
+                mRemaining -= len;
+                return len;
+            }
+        }
+
+        private static DataOutput2 scratchOut() {
+            return scratch(SCRATCH_OUT);
+        }
+
+        private static DataOutput2 scratch(ThreadLocal<ScratchBuffer> local) {
+            return ScratchBuffer.get(local).out;
+        }
+
+        /**
+         * @return the compressor records of {@code type} are written through, or null if they
+         * are written as is
+         */
+        private static RecordCompressor getCompressor(SchemaRegistry.TypeSchema type) {
+            RecordCompressor compressor = type != null ? type.registry.getCompressor() : null;
+            return compressor != null && compressor.isEnabled() ? compressor : null;
+        }
+
+        private static void write(OutputStream out, UBValue value) throws IOException {
+            UBWriter writer = new UBWriter(out);
             writer.write(value);
             writer.close();
+        }
+
+        /**
+         * encodes {@code value} into a complete record, as {@link #serialize} would write it
+         */
+        static byte[] encode(UBValue value) throws IOException {
+            byte[] record = getRecord(value);
+            if (record != null && getCompressor(((LazyUBObject) value).getSchemaType()) == null) {
+                return record;
+            }
+            DataOutput2 scratch = scratchOut();
+            writeValue(scratch, value);
+            return scratch.copyBytes();
+        }
+
+        private static void writeValue(OutputStream out, UBValue value) throws IOException {
+            byte[] record = getRecord(value);
+            if (record != null) {
+                //unmodified since it was read: copy the stored bytes
+                RecordCompressor compressor = getCompressor(((LazyUBObject) value).getSchemaType());
+                if (compressor != null) {
+                    compressor.write(out, ((LazyUBObject) value).getSchemaType(), record, 0, record.length);
+                } else {
+                    out.write(record);
+                }
+            } else {
+                writeRecord(out, value);
+            }
+        }
+
+        /**
+         * @return the stored record of a value that was read from the database and has not
+         * been modified since, if it can be written back as is
+         */
+        private static byte[] getRecord(UBValue value) {
+            if (value instanceof LazyUBObject) {
+                LazyUBObject obj = (LazyUBObject) value;
+                SchemaRegistry.TypeSchema type = obj.getSchemaType();
+                final SchemaRegistry schema = ACTIVE_SCHEMA.get();
+                //field ids only mean something to the registry they came from, and plain records
+                //of typed objects are converted to schema records when they are written. With no
+                //registry active, as on MapDB's asynchronous writer thread, a schema record is
+                //written back to the registry it came from.
+                if (type != null ? schema == null || type.registry == schema : schema == null || schema.getTypeOf(obj) == null) {
+                    return obj.getRecord();
+                }
+            }
+            return null;
+        }
+
+        private static void writeRecord(OutputStream out, UBValue value) throws IOException {
+            SchemaRegistry schema = ACTIVE_SCHEMA.get();
+            SchemaRegistry.TypeSchema type = schema != null ? schema.getTypeOf(value) : null;
+            if (type != null) {
+                RecordCompressor compressor = getCompressor(type);
+                if (compressor != null) {
+                    compressor.recordWritten(type);
+                    if (compressor.hasDictionary(type)) {
+                        DataOutput2 raw = scratch(SCRATCH_RAW);
+                        writeSchemaRecord(raw, schema, type, value);
+                        compressor.write(out, type, raw.buf, 0, raw.pos);
+                        return;
+                    }
+                }
+                writeSchemaRecord(out, schema, type, value);
+            } else {
+                if (value instanceof RecordObject) {
+                    //plain records can't refer to out of line arrays
+                    ((RecordObject) value).loadArrayRefs();
+                }
+                out.write(FORMAT_V1);
+                write(out, value);
+            }
+        }
+
+        /**
+         * @return the uncompressed schema record of {@code value}, which is of type {@code type}
+         */
+        static byte[] encodeSchemaRecord(SchemaRegistry.TypeSchema type, UBValue value) throws IOException {
+            if (value instanceof LazyUBObject && ((LazyUBObject) value).getSchemaType() == type) {
+                byte[] record = ((LazyUBObject) value).getRecord();
+                if (record != null) {
+                    return record;
+                }
+            }
+            DataOutput2 raw = scratch(SCRATCH_RAW);
+            writeSchemaRecord(raw, type.registry, type, value);
+            return raw.copyBytes();
+        }
 
-            byte[] buff = bout.toByteArray();
-            out.writeInt(buff.length);
-            out.write(buff);
+        private static void writeSchemaRecord(OutputStream out, SchemaRegistry schema, SchemaRegistry.TypeSchema type, UBValue value) throws IOException {
+            out.write(FORMAT_SCHEMA);
+            byte[] record = null;
+            if (value instanceof LazyUBObject && ((LazyUBObject) value).getSchemaType() == null) {
+                record = ((LazyUBObject) value).getRecord();
+            }
+            if (record == null || !schema.transcode(out, type, record, ((LazyUBObject) value).getOffset())) {
+                schema.write(out, type, value.asObject());
+            }
+        }
+
+        @Override
+        public void serialize(DataOutput out, UBValue value) throws IOException {
+            PreEncoded preEncoded = PRE_ENCODED.get();
+            if (preEncoded.value == value) {
+                out.write(preEncoded.data);
+            } else if (out instanceof DataOutput2) {
+                //MapDB hands us its own growable buffer, so encode straight into it
+                writeValue((DataOutput2) out, value);
+            } else {
+                DataOutput2 scratch = scratchOut();
+                writeValue(scratch, value);
+                out.write(scratch.buf, 0, scratch.pos);
+            }
         }
 
         @Override
         public UBValue deserialize(DataInput in, int available) throws IOException {
-            final int size = in.readInt();
-            byte[] buff = new byte[size];
-            in.readFully(buff);
+            final int first = in.readUnsignedByte();
+            if (first == FORMAT_V1) {
+                if (in instanceof DataInput2) {
+                    DataInput2 in2 = (DataInput2) in;
+                    if ((in2.buf.get(in2.pos) & 0xFF) == UBScanner.MARKER_OBJ_START) {
+                        //find the end of the object without decoding it and keep its bytes around
+                        final int end = new UBScanner(in2.buf).skipValue(in2.pos);
+                        byte[] data = new byte[end - in2.pos + 1];
+                        data[0] = (byte) first;
+                        in2.readFully(data, 1, data.length - 1);
+                        return new LazyUBObject(data, 1, data.length - 1, null);
+                    }
+                }
 
-            UBReader reader = new UBReader(new ByteArrayInputStream(buff));
-            UBValue retval = reader.read();
-            reader.close();
-            return retval;
+                DataInputStream stream = SCRATCH_IN.get();
+                stream.reset(in, available > 0 ? available - 1 : available);
+                try {
+                    return new UBReader(stream).read();
+                } finally {
+                    stream.reset(null, 0);
+                }
+            } else if (first == FORMAT_SCHEMA) {
+                SchemaRegistry schema = ACTIVE_SCHEMA.get();
+                if (schema == null || !(in instanceof DataInput2)) {
+                    throw new IOException("schema encoded records can only be read through their MapDBDriver");
+                }
+                return schema.read(first, (DataInput2) in);
+            } else if (first == FORMAT_COMPRESSED) {
+                SchemaRegistry schema = ACTIVE_SCHEMA.get();
+                RecordCompressor compressor = schema != null ? schema.getCompressor() : null;
+                if (compressor == null) {
+                    throw new IOException("compressed records can only be read through their MapDBDriver");
+                }
+                byte[] record = compressor.read(in);
+                return schema.read(record[0] & 0xFF, new DataInput2(ByteBuffer.wrap(record), 1));
+            } else {
+                //legacy record: int length prefix followed by the encoded value
+                final int size = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                byte[] buff = new byte[size + 1];
+                in.readFully(buff, 1, size);
+                if (size > 0 && buff[1] == UBScanner.MARKER_OBJ_START) {
+                    //give it the current format's marker so it can be written back as is
+                    buff[0] = (byte) FORMAT_V1;
+                    return new LazyUBObject(buff, 1, size, null);
+                }
+
+                UBReader reader = new UBReader(new ByteArrayInputStream(buff, 1, size));
+                UBValue retval = reader.read();
+                reader.close();
+                return retval;
+            }
         }
 
         @Override
@@ -50,12 +386,7 @@ public class MapDBDriver implements Driver {
 
     public MapDBDriver(DB mapdb) {
         mMapDB = mapdb;
-        mObjects = mMapDB.createTreeMap("objects")
-                .keySerializerWrap(Serializer.UUID)
-                .valueSerializer(SERIALIZER_UBVALUE)
-                .valuesOutsideNodesEnable()
-                .comparator(BTreeMap.COMPARABLE_COMPARATOR)
-                .makeOrGet();
+        mAsyncWrites = isAsync(mapdb.getEngine());
 
         if (mMapDB.exists("metadata")) {
             mMetadata = mMapDB.getAtomicVar("metadata");
@@ -63,6 +394,255 @@ public class MapDBDriver implements Driver {
             Atomic.Var<? extends UBValue> metadata = mMapDB.createAtomicVar("metadata", UBValueFactory.createObject(), SERIALIZER_UBVALUE);
             mMetadata = (Atomic.Var<UBObject>) metadata;
         }
+
+        //kept apart from the metadata object so that saveMeta() with a stale copy can't drop ids
+        Atomic.Var<UBValue> schema;
+        if (mMapDB.exists("typeschema")) {
+            schema = mMapDB.getAtomicVar("typeschema");
+        } else {
+            schema = mMapDB.createAtomicVar("typeschema", UBValueFactory.createObject(), SERIALIZER_UBVALUE);
+        }
+        mSchema = new SchemaRegistry(schema);
+
+        BTreeMap<Integer, byte[]> dictionaries = mMapDB.createTreeMap("dictionaries")
+                .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_INT)
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                .makeOrGet();
+        mCompressor = new RecordCompressor(dictionaries);
+        mSchema.setCompressor(mCompressor);
+
+        BTreeMap<Fun.Tuple2<UUID, String>, byte[]> arrays = mMapDB.createTreeMap("arrays")
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                .valuesOutsideNodesEnable()
+                .makeOrGet();
+        mArrays = new ArrayStore(arrays);
+        mSchema.setArrayStore(mArrays);
+
+        mIndexBuilds = mMapDB.createTreeMap("indexbuilds")
+                .valueSerializer(Serializer.UUID)
+                .makeOrGet();
+        //a build resumes when its index is added again, which can't happen once it is gone
+        for (String name : new ArrayList<String>(mIndexBuilds.keySet())) {
+            if (!mMapDB.exists(name)) {
+                mIndexBuilds.remove(name);
+            }
+        }
+
+        //opening the tree reads its first node, which holds values if it was pumped
+        SchemaRegistry previous = enterSchema();
+        try {
+            mObjects = createObjectsMaker()
+                    .valuesOutsideNodesEnable()
+                    .makeOrGet();
+        } finally {
+            exitSchema(previous);
+        }
+    }
+
+    private static boolean isAsync(Engine engine) {
+        while (engine instanceof EngineWrapper) {
+            if (engine instanceof AsyncWriteEngine) {
+                return true;
+            }
+            engine = ((EngineWrapper) engine).getWrappedEngine();
+        }
+        return false;
+    }
+
+    /**
+     * Generate the keys of new objects with {@code generator}. The default is
+     * {@link RandomIdGenerator}.
+     */
+    void setIdGenerator(IdGenerator generator) {
+        mIdGenerator = generator;
+    }
+
+    /**
+     * Store array fields of at least {@code minSize} encoded bytes apart from their object, so
+     * they are only loaded when they are used. The default is {@link ArrayStore#DEFAULT_MIN_SIZE}.
+     *
+     * @param minSize 0 keeps every array in its object's record
+     */
+    void setOutOfLineArrays(int minSize) {
+        mArrays.setMinSize(minSize);
+    }
+
+    /**
+     * Compress records of at least {@code minRecordSize} bytes with a dictionary trained per
+     * type. Once enough records of a type have been written, a background job trains its
+     * dictionary from a sample of the stored records and rewrites them compressed. The job runs
+     * again after many more writes, so the dictionary follows the data.
+     *
+     * @param minRecordSize records shorter than this stay raw. 0 turns compression off for new
+     *                      records; compressed records remain readable either way.
+     */
+    void setCompression(int minRecordSize) {
+        mCompressor.setMinRecordSize(minRecordSize);
+        mCompressor.setTrainingListener(minRecordSize > 0 ? new RecordCompressor.TrainingListener() {
+            @Override
+            public void onTrainingDue(SchemaRegistry.TypeSchema type) {
+                scheduleCompression(type.name);
+            }
+        } : null);
+    }
+
+    private synchronized void scheduleCompression(final String typeName) {
+        if (mClosing) {
+            return;
+        }
+        if (mCompressionJobs == null) {
+            mCompressionJobs = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread retval = new Thread(r, "MicroDB Compression");
+                    retval.setDaemon(true);
+                    return retval;
+                }
+            });
+        }
+        mCompressionJobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compressType(typeName);
+                } catch (Exception e) {
+                    if (!mClosing) {
+                        LOGGER.error("compressing objects of type {} failed", typeName, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * has the background job fill {@code index} after {@code delayMillis}
+     */
+    private synchronized void scheduleIndexBuild(final IndexObject index, long delayMillis) {
+        if (mClosing) {
+            return;
+        }
+        if (mIndexBuildJobs == null) {
+            mIndexBuildJobs = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread retval = new Thread(r, "MicroDB Index Builder");
+                    retval.setDaemon(true);
+                    return retval;
+                }
+            });
+            //a retry that is still waiting does not hold up close()
+            mIndexBuildJobs.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+        mIndexBuildJobs.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    index.backfill();
+                } catch (Exception e) {
+                    if (!mClosing) {
+                        index.backfillFailed(e);
+                    }
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * trains a new dictionary for the records of {@code typeName} and rewrites them with it.
+     * Records are replaced only if they did not change in the meantime, so this can run
+     * alongside the write thread. The rewrites become durable with the next commit.
+     *
+     * @return false if there is nothing worth compressing
+     */
+    boolean compressType(String typeName) throws IOException {
+        final SchemaRegistry.TypeSchema type = mSchema.getType(typeName);
+        if (type == null || !mCompressor.isEnabled()) {
+            return false;
+        }
+
+        SchemaRegistry previous = enterSchema();
+        try {
+            //reservoir sample of the type's records
+            ArrayList<byte[]> samples = new ArrayList<byte[]>(RecordCompressor.MAX_SAMPLES);
+            Random random = new Random();
+            int seen = 0;
+            for (UBValue value : mObjects.values()) {
+                if (mClosing) {
+                    return false;
+                }
+                if (mSchema.getTypeOf(value) == type) {
+                    if (samples.size() < RecordCompressor.MAX_SAMPLES) {
+                        samples.add(UBValueSerializer.encodeSchemaRecord(type, value));
+                    } else {
+                        final int i = random.nextInt(seen + 1);
+                        if (i < samples.size()) {
+                            samples.set(i, UBValueSerializer.encodeSchemaRecord(type, value));
+                        }
+                    }
+                    seen++;
+                }
+            }
+
+            byte[] dictionary = RecordCompressor.train(samples, RecordCompressor.MAX_DICTIONARY_SIZE);
+            if (dictionary == null) {
+                return false;
+            }
+            mCompressor.install(type, dictionary);
+
+            for (Map.Entry<UUID, UBValue> entry : mObjects.entrySet()) {
+                if (mClosing) {
+                    return false;
+                }
+                UBValue value = entry.getValue();
+                if (mSchema.getTypeOf(value) == type) {
+                    //written back as is, only through the new dictionary
+                    mObjects.replace(entry.getKey(), value, value);
+                }
+            }
+            return true;
+        } finally {
+            exitSchema(previous);
+        }
+    }
+
+    /**
+     * objects are stored schema encoded, so every access to the objects tree has to happen
+     * between {@code enterSchema()} and {@code exitSchema()}.
+     */
+    private SchemaRegistry enterSchema() {
+        return UBValueSerializer.setActiveSchema(mSchema);
+    }
+
+    private void exitSchema(SchemaRegistry previous) {
+        UBValueSerializer.setActiveSchema(previous);
+        if (previous == null) {
+            //outside of any MapDB operation now, so new ids can be saved
+            mSchema.save();
+        }
+    }
+
+    /**
+     * @return true if no objects are stored
+     */
+    private boolean isEmpty() {
+        SchemaRegistry previous = enterSchema();
+        try {
+            return mObjects.isEmpty();
+        } finally {
+            exitSchema(previous);
+        }
+    }
+
+    /**
+     * The objects tree normally keeps every value in a record of its own, so an update only
+     * rewrites that value. A tree built by the data pump keeps values in its nodes instead
+     * (see {@link #pumpObjects(List)}). Which one an existing tree does is stored with it.
+     */
+    private DB.BTreeMapMaker createObjectsMaker() {
+        return mMapDB.createTreeMap("objects")
+                .keySerializerWrap(Serializer.UUID)
+                .valueSerializer(SERIALIZER_UBVALUE)
+                .comparator(BTreeMap.COMPARABLE_COMPARATOR);
     }
 
     public DB getDB() {
@@ -71,6 +651,24 @@ public class MapDBDriver implements Driver {
 
     @Override
     public void close() {
+        ExecutorService compressionJobs;
+        ExecutorService indexBuildJobs;
+        synchronized (this) {
+            mClosing = true;
+            compressionJobs = mCompressionJobs;
+            indexBuildJobs = mIndexBuildJobs;
+        }
+        //index builds stop after their current step, and resume when the index is added again
+        for (ExecutorService jobs : Arrays.asList(compressionJobs, indexBuildJobs)) {
+            if (jobs != null) {
+                jobs.shutdown();
+                try {
+                    jobs.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
         mMapDB.close();
     }
 
@@ -86,31 +684,262 @@ public class MapDBDriver implements Driver {
 
     @Override
     public UBValue get(UUID key) throws IOException {
-        return mObjects.get(key);
+        SchemaRegistry previous = enterSchema();
+        try {
+            return mObjects.get(key);
+        } finally {
+            exitSchema(previous);
+        }
     }
 
     @Override
     public UUID genId() {
-        UUID key = UUID.randomUUID();
-        while (mObjects.containsKey(key)) {
-            key = UUID.randomUUID();
-        }
-        return key;
+        return mIdGenerator.generateId();
     }
 
     @Override
     public void insert(UUID id, UBValue value) throws IOException {
-        mObjects.put(id, value);
+        putEncoded(id, value, null);
+    }
+
+    @Override
+    public void insert(UUID id, UBValue value, byte[] encoded) throws IOException {
+        putEncoded(id, value, encoded);
+    }
+
+    @Override
+    public byte[] encode(UUID id, UBValue value) throws IOException {
+        SchemaRegistry previous = enterSchema();
+        mArrays.setOwner(id);
+        byte[] retval = null;
+        List<ArrayStore.Pending> arrays;
+        try {
+            retval = UBValueSerializer.encode(value);
+        } finally {
+            arrays = mArrays.takePending();
+            mArrays.setOwner(null);
+            exitSchema(previous);
+        }
+        if (!arrays.isEmpty()) {
+            mEncodedArrays.put(retval, arrays);
+        }
+        return retval;
+    }
+
+    /**
+     * @return false if {@code value} is known to be too small to have an array that is stored
+     * out of line
+     */
+    private boolean mayHaveLargeArrays(UBValue value) {
+        final int minSize = mArrays.getMinSize();
+        if (minSize <= 0) {
+            return false;
+        }
+        if (value instanceof LazyUBObject) {
+            byte[] record = ((LazyUBObject) value).getRecord();
+            return record == null || record.length >= minSize;
+        }
+        return true;
+    }
+
+    private void putEncoded(UUID id, UBValue value, byte[] encoded) throws IOException {
+        SchemaRegistry previous = enterSchema();
+        try {
+            checkUnique(id, value);
+            store(id, value, encoded);
+        } finally {
+            exitSchema(previous);
+        }
+    }
+
+    /**
+     * puts {@code value} in the objects tree. Must be called between {@code enterSchema()} and
+     * {@code exitSchema()}.
+     *
+     * @param encoded the complete record of {@code value}, as returned by
+     *                {@link #encode(UUID, UBValue)}, or null
+     */
+    private void store(UUID id, UBValue value, byte[] encoded) throws IOException {
+        final boolean arrayRefs = value instanceof RecordObject && ((RecordObject) value).getArrayRefs() != null;
+        if (encoded == null && (mAsyncWrites || arrayRefs || mayHaveLargeArrays(value))) {
+            //the arrays have to be stored before the record that points to them
+            encoded = encode(id, value);
+        }
+        List<ArrayStore.Pending> arrays = encoded != null ? mEncodedArrays.remove(encoded) : null;
+        if (arrays != null) {
+            mArrays.flush(id, arrays);
+        }
+
+        if (mAsyncWrites) {
+            //MapDB's writer thread serializes the value later, without this thread's registry;
+            //a value read back from its record carries its type, and is written as it is
+            mObjects.put(id, UBValueSerializer.decode(encoded));
+            return;
+        }
+        if (arrayRefs) {
+            //a RecordObject loads the arrays it refers to when they are looked up, which
+            //readers sharing it through MapDB's instance cache can't do safely
+            value = UBValueSerializer.decode(encoded);
+        }
+
+        if (encoded != null) {
+            UBValueSerializer.setPreEncoded(value, encoded);
+        }
+        try {
+            mObjects.put(id, value);
+        } finally {
+            if (encoded != null) {
+                UBValueSerializer.clearPreEncoded();
+            }
+        }
+    }
+
+    /**
+     * When the database is empty, the objects tree and every index are built bottom-up with
+     * MapDB's data pump instead of one B-tree insert (and one index listener call) per value.
+     * Otherwise, while an index is being built in the background, or when MapDB writes
+     * asynchronously, this falls back to storing the values one by one.
+     */
+    @Override
+    public void bulkInsert(List<Map.Entry<UUID, UBValue>> values) throws IOException {
+        if (values.isEmpty()) {
+            return;
+        }
+
+        SchemaRegistry previous = enterSchema();
+        try {
+            checkUnique(values);
+            if (!mObjects.isEmpty() || isBuildingIndex() || mAsyncWrites) {
+                for (Map.Entry<UUID, UBValue> entry : values) {
+                    store(entry.getKey(), entry.getValue(), null);
+                }
+            } else {
+                pumpObjects(values);
+            }
+        } finally {
+            exitSchema(previous);
+        }
+    }
+
+    /**
+     * @throws UniqueConstraintException if storing {@code value} under {@code id} would give
+     * another object's key in a unique index to it
+     */
+    private void checkUnique(UUID id, UBValue value) {
+        for (IndexObject index : mIndicies.values()) {
+            if (index.kind == MicroDB.IndexKind.Unique) {
+                index.checkUnique(id, value, null);
+            }
+        }
+    }
+
+    /**
+     * same as {@code checkUnique(id, value)} for every value, which must not share keys either
+     */
+    private void checkUnique(List<Map.Entry<UUID, UBValue>> values) {
+        for (IndexObject index : mIndicies.values()) {
+            if (index.kind == MicroDB.IndexKind.Unique) {
+                HashMap<Object, UUID> batch = new HashMap<Object, UUID>();
+                for (Map.Entry<UUID, UBValue> entry : values) {
+                    index.checkUnique(entry.getKey(), entry.getValue(), batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a background job may still be reading the objects tree to fill an index.
+     * Builds of indexes that have not been added since the database was opened are not running.
+     */
+    boolean isBuildingIndex() {
+        for (IndexObject index : mIndicies.values()) {
+            if (!index.isReady()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the empty objects tree with one pumped from {@code values}. Readers don't lock,
+     * so one may still be using the old tree: deleting it only drops its catalog entries, and
+     * since it is empty, it stays a valid tree that reads as the database before the insert.
+     * The new tree is published through the volatile {@link #mObjects} once it is complete.
+     * <p>
+     * The pumped tree keeps values in its nodes. Storing each value in a record of its own
+     * costs one store allocation per object, which on a file store took most of the import
+     * time; this way there is one per node. Later updates rewrite the node they are in.
+     */
+    private void pumpObjects(List<Map.Entry<UUID, UBValue>> values) throws IOException {
+        for (IndexObject index : mIndicies.values()) {
+            index.uninstall();
+        }
+
+        //the data pump wants its source in descending order
+        ArrayList<Fun.Tuple2<UUID, UBValue>> source = new ArrayList<Fun.Tuple2<UUID, UBValue>>(values.size());
+        for (int i = values.size() - 1; i >= 0; i--) {
+            Map.Entry<UUID, UBValue> entry = values.get(i);
+            source.add(Fun.t2(entry.getKey(), storeArrays(entry.getKey(), entry.getValue())));
+        }
+
+        //interrupted builds of indexes not added yet start over, since every object is new
+        for (String name : mIndexBuilds.keySet()) {
+            if (!mIndicies.containsKey(name)) {
+                mIndexBuilds.put(name, MIN_UUID);
+            }
+        }
+
+        mMapDB.delete("objects");
+        final BTreeMap<UUID, UBValue> objects = createObjectsMaker()
+                .pumpSource(source.iterator())
+                .make();
+        mObjects = objects;
+
+        for (IndexObject index : mIndicies.values()) {
+            index.build(values);
+            index.install();
+        }
+    }
+
+    /**
+     * stores the arrays of {@code value} that are too large to be kept in its record, as
+     * {@link #store(UUID, UBValue, byte[])} does before it stores a record.
+     *
+     * @return the value to put in the objects tree: its record, which refers to the arrays
+     * stored out of line, or {@code value} itself if it has none
+     */
+    private UBValue storeArrays(UUID id, UBValue value) throws IOException {
+        if (!mayHaveLargeArrays(value)) {
+            return value;
+        }
+        final byte[] encoded = encode(id, value);
+        List<ArrayStore.Pending> arrays = mEncodedArrays.remove(encoded);
+        if (arrays == null) {
+            return value;
+        }
+        mArrays.flush(id, arrays);
+        return UBValueSerializer.decode(encoded);
     }
 
     @Override
     public void update(UUID id, UBValue value) throws IOException {
-        mObjects.put(id, value);
+        putEncoded(id, value, null);
+    }
+
+    @Override
+    public void update(UUID id, UBValue value, byte[] encoded) throws IOException {
+        putEncoded(id, value, encoded);
     }
 
     @Override
     public void delete(UUID key) throws IOException {
-        mObjects.remove(key);
+        SchemaRegistry previous = enterSchema();
+        try {
+            mObjects.remove(key);
+            mArrays.deleteAll(key);
+        } finally {
+            exitSchema(previous);
+        }
     }
 
     private static final UUID MAX_UUID = new UUID(Long.MAX_VALUE, Long.MAX_VALUE);
@@ -118,25 +947,112 @@ public class MapDBDriver implements Driver {
 
     @Override
     public <T extends Comparable<T>> Cursor queryIndex(String indexName, T min, boolean minInclusive, T max, boolean maxInclusive) throws IOException {
-        MapDBCursor<T> retval = new MapDBCursor<T>();
+        final Object minKey = toIndexKey(min);
+        final Object maxKey = toIndexKey(max);
+
+        Object store = getIndexStore(indexName);
+        if (store instanceof HTreeMap) {
+            if (minKey == null || !minKey.equals(maxKey) || !minInclusive || !maxInclusive) {
+                throw new IllegalArgumentException("hash index '" + indexName + "' only answers equality queries");
+            }
+            return queryHashIndex((HTreeMap) store, minKey);
+        }
+
+        return queryIndexRange(indexName, store,
+                minKey != null ? Fun.t2(minKey, minInclusive ? MIN_UUID : MAX_UUID) : null, minInclusive,
+                maxKey != null ? Fun.t2(maxKey, maxInclusive ? MAX_UUID : MIN_UUID) : null, maxInclusive);
+    }
+
+    @Override
+    public <T extends Comparable<T>> Cursor queryIndex(String indexName, CompositeKey prefix, T min, boolean minInclusive, T max, boolean maxInclusive) throws IOException {
+        Object store = getIndexStore(indexName);
+        if (store instanceof HTreeMap) {
+            if (min == null || !min.equals(max) || !minInclusive || !maxInclusive) {
+                throw new IllegalArgumentException("hash index '" + indexName + "' only answers equality queries");
+            }
+            return queryHashIndex((HTreeMap) store, toIndexKey(prefix, min, null));
+        }
+
+        //the bounds end in null, which sorts before every longer key, or in Fun.HI, which sorts
+        //after them, so a bound on a leading value covers every key that continues it
+        Object lower = null;
+        if (min != null) {
+            lower = toIndexKey(prefix, min, minInclusive ? null : Fun.HI);
+        } else if (prefix.size() > 0) {
+            lower = toIndexKey(prefix, null, null);
+        }
+
+        Object upper = null;
+        if (max != null) {
+            upper = toIndexKey(prefix, max, maxInclusive ? Fun.HI : null);
+        } else if (prefix.size() > 0) {
+            upper = toIndexKey(prefix, null, Fun.HI);
+        }
+
+        return queryIndexRange(indexName, store,
+                lower != null ? Fun.t2(lower, MIN_UUID) : null, true,
+                upper != null ? Fun.t2(upper, MIN_UUID) : null, false);
+    }
+
+    /**
+     * @return the collection that answers queries on {@code indexName}. That is the index
+     * itself, unless it is still being built, in which case it is a copy of the keys the index
+     * will hold, scanned from the objects.
+     */
+    private Object getIndexStore(String indexName) throws IOException {
+        IndexObject index = mIndicies.get(indexName);
+        if (index != null && !index.isReady()) {
+            final Exception failure = index.getBuildFailure();
+            if (failure != null) {
+                throw new IOException("index '" + indexName + "' could not be built", failure);
+            }
+            return index.scan();
+        }
+        return mMapDB.get(indexName);
+    }
+
+    @Override
+    public boolean isIndexReady(String indexName) {
+        IndexObject index = mIndicies.get(indexName);
+        return index == null || index.isReady();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Cursor queryIndexRange(String indexName, Object store, Fun.Tuple2 min, boolean minInclusive, Fun.Tuple2 max, boolean maxInclusive) {
+        MapDBCursor retval = new MapDBCursor();
         retval.mDriver = this;
+        retval.min = min;
+        retval.max = max;
 
-        NavigableSet<Fun.Tuple2<T, UUID>> index = mMapDB.getTreeSet(indexName);
+        if (store instanceof NavigableMap) {
+            //a covering index, whose entries carry the included fields
+            NavigableMap entries = (NavigableMap) store;
+            if (max != null && min != null) {
+                entries = entries.subMap(min, minInclusive, max, maxInclusive);
 
-        if (max != null && min != null) {
-            retval.min = Fun.t2(min, minInclusive ? MIN_UUID : MAX_UUID);
-            retval.max = Fun.t2(max, maxInclusive ? MAX_UUID : MIN_UUID);
-            retval.index = index.subSet(retval.min, minInclusive, retval.max, maxInclusive);
+            } else if (min != null && max == null) {
+                entries = entries.tailMap(min, minInclusive);
 
-        } else if (min != null && max == null) {
-            retval.min = Fun.t2(min, minInclusive ? MIN_UUID : MAX_UUID);
-            retval.index = index.tailSet(retval.min, minInclusive);
+            } else if (min == null && max != null) {
+                entries = entries.headMap(max, maxInclusive);
+            }
+            retval.entries = entries;
+            retval.index = entries.navigableKeySet();
 
-        } else if (min == null && max != null) {
-            retval.max = Fun.t2(max, maxInclusive ? MAX_UUID : MIN_UUID);
-            retval.index = index.headSet(retval.max, maxInclusive);
         } else {
-            retval.index = index;
+            NavigableSet index = store != null ? (NavigableSet) store : mMapDB.getTreeSet(indexName);
+
+            if (max != null && min != null) {
+                retval.index = index.subSet(min, minInclusive, max, maxInclusive);
+
+            } else if (min != null && max == null) {
+                retval.index = index.tailSet(min, minInclusive);
+
+            } else if (min == null && max != null) {
+                retval.index = index.headSet(max, maxInclusive);
+            } else {
+                retval.index = index;
+            }
         }
 
         retval.seekToBegining();
@@ -144,27 +1060,145 @@ public class MapDBDriver implements Driver {
         return retval;
     }
 
+    /**
+     * A hash index maps each key to the ids of the objects with that key, and a unique index to
+     * the one id with that key, few enough to be walked by a cursor over a sorted copy of them.
+     */
+    @SuppressWarnings("unchecked")
+    private Cursor queryHashIndex(HTreeMap store, Object key) {
+        TreeSet index = new TreeSet();
+        Object ids = store.get(key);
+        if (ids != null) {
+            for (UUID id : hashIds(ids)) {
+                index.add(Fun.t2(key, id));
+            }
+        }
+
+        MapDBCursor retval = new MapDBCursor();
+        retval.mDriver = this;
+        retval.index = index;
+        retval.seekToBegining();
+        return retval;
+    }
+
+    @Override
+    public <T extends Comparable<T>> List<UUID> lookupIndex(String indexName, T key) throws IOException {
+        final Object indexKey = toIndexKey(key);
+
+        Object store = getIndexStore(indexName);
+        if (store instanceof HTreeMap) {
+            Object ids = ((HTreeMap) store).get(indexKey);
+            return ids != null ? Collections.unmodifiableList(Arrays.asList(hashIds(ids))) : Collections.<UUID>emptyList();
+        }
+        if (store instanceof NavigableMap) {
+            store = ((NavigableMap) store).navigableKeySet();
+        }
+
+        ArrayList<UUID> retval = new ArrayList<UUID>();
+        if (store != null) {
+            NavigableSet<Fun.Tuple2<Object, UUID>> index = (NavigableSet<Fun.Tuple2<Object, UUID>>) store;
+            for (Fun.Tuple2<Object, UUID> entry : index.subSet(Fun.t2(indexKey, MIN_UUID), true, Fun.t2(indexKey, MAX_UUID), true)) {
+                retval.add(entry.b);
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public <T extends Comparable<T>> UUID lookupUniqueKey(String indexName, T key) throws IOException {
+        IndexObject index = mIndicies.get(indexName);
+        if (index == null || index.kind != MicroDB.IndexKind.Unique) {
+            throw new IllegalArgumentException("'" + indexName + "' is not a unique index");
+        }
+        return (UUID) index.mUnique.get(toIndexKey(key));
+    }
+
+    /**
+     * @return the ids stored for one key of a hash index, or of a unique index
+     */
+    private static UUID[] hashIds(Object ids) {
+        if (ids instanceof UUID) {
+            return new UUID[]{(UUID) ids};
+        }
+        return (UUID[]) ids;
+    }
+
+    /**
+     * Composite keys are stored in index trees as a chain of nested tuples,
+     * (k0, (k1, ... (kn, terminator))), which MapDB serializes and compares natively.
+     * Stored keys end in null.
+     */
+    private static Object toIndexKey(CompositeKey prefix, Object last, Object terminator) {
+        Object retval = terminator;
+        if (last != null) {
+            retval = Fun.t2(last, retval);
+        }
+        for (int i = prefix.size() - 1; i >= 0; i--) {
+            retval = Fun.t2(prefix.get(i), retval);
+        }
+        return retval;
+    }
+
+    private static Object toIndexKey(Object key) {
+        if (key instanceof CompositeKey) {
+            return toIndexKey((CompositeKey) key, null, null);
+        }
+        return key;
+    }
+
+    private static Object fromIndexKey(Object key) {
+        if (key instanceof Fun.Tuple2) {
+            ArrayList<Comparable> values = new ArrayList<Comparable>(4);
+            Object current = key;
+            while (current instanceof Fun.Tuple2) {
+                Fun.Tuple2 tuple = (Fun.Tuple2) current;
+                values.add((Comparable) tuple.a);
+                current = tuple.b;
+            }
+            return CompositeKey.of(values.toArray(new Comparable[values.size()]));
+        }
+        return key;
+    }
+
     private static class MapDBCursor<T extends Comparable<T>> implements Cursor {
 
         MapDBDriver mDriver;
         NavigableSet<Fun.Tuple2<T, UUID>> index;
+
+        /**
+         * the entries of a covering index, whose key set is {@link #index}; null for other indexes
+         */
+        NavigableMap<Fun.Tuple2<T, UUID>, UBValue> entries;
         Fun.Tuple2<T, UUID> min;
         Fun.Tuple2<T, UUID> max;
         private Fun.Tuple2<T, UUID> mCurrentValue;
+        private UBValue mCurrentIncluded;
         private int mPosition;
 
+        private void setCurrent(Map.Entry<Fun.Tuple2<T, UUID>, UBValue> entry) {
+            mCurrentValue = entry != null ? entry.getKey() : null;
+            mCurrentIncluded = entry != null ? entry.getValue() : null;
+        }
 
         @Override
         public void seekToBegining() {
             if(!index.isEmpty()) {
-                mCurrentValue = index.first();
+                if(entries != null) {
+                    setCurrent(entries.firstEntry());
+                } else {
+                    mCurrentValue = index.first();
+                }
                 mPosition = 0;
             }
         }
 
         @Override
         public void seekToEnd() {
-            mCurrentValue = index.last();
+            if(entries != null) {
+                setCurrent(entries.lastEntry());
+            } else {
+                mCurrentValue = index.last();
+            }
             mPosition = getCount();
         }
 
@@ -188,14 +1222,22 @@ public class MapDBDriver implements Driver {
 
         @Override
         public boolean next() {
-            mCurrentValue = index.higher(mCurrentValue);
+            if(entries != null) {
+                setCurrent(entries.higherEntry(mCurrentValue));
+            } else {
+                mCurrentValue = index.higher(mCurrentValue);
+            }
             mPosition++;
             return mCurrentValue != null;
         }
 
         @Override
         public boolean prev() {
-            mCurrentValue = index.lower(mCurrentValue);
+            if(entries != null) {
+                setCurrent(entries.lowerEntry(mCurrentValue));
+            } else {
+                mCurrentValue = index.lower(mCurrentValue);
+            }
             mPosition--;
             return mCurrentValue != null;
         }
@@ -205,7 +1247,7 @@ public class MapDBDriver implements Driver {
             if(mCurrentValue == null) {
                 return null;
             } else {
-                return new MapDBRow<T>(mDriver, mCurrentValue);
+                return new MapDBRow<T>(mDriver, mCurrentValue, mCurrentIncluded);
             }
         }
 
@@ -219,11 +1261,13 @@ public class MapDBDriver implements Driver {
 
         private final MapDBDriver mDriver;
         final Fun.Tuple2<T, UUID> mTuple;
+        final UBValue mIncluded;
         UBValue mValue;
 
-        public MapDBRow(MapDBDriver driver, Fun.Tuple2<T, UUID> tuple) {
+        public MapDBRow(MapDBDriver driver, Fun.Tuple2<T, UUID> tuple, UBValue included) {
             mDriver = driver;
             mTuple = tuple;
+            mIncluded = included;
         }
 
         @Override
@@ -232,8 +1276,9 @@ public class MapDBDriver implements Driver {
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public T getSecondaryKey() {
-            return mTuple.a;
+            return (T) fromIndexKey(mTuple.a);
         }
 
         @Override
@@ -247,58 +1292,495 @@ public class MapDBDriver implements Driver {
             }
             return mValue;
         }
+
+        @Override
+        public UBValue getField(String name) {
+            if (mIncluded != null) {
+                UBValue retval = mIncluded.asObject().get(name);
+                if (retval != null) {
+                    return retval;
+                }
+            }
+            UBValue value = getValue();
+            return value != null && value.isObject() ? value.asObject().get(name) : null;
+        }
     }
 
+    /**
+     * orders the entries pumped into a covering index by their keys, descending
+     */
+    private static final Comparator<Fun.Tuple2<Fun.Tuple2, UBValue>> REVERSE_KEY_ORDER = new Comparator<Fun.Tuple2<Fun.Tuple2, UBValue>>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Fun.Tuple2<Fun.Tuple2, UBValue> lhs, Fun.Tuple2<Fun.Tuple2, UBValue> rhs) {
+            return rhs.a.compareTo(lhs.a);
+        }
+    };
+
+    /**
+     * the number of objects a background index build indexes at a time, while writes to the
+     * index wait
+     */
+    static final int BACKFILL_STEP_SIZE = 1000;
+
+    /**
+     * how many times a background index build is tried before the index is marked as failed
+     */
+    static final int BACKFILL_ATTEMPTS = 5;
+
+    /**
+     * time before a failed index build is tried again, doubled after every further failure
+     */
+    static final long BACKFILL_RETRY_DELAY_MILLIS = 1000;
+
     private class IndexObject<T extends Comparable<T>> {
         public final String name;
+        final MicroDB.IndexKind kind;
         MapFunction<T> mapFunction;
 
-        private Bind.MapListener mListener;
+        /**
+         * the fields stored with every entry of a covering index, empty for other indexes
+         */
+        final String[] includeFields;
 
-        public IndexObject(String name, final MapFunction<T> mapFunction) {
+        private Bind.MapListener mListener;
+        private NavigableSet<Fun.Tuple2<T, UUID>> mKeys;
+        private BTreeMap<Fun.Tuple2<T, UUID>, UBValue> mEntries;
+        private HTreeMap<Object, UUID[]> mHash;
+        private HTreeMap<Object, UUID> mUnique;
+        private final Fun.Function2<T[], UUID, UBValue> mFunction;
+
+        /**
+         * false while objects stored before the index was added are still being indexed
+         */
+        private volatile boolean mReady = true;
+
+        /**
+         * true while a backfill job is queued or running, guarded by this
+         */
+        private boolean mBackfilling;
+
+        /**
+         * the number of times in a row the backfill job failed, guarded by this
+         */
+        private int mBackfillFailures;
+
+        /**
+         * the error the backfill job gave up on, or null
+         */
+        private volatile Exception mBuildFailure;
+
+        public IndexObject(String name, MicroDB.IndexKind kind, final MapFunction<T> mapFunction, String[] includeFields) {
             this.name = name;
+            this.kind = kind;
             this.mapFunction = mapFunction;
+            this.includeFields = includeFields.clone();
+            mFunction = createMapDBFunction();
+        }
+
+        boolean isCovering() {
+            return includeFields.length > 0;
+        }
+
+        /**
+         * @return true if {@code store} is the kind of collection this index is stored in
+         */
+        private boolean isStoredIn(Object store) {
+            if (kind != MicroDB.IndexKind.Tree) {
+                if (!(store instanceof HTreeMap)) {
+                    return false;
+                }
+                //both are hash maps, told apart by their values
+                Iterator<?> values = ((HTreeMap<?, ?>) store).values().iterator();
+                return !values.hasNext() || (values.next() instanceof UUID) == (kind == MicroDB.IndexKind.Unique);
+            }
+            return isCovering() ? store instanceof BTreeMap : store instanceof NavigableSet;
+        }
+
+        /**
+         * A covering index is a tree map from the index keys to the included fields, a hash
+         * index is a hash map from each key to the ids of the objects with that key, a unique
+         * index is a hash map from each key to the id of the one object with that key, and other
+         * indexes are tree sets of the keys. An index stored as another kind, or that includes
+         * other fields, is replaced.
+         *
+         * @return true if the index was replaced, and so is empty
+         */
+        private boolean open() {
+            Object existing = mMapDB.get(name);
+            boolean replace = existing != null && !isStoredIn(existing);
+            if (!replace && isCovering() && existing != null) {
+                Map.Entry<?, UBValue> first = ((BTreeMap<?, UBValue>) existing).firstEntry();
+                replace = first != null && !first.getValue().asObject().keySet().equals(new HashSet<String>(Arrays.asList(includeFields)));
+            }
+            if (replace) {
+                mMapDB.delete(name);
+            }
+
+            mHash = null;
+            mUnique = null;
+            mEntries = null;
+            mKeys = null;
+            if (kind == MicroDB.IndexKind.Hash) {
+                mHash = mMapDB.createHashMap(name)
+                        .makeOrGet();
+            } else if (kind == MicroDB.IndexKind.Unique) {
+                mUnique = mMapDB.createHashMap(name)
+                        .makeOrGet();
+            } else if (isCovering()) {
+                mEntries = mMapDB.createTreeMap(name)
+                        .valueSerializer(new UBValueSerializer())
+                        .makeOrGet();
+                mKeys = mEntries.navigableKeySet();
+            } else {
+                mKeys = mMapDB.createTreeSet(name)
+                        .makeOrGet();
+            }
+            return replace;
         }
 
+        /**
+         * Opens the index and starts keeping it up to date. An index that is new, or was
+         * replaced, while there are objects already is filled in the background, and so is
+         * one whose build was interrupted, from where it stopped. A unique index has to know
+         * every key before it can refuse writes, so it is filled before this returns instead.
+         */
         void install() {
             if(mListener != null) {
                 mObjects.modificationListenerRemove(mListener);
             }
 
-            NavigableSet<Fun.Tuple2<T, UUID>> index = mMapDB.createTreeSet(name)
-                    .makeOrGet();
+            final boolean created = !mMapDB.exists(name);
+            final boolean replaced = open();
+            UUID resumeAfter = mIndexBuilds.get(name);
+            if ((created || replaced) && !isEmpty()) {
+                resumeAfter = MIN_UUID;
+            }
 
-            Fun.Function2<T[], UUID, UBValue> microDBMapFunction = new Fun.Function2<T[], UUID, UBValue>() {
+            if (resumeAfter != null && kind == MicroDB.IndexKind.Unique) {
+                reindex();
+                mIndexBuilds.remove(name);
+                resumeAfter = null;
+            }
 
-                final MapDBEmitter<T> mEmitter = new MapDBEmitter<T>();
+            mListener = createIndexListener(mFunction);
+            mObjects.modificationListenerAdd(mListener);
 
-                @Override
-                public T[] run(UUID uuid, UBValue ubValue) {
-                    synchronized (mEmitter) {
-                        mEmitter.clear();
-                        mapFunction.map(ubValue, mEmitter);
-                        return mEmitter.getKeys();
+            if (resumeAfter != null) {
+                startBackfill(resumeAfter);
+            } else {
+                mReady = true;
+            }
+        }
+
+        boolean isReady() {
+            return mReady;
+        }
+
+        /**
+         * empties the index and fills it again from the objects, in the background unless this
+         * is a unique index
+         */
+        void rebuild() {
+            if (kind == MicroDB.IndexKind.Unique) {
+                reindex();
+                return;
+            }
+            synchronized (this) {
+                clear();
+                startBackfill(MIN_UUID);
+            }
+        }
+
+        /**
+         * Marks the index as not ready and has a background job index the objects after
+         * {@code resumeAfter}. The position is saved in the database as the job goes, and
+         * becomes durable with the next commit along with the index entries written so far.
+         */
+        private synchronized void startBackfill(UUID resumeAfter) {
+            mIndexBuilds.put(name, resumeAfter);
+            mReady = false;
+            mBackfillFailures = 0;
+            mBuildFailure = null;
+            if (!mBackfilling) {
+                mBackfilling = true;
+                scheduleIndexBuild(this, 0);
+            }
+        }
+
+        void backfill() {
+            while (!mClosing && backfillStep()) {
+            }
+        }
+
+        /**
+         * Called when the backfill job stopped on {@code e}. The job is tried again from the
+         * position it saved, after a delay that doubles with every failure in a row. After
+         * {@link #BACKFILL_ATTEMPTS} failures the index is left not ready and queries on it
+         * throw, until it is rebuilt or added again.
+         */
+        synchronized void backfillFailed(Exception e) {
+            mBackfillFailures++;
+            if (mBackfillFailures < BACKFILL_ATTEMPTS) {
+                final long delay = mBackfillRetryDelayMillis << (mBackfillFailures - 1);
+                LOGGER.warn("building index {} failed, trying again in {} ms", name, delay, e);
+                scheduleIndexBuild(this, delay);
+            } else {
+                LOGGER.error("building index {} failed {} times, giving up", name, mBackfillFailures, e);
+                mBuildFailure = e;
+                mBackfilling = false;
+            }
+        }
+
+        /**
+         * @return the error the background build of this index gave up on, or null
+         */
+        Exception getBuildFailure() {
+            return mBuildFailure;
+        }
+
+        /**
+         * Indexes the next {@link #BACKFILL_STEP_SIZE} objects. Runs while holding this, as the
+         * index listener does, so a write to an object is either seen by the step or indexed by
+         * the listener after it, never lost between the two.
+         *
+         * @return true if there are more objects to index
+         */
+        private synchronized boolean backfillStep() {
+            UUID last = mIndexBuilds.get(name);
+            if (last != null) {
+                SchemaRegistry previous = enterSchema();
+                try {
+                    Iterator<Map.Entry<UUID, UBValue>> it = mObjects.tailMap(last, false).entrySet().iterator();
+                    for (int i = 0; i < BACKFILL_STEP_SIZE && it.hasNext(); i++) {
+                        Map.Entry<UUID, UBValue> e = it.next();
+                        T[] k2 = mFunction.run(e.getKey(), e.getValue());
+                        if (k2 != null)
+                            for (T k22 : k2)
+                                add(Fun.t2(k22, e.getKey()), e.getValue());
+                        last = e.getKey();
+                    }
+                    if (it.hasNext()) {
+                        mIndexBuilds.put(name, last);
+                        mBackfillFailures = 0;
+                        return true;
                     }
+                } finally {
+                    exitSchema(previous);
                 }
-            };
+                mIndexBuilds.remove(name);
+            }
+            mReady = true;
+            mBackfilling = false;
+            return false;
+        }
 
-            mListener = createIndexListener(mObjects, index, microDBMapFunction);
-            mObjects.modificationListenerAdd(mListener);
+        /**
+         * @return the keys this index will hold once it is built, scanned from the objects, as
+         * a tree set of the keys or, for a covering index, a tree map to the included fields
+         */
+        Object scan() {
+            TreeSet<Fun.Tuple2<T, UUID>> keys = new TreeSet<Fun.Tuple2<T, UUID>>();
+            TreeMap<Fun.Tuple2<T, UUID>, UBValue> entries = isCovering() ? new TreeMap<Fun.Tuple2<T, UUID>, UBValue>() : null;
+            //a function of its own, so queries don't wait for the writes and the build
+            Fun.Function2<T[], UUID, UBValue> fun = createMapDBFunction();
+
+            SchemaRegistry previous = enterSchema();
+            try {
+                for (Map.Entry<UUID, UBValue> e : mObjects.entrySet()) {
+                    T[] k2 = fun.run(e.getKey(), e.getValue());
+                    if (k2 != null)
+                        for (T k22 : k2) {
+                            if (entries != null) {
+                                entries.put(Fun.t2(k22, e.getKey()), project(e.getValue()));
+                            } else {
+                                keys.add(Fun.t2(k22, e.getKey()));
+                            }
+                        }
+                }
+            } finally {
+                exitSchema(previous);
+            }
+            return entries != null ? entries : keys;
         }
 
-        void reindex() {
-            NavigableSet<Fun.Tuple2<T, UUID>> index = mMapDB.createTreeSet(name)
-                    .makeOrGet();
-            index.clear();
+        void uninstall() {
+            if(mListener != null) {
+                mObjects.modificationListenerRemove(mListener);
+                mListener = null;
+            }
+        }
+
+        private void add(Fun.Tuple2<T, UUID> key, UBValue value) {
+            if (mUnique != null) {
+                UUID owner = mUnique.get(key.a);
+                if (owner != null && !owner.equals(key.b)) {
+                    throw new UniqueConstraintException(name, fromIndexKey(key.a));
+                }
+                mUnique.put(key.a, key.b);
+            } else if (mHash != null) {
+                UUID[] ids = mHash.get(key.a);
+                if (ids == null) {
+                    ids = new UUID[]{key.b};
+                } else if (indexOf(ids, key.b) < 0) {
+                    ids = Arrays.copyOf(ids, ids.length + 1);
+                    ids[ids.length - 1] = key.b;
+                } else {
+                    return;
+                }
+                mHash.put(key.a, ids);
+            } else if (mEntries != null) {
+                mEntries.put(key, project(value));
+            } else {
+                mKeys.add(key);
+            }
+        }
 
+        private void remove(Fun.Tuple2<T, UUID> key) {
+            if (mUnique != null) {
+                mUnique.remove(key.a, key.b);
+            } else if (mHash != null) {
+                UUID[] ids = mHash.get(key.a);
+                final int i = ids != null ? indexOf(ids, key.b) : -1;
+                if (i < 0) {
+                    return;
+                }
+                if (ids.length == 1) {
+                    mHash.remove(key.a);
+                } else {
+                    UUID[] remaining = new UUID[ids.length - 1];
+                    System.arraycopy(ids, 0, remaining, 0, i);
+                    System.arraycopy(ids, i + 1, remaining, i, remaining.length - i);
+                    mHash.put(key.a, remaining);
+                }
+            } else {
+                mKeys.remove(key);
+            }
+        }
+
+        private void clear() {
+            if (mUnique != null) {
+                mUnique.clear();
+            } else if (mHash != null) {
+                mHash.clear();
+            } else {
+                mKeys.clear();
+            }
+        }
+
+        /**
+         * @return the included fields of {@code value}, as stored in a covering index. Fields
+         * the object does not have are stored as null values.
+         */
+        private UBValue project(UBValue value) {
+            UBObject retval = UBValueFactory.createObject();
+            if (value.isObject()) {
+                UBObject obj = value.asObject();
+                for (String field : includeFields) {
+                    UBValue fieldValue = obj.get(field);
+                    retval.put(field, fieldValue != null ? fieldValue : UBValueFactory.createNull());
+                }
+            }
+            return retval;
+        }
+
+        /**
+         * replace the contents of this index with the keys emitted for {@code values}, using
+         * MapDB's data pump to build the index tree in one pass.
+         */
+        void build(List<Map.Entry<UUID, UBValue>> values) {
             Fun.Function2<T[], UUID, UBValue> fun = createMapDBFunction();
 
-            if(index.isEmpty()){
-                for(Map.Entry<UUID,UBValue> e:mObjects.entrySet()){
+            if (kind != MicroDB.IndexKind.Tree) {
+                //hash maps have no data pump
+                mMapDB.delete(name);
+                open();
+                for(Map.Entry<UUID, UBValue> e : values) {
                     T[] k2 = fun.run(e.getKey(), e.getValue());
                     if(k2 != null)
-                        for(T k22 :k2)
-                            index.add(Fun.t2(k22, e.getKey()));
+                        for(T k22 : k2)
+                            add(Fun.t2(k22, e.getKey()), e.getValue());
+                }
+                return;
+            }
+
+            if (isCovering()) {
+                ArrayList<Fun.Tuple2<Fun.Tuple2, UBValue>> entries = new ArrayList<Fun.Tuple2<Fun.Tuple2, UBValue>>(values.size());
+                for(Map.Entry<UUID, UBValue> e : values) {
+                    T[] k2 = fun.run(e.getKey(), e.getValue());
+                    if(k2 != null)
+                        for(T k22 : k2)
+                            entries.add(Fun.t2((Fun.Tuple2) Fun.t2(k22, e.getKey()), project(e.getValue())));
+                }
+                Collections.sort(entries, REVERSE_KEY_ORDER);
+
+                mMapDB.delete(name);
+                mMapDB.createTreeMap(name)
+                        .valueSerializer(new UBValueSerializer())
+                        .pumpSource(entries.iterator())
+                        .pumpIgnoreDuplicates()
+                        .make();
+                return;
+            }
+
+            ArrayList<Fun.Tuple2<T, UUID>> keys = new ArrayList<Fun.Tuple2<T, UUID>>(values.size());
+            for(Map.Entry<UUID, UBValue> e : values) {
+                T[] k2 = fun.run(e.getKey(), e.getValue());
+                if(k2 != null)
+                    for(T k22 : k2)
+                        keys.add(Fun.t2(k22, e.getKey()));
+            }
+            Collections.sort(keys, Collections.reverseOrder());
+
+            mMapDB.delete(name);
+            mMapDB.createTreeSet(name)
+                    .pumpSource(keys.iterator())
+                    .pumpIgnoreDuplicates()
+                    .make();
+        }
+
+        void reindex() {
+            open();
+            clear();
+
+            Fun.Function2<T[], UUID, UBValue> fun = createMapDBFunction();
+
+            SchemaRegistry previous = enterSchema();
+            try {
+                for (Map.Entry<UUID, UBValue> e : mObjects.entrySet()) {
+                    T[] k2 = fun.run(e.getKey(), e.getValue());
+                    if (k2 != null)
+                        for (T k22 : k2)
+                            add(Fun.t2(k22, e.getKey()), e.getValue());
+                }
+            } finally {
+                exitSchema(previous);
+            }
+        }
+
+        /**
+         * Fails if a key of {@code value} belongs to another object, either in this unique index
+         * or in {@code batch}, the keys of the values checked before it in the same write. Runs
+         * on the write thread before the value is stored, so no other write can take the key in
+         * between.
+         *
+         * @param batch the keys taken so far by the other values of a bulk insert, or null
+         */
+        void checkUnique(UUID id, UBValue value, Map<Object, UUID> batch) {
+            T[] keys = mFunction.run(id, value);
+            if (keys == null) {
+                return;
+            }
+            for (T key : keys) {
+                UUID owner = batch != null ? batch.get(key) : null;
+                if (owner == null) {
+                    owner = mUnique.get(key);
+                }
+                if (owner != null && !owner.equals(id)) {
+                    throw new UniqueConstraintException(name, fromIndexKey(key));
+                }
+                if (batch != null) {
+                    batch.put(key, id);
                 }
             }
         }
@@ -319,57 +1801,62 @@ public class MapDBDriver implements Driver {
             };
         }
 
-        private <K,V, K2> Bind.MapListener<K, V> createIndexListener(Bind.MapWithModificationListener<K, V> map,
-                                                                     final Set<Fun.Tuple2<K2, K>> secondary,
-                                                                     final Fun.Function2<K2[], K, V> fun) {
-            return new Bind.MapListener<K, V>() {
+        private Bind.MapListener<UUID, UBValue> createIndexListener(final Fun.Function2<T[], UUID, UBValue> fun) {
+            return new Bind.MapListener<UUID, UBValue>() {
                 @Override
-                public void update(K key, V oldVal, V newVal) {
+                public void update(UUID key, UBValue oldVal, UBValue newVal) {
+                    synchronized (IndexObject.this) {
+                        apply(key, oldVal, newVal);
+                    }
+                }
+
+                private void apply(UUID key, UBValue oldVal, UBValue newVal) {
                     if (newVal == null) {
                         //removal
-                        K2[] k2 = fun.run(key, oldVal);
+                        T[] k2 = fun.run(key, oldVal);
                         if (k2 != null)
-                            for (K2 k22 : k2)
-                                secondary.remove(Fun.t2(k22, key));
+                            for (T k22 : k2)
+                                remove(Fun.t2(k22, key));
                     } else if (oldVal == null) {
                         //insert
-                        K2[] k2 = fun.run(key, newVal);
+                        T[] k2 = fun.run(key, newVal);
                         if (k2 != null)
-                            for (K2 k22 : k2)
-                                secondary.add(Fun.t2(k22, key));
+                            for (T k22 : k2)
+                                add(Fun.t2(k22, key), newVal);
                     } else {
                         //update, must remove old key and insert new
-                        K2[] oldk = fun.run(key, oldVal);
-                        K2[] newk = fun.run(key, newVal);
+                        T[] oldk = fun.run(key, oldVal);
+                        T[] newk = fun.run(key, newVal);
                         if (oldk == null) {
                             //insert new
                             if (newk != null)
-                                for (K2 k22 : newk)
-                                    secondary.add(Fun.t2(k22, key));
+                                for (T k22 : newk)
+                                    add(Fun.t2(k22, key), newVal);
                             return;
                         }
                         if (newk == null) {
                             //remove old
-                            for (K2 k22 : oldk)
-                                secondary.remove(Fun.t2(k22, key));
+                            for (T k22 : oldk)
+                                remove(Fun.t2(k22, key));
                             return;
                         }
 
-                        Set<K2> hashes = new HashSet<K2>();
+                        Set<T> hashes = new HashSet<T>();
                         Collections.addAll(hashes, oldk);
 
-                        //add new non existing items
-                        for (K2 k2 : newk) {
-                            if (!hashes.contains(k2)) {
-                                secondary.add(Fun.t2(k2, key));
+                        //add new non existing items. A covering index also rewrites the
+                        //existing ones, whose included fields may have changed
+                        for (T k2 : newk) {
+                            if (mEntries != null || !hashes.contains(k2)) {
+                                add(Fun.t2(k2, key), newVal);
                             }
                         }
                         //remove items which are in old, but not in new
-                        for (K2 k2 : newk) {
+                        for (T k2 : newk) {
                             hashes.remove(k2);
                         }
-                        for (K2 k2 : hashes) {
-                            secondary.remove(Fun.t2(k2, key));
+                        for (T k2 : hashes) {
+                            remove(Fun.t2(k2, key));
                         }
                     }
                 }
@@ -379,11 +1866,30 @@ public class MapDBDriver implements Driver {
 
     @Override
     public <T extends Comparable<T>> void addIndex(String indexName, final MapFunction<T> mapFunction) throws IOException {
+        addIndex(indexName, mapFunction, new String[0]);
+    }
+
+    @Override
+    public <T extends Comparable<T>> void addIndex(String indexName, MapFunction<T> mapFunction, String... includeFields) throws IOException {
+        addIndex(indexName, MicroDB.IndexKind.Tree, mapFunction, includeFields);
+    }
+
+    @Override
+    public <T extends Comparable<T>> void addIndex(String indexName, MicroDB.IndexKind kind, MapFunction<T> mapFunction, String... includeFields) throws IOException {
+        if (kind != MicroDB.IndexKind.Tree && includeFields.length > 0) {
+            throw new IllegalArgumentException(kind.name().toLowerCase() + " index '" + indexName + "' can not include fields");
+        }
         IndexObject index = mIndicies.get(indexName);
         if(index == null) {
-            index = new IndexObject(indexName, mapFunction);
+            index = new IndexObject<T>(indexName, kind, mapFunction, includeFields);
+            try {
+                index.install();
+            } catch (UniqueConstraintException e) {
+                //the objects already stored break the constraint
+                mMapDB.delete(indexName);
+                throw e;
+            }
             mIndicies.put(indexName, index);
-            index.install();
         }
     }
 
@@ -391,13 +1897,22 @@ public class MapDBDriver implements Driver {
     public void recomputeIndex(String indexName) {
         IndexObject index = mIndicies.get(indexName);
         if(index != null) {
-            index.reindex();
+            index.rebuild();
+        }
+    }
+
+    private static int indexOf(UUID[] ids, UUID id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i].equals(id)) {
+                return i;
+            }
         }
+        return -1;
     }
 
     private static class MapDBEmitter<T extends Comparable<T>> implements Emitter<T> {
 
-        ArrayList<T> mKeys = new ArrayList<T>(3);
+        ArrayList<Object> mKeys = new ArrayList<Object>(3);
 
         public void clear() {
             mKeys.clear();
@@ -406,7 +1921,7 @@ public class MapDBDriver implements Driver {
 
         @Override
         public void emit(T key) {
-            mKeys.add(key);
+            mKeys.add(toIndexKey(key));
         }
 
 
@@ -423,6 +1938,7 @@ public class MapDBDriver implements Driver {
     @Override
     public void deleteIndex(String indexName) {
         mMapDB.delete(indexName);
+        mIndexBuilds.remove(indexName);
 
     }
 
@@ -431,6 +1947,18 @@ public class MapDBDriver implements Driver {
         return mMapDB.getAtomicLong(fieldName).getAndIncrement();
     }
 
+    @Override
+    public int getTypeId(String typeName) {
+        SchemaRegistry.TypeSchema type = mSchema.findType(typeName);
+        return type != null ? type.id : -1;
+    }
+
+    @Override
+    public int getTypeIdOf(UBValue value) {
+        SchemaRegistry.TypeSchema type = mSchema.getTypeOf(value);
+        return type != null ? type.id : -1;
+    }
+
     @Override
     public void beginTransaction() throws IOException {
 
@@ -438,11 +1966,14 @@ public class MapDBDriver implements Driver {
 
     @Override
     public void commitTransaction() throws IOException {
+        mSchema.save();
         mMapDB.commit();
     }
 
     @Override
     public void rollbackTransaction() throws IOException {
         mMapDB.rollback();
+        mSchema.reload();
+        mCompressor.reload();
     }
 }
@@ -4,44 +4,90 @@ package com.devsmart.microdb;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBValue;
 import com.devsmart.ubjson.UBValueFactory;
+import com.google.common.base.Functions;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataOutput;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
 public class MicroDB {
 
     private static final Logger logger = LoggerFactory.getLogger(MicroDB.class);
 
+    private static final int NUM_OBJECT_LOCKS = 64;
+
     private Driver mDriver;
     private int mSchemaVersion;
     private DBCallback mCallback;
-    private final HashMap<UUID, SoftReference<DBObject>> mLiveObjects = new HashMap<UUID, SoftReference<DBObject>>();
-    private final Set<UUID> mDeletedObjects = new HashSet<UUID>();
+    private final ConcurrentHashMap<UUID, LiveObjectRef> mLiveObjects = new ConcurrentHashMap<UUID, LiveObjectRef>(64, 0.75f, NUM_OBJECT_LOCKS);
+    private final ReferenceQueue<DBObject> mCollectedObjects = new ReferenceQueue<DBObject>();
+    //dirty objects are kept strongly reachable until their changes have been written
+    private final ConcurrentHashMap<UUID, DBObject> mDirtyObjects = new ConcurrentHashMap<UUID, DBObject>(16, 0.75f, NUM_OBJECT_LOCKS);
+    private final Set<UUID> mDeletedObjects = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>(16, 0.75f, NUM_OBJECT_LOCKS));
+    //serializes loading and deleting of the same object so there is only ever one live instance per id
+    private final Striped<Lock> mObjectLocks = Striped.lock(NUM_OBJECT_LOCKS);
+    private final ConcurrentHashMap<UUID, Operation> mPendingWrites = new ConcurrentHashMap<UUID, Operation>();
     private final WriteQueue mWriteQueue = new WriteQueue();
-    private ArrayList<ChangeListener> mChangeListeners = new ArrayList<ChangeListener>();
+    private final List<ChangeListener> mChangeListeners = new CopyOnWriteArrayList<ChangeListener>();
     private Map<String, Constructor> mConstructorMap;
 
-    @Override
-    protected void finalize() throws Throwable {
-        mWriteQueue.enqueue(createShutdownOperation());
-        super.finalize();
+    private static class LiveObjectRef extends SoftReference<DBObject> {
+
+        final UUID mId;
+
+        LiveObjectRef(DBObject obj, ReferenceQueue<DBObject> queue) {
+            super(obj, queue);
+            mId = obj.getId();
+        }
     }
 
+    /**
+     * Stops the write thread once every queued write is done. Changed objects that were not
+     * written yet are written first.
+     */
     public void shutdown() {
+        mAutoSaveTimer.shutdownNow();
+        mBulkLoadWorkers.shutdown();
+        writeDirtyObjects();
         mWriteQueue.enqueue(createShutdownOperation());
         try {
             mWriteQueue.mWriteThread.join();
@@ -52,34 +98,115 @@ public class MicroDB {
 
     public enum OperationType {
         Write,
+        Commit,
         NoOp,
         Shutdown
     }
 
-    abstract static class Operation implements Runnable {
+    /**
+     * What to do when a write is requested while the write queue is at capacity.
+     */
+    public enum OverflowPolicy {
+        /**
+         * wait until the write thread makes room
+         */
+        Block,
+
+        /**
+         * wait up to a timeout for room, then throw {@link WriteQueueFullException}
+         */
+        BlockWithTimeout,
+
+        /**
+         * throw {@link WriteQueueFullException} immediately
+         */
+        FailFast
+    }
+
+    /**
+     * How an index is stored.
+     */
+    public enum IndexKind {
+        /**
+         * a B-tree of the keys, which answers range queries
+         */
+        Tree,
+
+        /**
+         * a hash map from each key to the ids of the objects with that key. It only answers
+         * equality queries, but answers them without walking a tree.
+         */
+        Hash,
+
+        /**
+         * a hash map from each key to the one object with that key. A write that would give a
+         * second object the same key fails with {@link UniqueConstraintException}.
+         */
+        Unique
+    }
+
+    /**
+     * A unit of work executed by the write thread. Operations are {@link ListenableFuture}s that
+     * complete once the write thread has finished with them, so callers may block with a timeout
+     * or attach a listener instead of waiting.
+     */
+    abstract static class Operation extends AbstractFuture<Void> implements Runnable {
         public final OperationType mCommandType;
         private Exception mException;
-        private boolean mCompleted = false;
+        private Semaphore mSlot;
+        private long mEnqueueTime;
+        private FutureTask<Void> mPrepareTask;
 
         Operation(OperationType type) {
             mCommandType = type;
         }
 
-        synchronized void complete() {
-            mCompleted = true;
-            notifyAll();
+        /**
+         * Work that does not need the write thread, such as taking a snapshot of an object.
+         * Runs right before {@code doIt}, or ahead of time on a serialization worker.
+         */
+        void prepare() throws IOException {
         }
 
-        public synchronized void waitForCompletion() {
-            while (!mCompleted) {
-                try {
-                    wait(1000);
-                } catch (InterruptedException e) {
-                    logger.warn("", e);
+        /**
+         * Encoding that is only worth doing ahead of time on a serialization worker. Runs
+         * after {@code prepare}.
+         */
+        void encode() throws IOException {
+        }
+
+        /**
+         * @return true once a serialization worker has run {@code prepare}
+         */
+        boolean isPrepared() {
+            return mPrepareTask != null && mPrepareTask.isDone();
+        }
+
+        void prepareAsync(Executor executor) {
+            mPrepareTask = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    prepare();
+                    encode();
+                    return null;
                 }
-            }
+            });
+            executor.execute(mPrepareTask);
+        }
+
+        void complete() {
             if (mException != null) {
-                Throwables.propagate(mException);
+                setException(mException);
+            } else {
+                set(null);
+            }
+        }
+
+        public void waitForCompletion() {
+            try {
+                Uninterruptibles.getUninterruptibly(this);
+            } catch (ExecutionException e) {
+                Throwables.propagate(e.getCause());
             }
         }
 
@@ -88,6 +215,16 @@ public class MicroDB {
         @Override
         public void run() {
             try {
+                if (mPrepareTask != null) {
+                    try {
+                        Uninterruptibles.getUninterruptibly(mPrepareTask);
+                    } catch (ExecutionException e) {
+                        Throwables.propagateIfInstanceOf(e.getCause(), Exception.class);
+                        throw Throwables.propagate(e.getCause());
+                    }
+                } else {
+                    prepare();
+                }
                 doIt();
             } catch (Exception e) {
                 logger.error("uncaught exception while performing write operation", e);
@@ -97,21 +234,51 @@ public class MicroDB {
     }
 
     private class WriteQueue implements Runnable {
-        private static final long DEFAULT_WAIT = 2000;
-        private final Queue<Operation> mOperationQueue = new ConcurrentLinkedQueue<Operation>();
+        private final BlockingQueue<Operation> mOperationQueue = new LinkedBlockingQueue<Operation>();
         private Thread mWriteThread = new Thread(this, "MicroDB Write Thread");
+        private final WriteQueueStats mStats = new WriteQueueStats();
+        private volatile int mMaxBatchSize = 1;
+        private volatile long mMaxLingerMillis = 0;
+        private int mOpsSinceCommit = 0;
+        private volatile Semaphore mSlots;
+        private volatile int mCapacity;
+        private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.Block;
+        private volatile long mOverflowTimeoutMillis;
+        //operations taken off the queue early so their serialization can start
+        private final ArrayDeque<Operation> mReadAhead = new ArrayDeque<Operation>();
+        //the last write of each object taken off the queue that has not run yet
+        private final HashMap<UUID, Operation> mUnappliedWrites = new HashMap<UUID, Operation>();
+        private volatile ExecutorService mSerializer;
+        private volatile int mMaxReadAhead;
+        private volatile long mCheckpointIntervalMillis = 0;
+        private long mLastCommitTime = System.currentTimeMillis();
 
         @Override
         public void run() {
+            final ArrayList<Operation> batch = new ArrayList<Operation>();
             while (true) {
-                Operation op = mOperationQueue.poll();
+                Operation op = takeNextCommand();
                 if (op == null) {
-                    waitForNextCommand();
+                    continue;
+                } else if (mMaxBatchSize > 1) {
+                    batch.clear();
+                    batch.add(op);
+                    fillBatch(batch);
+                    if (runBatch(batch)) {
+                        logger.info("Write Thread exiting");
+                        shutdownSerializer();
+                        return;
+                    }
                 } else {
                     try {
                         switch (op.mCommandType) {
                             case Write:
+                                runWrite(op);
+                                break;
+
+                            case Commit:
                                 op.run();
+                                recordCommit();
                                 break;
 
                             case NoOp:
@@ -119,6 +286,7 @@ public class MicroDB {
 
                             case Shutdown:
                                 logger.info("Write Thread exiting");
+                                shutdownSerializer();
                                 return;
                         }
                     } finally {
@@ -130,12 +298,192 @@ public class MicroDB {
 
         }
 
-        private synchronized void waitForNextCommand() {
+        /**
+         * hand write operations taken off the queue to the serialization workers, so they are
+         * encoded in parallel while the write thread applies the operations before them.
+         *
+         * Snapshots of one object must be taken in queue order, or the write applied last may
+         * hold the older one after the newer one has marked the object clean. So a write of an
+         * object whose previous write may not have taken its snapshot yet is not handed to the
+         * workers; it is snapshotted on the write thread when it runs, after the previous one.
+         */
+        private Operation startPrepare(Operation op) {
+            final ExecutorService serializer = mSerializer;
+            if (op != null && serializer != null && op.mCommandType == OperationType.Write) {
+                if (op instanceof WriteObjectOperation) {
+                    Operation previous = mUnappliedWrites.put(((WriteObjectOperation) op).mObj.getId(), op);
+                    if (previous != null && !previous.isPrepared()) {
+                        return op;
+                    }
+                }
+                op.prepareAsync(serializer);
+            }
+            return op;
+        }
+
+        private void runWrite(Operation op) {
+            op.run();
+            mOpsSinceCommit++;
+            if (op instanceof WriteObjectOperation) {
+                final UUID id = ((WriteObjectOperation) op).mObj.getId();
+                if (mUnappliedWrites.get(id) == op) {
+                    mUnappliedWrites.remove(id);
+                }
+            }
+        }
+
+        private void readAhead() {
+            if (mSerializer == null) {
+                return;
+            }
+            final int maxReadAhead = mMaxReadAhead;
+            while (mReadAhead.size() < maxReadAhead) {
+                Operation op = dequeued(mOperationQueue.poll());
+                if (op == null) {
+                    break;
+                }
+                mReadAhead.add(startPrepare(op));
+            }
+        }
+
+        private Operation pollNextCommand() {
+            Operation op = mReadAhead.poll();
+            if (op == null) {
+                op = startPrepare(dequeued(mOperationQueue.poll()));
+            }
+            return op;
+        }
+
+        /**
+         * keep pulling operations off the queue until either the batch is full, the
+         * linger time has expired, or a shutdown operation is seen.
+         */
+        private void fillBatch(ArrayList<Operation> batch) {
+            final int maxBatchSize = mMaxBatchSize;
+            final long deadline = System.currentTimeMillis() + mMaxLingerMillis;
+            while (batch.size() < maxBatchSize
+                    && batch.get(batch.size() - 1).mCommandType != OperationType.Shutdown) {
+                Operation op = pollNextCommand();
+                if (op == null) {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        op = startPrepare(dequeued(mOperationQueue.poll(remaining, TimeUnit.MILLISECONDS)));
+                    } catch (InterruptedException e) {
+                        logger.warn("unexpected interrupt", e);
+                    }
+                }
+                if (op != null) {
+                    batch.add(op);
+                }
+            }
+        }
+
+        /**
+         * Apply every write in {@code batch}, then perform at most one commit on behalf of all the
+         * commit operations in the batch. No operation is completed until the commit is done.
+         *
+         * @return true if the batch contained a shutdown operation
+         */
+        private boolean runBatch(ArrayList<Operation> batch) {
+            boolean shutdown = false;
+            boolean commitRequested = false;
             try {
-                wait(DEFAULT_WAIT);
-            } catch (InterruptedException e) {
-                logger.warn("unexpected interrupt", e);
+                for (Operation op : batch) {
+                    switch (op.mCommandType) {
+                        case Write:
+                            runWrite(op);
+                            break;
+
+                        case Commit:
+                            commitRequested = true;
+                            break;
+
+                        case NoOp:
+                            break;
+
+                        case Shutdown:
+                            shutdown = true;
+                            break;
+                    }
+                }
+
+                if (commitRequested) {
+                    try {
+                        mDriver.commitTransaction();
+                        recordCommit();
+                    } catch (Exception e) {
+                        logger.error("group commit failed", e);
+                        for (Operation op : batch) {
+                            if (op.mCommandType == OperationType.Commit) {
+                                op.mException = e;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                for (Operation op : batch) {
+                    op.complete();
+                }
+            }
+            return shutdown;
+        }
+
+        private void shutdownSerializer() {
+            final ExecutorService serializer = mSerializer;
+            if (serializer != null) {
+                serializer.shutdown();
+            }
+        }
+
+        private void recordCommit() {
+            mLastCommitTime = System.currentTimeMillis();
+            logger.debug("committed {} operations", mOpsSinceCommit);
+            mStats.recordCommit(mOpsSinceCommit);
+            mOpsSinceCommit = 0;
+        }
+
+        private Operation takeNextCommand() {
+            Operation op = mReadAhead.poll();
+            if (op == null) {
+                try {
+                    final long checkpointInterval = mCheckpointIntervalMillis;
+                    if (checkpointInterval > 0) {
+                        op = startPrepare(dequeued(mOperationQueue.poll(checkpointDelay(checkpointInterval), TimeUnit.MILLISECONDS)));
+                    } else {
+                        op = startPrepare(dequeued(mOperationQueue.take()));
+                    }
+                } catch (InterruptedException e) {
+                    logger.warn("unexpected interrupt", e);
+                    return null;
+                }
+            }
+            readAhead();
+            return op;
+        }
+
+        /**
+         * commits if the checkpoint interval has passed and there are uncommitted writes.
+         *
+         * @return time in milliseconds until the next checkpoint is due
+         */
+        private long checkpointDelay(long checkpointInterval) {
+            long delay = mLastCommitTime + checkpointInterval - System.currentTimeMillis();
+            if (delay <= 0) {
+                if (mOpsSinceCommit > 0) {
+                    try {
+                        mDriver.commitTransaction();
+                        recordCommit();
+                    } catch (Exception e) {
+                        logger.error("checkpoint failed", e);
+                    }
+                }
+                mLastCommitTime = System.currentTimeMillis();
+                delay = checkpointInterval;
             }
+            return delay;
         }
 
 
@@ -144,12 +492,67 @@ public class MicroDB {
             mWriteThread.start();
         }
 
+        /**
+         * Reserve room in the queue for one write operation, applying the overflow policy
+         * if the queue is full.
+         *
+         * @return the semaphore the slot was taken from, or null if the queue is unbounded
+         * @throws WriteQueueFullException if no room became available
+         */
+        Semaphore reserveSlot() {
+            final Semaphore slots = mSlots;
+            if (slots == null || slots.tryAcquire()) {
+                return slots;
+            }
+
+            switch (mOverflowPolicy) {
+                case Block:
+                    slots.acquireUninterruptibly();
+                    return slots;
+
+                case BlockWithTimeout:
+                    try {
+                        if (slots.tryAcquire(mOverflowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                            return slots;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+            }
+
+            mStats.recordRejectedWrite();
+            throw new WriteQueueFullException("write queue is full (capacity: " + mCapacity + ")");
+        }
+
+        void releaseSlot(Semaphore slot) {
+            if (slot != null) {
+                slot.release();
+            }
+        }
+
+        /**
+         * Queue {@code op}. Write operations first reserve a slot in the queue, so this may
+         * block or throw {@link WriteQueueFullException} if a capacity has been set.
+         */
         public void enqueue(Operation op) {
+            enqueue(op, op.mCommandType == OperationType.Write ? reserveSlot() : null);
+        }
+
+        void enqueue(Operation op, Semaphore slot) {
+            op.mSlot = slot;
+            op.mEnqueueTime = System.nanoTime();
+            mStats.recordEnqueue();
             mOperationQueue.offer(op);
         }
 
-        public synchronized void kick() {
-            notify();
+        private Operation dequeued(Operation op) {
+            if (op != null) {
+                releaseSlot(op.mSlot);
+                op.mSlot = null;
+                mStats.recordDequeue(System.nanoTime() - op.mEnqueueTime);
+            }
+            return op;
         }
     }
 
@@ -158,6 +561,53 @@ public class MicroDB {
         mWriteQueue.enqueue(op);
     }
 
+    /**
+     * Queue a write of {@code obj}. Write operations serialize the object when the write thread
+     * runs them, not when they are queued, so if a write (or insert) of the same object is
+     * already waiting in the queue, that operation is returned instead of queueing another one.
+     * The write thread removes an operation from {@code mPendingWrites} before it serializes
+     * the object, so any change made before this call is guaranteed to be included.
+     */
+    private Operation enqueueWrite(DBObject obj) {
+        Operation pending = mPendingWrites.get(obj.getId());
+        if (pending != null) {
+            mWriteQueue.mStats.recordCoalescedWrite();
+            return pending;
+        }
+        return enqueueWrite(obj, mWriteQueue.reserveSlot());
+    }
+
+    /**
+     * Never call {@link WriteQueue#reserveSlot()} while holding an object's lock: the write
+     * thread takes that lock to snapshot the object, so with a full queue and the Block policy
+     * neither would ever go on. Reserve the slot first and pass it in.
+     *
+     * @param slot a slot reserved for the write, which is released if the write is merged into
+     *             a pending one. null bypasses the queue capacity; eager autosave uses this
+     *             because it is called with the object's lock held, and it queues at most one
+     *             write per dirty object.
+     */
+    private Operation enqueueWrite(DBObject obj, Semaphore slot) {
+        final UUID id = obj.getId();
+        try {
+            while (true) {
+                Operation pending = mPendingWrites.get(id);
+                if (pending != null) {
+                    mWriteQueue.mStats.recordCoalescedWrite();
+                    return pending;
+                }
+                Operation op = createWriteObject(obj);
+                if (mPendingWrites.putIfAbsent(id, op) == null) {
+                    mWriteQueue.enqueue(op, slot);
+                    slot = null;
+                    return op;
+                }
+            }
+        } finally {
+            mWriteQueue.releaseSlot(slot);
+        }
+    }
+
     private Operation createShutdownOperation() {
         return new Operation(OperationType.Shutdown) {
             @Override
@@ -174,46 +624,141 @@ public class MicroDB {
         };
     }
 
+    //DBObject class -> whether it has a binary codec; see hasBinaryCodec
+    private static final ConcurrentHashMap<Class<?>, Boolean> BINARY_CODECS = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /**
+     * @return true if {@code type} declares its own {@link DBObject#writeTo(DataOutput)}, as
+     * classes generated by the DBO compiler do. Otherwise the object may have fields that only
+     * writeToUBObject knows about.
+     */
+    static boolean hasBinaryCodec(Class<?> type) {
+        Boolean retval = BINARY_CODECS.get(type);
+        if (retval == null) {
+            try {
+                retval = type.getMethod("writeTo", DataOutput.class).getDeclaringClass() == type;
+            } catch (NoSuchMethodException e) {
+                retval = false;
+            }
+            BINARY_CODECS.put(type, retval);
+        }
+        return retval;
+    }
+
+    private static final ThreadLocal<ScratchBuffer> SCRATCH_SNAPSHOT = ScratchBuffer.newThreadLocal();
+
+    /**
+     * @return the fields of {@code obj}, written through its binary codec if it has one. The
+     * codec writes into this thread's scratch buffer, and the record is copied out once at its
+     * final size; it can't stay in the buffer, since the driver's cache keeps it.
+     *
+     * Out of line arrays that {@code obj} has not read are written as references to their
+     * stored copy, so they are neither loaded nor stored again.
+     */
+    static UBObject writeObject(DBObject obj) throws IOException {
+        if (hasBinaryCodec(obj.getClass())) {
+            ScratchBuffer scratch = ScratchBuffer.get(SCRATCH_SNAPSHOT);
+            scratch.out.write(MapDBDriver.UBValueSerializer.FORMAT_V1);
+            obj.mRecordWriter = Thread.currentThread();
+            try {
+                obj.writeTo(scratch.out);
+            } finally {
+                obj.mRecordWriter = null;
+            }
+            return LazyUBObject.wrapRecord(scratch.out.copyBytes(), obj.getArrayStore());
+        }
+        UBObject data = new RecordObject();
+        obj.writeToUBObject(data);
+        return data;
+    }
+
+    /**
+     * reads the fields of {@code data}, the record of {@code obj} returned by
+     * {@link #writeObject(DBObject)}, back into {@code obj} if change listeners modified it
+     */
+    static void readChanges(DBObject obj, UBObject data) {
+        if (!(data instanceof LazyUBObject) || ((LazyUBObject) data).getRecord() == null) {
+            obj.readFromUBObject(data);
+        }
+    }
+
+    /**
+     * Writes the current state of a DBObject. The object is snapshotted in {@code prepare} and
+     * the snapshot is encoded in {@code encode}, so with parallel serialization enabled the
+     * write thread only has to store the encoded bytes.
+     */
+    private abstract class WriteObjectOperation extends Operation {
+
+        final DBObject mObj;
+        UUID mId;
+        UBObject mData;
+        byte[] mEncoded;
+
+        WriteObjectOperation(DBObject obj) {
+            super(OperationType.Write);
+            mObj = obj;
+        }
+
+        @Override
+        void prepare() throws IOException {
+            mPendingWrites.remove(mObj.getId(), this);
+            UBObject data;
+            synchronized (mObj) {
+                mId = mObj.getId();
+                mObj.beforeWrite();
+                data = writeObject(mObj);
+                markClean(mObj);
+            }
+            mData = data;
+        }
+
+        @Override
+        void encode() throws IOException {
+            mEncoded = mDriver.encode(mId, mData);
+        }
+
+        /**
+         * The driver refused the write because it broke a unique index, and stored nothing. The
+         * live object holds the refused values, so it is dropped and the next {@code get} reads
+         * what is stored.
+         */
+        void rejected() {
+            mLiveObjects.remove(mId);
+        }
+    }
+
     private Operation createInsertOperation(final DBObject obj) {
-        return new Operation(OperationType.Write) {
+        return new WriteObjectOperation(obj) {
             @Override
             void doIt() throws IOException {
-                final UUID id;
-                UBObject data = UBValueFactory.createObject();
-                synchronized (obj) {
-                    id = obj.getId();
-                    obj.beforeWrite();
-                    obj.writeToUBObject(data);
-                    obj.mDirty = false;
+                try {
+                    mDriver.insert(mId, mData, mEncoded);
+                } catch (UniqueConstraintException e) {
+                    rejected();
+                    throw e;
                 }
 
-                mDriver.insert(id, data);
-
                 for (ChangeListener listener : mChangeListeners) {
-                    listener.onAfterInsert(mDriver, id, data);
+                    listener.onAfterInsert(mDriver, mId, mData);
                 }
             }
         };
     }
 
     private Operation createWriteObject(final DBObject obj) {
-        return new Operation(OperationType.Write) {
+        return new WriteObjectOperation(obj) {
             @Override
             void doIt() throws IOException {
-                final UUID id;
-                UBObject data = UBValueFactory.createObject();
-                synchronized (obj) {
-                    id = obj.getId();
-                    obj.beforeWrite();
-                    obj.writeToUBObject(data);
-                    obj.mDirty = false;
-                }
-
                 for (ChangeListener listener : mChangeListeners) {
-                    listener.onBeforeUpdate(mDriver, id, data);
+                    listener.onBeforeUpdate(mDriver, mId, mData);
                 }
 
-                mDriver.update(id, data);
+                try {
+                    mDriver.update(mId, mData, mEncoded);
+                } catch (UniqueConstraintException e) {
+                    rejected();
+                    throw e;
+                }
             }
         };
     }
@@ -234,22 +779,20 @@ public class MicroDB {
                 final UUID id;
                 synchronized (obj) {
                     id = obj.getId();
-                    obj.mDirty = false;
+                    markClean(obj);
                 }
 
                 for (ChangeListener listener : mChangeListeners) {
                     listener.onBeforeDelete(mDriver, id);
                 }
                 mDriver.delete(id);
-                synchronized (MicroDB.this) {
-                    mDeletedObjects.remove(id);
-                }
+                mDeletedObjects.remove(id);
             }
         };
     }
 
     private Operation createCommitOperation() {
-        return new Operation(OperationType.Write) {
+        return new Operation(OperationType.Commit) {
             @Override
             void doIt() throws IOException {
                 mDriver.commitTransaction();
@@ -257,45 +800,247 @@ public class MicroDB {
         };
     }
 
+    private Operation createBulkInsertOperation(final List<Map.Entry<UUID, UBValue>> entries) {
+        return new Operation(OperationType.Write) {
+            @Override
+            void doIt() throws IOException {
+                mDriver.bulkInsert(entries);
+
+                for (Map.Entry<UUID, UBValue> entry : entries) {
+                    for (ChangeListener listener : mChangeListeners) {
+                        listener.onAfterInsert(mDriver, entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        };
+    }
+
     private AtomicBoolean mAutoSave = new AtomicBoolean(true);
 
-    static final MapFunction<String> INDEX_OBJECT_TYPE = new MapFunction<String>() {
-        @Override
-        public void map(UBValue value, Emitter<String> emitter) {
-            if (value != null && value.isObject()) {
-                UBObject obj = value.asObject();
-                UBValue typevar = obj.get("type");
-                if (typevar != null && typevar.isString()) {
-                    emitter.emit(typevar.asString());
+    static final long DEFAULT_AUTO_SAVE_DELAY_MILLIS = 1000;
+    static final int DEFAULT_AUTO_SAVE_THRESHOLD = 1000;
+
+    private volatile long mAutoSaveDelayMillis = DEFAULT_AUTO_SAVE_DELAY_MILLIS;
+    private volatile int mAutoSaveThreshold = DEFAULT_AUTO_SAVE_THRESHOLD;
+    //set while an autosave is waiting for the delay, and while one is due right away
+    private final AtomicBoolean mAutoSaveScheduled = new AtomicBoolean();
+    private final AtomicBoolean mAutoSaveDue = new AtomicBoolean();
+    private final ScheduledExecutorService mAutoSaveTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("MicroDB AutoSave")
+                    .setDaemon(true)
+                    .build());
+    //serializes the objects of bulk loads; idle workers exit
+    private final ThreadPoolExecutor mBulkLoadWorkers = createBulkLoadWorkers(Runtime.getRuntime().availableProcessors());
+
+    private static ThreadPoolExecutor createBulkLoadWorkers(int numThreads) {
+        ThreadPoolExecutor retval = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("MicroDB Bulk Loader %d")
+                        .setDaemon(true)
+                        .build());
+        retval.allowCoreThreadTimeOut(true);
+        return retval;
+    }
+
+    /**
+     * name of the index of every object by its type id
+     */
+    static final String INDEX_TYPE_ID = "typeid";
+
+    /**
+     * the index of object types by name that {@link #INDEX_TYPE_ID} replaced
+     */
+    private static final String INDEX_LEGACY_TYPE = "type";
+
+    /**
+     * @return a map function that emits the id of the type of each object, as registered with
+     * {@code driver}
+     */
+    static MapFunction<Integer> createTypeIndex(final Driver driver) {
+        return new MapFunction<Integer>() {
+            @Override
+            public void map(UBValue value, Emitter<Integer> emitter) {
+                final int typeId = driver.getTypeIdOf(value);
+                if (typeId >= 0) {
+                    emitter.emit(typeId);
                 }
             }
-        }
-    };
+        };
+    }
 
     public Driver getDriver() {
         return mDriver;
     }
 
+    /**
+     * Enable group commit. When enabled, the write thread drains up to {@code maxBatchSize}
+     * queued operations, applies them and then performs a single commit for the whole batch.
+     * The write thread will wait up to {@code maxLingerMillis} for more operations to arrive
+     * before committing a batch that is not yet full.
+     *
+     * @param maxBatchSize max number of operations per batch. A value of 1 disables group commit.
+     * @param maxLingerMillis max time in milliseconds to wait for a batch to fill
+     */
+    void setGroupCommit(int maxBatchSize, long maxLingerMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        if (maxLingerMillis < 0) {
+            throw new IllegalArgumentException("maxLingerMillis must not be negative");
+        }
+        mWriteQueue.mMaxBatchSize = maxBatchSize;
+        mWriteQueue.mMaxLingerMillis = maxLingerMillis;
+    }
+
+    /**
+     * Serialize objects on a pool of {@code numThreads} worker threads instead of on the
+     * write thread. The write thread takes operations off the queue ahead of time and hands
+     * them to the workers, then stores the encoded records in submission order.
+     *
+     * @param numThreads number of serialization workers. 0 serializes on the write thread.
+     */
+    void setSerializationThreads(int numThreads) {
+        if (numThreads < 0) {
+            throw new IllegalArgumentException("numThreads must not be negative");
+        }
+        if (mWriteQueue.mSerializer != null) {
+            throw new IllegalStateException("serialization threads already set");
+        }
+        if (numThreads > 0) {
+            mWriteQueue.mMaxReadAhead = numThreads * 4;
+            mWriteQueue.mSerializer = Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder()
+                    .setNameFormat("MicroDB Serializer %d")
+                    .setDaemon(true)
+                    .build());
+        }
+    }
+
+    /**
+     * Commit periodically from the write thread instead of on every {@code sync()}. Used when
+     * the driver has no transactions, where a commit flushes the store to disk.
+     *
+     * @param intervalMillis time between checkpoints. 0 disables checkpoints.
+     */
+    void setCheckpointInterval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("intervalMillis must not be negative");
+        }
+        mWriteQueue.mCheckpointIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Limit the number of write operations that may be waiting in the write queue. Commit and
+     * shutdown operations are never refused.
+     *
+     * @param capacity max number of queued write operations
+     * @param policy what to do when a write is requested while the queue is full
+     * @param timeoutMillis how long to wait for room with {@link OverflowPolicy#BlockWithTimeout}
+     */
+    void setWriteQueueCapacity(int capacity, OverflowPolicy policy, long timeoutMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        mWriteQueue.mCapacity = capacity;
+        mWriteQueue.mOverflowPolicy = policy;
+        mWriteQueue.mOverflowTimeoutMillis = timeoutMillis;
+        mWriteQueue.mSlots = new Semaphore(capacity);
+    }
+
+    public WriteQueueStats getWriteQueueStats() {
+        return mWriteQueue.mStats;
+    }
+
+    /**
+     * Create a {@link BulkLoader} for importing a large number of new objects at once.
+     *
+     * @return a new BulkLoader for this database
+     */
+    public BulkLoader createBulkLoader() {
+        return new BulkLoader(this, mBulkLoadWorkers, mBulkLoadWorkers.getMaximumPoolSize());
+    }
+
+    List<ChangeListener> getChangeListeners() {
+        return mChangeListeners;
+    }
+
+    /**
+     * Inserts the records of {@code objects} and commits. The objects are added to the live
+     * object cache like objects inserted one by one, so {@link #get(UUID)} returns them instead
+     * of reading a second copy; they are dropped again if the insert fails.
+     */
+    void bulkInsert(List<? extends DBObject> objects, List<Map.Entry<UUID, UBValue>> entries) {
+        expungeCollectedObjects();
+        for (DBObject obj : objects) {
+            mLiveObjects.put(obj.getId(), new LiveObjectRef(obj, mCollectedObjects));
+        }
+
+        Operation insertOp = createBulkInsertOperation(entries);
+        Operation commitOp = createCommitOperation();
+        mWriteQueue.enqueue(insertOp);
+        mWriteQueue.enqueue(commitOp);
+        try {
+            insertOp.waitForCompletion();
+        } catch (RuntimeException e) {
+            for (DBObject obj : objects) {
+                mLiveObjects.remove(obj.getId());
+            }
+            throw e;
+        } finally {
+            commitOp.waitForCompletion();
+        }
+    }
+
 
     MicroDB(Driver driver, int schemaVersion, DBCallback cb) throws IOException {
+        this(driver, schemaVersion, cb, true);
+    }
+
+    /**
+     * @param start false to leave the database unopened, so it can be configured before
+     *              {@link #start()} is called
+     */
+    MicroDB(Driver driver, int schemaVersion, DBCallback cb, boolean start) throws IOException {
         mDriver = driver;
         mSchemaVersion = schemaVersion;
         mCallback = cb;
 
+        if (start) {
+            start();
+        }
+    }
+
+    /**
+     * starts the write thread and opens the database, calling {@link DBCallback#onUpgrade} if
+     * it is new or its schema is older. Settings such as group commit are made before this, so
+     * that the upgrade and any writes it makes use them.
+     */
+    void start() throws IOException {
         mWriteQueue.start();
         init();
     }
 
     private static final String METAKEY_DBVERSION = "schema_version";
     private static final String METAKEY_INSTANCE = "instance";
+    private static final String METAKEY_TYPEINDEX = "type_index";
 
     private void init() throws IOException {
 
+        mDriver.addIndex(INDEX_TYPE_ID, createTypeIndex(mDriver));
+
         UBObject metaObj = mDriver.getMeta();
         if (!metaObj.containsKey(METAKEY_INSTANCE)) {
             mDriver.beginTransaction();
             metaObj.put(METAKEY_INSTANCE, UBValueFactory.createString(UUID.randomUUID().toString()));
             metaObj.put(METAKEY_DBVERSION, UBValueFactory.createInt(mSchemaVersion));
+            metaObj.put(METAKEY_TYPEINDEX, UBValueFactory.createBool(true));
             mDriver.saveMeta(metaObj);
             mDriver.commitTransaction();
 
@@ -304,6 +1049,16 @@ public class MicroDB {
             mDriver.commitTransaction();
 
         } else {
+            if (!metaObj.containsKey(METAKEY_TYPEINDEX)) {
+                //created before types had ids, so index the existing objects by id instead of name
+                mDriver.beginTransaction();
+                mDriver.recomputeIndex(INDEX_TYPE_ID);
+                mDriver.deleteIndex(INDEX_LEGACY_TYPE);
+                metaObj.put(METAKEY_TYPEINDEX, UBValueFactory.createBool(true));
+                mDriver.saveMeta(metaObj);
+                mDriver.commitTransaction();
+            }
+
             int currentVersion = metaObj.get(METAKEY_DBVERSION).asInt();
             if (currentVersion < mSchemaVersion) {
                 mDriver.beginTransaction();
@@ -314,24 +1069,104 @@ public class MicroDB {
             }
         }
 
-        mDriver.addIndex("type", INDEX_OBJECT_TYPE);
-
     }
 
 
     /**
-     * called when a dbobject is being finalized by the GC
+     * called by {@code obj} while holding its lock when it goes from clean to dirty. The
+     * object is pinned in memory until the write thread has saved it, so the GC can never
+     * collect unsaved changes. Since it is pinned, a dirty object never reaches
+     * {@link #mCollectedObjects}, which only drops cache entries of clean objects; unlike the
+     * finalizer it replaces, collection does not trigger saves, the autosave timer does.
+     *
+     * The object is not written right away, so the changes that usually follow the first one
+     * go into the same write. Autosave writes every dirty object once the autosave delay has
+     * passed, or once there are as many dirty objects as the autosave threshold; see
+     * {@link #setAutoSave(long, int)}. The writes are queued from the autosave thread, since
+     * this thread holds an object's lock.
      *
      * @param obj
      */
-    protected void finalizing(DBObject obj) {
-        if (mAutoSave.get() && obj.mDirty) {
-            mWriteQueue.enqueue(createWriteObject(obj));
+    void onDirty(DBObject obj) {
+        mDirtyObjects.put(obj.getId(), obj);
+        if (!mAutoSave.get()) {
+            return;
+        }
+        final long delay = mAutoSaveDelayMillis;
+        if (delay == 0) {
+            enqueueWrite(obj, null);
+        } else if (mDirtyObjects.size() >= mAutoSaveThreshold) {
+            scheduleAutoSave(mAutoSaveDue, 0);
+        } else {
+            scheduleAutoSave(mAutoSaveScheduled, delay);
+        }
+    }
+
+    /**
+     * writes the dirty objects on the autosave thread after {@code delayMillis}, unless
+     * {@code scheduled} shows that such a write is already waiting
+     */
+    private void scheduleAutoSave(final AtomicBoolean scheduled, long delayMillis) {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mAutoSaveTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scheduled.set(false);
+                    try {
+                        writeDirtyObjects();
+                    } catch (RuntimeException e) {
+                        //objects that stay dirty schedule no autosave of their own, so try again
+                        logger.error("autosave failed", e);
+                        final long delay = mAutoSaveDelayMillis;
+                        scheduleAutoSave(mAutoSaveScheduled, delay > 0 ? delay : DEFAULT_AUTO_SAVE_DELAY_MILLIS);
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //shut down: the changes are written by shutdown() or an explicit flush()
+            scheduled.set(false);
+        }
+    }
+
+    /**
+     * How changed objects are written when they are not saved explicitly.
+     *
+     * @param delayMillis a changed object is written at most this long after its first change.
+     *                    0 writes every object as soon as it is changed.
+     * @param threshold   all changed objects are written as soon as there are this many
+     */
+    void setAutoSave(long delayMillis, int threshold) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delayMillis must not be negative");
         }
-        synchronized (this) {
-            mLiveObjects.remove(obj.getId());
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be at least 1");
         }
+        mAutoSaveDelayMillis = delayMillis;
+        mAutoSaveThreshold = threshold;
+    }
+
+    /**
+     * called while holding {@code obj}'s lock, once its current state has been taken to be
+     * written. Changes made after this call dirty the object again.
+     */
+    void markClean(DBObject obj) {
+        obj.mDirty = false;
+        mDirtyObjects.remove(obj.getId(), obj);
+    }
 
+    /**
+     * drop cache entries whose objects have been collected by the GC
+     */
+    private void expungeCollectedObjects() {
+        Reference<? extends DBObject> ref;
+        while ((ref = mCollectedObjects.poll()) != null) {
+            LiveObjectRef liveRef = (LiveObjectRef) ref;
+            mLiveObjects.remove(liveRef.mId, liveRef);
+        }
     }
 
     public synchronized void close() throws IOException {
@@ -341,22 +1176,43 @@ public class MicroDB {
     }
 
     /**
-     * Saves all DBObjects that are marked dirty
+     * Saves all DBObjects that are marked dirty. Only objects that have changed since they
+     * were last written are visited.
      */
     public void flush() {
-        synchronized (this) {
-            for (SoftReference<DBObject> ref : mLiveObjects.values()) {
-                DBObject obj = ref.get();
-                if (obj != null) {
-                    synchronized (obj) {
-                        if(obj.mDirty) {
-                            mWriteQueue.enqueue(createWriteObject(obj));
-                        }
+        writeDirtyObjects();
+        sync();
+    }
+
+    /**
+     * queues a write of every dirty object, without waiting for them. The slot for each write
+     * is reserved before the object's lock is taken; see {@link #enqueueWrite(DBObject, Semaphore)}.
+     */
+    private void writeDirtyObjects() {
+        for (DBObject obj : mDirtyObjects.values()) {
+            if (mPendingWrites.containsKey(obj.getId())) {
+                //the pending write has not taken its snapshot yet, so it includes the changes
+                continue;
+            }
+            Semaphore slot = mWriteQueue.reserveSlot();
+            try {
+                synchronized (obj) {
+                    if (obj.mDirty) {
+                        enqueueWrite(obj, slot);
+                        slot = null;
                     }
                 }
+            } finally {
+                mWriteQueue.releaseSlot(slot);
             }
         }
-        sync();
+    }
+
+    /**
+     * @return the number of objects that have changes that have not been written yet
+     */
+    public int getNumDirtyObjects() {
+        return mDirtyObjects.size();
     }
 
     /**
@@ -366,29 +1222,58 @@ public class MicroDB {
      * @param <T>
      * @return newly created object
      */
-    public synchronized <T extends DBObject> T insert(Class<T> classType) {
+    public <T extends DBObject> T insert(Class<T> classType) {
+        T retval = create(classType);
+        insertObject(retval);
+        return retval;
+    }
+
+    /**
+     * creates and inserts into the database a new object of type {@code classType}.
+     *
+     * @param classType
+     * @param <T>
+     * @return a future that yields the newly created object once it has been written
+     */
+    public <T extends DBObject> ListenableFuture<T> insertAsync(Class<T> classType) {
+        T retval = create(classType);
+        Operation op = insertObject(retval);
+        return Futures.transform(op, Functions.constant(retval));
+    }
+
+    private Operation insertObject(DBObject obj) {
+        //reserve room first so a full queue refuses the insert before it has any side effects
+        Semaphore slot = mWriteQueue.reserveSlot();
         try {
-            T retval = create(classType);
             final UUID key = mDriver.genId();
-            retval.setId(key);
+            obj.setId(key);
 
-            UBObject data = UBValueFactory.createObject();
-            retval.writeToUBObject(data);
+            UBObject data = writeObject(obj);
 
             for(ChangeListener l : mChangeListeners) {
                 l.onBeforeInsert(mDriver, data);
             }
 
-            retval.readFromUBObject(data);
+            readChanges(obj, data);
 
-            retval.setDirty();
-            mWriteQueue.enqueue(createInsertOperation(retval));
-            mLiveObjects.put(key, new SoftReference<DBObject>(retval));
+            synchronized (obj) {
+                obj.mDirty = true;
+                mDirtyObjects.put(key, obj);
+            }
+            Operation op = createInsertOperation(obj);
+            mPendingWrites.put(key, op);
+            mWriteQueue.enqueue(op, slot);
+            slot = null;
 
-            return retval;
+            expungeCollectedObjects();
+            mLiveObjects.put(key, new LiveObjectRef(obj, mCollectedObjects));
+
+            return op;
 
         } catch (Exception e) {
             throw new RuntimeException("", e);
+        } finally {
+            mWriteQueue.releaseSlot(slot);
         }
     }
 
@@ -418,45 +1303,8 @@ public class MicroDB {
         mConstructorMap = constructors;
     }
 
-    public synchronized <T extends DBObject> T get(UUID id) {
-        if (mDeletedObjects.contains(id)) {
-            return null;
-        }
-        try {
-
-            T retval;
-            DBObject cached;
-
-            SoftReference<DBObject> ref = mLiveObjects.get(id);
-            if (ref != null && (cached = ref.get()) != null) {
-                retval = (T) cached;
-            } else {
-
-                UBValue data = mDriver.get(id);
-                if (data == null) {
-                    return null;
-                } else {
-
-                    if (!data.isObject()) {
-                        throw new RuntimeException("database entry with id: " + id + " is not an object");
-                    }
-
-                    final String dataType = data.asObject().get("type").asString();
-                    retval = (T) mConstructorMap.get(dataType).build();
-
-                    retval.init(this);
-                    retval.setId(id);
-                    retval.readFromUBObject(data.asObject());
-                    retval.afterRead();
-                    mLiveObjects.put(id, new SoftReference<DBObject>(retval));
-                }
-            }
-
-            return retval;
-        } catch (Exception e) {
-            throw new RuntimeException("", e);
-        }
-
+    public <T extends DBObject> T get(UUID id) {
+        return getObject(id, null);
     }
 
     /**
@@ -467,56 +1315,84 @@ public class MicroDB {
      * @param <T>
      * @return dbobject
      */
-    public synchronized <T extends DBObject> T get(UUID id, T shell) {
+    public <T extends DBObject> T get(UUID id, T shell) {
+        return getObject(id, shell);
+    }
+
+    private DBObject getLiveObject(UUID id) {
+        LiveObjectRef ref = mLiveObjects.get(id);
+        return ref != null ? ref.get() : null;
+    }
+
+    private <T extends DBObject> T getObject(UUID id, T shell) {
         if (mDeletedObjects.contains(id)) {
             return null;
         }
+
+        DBObject cached = getLiveObject(id);
+        if (cached != null) {
+            return (T) cached;
+        }
+
+        expungeCollectedObjects();
+
+        //cache miss: only one thread loads a given id, so concurrent callers get the same instance
+        Lock lock = mObjectLocks.get(id);
+        lock.lock();
         try {
+            if (mDeletedObjects.contains(id)) {
+                return null;
+            }
 
-            T retval;
-            DBObject cached;
+            cached = getLiveObject(id);
+            if (cached != null) {
+                return (T) cached;
+            }
 
-            SoftReference<DBObject> ref = mLiveObjects.get(id);
-            if (ref != null && (cached = ref.get()) != null) {
-                retval = (T) cached;
-            } else {
+            UBValue data = mDriver.get(id);
+            if (data == null) {
+                return null;
+            }
 
-                UBValue data = mDriver.get(id);
-                if (data == null) {
-                    return null;
-                } else {
+            if (!data.isObject()) {
+                throw new RuntimeException("database entry with id: " + id + " is not an object");
+            }
 
-                    if (!data.isObject()) {
-                        throw new RuntimeException("database entry with id: " + id + " is not an object");
-                    }
+            T retval;
+            if (shell != null) {
+                retval = shell;
+            } else {
+                final String dataType = data.asObject().get("type").asString();
+                retval = (T) mConstructorMap.get(dataType).build();
+            }
 
-                    shell.init(this);
-                    shell.setId(id);
-                    shell.readFromUBObject(data.asObject());
-                    shell.afterRead();
-                    retval = shell;
-                    mLiveObjects.put(id, new SoftReference<DBObject>(retval));
-                }
+            retval.init(this);
+            retval.setId(id);
+            if (!(data instanceof LazyUBObject && hasBinaryCodec(retval.getClass())
+                    && ((LazyUBObject) data).readInto(retval))) {
+                retval.readFromUBObject(data.asObject());
             }
+            retval.afterRead();
+            mLiveObjects.put(id, new LiveObjectRef(retval, mCollectedObjects));
 
             return retval;
         } catch (Exception e) {
             throw new RuntimeException("", e);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * saves/updates {@code obj} to the database. This method is not normally necessary for users to call
-     * because database objects will automatically be saved when the garbage collector collects them if
-     * they are marked dirty.
+     * because database objects are automatically queued to be saved when they are marked dirty.
      *
      * @param obj the data to be saved
+     * @return a future that completes once the write thread has written {@code obj}
      */
-    public Operation save(DBObject obj) {
+    public ListenableFuture<Void> save(DBObject obj) {
         checkValid(obj);
-        Operation op = createWriteObject(obj);
-        mWriteQueue.enqueue(op);
-        return op;
+        return enqueueWrite(obj);
     }
 
     private void checkValid(DBObject obj) {
@@ -525,40 +1401,108 @@ public class MicroDB {
         }
     }
 
-    public synchronized Operation delete(DBObject obj) {
+    /**
+     * deletes {@code obj} from the database.
+     *
+     * @param obj the object to delete
+     * @return a future that completes once the write thread has deleted {@code obj}
+     */
+    public ListenableFuture<Void> delete(DBObject obj) {
         checkValid(obj);
-        mDeletedObjects.add(obj.getId());
-        Operation op = createDeleteOperation(obj);
-        mWriteQueue.enqueue(op);
-        mLiveObjects.remove(obj.getId());
-        return op;
+        final UUID id = obj.getId();
+        final Semaphore slot = mWriteQueue.reserveSlot();
+        Lock lock = mObjectLocks.get(id);
+        lock.lock();
+        try {
+            mDeletedObjects.add(id);
+            //changes that were not saved are deleted too, so flush and autosave don't write them
+            synchronized (obj) {
+                markClean(obj);
+            }
+            //writes queued after this delete must not be merged into writes queued before it
+            mPendingWrites.remove(id);
+            Operation op = createDeleteOperation(obj);
+            mWriteQueue.enqueue(op, slot);
+            mLiveObjects.remove(id);
+            return op;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public Operation commit() {
+    /**
+     * commits all write operations queued before this call.
+     *
+     * @return a future that completes once the commit is durable
+     */
+    public ListenableFuture<Void> commit() {
         Operation op = createCommitOperation();
         mWriteQueue.enqueue(op);
         return op;
     }
 
-    public void waitForCompletion(Operation op) {
-        mWriteQueue.kick();
-        op.waitForCompletion();
+    /**
+     * Blocks until {@code op} is complete. Any exception thrown while performing the
+     * operation is rethrown.
+     *
+     * @param op a future returned by {@code save}, {@code delete} or {@code commit}
+     */
+    public void waitForCompletion(Future<?> op) {
+        try {
+            Uninterruptibles.getUninterruptibly(op);
+        } catch (ExecutionException e) {
+            Throwables.propagate(e.getCause());
+        }
     }
 
     /**
-     * This method blocks until all queued write operation are completed.
+     * This method blocks until all queued write operation are completed. Unless the database
+     * uses periodic checkpoints, the writes are committed as well.
      */
     public void sync() {
-        //Operation op = createNoOp();
-        Operation op = createCommitOperation();
+        Operation op = mWriteQueue.mCheckpointIntervalMillis > 0 ? createNoOp() : createCommitOperation();
         mWriteQueue.enqueue(op);
-        waitForCompletion(op);
+        op.waitForCompletion();
     }
 
+    /**
+     * Add an index. Objects written from now on are indexed as they are written. Objects that
+     * are already stored are indexed by a background job, which resumes where it stopped if the
+     * database is closed first. Until the job is done, queries on the index are answered by
+     * scanning the objects; see {@link #isIndexReady(String)}.
+     */
     public <T extends Comparable<T>> void addIndex(String indexName, MapFunction<T> mapFunction) throws IOException {
         mDriver.addIndex(indexName, mapFunction);
     }
 
+    /**
+     * Add a covering index. The values of {@code includeFields} are stored in the index next to
+     * each key, and rows of the index return them from {@link Row#getField(String)} without
+     * reading the object, so a query that only needs those fields is served by the index alone.
+     */
+    public <T extends Comparable<T>> void addIndex(String indexName, MapFunction<T> mapFunction, String... includeFields) throws IOException {
+        mDriver.addIndex(indexName, mapFunction, includeFields);
+    }
+
+    /**
+     * Add an index of the given kind. Use {@link IndexKind#Hash} for keys only ever looked up
+     * by equality, such as an email address or an external id, and query it with
+     * {@link #lookupIndex(String, Comparable)}. Use {@link IndexKind#Unique} for keys that no
+     * two objects may share, and get objects by them with
+     * {@link #getByUniqueKey(String, Comparable)}.
+     */
+    public <T extends Comparable<T>> void addIndex(String indexName, IndexKind kind, MapFunction<T> mapFunction) throws IOException {
+        mDriver.addIndex(indexName, kind, mapFunction);
+    }
+
+    /**
+     * @return false while the objects stored before the index was added are still being
+     * indexed, or if that failed; see {@link Driver#isIndexReady(String)}
+     */
+    public boolean isIndexReady(String indexName) {
+        return mDriver.isIndexReady(indexName);
+    }
+
     public void addChangeListener(ChangeListener listener) {
         mChangeListeners.add(listener);
     }
@@ -567,6 +1511,45 @@ public class MicroDB {
         return mDriver.queryIndex(indexName, min, minInclusive, max, maxInclusive);
     }
 
+    /**
+     * Query a composite index, one whose map function emits {@link CompositeKey}s.
+     * The cursor covers the keys that start with the values of {@code prefix} and whose next
+     * value is between {@code min} and {@code max}; a null bound leaves that end open. For an
+     * index on (customerId, createdAt), the prefix is the customer id and the range is over the
+     * creation times. Rows return their whole {@link CompositeKey} as the secondary key.
+     */
+    public <T extends Comparable<T>> Cursor queryIndex(String indexName, CompositeKey prefix, T min, boolean minInclusive, T max, boolean maxInclusive) throws IOException {
+        return mDriver.queryIndex(indexName, prefix, min, minInclusive, max, maxInclusive);
+    }
+
+    /**
+     * @return the ids of the objects whose key in the index is {@code key}. Unlike
+     * {@link #queryIndex(String, Comparable, boolean, Comparable, boolean)} this opens no
+     * cursor; for a hash index it is a single hash lookup.
+     */
+    public <T extends Comparable<T>> List<UUID> lookupIndex(String indexName, T key) throws IOException {
+        return mDriver.lookupIndex(indexName, key);
+    }
+
+    /**
+     * @return the object whose key in the unique index {@code indexName} is {@code key}, or null
+     * if there is none. The key is resolved with a single hash lookup, without opening a cursor.
+     * Objects whose insert has not been written yet are not found.
+     */
+    public <T extends DBObject, K extends Comparable<K>> T getByUniqueKey(String indexName, K key) throws IOException {
+        final UUID id = mDriver.lookupUniqueKey(indexName, key);
+        return id != null ? this.<T>get(id) : null;
+    }
+
+    /**
+     * same as {@code getByUniqueKey(indexName, key)}, loading the object into {@code shell} as
+     * {@link #get(UUID, DBObject)} does
+     */
+    public <T extends DBObject, K extends Comparable<K>> T getByUniqueKey(String indexName, K key, T shell) throws IOException {
+        final UUID id = mDriver.lookupUniqueKey(indexName, key);
+        return id != null ? get(id, shell) : null;
+    }
+
     public <T extends DBObject> Iterable<T> getAllOfType(final Class<T> classType) throws IOException {
         final String className = classType.getSimpleName();
 
@@ -574,7 +1557,9 @@ public class MicroDB {
             @Override
             public Iterator<T> iterator() {
                 try {
-                    final Cursor cursor = queryIndex("type", className, true, className, true);
+                    //looked up each time, since the type may only be registered later
+                    final Integer typeId = mDriver.getTypeId(className);
+                    final Cursor cursor = queryIndex(INDEX_TYPE_ID, typeId, true, typeId, true);
                     return new RowIterator<T>(cursor, MicroDB.this, classType);
                 } catch (IOException e) {
                     Throwables.propagate(e);
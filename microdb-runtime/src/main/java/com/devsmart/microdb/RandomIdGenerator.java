@@ -0,0 +1,16 @@
+package com.devsmart.microdb;
+
+
+import java.util.UUID;
+
+/**
+ * Random (version 4) UUIDs. This is the default. New objects land anywhere in the objects tree,
+ * which is fine while the database fits in memory.
+ */
+public class RandomIdGenerator implements IdGenerator {
+
+    @Override
+    public UUID generateId() {
+        return UUID.randomUUID();
+    }
+}
@@ -0,0 +1,363 @@
+package com.devsmart.microdb;
+
+
+import org.mapdb.BTreeMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses schema encoded records with a deflate dictionary trained on records of the same
+ * type. Objects of one type share most of their bytes (field ids, markers, common strings), so
+ * even small records shrink once the compressor has seen what they usually look like.
+ *
+ * A compressed record looks like:
+ * <pre>
+ * FORMAT_COMPRESSED, dictionary id, raw length (int32), compressed length (int32), deflated bytes
+ * </pre>
+ * where the dictionary id is a UBJSON integer and the deflated bytes are the raw deflate of the
+ * complete schema encoded record.
+ *
+ * Dictionaries are stored in the "dictionaries" tree as the type id (int32) followed by the
+ * dictionary, keyed by a dictionary id that is never reused. The newest dictionary of a type is
+ * the one used for writing; older ones are kept so that records compressed with them stay
+ * readable. Every dictionary is held in memory, so the serializer never has to touch MapDB.
+ */
+final class RecordCompressor {
+
+    /**
+     * records of a type without a dictionary that are written before one is trained
+     */
+    static final int TRAINING_THRESHOLD = 128;
+
+    /**
+     * records of a type written with its current dictionary before it is trained again
+     */
+    static final int RETRAINING_THRESHOLD = 64 * 1024;
+
+    static final int MAX_SAMPLES = 256;
+    static final int MAX_DICTIONARY_SIZE = 8 * 1024;
+
+    private static final int GRAM_LENGTH = 8;
+
+    /**
+     * notified, from whichever thread is writing, when a type has seen enough records to train
+     * a (new) dictionary
+     */
+    interface TrainingListener {
+        void onTrainingDue(SchemaRegistry.TypeSchema type);
+    }
+
+    private static final class Dictionary {
+        final int id;
+        final int typeId;
+        final byte[] data;
+
+        Dictionary(int id, int typeId, byte[] data) {
+            this.id = id;
+            this.typeId = typeId;
+            this.data = data;
+        }
+    }
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private static final ThreadLocal<byte[]> DEFLATE_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4 * 1024];
+        }
+    };
+
+    private final BTreeMap<Integer, byte[]> mStore;
+    private final ConcurrentHashMap<Integer, Dictionary> mDictionaries = new ConcurrentHashMap<Integer, Dictionary>();
+    private final ConcurrentHashMap<Integer, Dictionary> mCurrent = new ConcurrentHashMap<Integer, Dictionary>();
+    private final ConcurrentHashMap<Integer, AtomicInteger> mWriteCounts = new ConcurrentHashMap<Integer, AtomicInteger>();
+    private volatile int mMinRecordSize;
+    private volatile TrainingListener mListener;
+
+    RecordCompressor(BTreeMap<Integer, byte[]> store) {
+        mStore = store;
+        reload();
+    }
+
+    /**
+     * forgets dictionaries that were never committed. Called after a rollback.
+     */
+    synchronized void reload() {
+        mDictionaries.clear();
+        mCurrent.clear();
+        for (Map.Entry<Integer, byte[]> entry : mStore.entrySet()) {
+            ByteBuffer buf = ByteBuffer.wrap(entry.getValue());
+            final int typeId = buf.getInt();
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            Dictionary dictionary = new Dictionary(entry.getKey(), typeId, data);
+            mDictionaries.put(dictionary.id, dictionary);
+            //keys are iterated in ascending order, so the newest dictionary wins
+            mCurrent.put(typeId, dictionary);
+        }
+    }
+
+    /**
+     * @param minRecordSize records shorter than this are never compressed. 0 disables
+     *                      compression of new records; existing ones can still be read.
+     */
+    void setMinRecordSize(int minRecordSize) {
+        mMinRecordSize = minRecordSize;
+    }
+
+    boolean isEnabled() {
+        return mMinRecordSize > 0;
+    }
+
+    void setTrainingListener(TrainingListener listener) {
+        mListener = listener;
+    }
+
+    boolean hasDictionary(SchemaRegistry.TypeSchema type) {
+        return mCurrent.containsKey(type.id);
+    }
+
+    /**
+     * counts a schema record written for {@code type} and tells the training listener when a
+     * dictionary should be trained
+     */
+    void recordWritten(SchemaRegistry.TypeSchema type) {
+        AtomicInteger count = mWriteCounts.get(type.id);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = mWriteCounts.putIfAbsent(type.id, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        final int threshold = hasDictionary(type) ? RETRAINING_THRESHOLD : TRAINING_THRESHOLD;
+        if (count.incrementAndGet() == threshold) {
+            TrainingListener listener = mListener;
+            if (listener != null) {
+                listener.onTrainingDue(type);
+            }
+        }
+    }
+
+    /**
+     * stores {@code dictionary} as the new dictionary of {@code type}. Records written from now
+     * on use it.
+     */
+    synchronized void install(SchemaRegistry.TypeSchema type, byte[] dictionary) {
+        final int id = mStore.isEmpty() ? 0 : mStore.lastKey() + 1;
+        byte[] value = new byte[4 + dictionary.length];
+        ByteBuffer.wrap(value).putInt(type.id).put(dictionary);
+        mStore.put(id, value);
+
+        Dictionary installed = new Dictionary(id, type.id, dictionary);
+        mDictionaries.put(id, installed);
+        mCurrent.put(type.id, installed);
+        mWriteCounts.remove(type.id);
+    }
+
+    /**
+     * writes the schema encoded record {@code record[offset, offset+length)} of {@code type},
+     * compressed if that makes it smaller
+     */
+    void write(OutputStream out, SchemaRegistry.TypeSchema type, byte[] record, int offset, int length) throws IOException {
+        final Dictionary dictionary = mCurrent.get(type.id);
+        if (dictionary == null || length < mMinRecordSize) {
+            out.write(record, offset, length);
+            return;
+        }
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(dictionary.data);
+        deflater.setInput(record, offset, length);
+        deflater.finish();
+        byte[] buffer = DEFLATE_BUFFER.get();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == buffer.length) {
+                byte[] larger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, compressedLength);
+                buffer = larger;
+            }
+            compressedLength += deflater.deflate(buffer, compressedLength, buffer.length - compressedLength);
+        }
+        if (buffer.length <= 64 * 1024) {
+            DEFLATE_BUFFER.set(buffer);
+        }
+
+        //marker, id, and two lengths
+        final int headerLength = 1 + (dictionary.id <= 0xFF ? 2 : 5) + 8;
+        if (headerLength + compressedLength >= length) {
+            out.write(record, offset, length);
+            return;
+        }
+
+        out.write(MapDBDriver.UBValueSerializer.FORMAT_COMPRESSED);
+        SchemaRegistry.writeInt(out, dictionary.id);
+        SchemaRegistry.writeInt32(out, length);
+        SchemaRegistry.writeInt32(out, compressedLength);
+        out.write(buffer, 0, compressedLength);
+    }
+
+    /**
+     * reads a compressed record, whose marker has already been read from {@code in}
+     *
+     * @return the complete schema encoded record
+     */
+    byte[] read(DataInput in) throws IOException {
+        final int idMarker = in.readUnsignedByte();
+        final int id = (int) UBCodec.readIntPayload(idMarker, in);
+        final int length = in.readInt();
+        final int compressedLength = in.readInt();
+        final Dictionary dictionary = mDictionaries.get(id);
+        if (dictionary == null) {
+            throw new IOException("unknown compression dictionary: " + id);
+        }
+
+        byte[] compressed = new byte[compressedLength];
+        in.readFully(compressed);
+        byte[] retval = new byte[length];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(dictionary.data);
+        inflater.setInput(compressed);
+        try {
+            int pos = 0;
+            while (pos < length) {
+                final int n = inflater.inflate(retval, pos, length - pos);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("compressed record is truncated");
+                }
+                pos += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed record", e);
+        }
+        return retval;
+    }
+
+    /**
+     * Builds a deflate dictionary from sample records. Byte sequences that show up in many
+     * samples are collected and ordered so that the most valuable ones end up at the end of the
+     * dictionary, closest to the data, where deflate can reference them most cheaply.
+     *
+     * @return the dictionary, or null if the samples have nothing in common
+     */
+    static byte[] train(List<byte[]> samples, int maxSize) {
+        if (samples.size() < 2) {
+            return null;
+        }
+        final int minCount = Math.max(2, samples.size() / 4);
+
+        //in how many samples does each gram occur
+        HashMap<String, Integer> gramCounts = new HashMap<String, Integer>();
+        for (byte[] sample : samples) {
+            HashSet<String> seen = new HashSet<String>();
+            for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+                seen.add(latin1(sample, i, GRAM_LENGTH));
+            }
+            for (String gram : seen) {
+                Integer count = gramCounts.get(gram);
+                gramCounts.put(gram, count == null ? 1 : count + 1);
+            }
+        }
+
+        //join overlapping common grams into segments, and count the segments the same way
+        final HashMap<String, Integer> segmentCounts = new HashMap<String, Integer>();
+        for (byte[] sample : samples) {
+            HashSet<String> seen = new HashSet<String>();
+            int start = -1;
+            int end = -1;
+            for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+                Integer count = gramCounts.get(latin1(sample, i, GRAM_LENGTH));
+                if (count != null && count >= minCount) {
+                    if (start < 0 || i > end) {
+                        if (start >= 0) {
+                            seen.add(latin1(sample, start, end - start));
+                        }
+                        start = i;
+                    }
+                    end = i + GRAM_LENGTH;
+                }
+            }
+            if (start >= 0) {
+                seen.add(latin1(sample, start, end - start));
+            }
+            for (String segment : seen) {
+                Integer count = segmentCounts.get(segment);
+                segmentCounts.put(segment, count == null ? 1 : count + 1);
+            }
+        }
+
+        ArrayList<String> segments = new ArrayList<String>(segmentCounts.keySet());
+        Collections.sort(segments, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                final long scoreA = (long) segmentCounts.get(a) * a.length();
+                final long scoreB = (long) segmentCounts.get(b) * b.length();
+                return scoreA < scoreB ? 1 : scoreA > scoreB ? -1 : a.compareTo(b);
+            }
+        });
+
+        ArrayList<String> chosen = new ArrayList<String>();
+        int size = 0;
+        for (String segment : segments) {
+            if (segmentCounts.get(segment) < minCount) {
+                continue;
+            }
+            if (size + segment.length() <= maxSize) {
+                chosen.add(segment);
+                size += segment.length();
+            }
+        }
+        if (chosen.isEmpty()) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            final String segment = chosen.get(i);
+            for (int j = 0; j < segment.length(); j++) {
+                out.write(segment.charAt(j));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String latin1(byte[] data, int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (data[offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+}
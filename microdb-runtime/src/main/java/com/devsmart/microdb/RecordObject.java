@@ -0,0 +1,106 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.ExtensibleUBObject;
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBReader;
+import com.devsmart.ubjson.UBValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The UBObject that MicroDB has an object without a binary codec write itself into, when the
+ * object is saved to its own database. Array fields that were stored out of line and have not
+ * been read are kept as references to their stored copy (see
+ * {@link DBObject#putArrayRef(UBObject, String)}), which {@link SchemaRegistry} writes back as
+ * they are.
+ *
+ * The references are not entries of the map. Looking one up with {@link #get(Object)} loads
+ * the array and puts it in the map, and putting or removing the field drops the reference.
+ */
+final class RecordObject extends ExtensibleUBObject {
+
+    /**
+     * field name -> id of the object that owns the stored array
+     */
+    private TreeMap<String, UUID> mArrayRefs;
+    private ArrayStore mArrays;
+
+    RecordObject() {
+    }
+
+    void putArrayRef(String key, UUID owner, ArrayStore arrays) {
+        if (mArrayRefs == null) {
+            mArrayRefs = new TreeMap<String, UUID>();
+        }
+        super.remove(key);
+        mArrayRefs.put(key, owner);
+        mArrays = arrays;
+    }
+
+    /**
+     * @return the array fields kept as references, or null if there are none
+     */
+    Map<String, UUID> getArrayRefs() {
+        return mArrayRefs != null && !mArrayRefs.isEmpty() ? mArrayRefs : null;
+    }
+
+    /**
+     * loads every array kept as a reference and puts it in the map, for writers that can't
+     * write references
+     */
+    void loadArrayRefs() {
+        if (mArrayRefs != null) {
+            for (String key : new ArrayList<String>(mArrayRefs.keySet())) {
+                get(key);
+            }
+        }
+    }
+
+    @Override
+    public UBValue get(Object key) {
+        final UUID owner = mArrayRefs != null ? mArrayRefs.remove(key) : null;
+        if (owner == null) {
+            return super.get(key);
+        }
+        final byte[] array = mArrays.get(owner, (String) key);
+        if (array == null) {
+            throw new IllegalStateException("missing out of line array " + key + " of " + owner);
+        }
+        try {
+            UBReader reader = new UBReader(new ByteArrayInputStream(array));
+            UBValue retval = reader.read();
+            reader.close();
+            super.put((String) key, retval);
+            return retval;
+        } catch (IOException e) {
+            throw new IllegalStateException("corrupt out of line array " + key + " of " + owner, e);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (mArrayRefs != null && mArrayRefs.containsKey(key)) || super.containsKey(key);
+    }
+
+    @Override
+    public UBValue put(String key, UBValue value) {
+        if (mArrayRefs != null) {
+            mArrayRefs.remove(key);
+        }
+        return super.put(key, value);
+    }
+
+    @Override
+    public UBValue remove(Object key) {
+        if (mArrayRefs != null) {
+            mArrayRefs.remove(key);
+        }
+        return super.remove(key);
+    }
+}
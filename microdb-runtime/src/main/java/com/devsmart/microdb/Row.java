@@ -12,4 +12,11 @@ public interface Row {
     <T extends Comparable<T>> T getSecondaryKey();
 
     UBValue getValue();
+
+    /**
+     * @return the field {@code name} of this row's object. Fields included in a covering index
+     * are read from the index entry; any other field loads the whole object with
+     * {@link #getValue()}.
+     */
+    UBValue getField(String name);
 }
@@ -0,0 +1,502 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBArray;
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.mapdb.Atomic;
+import org.mapdb.DataInput2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns compact ids to DBO types and to the fields of each type, so that stored records can
+ * refer to fields by number instead of repeating their names. Ids are only ever added, never
+ * reused, and the registry is saved next to the driver metadata.
+ *
+ * A schema encoded record looks like:
+ * <pre>
+ * type id, '{', (field id, value)*, '}'
+ * </pre>
+ * where ids are UBJSON integers and values are UBJSON, except that strings holding a UUID are
+ * stored as {@link UBScanner#MARKER_UUID} followed by the 16 bytes of the UUID. The "type"
+ * field is implied by the type id.
+ */
+final class SchemaRegistry {
+
+    static final String TYPE_FIELD = "type";
+
+    private static final String KEY_TYPES = "types";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_FIELDS = "fields";
+
+    static final class TypeSchema {
+        final SchemaRegistry registry;
+        final int id;
+        final String name;
+        final UBValue nameValue;
+
+        private volatile String[] mFields = new String[0];
+        private volatile byte[][] mFieldKeys = new byte[0][];
+        private final ConcurrentHashMap<String, Integer> mFieldIds = new ConcurrentHashMap<String, Integer>();
+
+        TypeSchema(SchemaRegistry registry, int id, String name) {
+            this.registry = registry;
+            this.id = id;
+            this.name = name;
+            this.nameValue = UBValueFactory.createString(name);
+        }
+
+        String getFieldName(int fieldId) {
+            final String[] fields = mFields;
+            return fieldId >= 0 && fieldId < fields.length ? fields[fieldId] : null;
+        }
+
+        int getFieldId(String field) {
+            Integer retval = mFieldIds.get(field);
+            if (retval == null) {
+                synchronized (registry) {
+                    retval = mFieldIds.get(field);
+                    if (retval == null) {
+                        retval = addField(field);
+                        registry.mChanged = true;
+                    }
+                }
+            }
+            return retval;
+        }
+
+        /**
+         * @return the id of the field whose UTF-8 encoded name is {@code data[start, start + length)},
+         * or -1 if no such field has been added yet. Objects of a type usually list their fields
+         * in the same order every time, so the search starts after {@code previous}, the id of the
+         * field before this one (or -1).
+         */
+        int findFieldId(byte[] data, int start, int length, int previous) {
+            final byte[][] keys = mFieldKeys;
+            final int count = keys.length;
+            for (int i = 1; i <= count; i++) {
+                int fieldId = previous + i;
+                if (fieldId >= count) {
+                    fieldId -= count;
+                }
+                if (matches(keys[fieldId], data, start, length)) {
+                    return fieldId;
+                }
+            }
+            return -1;
+        }
+
+        private int addField(String field) {
+            final int fieldId = mFields.length;
+            String[] fields = Arrays.copyOf(mFields, fieldId + 1);
+            fields[fieldId] = field;
+            byte[][] keys = Arrays.copyOf(mFieldKeys, fieldId + 1);
+            keys[fieldId] = utf8(field);
+            mFields = fields;
+            mFieldKeys = keys;
+            mFieldIds.put(field, fieldId);
+            return fieldId;
+        }
+    }
+
+    static final byte[] TYPE_FIELD_KEY = utf8(TYPE_FIELD);
+
+    private static byte[] utf8(String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static boolean matches(byte[] key, byte[] data, int start, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != data[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final ThreadLocal<ScratchBuffer> SCRATCH_VALUE = ScratchBuffer.newThreadLocal();
+
+    private final Atomic.Var<UBValue> mVar;
+    private final ConcurrentHashMap<String, TypeSchema> mTypesByName = new ConcurrentHashMap<String, TypeSchema>();
+    private volatile TypeSchema[] mTypes;
+    private volatile boolean mChanged;
+    private volatile RecordCompressor mCompressor;
+    private volatile ArrayStore mArrays;
+
+    SchemaRegistry(Atomic.Var<UBValue> var) {
+        mVar = var;
+        reload();
+    }
+
+    /**
+     * the compressor schema encoded records of this registry are written and read through
+     */
+    RecordCompressor getCompressor() {
+        return mCompressor;
+    }
+
+    void setCompressor(RecordCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * where large array fields of schema encoded records are kept
+     */
+    ArrayStore getArrayStore() {
+        return mArrays;
+    }
+
+    void setArrayStore(ArrayStore arrays) {
+        mArrays = arrays;
+    }
+
+    /**
+     * throws away ids that were never saved and reads the registry back from the database.
+     * Called after a rollback.
+     */
+    synchronized void reload() {
+        mTypesByName.clear();
+        ArrayList<TypeSchema> types = new ArrayList<TypeSchema>();
+
+        UBValue value = mVar.get();
+        if (value != null && value.isObject()) {
+            UBValue typesValue = value.asObject().get(KEY_TYPES);
+            if (typesValue != null && typesValue.isArray()) {
+                UBArray typesArray = typesValue.asArray();
+                for (int i = 0; i < typesArray.size(); i++) {
+                    UBObject typeObj = typesArray.get(i).asObject();
+                    TypeSchema type = new TypeSchema(this, i, typeObj.get(KEY_NAME).asString());
+                    UBArray fields = typeObj.get(KEY_FIELDS).asArray();
+                    for (int j = 0; j < fields.size(); j++) {
+                        type.addField(fields.get(j).asString());
+                    }
+                    types.add(type);
+                    mTypesByName.put(type.name, type);
+                }
+            }
+        }
+        mTypes = types.toArray(new TypeSchema[types.size()]);
+        mChanged = false;
+    }
+
+    /**
+     * writes new ids to the database. This must not be called from inside a MapDB operation
+     * (such as while a value is being serialized), so the driver calls it once its put is done.
+     */
+    void save() {
+        if (mChanged) {
+            synchronized (this) {
+                if (mChanged) {
+                    doSave();
+                }
+            }
+        }
+    }
+
+    private void doSave() {
+        final TypeSchema[] types = mTypes;
+        UBValue[] typesArray = new UBValue[types.length];
+        for (int i = 0; i < types.length; i++) {
+            UBObject typeObj = UBValueFactory.createObject();
+            typeObj.put(KEY_NAME, types[i].nameValue);
+            final String[] fields = types[i].mFields;
+            UBValue[] fieldsArray = new UBValue[fields.length];
+            for (int j = 0; j < fields.length; j++) {
+                fieldsArray[j] = UBValueFactory.createString(fields[j]);
+            }
+            typeObj.put(KEY_FIELDS, UBValueFactory.createArray(fieldsArray));
+            typesArray[i] = typeObj;
+        }
+        UBObject value = UBValueFactory.createObject();
+        value.put(KEY_TYPES, UBValueFactory.createArray(typesArray));
+        mVar.set(value);
+        mChanged = false;
+    }
+
+    TypeSchema getType(int id) {
+        final TypeSchema[] types = mTypes;
+        return id >= 0 && id < types.length ? types[id] : null;
+    }
+
+    /**
+     * @return every type registered so far, indexed by id. A new array is published whenever a
+     * type is added or the registry is reloaded, so callers may cache what they derive from it
+     * for as long as this returns the same array.
+     */
+    TypeSchema[] getTypes() {
+        return mTypes;
+    }
+
+    /**
+     * @return the type registered as {@code name}, or null if there is none yet. Unlike
+     * {@link #getType(String)} this never adds a type.
+     */
+    TypeSchema findType(String name) {
+        return mTypesByName.get(name);
+    }
+
+    TypeSchema getType(String name) {
+        TypeSchema retval = mTypesByName.get(name);
+        if (retval == null) {
+            synchronized (this) {
+                retval = mTypesByName.get(name);
+                if (retval == null) {
+                    final TypeSchema[] types = mTypes;
+                    retval = new TypeSchema(this, types.length, name);
+                    TypeSchema[] newTypes = Arrays.copyOf(types, types.length + 1);
+                    newTypes[retval.id] = retval;
+                    mTypes = newTypes;
+                    mTypesByName.put(name, retval);
+                    mChanged = true;
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * @return the type {@code value} would be stored as, or null if it is not an object with a
+     * string "type" field and so can not be schema encoded
+     */
+    TypeSchema getTypeOf(UBValue value) {
+        if (value == null || !value.isObject()) {
+            return null;
+        }
+        if (value instanceof LazyUBObject) {
+            return ((LazyUBObject) value).getType(this);
+        }
+        UBValue typeValue = value.asObject().get(TYPE_FIELD);
+        if (typeValue == null || !typeValue.isString()) {
+            return null;
+        }
+        return getType(typeValue.asString());
+    }
+
+    static boolean isUUID(UBValue value) {
+        if (!value.isString()) {
+            return false;
+        }
+        final String str = value.asString();
+        if (str.length() != 36 || str.charAt(8) != '-' || str.charAt(13) != '-'
+                || str.charAt(18) != '-' || str.charAt(23) != '-') {
+            return false;
+        }
+        try {
+            //only the canonical form, so the string reads back exactly as it was written
+            return UUID.fromString(str).toString().equals(str);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    static void writeInt(OutputStream out, int value) throws IOException {
+        if (value <= 0xFF) {
+            out.write(UBScanner.MARKER_UINT8);
+            out.write(value);
+        } else {
+            out.write(UBScanner.MARKER_INT32);
+            writeInt32(out, value);
+        }
+    }
+
+    static void writeInt32(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    static void writeLong(OutputStream out, long value) throws IOException {
+        writeInt32(out, (int) (value >>> 32));
+        writeInt32(out, (int) value);
+    }
+
+    /**
+     * writes the schema encoding of {@code obj}, which must be of type {@code type}
+     */
+    void write(OutputStream out, TypeSchema type, UBObject obj) throws IOException {
+        writeInt(out, type.id);
+        out.write(UBScanner.MARKER_OBJ_START);
+        for (Map.Entry<String, UBValue> field : obj.entrySet()) {
+            if (TYPE_FIELD.equals(field.getKey())) {
+                continue;
+            }
+            writeInt(out, type.getFieldId(field.getKey()));
+            UBValue value = field.getValue();
+            if (isUUID(value)) {
+                UUID uuid = UUID.fromString(value.asString());
+                out.write(UBScanner.MARKER_UUID);
+                writeLong(out, uuid.getMostSignificantBits());
+                writeLong(out, uuid.getLeastSignificantBits());
+            } else {
+                ScratchBuffer scratch = ScratchBuffer.get(SCRATCH_VALUE);
+                UBCodec.writeValue(scratch.out, value);
+                final byte[] data = scratch.out.buf;
+                final int length = scratch.out.pos;
+                if (!value.isArray() || mArrays == null || !mArrays.divert(out, field.getKey(), data, 0, length)) {
+                    out.write(data, 0, length);
+                }
+            }
+        }
+        final Map<String, UUID> arrayRefs = obj instanceof RecordObject ? ((RecordObject) obj).getArrayRefs() : null;
+        if (arrayRefs != null) {
+            //arrays that are still stored out of line and did not change
+            for (Map.Entry<String, UUID> ref : arrayRefs.entrySet()) {
+                writeInt(out, type.getFieldId(ref.getKey()));
+                out.write(UBScanner.MARKER_ARRAY_REF);
+                writeLong(out, ref.getValue().getMostSignificantBits());
+                writeLong(out, ref.getValue().getLeastSignificantBits());
+            }
+        }
+        out.write(UBScanner.MARKER_OBJ_END);
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * if the UBJSON value at {@code pos} is a string holding a UUID in canonical form, writes it
+     * as {@link UBScanner#MARKER_UUID} and the UUID's 16 bytes
+     *
+     * @return false if the value is not such a string, in which case nothing was written
+     */
+    private static boolean transcodeUUID(OutputStream out, byte[] data, int pos, int end) throws IOException {
+        if (end - pos != 39 || data[pos] != UBScanner.MARKER_STRING
+                || (data[pos + 1] != UBScanner.MARKER_INT8 && data[pos + 1] != UBScanner.MARKER_UINT8)
+                || data[pos + 2] != 36) {
+            return false;
+        }
+        final int start = pos + 3;
+        long msb = 0;
+        long lsb = 0;
+        int digits = 0;
+        for (int i = 0; i < 36; i++) {
+            final byte c = data[start + i];
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+                continue;
+            }
+            final int v = hexValue(c);
+            if (v < 0) {
+                return false;
+            }
+            if (digits++ < 16) {
+                msb = (msb << 4) | v;
+            } else {
+                lsb = (lsb << 4) | v;
+            }
+        }
+        out.write(UBScanner.MARKER_UUID);
+        writeLong(out, msb);
+        writeLong(out, lsb);
+        return true;
+    }
+
+    /**
+     * Writes the schema encoding of the plain UBJSON object at {@code offset} in {@code data},
+     * copying its values as they are instead of decoding them. Used for objects written by
+     * {@link DBObject#writeTo(java.io.DataOutput)}.
+     *
+     * @return false if the object has a strongly typed header and can't be copied this way, in
+     * which case nothing was written
+     */
+    boolean transcode(OutputStream out, TypeSchema type, byte[] data, int offset) throws IOException {
+        final UBScanner scanner = new UBScanner(ByteBuffer.wrap(data));
+        final long[] header = new long[3];
+        scanner.readContainerHeader(offset + 1, header);
+        if (header[0] >= 0) {
+            return false;
+        }
+
+        writeInt(out, type.id);
+        out.write(UBScanner.MARKER_OBJ_START);
+        final long count = header[1];
+        int pos = (int) header[2];
+        int fieldId = -1;
+        for (long i = 0; count < 0 || i < count; i++) {
+            if (count < 0) {
+                while (data[pos] == UBScanner.MARKER_NOOP) {
+                    pos++;
+                }
+                if (data[pos] == UBScanner.MARKER_OBJ_END) {
+                    break;
+                }
+            }
+            final int keyStart = pos;
+            final int lengthMarker = data[pos] & 0xFF;
+            final int keyLength = (int) scanner.readInt(lengthMarker, pos + 1);
+            final int keyPayload = scanner.skipPayload(lengthMarker, pos + 1);
+            final int valueStart = keyPayload + keyLength;
+            pos = scanner.skipValue(valueStart);
+            if (matches(TYPE_FIELD_KEY, data, keyPayload, keyLength)) {
+                continue;
+            }
+            //keys are matched as bytes, the name is only decoded for a field seen for the first time
+            fieldId = type.findFieldId(data, keyPayload, keyLength, fieldId);
+            if (fieldId < 0) {
+                fieldId = type.getFieldId(scanner.readString(keyStart));
+            }
+            writeInt(out, fieldId);
+            if (!transcodeUUID(out, data, valueStart, pos)
+                    && (mArrays == null || !mArrays.divert(out, type.getFieldName(fieldId), data, valueStart, pos))) {
+                out.write(data, valueStart, pos - valueStart);
+            }
+        }
+        out.write(UBScanner.MARKER_OBJ_END);
+        return true;
+    }
+
+    /**
+     * reads a schema encoded record. {@code marker} is the record's first byte, which has
+     * already been read from {@code in}.
+     */
+    LazyUBObject read(int marker, DataInput2 in) throws IOException {
+        final UBScanner scanner = new UBScanner(in.buf);
+        final int start = in.pos;
+
+        final int idMarker = in.buf.get(start) & 0xFF;
+        final int typeId = (int) scanner.readInt(idMarker, start + 1);
+        final TypeSchema type = getType(typeId);
+        if (type == null) {
+            throw new IOException("unknown type id: " + typeId);
+        }
+
+        final int objStart = scanner.skipPayload(idMarker, start + 1);
+        int pos = objStart + 1;
+        int m;
+        while ((m = in.buf.get(pos) & 0xFF) != UBScanner.MARKER_OBJ_END) {
+            pos = scanner.skipValue(scanner.skipPayload(m, pos + 1));
+        }
+        final int end = pos + 1;
+
+        byte[] data = new byte[end - start + 1];
+        data[0] = (byte) marker;
+        in.readFully(data, 1, end - start);
+        return new LazyUBObject(data, objStart - start + 1, end - objStart, type);
+    }
+}
@@ -0,0 +1,43 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBWriter;
+import org.mapdb.DataOutput2;
+
+/**
+ * A growable output buffer, and a UBWriter that writes into it, kept per thread so that values
+ * can be encoded without allocating a new buffer and writer every time. A buffer that grew past
+ * {@link #MAX_RETAINED_SIZE} for an unusually large value is dropped instead of being kept.
+ *
+ * Each use site has its own ThreadLocal, so a value encoded into one buffer can be copied into
+ * another without the two overlapping.
+ */
+final class ScratchBuffer {
+
+    static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    final DataOutput2 out = new DataOutput2();
+    final UBWriter writer = new UBWriter(out);
+
+    static ThreadLocal<ScratchBuffer> newThreadLocal() {
+        return new ThreadLocal<ScratchBuffer>() {
+            @Override
+            protected ScratchBuffer initialValue() {
+                return new ScratchBuffer();
+            }
+        };
+    }
+
+    /**
+     * @return this thread's buffer of {@code local}, emptied
+     */
+    static ScratchBuffer get(ThreadLocal<ScratchBuffer> local) {
+        ScratchBuffer retval = local.get();
+        if (retval.out.buf.length > MAX_RETAINED_SIZE) {
+            retval = new ScratchBuffer();
+            local.set(retval);
+        }
+        retval.out.pos = 0;
+        return retval;
+    }
+}
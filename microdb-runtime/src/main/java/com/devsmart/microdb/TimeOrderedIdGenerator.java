@@ -0,0 +1,83 @@
+package com.devsmart.microdb;
+
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Time ordered UUIDs laid out like UUID version 7: the top 48 bits are the Unix time in
+ * milliseconds, followed by the version, a 12 bit counter, the variant and 62 random bits.
+ * Keys of new objects are greater than those of older ones, so inserts append near the right
+ * edge of the objects tree instead of touching a random leaf each, which keeps the pages being
+ * written in the cache once the database no longer fits in memory.
+ *
+ * Each thread keeps its own clock and counter, so no coordination between threads is needed.
+ * Ids from one thread are strictly increasing, even if the system clock goes back; ids from
+ * different threads created in the same millisecond are ordered by their counters and random
+ * bits. The random bits make collisions between threads practically impossible.
+ */
+public class TimeOrderedIdGenerator implements IdGenerator {
+
+    private static final int COUNTER_BITS = 12;
+    private static final int COUNTER_MAX = (1 << COUNTER_BITS) - 1;
+    private static final long VERSION = 0x7L << COUNTER_BITS;
+    private static final long VARIANT = 0x8000000000000000L;
+    private static final long RANDOM_MASK = 0x3FFFFFFFFFFFFFFFL;
+
+    /**
+     * seeds the random generator of each thread, so threads and processes that start at the
+     * same time still draw different random bits
+     */
+    private static final SecureRandom SEEDS = new SecureRandom();
+
+    private static final class State {
+        final Random random = new Random(SEEDS.nextLong());
+        long millis = Long.MIN_VALUE;
+        int counter;
+    }
+
+    private final ThreadLocal<State> mState = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * @return the current time in milliseconds since the Unix epoch
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public UUID generateId() {
+        final State state = mState.get();
+        final Random random = state.random;
+        final long now = currentTimeMillis();
+        if (now > state.millis) {
+            state.millis = now;
+            //start low in the counter's range, leaving room to count up in this millisecond
+            state.counter = random.nextInt(COUNTER_MAX / 2 + 1);
+        } else if (state.counter < COUNTER_MAX) {
+            state.counter++;
+        } else {
+            //counter used up: borrow from the next millisecond
+            state.millis++;
+            state.counter = 0;
+        }
+
+        final long msb = (state.millis << 16) | VERSION | state.counter;
+        final long lsb = VARIANT | (random.nextLong() & RANDOM_MASK);
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * @return the creation time in milliseconds encoded in {@code id}, which must have come
+     * from a {@code TimeOrderedIdGenerator}
+     */
+    public static long getTimestamp(UUID id) {
+        return id.getMostSignificantBits() >>> 16;
+    }
+}
@@ -0,0 +1,78 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBValue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * A set of DBO type names, such as a class and all of its subclasses. Generated code uses it to
+ * check whether a stored object is of one of those types.
+ *
+ * Every type is registered in the database under a compact integer id. Objects read from the
+ * database, and new objects once they have been written, already know their type id, so for
+ * them the check is an array lookup by id. The ids are resolved again whenever the database
+ * registers a new type. Other objects are checked by the name in their "type" field.
+ */
+public final class TypeSet {
+
+    private static final class Resolved {
+        final SchemaRegistry.TypeSchema[] types;
+        final boolean[] members;
+
+        Resolved(SchemaRegistry.TypeSchema[] types, boolean[] members) {
+            this.types = types;
+            this.members = members;
+        }
+    }
+
+    private final String[] mNames;
+    private final HashSet<String> mNameSet;
+    private volatile Resolved mResolved;
+
+    public TypeSet(String... names) {
+        mNames = names.clone();
+        mNameSet = new HashSet<String>(Arrays.asList(names));
+    }
+
+    public boolean contains(UBValue value) {
+        if (value instanceof LazyUBObject) {
+            final LazyUBObject obj = (LazyUBObject) value;
+            final SchemaRegistry.TypeSchema type = obj.getKnownType();
+            if (type != null) {
+                return contains(type);
+            }
+            final String name = obj.getTypeName();
+            return name != null && mNameSet.contains(name);
+        }
+        if (value != null && value.isObject()) {
+            UBValue typeValue = value.asObject().get(SchemaRegistry.TYPE_FIELD);
+            return typeValue != null && typeValue.isString() && mNameSet.contains(typeValue.asString());
+        }
+        return false;
+    }
+
+    boolean contains(SchemaRegistry.TypeSchema type) {
+        final SchemaRegistry registry = type.registry;
+        final SchemaRegistry.TypeSchema[] types = registry.getTypes();
+        Resolved resolved = mResolved;
+        if (resolved == null || resolved.types != types) {
+            resolved = resolve(registry, types);
+            mResolved = resolved;
+        }
+        final int id = type.id;
+        return id < resolved.members.length && resolved.members[id];
+    }
+
+    private Resolved resolve(SchemaRegistry registry, SchemaRegistry.TypeSchema[] types) {
+        boolean[] members = new boolean[types.length];
+        for (String name : mNames) {
+            SchemaRegistry.TypeSchema type = registry.findType(name);
+            if (type != null && type.id < members.length) {
+                members[type.id] = true;
+            }
+        }
+        return new Resolved(types, members);
+    }
+}
@@ -0,0 +1,771 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBReader;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * Reads and writes UBJSON directly from and to a DataInput/DataOutput. This is used by the
+ * {@link DBObject#writeTo(DataOutput)} and {@link DBObject#readFrom(DataInput)} methods that
+ * the DBO compiler generates. Primitive values and arrays of primitives are written without
+ * creating any UBValue objects.
+ *
+ * The {@code read} methods read one whole value. If the value does not have the expected type
+ * it is skipped and {@code defaultValue} is returned, which mirrors the checks that the
+ * generated {@code readFromUBObject} methods make.
+ */
+public final class UBCodec {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private UBCodec() {
+    }
+
+    //////////////// writing ////////////////
+
+    public static void writeObjectStart(DataOutput out) throws IOException {
+        out.write(UBScanner.MARKER_OBJ_START);
+    }
+
+    public static void writeObjectEnd(DataOutput out) throws IOException {
+        out.write(UBScanner.MARKER_OBJ_END);
+    }
+
+    private static boolean isAscii(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeStringPayload(DataOutput out, String str) throws IOException {
+        if (isAscii(str)) {
+            final int length = str.length();
+            writeIntValue(out, length);
+            for (int i = 0; i < length; i++) {
+                out.write(str.charAt(i));
+            }
+        } else {
+            byte[] data = str.getBytes("UTF-8");
+            writeIntValue(out, data.length);
+            out.write(data);
+        }
+    }
+
+    public static void writeKey(DataOutput out, String key) throws IOException {
+        writeStringPayload(out, key);
+    }
+
+    public static void writeNull(DataOutput out) throws IOException {
+        out.write(UBScanner.MARKER_NULL);
+    }
+
+    public static void writeBool(DataOutput out, boolean value) throws IOException {
+        out.write(value ? UBScanner.MARKER_TRUE : UBScanner.MARKER_FALSE);
+    }
+
+    private static void writeIntValue(DataOutput out, long value) throws IOException {
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            out.write(UBScanner.MARKER_INT8);
+            out.writeByte((int) value);
+        } else if (value >= 0 && value <= 0xFF) {
+            out.write(UBScanner.MARKER_UINT8);
+            out.writeByte((int) value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            out.write(UBScanner.MARKER_INT16);
+            out.writeShort((int) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            out.write(UBScanner.MARKER_INT32);
+            out.writeInt((int) value);
+        } else {
+            out.write(UBScanner.MARKER_INT64);
+            out.writeLong(value);
+        }
+    }
+
+    public static void writeInt(DataOutput out, long value) throws IOException {
+        writeIntValue(out, value);
+    }
+
+    public static void writeFloat32(DataOutput out, float value) throws IOException {
+        out.write(UBScanner.MARKER_FLOAT32);
+        out.writeFloat(value);
+    }
+
+    public static void writeFloat64(DataOutput out, double value) throws IOException {
+        out.write(UBScanner.MARKER_FLOAT64);
+        out.writeDouble(value);
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+        } else {
+            out.write(UBScanner.MARKER_STRING);
+            writeStringPayload(out, value);
+        }
+    }
+
+    private static void writeHex(DataOutput out, long value, int digits) throws IOException {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            out.write(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    /**
+     * writes {@code value} as a string, in the same form as {@code UUID.toString()}
+     */
+    public static void writeUUID(DataOutput out, UUID value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        final long msb = value.getMostSignificantBits();
+        final long lsb = value.getLeastSignificantBits();
+        out.write(UBScanner.MARKER_STRING);
+        writeIntValue(out, 36);
+        writeHex(out, msb >>> 32, 8);
+        out.write('-');
+        writeHex(out, msb >>> 16, 4);
+        out.write('-');
+        writeHex(out, msb, 4);
+        out.write('-');
+        writeHex(out, lsb >>> 48, 4);
+        out.write('-');
+        writeHex(out, lsb, 12);
+    }
+
+    private static void writeArrayHeader(DataOutput out, int type, int length) throws IOException {
+        out.write(UBScanner.MARKER_ARRAY_START);
+        out.write(UBScanner.MARKER_OPTIMIZED_TYPE);
+        out.write(type);
+        out.write(UBScanner.MARKER_OPTIMIZED_SIZE);
+        writeIntValue(out, length);
+    }
+
+    /**
+     * Arrays shorter than this are written one element at a time even to a DataOutput2, which
+     * is cheaper than creating the buffer views for a handful of elements.
+     */
+    private static final int MIN_BULK_LENGTH = 32;
+
+    private static boolean isBulk(DataOutput out, int length) {
+        return length >= MIN_BULK_LENGTH && out instanceof DataOutput2;
+    }
+
+    /**
+     * makes room for {@code length} bytes at the end of {@code out}
+     *
+     * @return a big-endian view of the new bytes, to be filled by the caller
+     */
+    private static ByteBuffer reserve(DataOutput2 out, int length) {
+        out.ensureAvail(length);
+        ByteBuffer retval = ByteBuffer.wrap(out.buf, out.pos, length);
+        out.pos += length;
+        return retval;
+    }
+
+    public static void writeArray(DataOutput out, boolean[] value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        out.write(UBScanner.MARKER_ARRAY_START);
+        for (boolean b : value) {
+            writeBool(out, b);
+        }
+        out.write(UBScanner.MARKER_ARRAY_END);
+    }
+
+    public static void writeArray(DataOutput out, byte[] value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        writeArrayHeader(out, UBScanner.MARKER_INT8, value.length);
+        out.write(value);
+    }
+
+    public static void writeArray(DataOutput out, short[] value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        writeArrayHeader(out, UBScanner.MARKER_INT16, value.length);
+        if (isBulk(out, value.length)) {
+            reserve((DataOutput2) out, value.length * 2).asShortBuffer().put(value);
+        } else {
+            for (short v : value) {
+                out.writeShort(v);
+            }
+        }
+    }
+
+    public static void writeArray(DataOutput out, int[] value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        writeArrayHeader(out, UBScanner.MARKER_INT32, value.length);
+        if (isBulk(out, value.length)) {
+            reserve((DataOutput2) out, value.length * 4).asIntBuffer().put(value);
+        } else {
+            for (int v : value) {
+                out.writeInt(v);
+            }
+        }
+    }
+
+    public static void writeArray(DataOutput out, long[] value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        writeArrayHeader(out, UBScanner.MARKER_INT64, value.length);
+        if (isBulk(out, value.length)) {
+            reserve((DataOutput2) out, value.length * 8).asLongBuffer().put(value);
+        } else {
+            for (long v : value) {
+                out.writeLong(v);
+            }
+        }
+    }
+
+    public static void writeArray(DataOutput out, float[] value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        writeArrayHeader(out, UBScanner.MARKER_FLOAT32, value.length);
+        if (isBulk(out, value.length)) {
+            reserve((DataOutput2) out, value.length * 4).asFloatBuffer().put(value);
+        } else {
+            for (float v : value) {
+                out.writeFloat(v);
+            }
+        }
+    }
+
+    public static void writeArray(DataOutput out, double[] value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        writeArrayHeader(out, UBScanner.MARKER_FLOAT64, value.length);
+        if (isBulk(out, value.length)) {
+            reserve((DataOutput2) out, value.length * 8).asDoubleBuffer().put(value);
+        } else {
+            for (double v : value) {
+                out.writeDouble(v);
+            }
+        }
+    }
+
+    public static void writeArray(DataOutput out, String[] value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        out.write(UBScanner.MARKER_ARRAY_START);
+        for (String v : value) {
+            writeString(out, v);
+        }
+        out.write(UBScanner.MARKER_ARRAY_END);
+    }
+
+    private static final ThreadLocal<ScratchBuffer> SCRATCH_VALUE = ScratchBuffer.newThreadLocal();
+
+    /**
+     * writes any other value, such as an embedded object or a reference to another DBObject
+     */
+    public static void writeValue(DataOutput out, UBValue value) throws IOException {
+        if (value == null || value.isNull()) {
+            writeNull(out);
+        } else if (value.isString()) {
+            writeString(out, value.asString());
+        } else if (value.isInteger()) {
+            writeInt(out, value.asLong());
+        } else if (value.isBool()) {
+            writeBool(out, value.asBool());
+        } else {
+            writeWithUBWriter(out, value);
+        }
+    }
+
+    private static void writeWithUBWriter(DataOutput out, UBValue value) throws IOException {
+        ScratchBuffer scratch = ScratchBuffer.get(SCRATCH_VALUE);
+        scratch.writer.write(value);
+        scratch.writer.close();
+        out.write(scratch.out.buf, 0, scratch.out.pos);
+    }
+
+    //////////////// reading ////////////////
+
+    static long readIntPayload(int marker, DataInput in) throws IOException {
+        switch (marker) {
+            case UBScanner.MARKER_INT8:
+                return in.readByte();
+            case UBScanner.MARKER_UINT8:
+                return in.readUnsignedByte();
+            case UBScanner.MARKER_INT16:
+                return in.readShort();
+            case UBScanner.MARKER_INT32:
+                return in.readInt();
+            case UBScanner.MARKER_INT64:
+                return in.readLong();
+            default:
+                throw new IOException("expected an integer marker: " + marker);
+        }
+    }
+
+    private static int intPayloadLength(int marker) {
+        switch (marker) {
+            case UBScanner.MARKER_INT16:
+                return 2;
+            case UBScanner.MARKER_INT32:
+                return 4;
+            case UBScanner.MARKER_INT64:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    private static boolean isInteger(int marker) {
+        return marker == UBScanner.MARKER_INT8 || marker == UBScanner.MARKER_UINT8
+                || marker == UBScanner.MARKER_INT16 || marker == UBScanner.MARKER_INT32
+                || marker == UBScanner.MARKER_INT64;
+    }
+
+    static int readMarker(DataInput in) throws IOException {
+        int marker;
+        do {
+            marker = in.readUnsignedByte();
+        } while (marker == UBScanner.MARKER_NOOP);
+        return marker;
+    }
+
+    static String readStringPayload(int lengthMarker, DataInput in) throws IOException {
+        final int length = (int) readIntPayload(lengthMarker, in);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, "UTF-8");
+    }
+
+    private static UUID readUUIDPayload(DataInput in) throws IOException {
+        final long msb = in.readLong();
+        final long lsb = in.readLong();
+        return new UUID(msb, lsb);
+    }
+
+    public static boolean readBool(DataInput in, boolean defaultValue) throws IOException {
+        final int marker = readMarker(in);
+        if (marker == UBScanner.MARKER_TRUE) {
+            return true;
+        } else if (marker == UBScanner.MARKER_FALSE) {
+            return false;
+        }
+        skipPayload(marker, in);
+        return defaultValue;
+    }
+
+    /**
+     * reads any number, converting it to a long
+     */
+    public static long readLong(DataInput in, long defaultValue) throws IOException {
+        final int marker = readMarker(in);
+        if (isInteger(marker)) {
+            return readIntPayload(marker, in);
+        } else if (marker == UBScanner.MARKER_FLOAT32) {
+            return (long) in.readFloat();
+        } else if (marker == UBScanner.MARKER_FLOAT64) {
+            return (long) in.readDouble();
+        }
+        skipPayload(marker, in);
+        return defaultValue;
+    }
+
+    /**
+     * reads any number, converting it to a double
+     */
+    public static double readDouble(DataInput in, double defaultValue) throws IOException {
+        final int marker = readMarker(in);
+        if (isInteger(marker)) {
+            return readIntPayload(marker, in);
+        } else if (marker == UBScanner.MARKER_FLOAT32) {
+            return in.readFloat();
+        } else if (marker == UBScanner.MARKER_FLOAT64) {
+            return in.readDouble();
+        }
+        skipPayload(marker, in);
+        return defaultValue;
+    }
+
+    /**
+     * reads a char, which may also have been stored as an integer
+     */
+    public static char readChar(DataInput in, char defaultValue) throws IOException {
+        final int marker = readMarker(in);
+        if (marker == UBScanner.MARKER_CHAR) {
+            return (char) in.readUnsignedByte();
+        } else if (isInteger(marker)) {
+            return (char) readIntPayload(marker, in);
+        }
+        skipPayload(marker, in);
+        return defaultValue;
+    }
+
+    /**
+     * @return the string, or null if the value is not a string
+     */
+    public static String readString(DataInput in) throws IOException {
+        final int marker = readMarker(in);
+        if (marker == UBScanner.MARKER_STRING) {
+            return readStringPayload(readMarker(in), in);
+        } else if (marker == UBScanner.MARKER_UUID) {
+            return readUUIDPayload(in).toString();
+        }
+        skipPayload(marker, in);
+        return null;
+    }
+
+    /**
+     * reads a UUID stored as a string or in binary form
+     */
+    public static UUID readUUID(DataInput in, UUID defaultValue) throws IOException {
+        final int marker = readMarker(in);
+        if (marker == UBScanner.MARKER_UUID) {
+            return readUUIDPayload(in);
+        } else if (marker == UBScanner.MARKER_STRING) {
+            return UUID.fromString(readStringPayload(readMarker(in), in));
+        }
+        skipPayload(marker, in);
+        return defaultValue;
+    }
+
+    /**
+     * Feeds bytes that were already consumed from a DataInput back to UBReader ahead of the
+     * rest of the value.
+     */
+    private static final class ReplayInputStream extends InputStream {
+        private final byte[] mPrefix;
+        private final int mPrefixLength;
+        private final DataInput mIn;
+        private int mPos;
+
+        ReplayInputStream(byte[] prefix, int prefixLength, DataInput in) {
+            mPrefix = prefix;
+            mPrefixLength = prefixLength;
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPos < mPrefixLength) {
+                return mPrefix[mPos++] & 0xFF;
+            }
+            return mIn.readUnsignedByte();
+        }
+    }
+
+    /**
+     * Reads the header of an array: '[' followed by the optional '$' element type and '#'
+     * count. {@code header} receives {type, count}, each -1 when absent. The bytes read are
+     * kept in {@code consumed} so the array can still be handed to UBReader.
+     *
+     * @return the number of bytes consumed, or -1 if the value is not an array (in which case
+     * it has been skipped)
+     */
+    private static int readArrayHeader(DataInput in, int[] header, byte[] consumed) throws IOException {
+        final int marker = readMarker(in);
+        if (marker != UBScanner.MARKER_ARRAY_START) {
+            skipPayload(marker, in);
+            return -1;
+        }
+        int length = 0;
+        consumed[length++] = (byte) marker;
+        header[0] = -1;
+        header[1] = -1;
+        int m = in.readUnsignedByte();
+        consumed[length++] = (byte) m;
+        if (m == UBScanner.MARKER_OPTIMIZED_TYPE) {
+            header[0] = in.readUnsignedByte();
+            consumed[length++] = (byte) header[0];
+            m = in.readUnsignedByte();
+            consumed[length++] = (byte) m;
+        }
+        if (m == UBScanner.MARKER_OPTIMIZED_SIZE) {
+            final int countMarker = in.readUnsignedByte();
+            consumed[length++] = (byte) countMarker;
+            final long count = readIntPayload(countMarker, in);
+            header[1] = (int) count;
+            for (int shift = (intPayloadLength(countMarker) - 1) * 8; shift >= 0; shift -= 8) {
+                consumed[length++] = (byte) (count >>> shift);
+            }
+        }
+        return length;
+    }
+
+    private static UBValue readArrayValue(DataInput in, byte[] consumed, int length) throws IOException {
+        return new UBReader(new ReplayInputStream(consumed, length, in)).read();
+    }
+
+    /**
+     * consumes the next {@code length} bytes of {@code in}
+     *
+     * @return a big-endian buffer positioned at the first of these bytes. For a DataInput2 this
+     * is a view of its buffer, so the bytes are not copied.
+     */
+    private static ByteBuffer take(DataInput in, int length) throws IOException {
+        if (in instanceof DataInput2) {
+            DataInput2 in2 = (DataInput2) in;
+            ByteBuffer retval = in2.buf.duplicate();
+            retval.order(ByteOrder.BIG_ENDIAN);
+            retval.position(in2.pos);
+            in2.pos += length;
+            return retval;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return ByteBuffer.wrap(data);
+    }
+
+    private static boolean isTyped(int[] header, int type) {
+        return header[0] == type && header[1] >= 0;
+    }
+
+    public static boolean[] readBoolArray(DataInput in, boolean[] defaultValue) throws IOException {
+        final int[] header = new int[2];
+        final byte[] consumed = new byte[16];
+        final int length = readArrayHeader(in, header, consumed);
+        if (length < 0) {
+            return defaultValue;
+        }
+        return readArrayValue(in, consumed, length).asBoolArray();
+    }
+
+    public static byte[] readByteArray(DataInput in, byte[] defaultValue) throws IOException {
+        final int[] header = new int[2];
+        final byte[] consumed = new byte[16];
+        final int length = readArrayHeader(in, header, consumed);
+        if (length < 0) {
+            return defaultValue;
+        }
+        if (isTyped(header, UBScanner.MARKER_INT8) || isTyped(header, UBScanner.MARKER_UINT8)) {
+            byte[] retval = new byte[header[1]];
+            in.readFully(retval);
+            return retval;
+        }
+        return readArrayValue(in, consumed, length).asByteArray();
+    }
+
+    public static short[] readShortArray(DataInput in, short[] defaultValue) throws IOException {
+        final int[] header = new int[2];
+        final byte[] consumed = new byte[16];
+        final int length = readArrayHeader(in, header, consumed);
+        if (length < 0) {
+            return defaultValue;
+        }
+        if (isTyped(header, UBScanner.MARKER_INT16)) {
+            short[] retval = new short[header[1]];
+            take(in, retval.length * 2).asShortBuffer().get(retval);
+            return retval;
+        }
+        return readArrayValue(in, consumed, length).asShortArray();
+    }
+
+    public static int[] readInt32Array(DataInput in, int[] defaultValue) throws IOException {
+        final int[] header = new int[2];
+        final byte[] consumed = new byte[16];
+        final int length = readArrayHeader(in, header, consumed);
+        if (length < 0) {
+            return defaultValue;
+        }
+        if (isTyped(header, UBScanner.MARKER_INT32)) {
+            int[] retval = new int[header[1]];
+            take(in, retval.length * 4).asIntBuffer().get(retval);
+            return retval;
+        }
+        return readArrayValue(in, consumed, length).asInt32Array();
+    }
+
+    public static long[] readInt64Array(DataInput in, long[] defaultValue) throws IOException {
+        final int[] header = new int[2];
+        final byte[] consumed = new byte[16];
+        final int length = readArrayHeader(in, header, consumed);
+        if (length < 0) {
+            return defaultValue;
+        }
+        if (isTyped(header, UBScanner.MARKER_INT64)) {
+            long[] retval = new long[header[1]];
+            take(in, retval.length * 8).asLongBuffer().get(retval);
+            return retval;
+        }
+        return readArrayValue(in, consumed, length).asInt64Array();
+    }
+
+    public static float[] readFloat32Array(DataInput in, float[] defaultValue) throws IOException {
+        final int[] header = new int[2];
+        final byte[] consumed = new byte[16];
+        final int length = readArrayHeader(in, header, consumed);
+        if (length < 0) {
+            return defaultValue;
+        }
+        if (isTyped(header, UBScanner.MARKER_FLOAT32)) {
+            float[] retval = new float[header[1]];
+            take(in, retval.length * 4).asFloatBuffer().get(retval);
+            return retval;
+        }
+        return readArrayValue(in, consumed, length).asFloat32Array();
+    }
+
+    public static double[] readFloat64Array(DataInput in, double[] defaultValue) throws IOException {
+        final int[] header = new int[2];
+        final byte[] consumed = new byte[16];
+        final int length = readArrayHeader(in, header, consumed);
+        if (length < 0) {
+            return defaultValue;
+        }
+        if (isTyped(header, UBScanner.MARKER_FLOAT64)) {
+            double[] retval = new double[header[1]];
+            take(in, retval.length * 8).asDoubleBuffer().get(retval);
+            return retval;
+        }
+        return readArrayValue(in, consumed, length).asFloat64Array();
+    }
+
+    public static String[] readStringArray(DataInput in, String[] defaultValue) throws IOException {
+        final int[] header = new int[2];
+        final byte[] consumed = new byte[16];
+        final int length = readArrayHeader(in, header, consumed);
+        if (length < 0) {
+            return defaultValue;
+        }
+        return readArrayValue(in, consumed, length).asStringArray();
+    }
+
+    private static UBValue readValue(int marker, DataInput in) throws IOException {
+        if (marker == UBScanner.MARKER_UUID) {
+            return UBValueFactory.createString(readUUIDPayload(in).toString());
+        }
+        return new UBReader(new ReplayInputStream(new byte[]{(byte) marker}, 1, in)).read();
+    }
+
+    /**
+     * reads any value, such as an embedded object or a reference to another DBObject
+     */
+    public static UBValue readValue(DataInput in) throws IOException {
+        return readValue(readMarker(in), in);
+    }
+
+    //////////////// skipping ////////////////
+
+    public static void skipValue(DataInput in) throws IOException {
+        skipPayload(readMarker(in), in);
+    }
+
+    static void skipPayload(int marker, DataInput in) throws IOException {
+        switch (marker) {
+            case UBScanner.MARKER_NULL:
+            case UBScanner.MARKER_NOOP:
+            case UBScanner.MARKER_TRUE:
+            case UBScanner.MARKER_FALSE:
+                return;
+
+            case UBScanner.MARKER_CHAR:
+            case UBScanner.MARKER_INT8:
+            case UBScanner.MARKER_UINT8:
+                in.skipBytes(1);
+                return;
+
+            case UBScanner.MARKER_INT16:
+                in.skipBytes(2);
+                return;
+
+            case UBScanner.MARKER_INT32:
+            case UBScanner.MARKER_FLOAT32:
+                in.skipBytes(4);
+                return;
+
+            case UBScanner.MARKER_INT64:
+            case UBScanner.MARKER_FLOAT64:
+                in.skipBytes(8);
+                return;
+
+            case UBScanner.MARKER_UUID:
+            case UBScanner.MARKER_ARRAY_REF:
+                in.skipBytes(16);
+                return;
+
+            case UBScanner.MARKER_STRING:
+            case UBScanner.MARKER_HIGH_PRECISION:
+                in.skipBytes((int) readIntPayload(in.readUnsignedByte(), in));
+                return;
+
+            case UBScanner.MARKER_ARRAY_START:
+                skipContainer(in, false);
+                return;
+
+            case UBScanner.MARKER_OBJ_START:
+                skipContainer(in, true);
+                return;
+
+            default:
+                throw new IOException("unknown UBJSON marker: " + marker);
+        }
+    }
+
+    private static void skipKey(int lengthMarker, DataInput in) throws IOException {
+        in.skipBytes((int) readIntPayload(lengthMarker, in));
+    }
+
+    private static void skipContainer(DataInput in, boolean isObject) throws IOException {
+        int m = in.readUnsignedByte();
+        int type = -1;
+        if (m == UBScanner.MARKER_OPTIMIZED_TYPE) {
+            type = in.readUnsignedByte();
+            m = in.readUnsignedByte();
+        }
+        if (m == UBScanner.MARKER_OPTIMIZED_SIZE) {
+            final long count = readIntPayload(in.readUnsignedByte(), in);
+            final int size = type >= 0 && !isObject ? UBScanner.fixedSize(type) : -1;
+            if (size >= 0) {
+                in.skipBytes((int) count * size);
+                return;
+            }
+            for (long i = 0; i < count; i++) {
+                if (isObject) {
+                    skipKey(in.readUnsignedByte(), in);
+                }
+                skipPayload(type >= 0 ? type : readMarker(in), in);
+            }
+            return;
+        }
+
+        final int end = isObject ? UBScanner.MARKER_OBJ_END : UBScanner.MARKER_ARRAY_END;
+        while (m != end) {
+            if (m != UBScanner.MARKER_NOOP) {
+                if (isObject) {
+                    skipKey(m, in);
+                    skipPayload(readMarker(in), in);
+                } else {
+                    skipPayload(m, in);
+                }
+            }
+            m = in.readUnsignedByte();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.devsmart.microdb;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Walks UBJSON encoded data without decoding it. Used to find where a value ends and where the
+ * fields of an object start, so only the values that are actually read need to be decoded.
+ * All positions are absolute indexes into the buffer.
+ */
+final class UBScanner {
+
+    static final int MARKER_NULL = 'Z';
+    static final int MARKER_NOOP = 'N';
+    static final int MARKER_TRUE = 'T';
+    static final int MARKER_FALSE = 'F';
+    static final int MARKER_CHAR = 'C';
+    static final int MARKER_INT8 = 'i';
+    static final int MARKER_UINT8 = 'U';
+    static final int MARKER_INT16 = 'I';
+    static final int MARKER_INT32 = 'l';
+    static final int MARKER_INT64 = 'L';
+    static final int MARKER_FLOAT32 = 'd';
+    static final int MARKER_FLOAT64 = 'D';
+    static final int MARKER_HIGH_PRECISION = 'H';
+    static final int MARKER_STRING = 'S';
+    static final int MARKER_ARRAY_START = '[';
+    static final int MARKER_ARRAY_END = ']';
+    static final int MARKER_OBJ_START = '{';
+    static final int MARKER_OBJ_END = '}';
+    static final int MARKER_OPTIMIZED_TYPE = '$';
+    static final int MARKER_OPTIMIZED_SIZE = '#';
+
+    /**
+     * not part of UBJSON: a UUID stored as 16 bytes. Only used for field values of schema
+     * encoded records, see {@link SchemaRegistry}.
+     */
+    static final int MARKER_UUID = 'u';
+
+    /**
+     * not part of UBJSON: an array field stored out of line, followed by the 16 byte id of the
+     * object that owns it. See {@link ArrayStore}.
+     */
+    static final int MARKER_ARRAY_REF = 'R';
+
+    /**
+     * @return the payload size of values of type {@code marker} if it is fixed, otherwise -1
+     */
+    static int fixedSize(int marker) {
+        switch (marker) {
+            case MARKER_NULL:
+            case MARKER_NOOP:
+            case MARKER_TRUE:
+            case MARKER_FALSE:
+                return 0;
+            case MARKER_CHAR:
+            case MARKER_INT8:
+            case MARKER_UINT8:
+                return 1;
+            case MARKER_INT16:
+                return 2;
+            case MARKER_INT32:
+            case MARKER_FLOAT32:
+                return 4;
+            case MARKER_INT64:
+            case MARKER_FLOAT64:
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
+    private final ByteBuffer mBuf;
+
+    /**
+     * scratch for {@link #skipContainer}, which copies what it needs out of it before skipping
+     * any nested container
+     */
+    private final long[] mHeader = new long[3];
+
+    UBScanner(ByteBuffer buf) {
+        mBuf = buf;
+    }
+
+    private int marker(int pos) {
+        return mBuf.get(pos) & 0xFF;
+    }
+
+    /**
+     * @return the position just past the value whose marker is at {@code pos}
+     */
+    int skipValue(int pos) throws IOException {
+        return skipPayload(marker(pos), pos + 1);
+    }
+
+    /**
+     * @return the position just past the payload of a value of type {@code marker}, where
+     * the payload starts at {@code pos}
+     */
+    int skipPayload(int marker, int pos) throws IOException {
+        switch (marker) {
+            case MARKER_NULL:
+            case MARKER_NOOP:
+            case MARKER_TRUE:
+            case MARKER_FALSE:
+                return pos;
+
+            case MARKER_CHAR:
+            case MARKER_INT8:
+            case MARKER_UINT8:
+                return pos + 1;
+
+            case MARKER_INT16:
+                return pos + 2;
+
+            case MARKER_INT32:
+            case MARKER_FLOAT32:
+                return pos + 4;
+
+            case MARKER_INT64:
+            case MARKER_FLOAT64:
+                return pos + 8;
+
+            case MARKER_UUID:
+            case MARKER_ARRAY_REF:
+                return pos + 16;
+
+            case MARKER_STRING:
+            case MARKER_HIGH_PRECISION:
+                return skipString(pos);
+
+            case MARKER_ARRAY_START:
+                return skipContainer(pos, false);
+
+            case MARKER_OBJ_START:
+                return skipContainer(pos, true);
+
+            default:
+                throw new IOException("unknown UBJSON marker: " + marker);
+        }
+    }
+
+    /**
+     * @return the position just past a length prefixed string (without its 'S' marker)
+     * starting at {@code pos}
+     */
+    int skipString(int pos) throws IOException {
+        final int lengthMarker = marker(pos);
+        final int length = (int) readInt(lengthMarker, pos + 1);
+        return skipPayload(lengthMarker, pos + 1) + length;
+    }
+
+    /**
+     * @return the key of the object field starting at {@code pos}
+     */
+    String readString(int pos) throws IOException {
+        final int lengthMarker = marker(pos);
+        final int length = (int) readInt(lengthMarker, pos + 1);
+        final int start = skipPayload(lengthMarker, pos + 1);
+        if (mBuf.hasArray()) {
+            return new String(mBuf.array(), mBuf.arrayOffset() + start, length, "UTF-8");
+        } else {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = mBuf.get(start + i);
+            }
+            return new String(data, "UTF-8");
+        }
+    }
+
+    long readInt(int marker, int pos) throws IOException {
+        switch (marker) {
+            case MARKER_INT8:
+                return mBuf.get(pos);
+            case MARKER_UINT8:
+                return mBuf.get(pos) & 0xFF;
+            case MARKER_INT16:
+                return mBuf.getShort(pos);
+            case MARKER_INT32:
+                return mBuf.getInt(pos);
+            case MARKER_INT64:
+                return mBuf.getLong(pos);
+            default:
+                throw new IOException("expected an integer marker: " + marker);
+        }
+    }
+
+    /**
+     * Container header: optional '$' element type followed by an optional '#' count. Fills
+     * {@code header} with {type, count, first element position}; type and count are -1 when
+     * absent.
+     */
+    void readContainerHeader(int pos, long[] header) throws IOException {
+        int type = -1;
+        long count = -1;
+        if (marker(pos) == MARKER_OPTIMIZED_TYPE) {
+            type = marker(pos + 1);
+            pos += 2;
+        }
+        if (marker(pos) == MARKER_OPTIMIZED_SIZE) {
+            final int countMarker = marker(pos + 1);
+            count = readInt(countMarker, pos + 2);
+            pos = skipPayload(countMarker, pos + 2);
+        }
+        header[0] = type;
+        header[1] = count;
+        header[2] = pos;
+    }
+
+    private int skipContainer(int pos, boolean isObject) throws IOException {
+        readContainerHeader(pos, mHeader);
+        final int type = (int) mHeader[0];
+        final long count = mHeader[1];
+        pos = (int) mHeader[2];
+
+        if (count >= 0) {
+            for (long i = 0; i < count; i++) {
+                if (isObject) {
+                    pos = skipString(pos);
+                }
+                pos = type >= 0 ? skipPayload(type, pos) : skipValue(pos);
+            }
+            return pos;
+        } else {
+            final int end = isObject ? MARKER_OBJ_END : MARKER_ARRAY_END;
+            int m;
+            while ((m = marker(pos)) != end) {
+                if (m == MARKER_NOOP) {
+                    pos++;
+                    continue;
+                }
+                if (isObject) {
+                    pos = skipString(pos);
+                }
+                pos = skipValue(pos);
+            }
+            return pos + 1;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.devsmart.microdb;
+
+
+/**
+ * Thrown when a write would give two objects the same key in a unique index
+ * ({@link MicroDB.IndexKind#Unique}). The write that fails leaves the database unchanged.
+ */
+public class UniqueConstraintException extends RuntimeException {
+
+    private final String mIndexName;
+    private final Object mKey;
+
+    public UniqueConstraintException(String indexName, Object key) {
+        super("duplicate key '" + key + "' in unique index '" + indexName + "'");
+        mIndexName = indexName;
+        mKey = key;
+    }
+
+    public String getIndexName() {
+        return mIndexName;
+    }
+
+    /**
+     * @return the key that is already taken, a {@link CompositeKey} for a composite index
+     */
+    public Object getKey() {
+        return mKey;
+    }
+}
@@ -69,4 +69,8 @@ public class Utils {
         return false;
     }
 
+    public static boolean isValidObject(UBValue value, TypeSet types) {
+        return types.contains(value);
+    }
+
 }
@@ -6,6 +6,7 @@ import com.devsmart.microdb.version.Commit;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBValue;
 import com.devsmart.ubjson.UBValueFactory;
+import com.google.common.base.Throwables;
 import org.mapdb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,8 +88,11 @@ public class VersionManager {
 
         @Override
         public void onBeforeUpdate(Driver driver, UUID key, UBValue newValue) {
-            addInsertChange(mCurrentVersion.getId(), key, newValue);
-
+            try {
+                addUpdateChange(mCurrentVersion.getId(), key, driver.get(key), newValue);
+            } catch (IOException e) {
+                Throwables.propagate(e);
+            }
         }
     };
 
@@ -96,9 +100,50 @@ public class VersionManager {
         mDiffs.put(Fun.t2(patch, objId), Change.createInsertChange(objId, newValue));
     }
 
+    /**
+     * records that object {@code objId} changed from {@code oldValue} to {@code newValue}. Only
+     * the fields that differ are kept, merged with earlier changes of the object in {@code patch}.
+     * Objects inserted in {@code patch}, or that were not objects before, are kept in full.
+     */
+    public void addUpdateChange(UUID patch, UUID objId, UBValue oldValue, UBValue newValue) {
+        final Fun.Tuple2<UUID, UUID> key = Fun.t2(patch, objId);
+        final Change existing = mDiffs.get(key);
+        if (oldValue == null || !oldValue.isObject() || !newValue.isObject()
+                || (existing != null && existing.getType() != Change.TYPE_PATCH)) {
+            addInsertChange(patch, objId, newValue);
+            return;
+        }
+
+        Change change = Change.createPatchChange(objId, readOnlyView(oldValue), readOnlyView(newValue));
+        if (change == null) {
+            return;
+        }
+        if (existing != null) {
+            change = existing.mergePatch(change);
+        }
+        mDiffs.put(key, change);
+    }
+
+    /**
+     * @return {@code value}, or a copy of it if reading all of its fields would make it give up
+     * its encoded record, which the write path still needs
+     */
+    private static UBValue readOnlyView(UBValue value) {
+        if (value instanceof LazyUBObject) {
+            LazyUBObject copy = ((LazyUBObject) value).copy();
+            if (copy != null) {
+                return copy;
+            }
+        }
+        return value;
+    }
+
     public void addDeleteChange(UUID patch, UUID objId) {
         final Fun.Tuple2<UUID, UUID> key = Fun.t2(patch, objId);
-        if (mDiffs.remove(key) == null) {
+        final Change existing = mDiffs.remove(key);
+        //an object inserted and deleted in the same version leaves no trace, but one that was
+        //only patched existed before, so its deletion has to be recorded
+        if (existing == null || existing.getType() != Change.TYPE_INSERT) {
             mDiffs.put(key, Change.createDeleteChange(objId));
         }
     }
@@ -0,0 +1,13 @@
+package com.devsmart.microdb;
+
+
+/**
+ * Thrown when a write can not be queued because the write queue is at capacity and the
+ * {@link MicroDB.OverflowPolicy} does not allow waiting (any longer) for room.
+ */
+public class WriteQueueFullException extends RuntimeException {
+
+    public WriteQueueFullException(String message) {
+        super(message);
+    }
+}
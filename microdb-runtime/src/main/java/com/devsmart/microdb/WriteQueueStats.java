@@ -0,0 +1,170 @@
+package com.devsmart.microdb;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters maintained by the MicroDB write thread.
+ */
+public class WriteQueueStats {
+
+    private final AtomicLong mNumCommits = new AtomicLong();
+    private final AtomicLong mNumCommittedOperations = new AtomicLong();
+    private final AtomicLong mNumCoalescedWrites = new AtomicLong();
+    private volatile int mLastCommitSize;
+    private volatile int mMaxCommitSize;
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mNumDequeued = new AtomicLong();
+    private final AtomicLong mTotalQueueNanos = new AtomicLong();
+    private volatile long mLastQueueNanos;
+    private volatile long mMaxQueueNanos;
+    private final AtomicLong mNumRejectedWrites = new AtomicLong();
+
+    void recordCommit(int numOperations) {
+        mNumCommits.incrementAndGet();
+        mNumCommittedOperations.addAndGet(numOperations);
+        mLastCommitSize = numOperations;
+        if (numOperations > mMaxCommitSize) {
+            mMaxCommitSize = numOperations;
+        }
+    }
+
+    void recordCoalescedWrite() {
+        mNumCoalescedWrites.incrementAndGet();
+    }
+
+    void recordEnqueue() {
+        final int depth = mQueueDepth.incrementAndGet();
+        int max;
+        while (depth > (max = mMaxQueueDepth.get())) {
+            if (mMaxQueueDepth.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * called by the write thread when it takes an operation off the queue
+     */
+    void recordDequeue(long nanosInQueue) {
+        mQueueDepth.decrementAndGet();
+        mNumDequeued.incrementAndGet();
+        mTotalQueueNanos.addAndGet(nanosInQueue);
+        mLastQueueNanos = nanosInQueue;
+        if (nanosInQueue > mMaxQueueNanos) {
+            mMaxQueueNanos = nanosInQueue;
+        }
+    }
+
+    void recordRejectedWrite() {
+        mNumRejectedWrites.incrementAndGet();
+    }
+
+    /**
+     * @return total number of commits performed by the write thread
+     */
+    public long getNumCommits() {
+        return mNumCommits.get();
+    }
+
+    /**
+     * @return total number of write operations that have been committed
+     */
+    public long getNumCommittedOperations() {
+        return mNumCommittedOperations.get();
+    }
+
+    /**
+     * @return the number of write operations that went into the most recent commit
+     */
+    public int getLastCommitSize() {
+        return mLastCommitSize;
+    }
+
+    /**
+     * @return the largest number of write operations that went into a single commit
+     */
+    public int getMaxCommitSize() {
+        return mMaxCommitSize;
+    }
+
+    /**
+     * @return the average number of write operations per commit
+     */
+    public double getAverageCommitSize() {
+        final long numCommits = mNumCommits.get();
+        if (numCommits == 0) {
+            return 0;
+        }
+        return (double) mNumCommittedOperations.get() / numCommits;
+    }
+
+    /**
+     * @return number of writes that were merged into a write of the same object that was
+     * already waiting in the queue
+     */
+    public long getNumCoalescedWrites() {
+        return mNumCoalescedWrites.get();
+    }
+
+    /**
+     * @return number of operations currently waiting in the write queue
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return the largest number of operations that have been waiting in the write queue at once
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * @return how long the most recently started operation waited in the queue
+     */
+    public double getLastTimeInQueueMillis() {
+        return toMillis(mLastQueueNanos);
+    }
+
+    /**
+     * @return the longest time an operation has waited in the queue
+     */
+    public double getMaxTimeInQueueMillis() {
+        return toMillis(mMaxQueueNanos);
+    }
+
+    /**
+     * @return the average time operations wait in the queue before the write thread starts them
+     */
+    public double getAverageTimeInQueueMillis() {
+        final long numDequeued = mNumDequeued.get();
+        if (numDequeued == 0) {
+            return 0;
+        }
+        return toMillis(mTotalQueueNanos.get()) / numDequeued;
+    }
+
+    /**
+     * @return number of writes that were refused because the write queue was full
+     */
+    public long getNumRejectedWrites() {
+        return mNumRejectedWrites.get();
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("commits: %d operations: %d last: %d max: %d coalesced: %d depth: %d maxDepth: %d avgQueueMs: %.3f rejected: %d",
+                getNumCommits(), getNumCommittedOperations(), getLastCommitSize(), getMaxCommitSize(),
+                getNumCoalescedWrites(), getQueueDepth(), getMaxQueueDepth(), getAverageTimeInQueueMillis(),
+                getNumRejectedWrites());
+    }
+}
@@ -3,6 +3,7 @@ package com.devsmart.microdb.version;
 
 import com.devsmart.microdb.Driver;
 import com.devsmart.microdb.MapDBDriver;
+import com.devsmart.ubjson.UBArray;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBValue;
 import com.devsmart.ubjson.UBValueFactory;
@@ -12,6 +13,9 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class Change {
@@ -19,6 +23,16 @@ public class Change {
     public static final byte TYPE_INSERT = 0;
     public static final byte TYPE_DELETE = 1;
 
+    /**
+     * only the fields that changed since the previous version. The value is an object with the
+     * new values of changed fields under {@code "set"} and the names of removed fields under
+     * {@code "unset"}.
+     */
+    public static final byte TYPE_PATCH = 2;
+
+    private static final String KEY_SET = "set";
+    private static final String KEY_UNSET = "unset";
+
     public static final class ChangeSerializer implements Serializer<Change>, Serializable {
         @Override
         public void serialize(DataOutput out, Change value) throws IOException {
@@ -63,6 +77,54 @@ public class Change {
         return retval;
     }
 
+    /**
+     * @return a patch change that turns {@code oldValue} into {@code newValue}, or null if the
+     * two are equal. Both must be objects.
+     */
+    public static Change createPatchChange(UUID key, UBValue oldValue, UBValue newValue) {
+        final UBObject oldObj = oldValue.asObject();
+        final UBObject newObj = newValue.asObject();
+
+        UBObject set = UBValueFactory.createObject();
+        for (Map.Entry<String, UBValue> field : newObj.entrySet()) {
+            UBValue value = field.getValue();
+            if (value == null) {
+                value = UBValueFactory.createNull();
+            }
+            if (!value.equals(oldObj.get(field.getKey()))) {
+                set.put(field.getKey(), value);
+            }
+        }
+        Set<String> unset = new LinkedHashSet<String>();
+        for (String field : oldObj.keySet()) {
+            if (!newObj.containsKey(field)) {
+                unset.add(field);
+            }
+        }
+
+        if (set.isEmpty() && unset.isEmpty()) {
+            return null;
+        }
+        return createPatch(key, set, unset);
+    }
+
+    private static Change createPatch(UUID key, UBObject set, Set<String> unset) {
+        UBValue[] unsetArray = new UBValue[unset.size()];
+        int i = 0;
+        for (String field : unset) {
+            unsetArray[i++] = UBValueFactory.createString(field);
+        }
+        UBObject patch = UBValueFactory.createObject();
+        patch.put(KEY_SET, set);
+        patch.put(KEY_UNSET, UBValueFactory.createArray(unsetArray));
+
+        Change retval = new Change();
+        retval.mType = TYPE_PATCH;
+        retval.mObjId = key;
+        retval.mValue = patch;
+        return retval;
+    }
+
     private byte mType;
     private UUID mObjId;
     private UBValue mValue;
@@ -84,10 +146,63 @@ public class Change {
         return mObjId;
     }
 
+    /**
+     * @return the new value of the object for an insert change, the patch for a patch change
+     */
     public UBValue getObjValue() {
         return mValue;
     }
 
+    private UBObject getSetFields() {
+        return mValue.asObject().get(KEY_SET).asObject();
+    }
+
+    private Set<String> getUnsetFields() {
+        UBArray array = mValue.asObject().get(KEY_UNSET).asArray();
+        Set<String> retval = new LinkedHashSet<String>();
+        for (int i = 0; i < array.size(); i++) {
+            retval.add(array.get(i).asString());
+        }
+        return retval;
+    }
+
+    /**
+     * @return a patch change that has the effect of applying this patch change and then
+     * {@code next}, a patch change of the same object
+     */
+    public Change mergePatch(Change next) {
+        if (mType != TYPE_PATCH || next.mType != TYPE_PATCH) {
+            throw new IllegalArgumentException("only patch changes can be merged");
+        }
+        UBObject set = UBValueFactory.createObject();
+        set.putAll(getSetFields());
+        Set<String> unset = getUnsetFields();
+
+        UBObject nextSet = next.getSetFields();
+        for (Map.Entry<String, UBValue> field : nextSet.entrySet()) {
+            set.put(field.getKey(), field.getValue());
+            unset.remove(field.getKey());
+        }
+        for (String field : next.getUnsetFields()) {
+            set.remove(field);
+            unset.add(field);
+        }
+        return createPatch(mObjId, set, unset);
+    }
+
+    /**
+     * @return the object {@code current} with this patch applied. {@code current} is not modified.
+     */
+    public UBObject patch(UBObject current) {
+        UBObject retval = UBValueFactory.createObject();
+        retval.putAll(current);
+        retval.putAll(getSetFields());
+        for (String field : getUnsetFields()) {
+            retval.remove(field);
+        }
+        return retval;
+    }
+
     public void apply(Driver driver) throws IOException {
         switch (mType) {
             case TYPE_DELETE:
@@ -98,6 +213,14 @@ public class Change {
                 driver.update(mObjId, mValue);
                 break;
 
+            case TYPE_PATCH:
+                UBValue current = driver.get(mObjId);
+                if (current == null || !current.isObject()) {
+                    throw new IOException("no object " + mObjId + " to patch");
+                }
+                driver.update(mObjId, patch(current.asObject()));
+                break;
+
             default:
                 throw new RuntimeException("unknown change type: " + mType);
         }
@@ -105,7 +228,8 @@ public class Change {
 
     @Override
     public String toString() {
-        String retval = (mType == TYPE_INSERT ? "+" : "-") + mObjId.toString().substring(0, 5);
+        final String prefix = mType == TYPE_INSERT ? "+" : mType == TYPE_PATCH ? "~" : "-";
+        String retval = prefix + mObjId.toString().substring(0, 5);
         return retval;
     }
 }
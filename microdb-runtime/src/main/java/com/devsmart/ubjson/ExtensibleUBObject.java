@@ -0,0 +1,20 @@
+package com.devsmart.ubjson;
+
+
+import java.util.TreeMap;
+
+/**
+ * Base class of the UBObjects MicroDB implements itself, such as objects decoded lazily from
+ * their stored record. ubjson creates UBObjects through {@link UBValueFactory}, and the
+ * constructor of UBObject is not part of its public API; this class calls it from inside the
+ * package, so subclasses elsewhere only depend on the protected constructor below.
+ */
+public abstract class ExtensibleUBObject extends UBObject {
+
+    /**
+     * creates an empty object
+     */
+    protected ExtensibleUBObject() {
+        super(new TreeMap<String, UBValue>());
+    }
+}
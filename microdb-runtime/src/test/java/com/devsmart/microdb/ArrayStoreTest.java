@@ -0,0 +1,235 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import example.MyDBObj;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ArrayStoreTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static int[] createSamples(int count) {
+        int[] retval = new int[count];
+        for (int i = 0; i < count; i++) {
+            retval[i] = i * 31;
+        }
+        return retval;
+    }
+
+    private static MicroDB open(File file) throws IOException {
+        return DBBuilder.builder()
+                .outOfLineArrays(1024)
+                .build(file);
+    }
+
+    private static void close(MicroDB db) throws IOException {
+        db.sync();
+        db.close();
+        db.shutdown();
+    }
+
+    @Test
+    public void testLargeArraysStoredOutOfLine() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "arrays.db");
+        final int[] samples = createSamples(10000);
+        final double[] values = new double[]{1.5, 2.5};
+
+        MicroDB db = open(file);
+        MyDBObj obj = db.insert(MyDBObj.class);
+        final UUID id = obj.getId();
+        obj.setMyInt(7);
+        obj.setMyIntArray(samples);
+        obj.setMyDoubleArray(values);
+        close(db);
+
+        db = open(file);
+        MapDBDriver driver = (MapDBDriver) db.getDriver();
+        LazyUBObject stored = (LazyUBObject) driver.get(id);
+        assertTrue(stored.getRecord().length < 1024);
+        assertNotNull(driver.mArrays.get(id, "myIntArray"));
+        assertNull(driver.mArrays.get(id, "myDoubleArray"));
+
+        obj = db.get(id, new MyDBObj());
+        assertEquals(7, obj.getMyInt());
+        assertTrue(Arrays.equals(values, obj.getMyDoubleArray()));
+        assertTrue(Arrays.equals(samples, obj.getMyIntArray()));
+        assertTrue(Arrays.equals(samples, stored.get("myIntArray").asInt32Array()));
+        close(db);
+
+        //saving a scalar change keeps the array
+        db = open(file);
+        obj = db.get(id, new MyDBObj());
+        obj.setMyInt(8);
+        close(db);
+
+        db = open(file);
+        obj = db.get(id, new MyDBObj());
+        assertEquals(8, obj.getMyInt());
+        assertTrue(Arrays.equals(samples, obj.getMyIntArray()));
+
+        //a new value replaces the stored array
+        obj.setMyIntArray(new int[]{1, 2, 3});
+        close(db);
+
+        db = open(file);
+        obj = db.get(id, new MyDBObj());
+        assertTrue(Arrays.equals(new int[]{1, 2, 3}, obj.getMyIntArray()));
+
+        db.delete(obj);
+        db.sync();
+        assertNull(((MapDBDriver) db.getDriver()).mArrays.get(id, "myIntArray"));
+        close(db);
+    }
+
+    /**
+     * a hand written object over two fields of MyDBObj. It has no binary codec, so it is saved
+     * through writeToUBObject.
+     */
+    public static class IntsObj extends DBObject {
+        private int myInt;
+        private int[] myIntArray;
+
+        @Override
+        public void writeToUBObject(UBObject obj) {
+            super.writeToUBObject(obj);
+            obj.put("type", UBValueFactory.createString("MyDBObj"));
+            obj.put("myInt", UBValueFactory.createInt(myInt));
+            if (!putArrayRef(obj, "myIntArray")) {
+                obj.put("myIntArray", UBValueFactory.createArrayOrNull(getMyIntArray()));
+            }
+        }
+
+        @Override
+        public void readFromUBObject(UBObject obj) {
+            super.readFromUBObject(obj);
+            UBValue value = obj.get("myInt");
+            if (value != null) {
+                this.myInt = value.asInt();
+            }
+            if (!readArrayRef(obj, "myIntArray")) {
+                value = obj.get("myIntArray");
+                if (value != null && value.isArray()) {
+                    this.myIntArray = value.asInt32Array();
+                }
+            }
+        }
+
+        public int[] getMyIntArray() {
+            loadArray("myIntArray");
+            return myIntArray;
+        }
+
+        public synchronized void setMyInt(int value) {
+            this.myInt = value;
+            setDirty();
+        }
+    }
+
+    @Test
+    public void testSaveWritesBackUnreadArray() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "unread.db");
+        final int[] samples = createSamples(10000);
+        MicroDB db = open(file);
+        MyDBObj obj = db.insert(MyDBObj.class);
+        final UUID id = obj.getId();
+        obj.setMyIntArray(samples);
+        close(db);
+
+        //through the binary codec
+        db = open(file);
+        obj = db.get(id, new MyDBObj());
+        obj.setMyInt(8);
+        db.flush();
+        assertNotNull(((DBObject) obj).getArrayRef("myIntArray"));
+        MapDBDriver driver = (MapDBDriver) db.getDriver();
+        LazyUBObject stored = (LazyUBObject) driver.get(id);
+        assertTrue(stored.getRecord().length < 1024);
+        assertEquals(8, stored.get("myInt").asInt());
+        assertTrue(Arrays.equals(samples, stored.get("myIntArray").asInt32Array()));
+        close(db);
+
+        //through writeToUBObject
+        db = open(file);
+        IntsObj ints = db.get(id, new IntsObj());
+        assertEquals(8, ints.myInt);
+        ints.setMyInt(9);
+        db.flush();
+        assertNotNull(ints.getArrayRef("myIntArray"));
+        driver = (MapDBDriver) db.getDriver();
+        stored = (LazyUBObject) driver.get(id);
+        assertTrue(stored.getRecord().length < 1024);
+        assertEquals(9, stored.get("myInt").asInt());
+        assertTrue(Arrays.equals(samples, stored.get("myIntArray").asInt32Array()));
+        close(db);
+
+        db = open(file);
+        obj = db.get(id, new MyDBObj());
+        assertEquals(9, obj.getMyInt());
+        assertTrue(Arrays.equals(samples, obj.getMyIntArray()));
+        close(db);
+    }
+
+    @Test
+    public void testSetterWinsOverStoredArray() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "setter.db");
+        MicroDB db = open(file);
+        MyDBObj obj = db.insert(MyDBObj.class);
+        final UUID id = obj.getId();
+        obj.setMyIntArray(createSamples(5000));
+        close(db);
+
+        db = open(file);
+        obj = db.get(id, new MyDBObj());
+        obj.setMyIntArray(null);
+        assertNull(obj.getMyIntArray());
+        close(db);
+    }
+
+    @Test
+    public void testBulkArrayCodec() throws IOException {
+        final long[] longs = new long[]{Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE};
+        final float[] floats = new float[]{-0.5f, 0, Float.MAX_VALUE};
+        final short[] shorts = new short[]{Short.MIN_VALUE, 7, Short.MAX_VALUE};
+
+        //DataOutput2 is written through buffer views, other outputs one element at a time
+        DataOutput2 out = new DataOutput2();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        UBCodec.writeArray(out, longs);
+        UBCodec.writeArray(out, floats);
+        UBCodec.writeArray(out, shorts);
+        UBCodec.writeArray(stream, longs);
+        UBCodec.writeArray(stream, floats);
+        UBCodec.writeArray(stream, shorts);
+        assertTrue(Arrays.equals(bytes.toByteArray(), out.copyBytes()));
+
+        DataInput2 in = new DataInput2(ByteBuffer.wrap(out.copyBytes()), 0);
+        assertTrue(Arrays.equals(longs, UBCodec.readInt64Array(in, null)));
+        assertTrue(Arrays.equals(floats, UBCodec.readFloat32Array(in, null)));
+        assertTrue(Arrays.equals(shorts, UBCodec.readShortArray(in, null)));
+        assertEquals(out.pos, in.pos);
+
+        in = new DataInput2(ByteBuffer.wrap(out.copyBytes()), 0);
+        UBCodec.skipValue(in);
+        UBCodec.skipValue(in);
+        assertTrue(Arrays.equals(shorts, UBCodec.readShortArray(in, null)));
+    }
+}
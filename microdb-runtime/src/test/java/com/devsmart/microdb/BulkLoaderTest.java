@@ -0,0 +1,242 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import example.MyDBObj;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BulkLoaderTest {
+
+    public static class Item extends DBObject {
+
+        private int myInt;
+
+        @Override
+        public void writeToUBObject(UBObject obj) {
+            super.writeToUBObject(obj);
+            obj.put("type", UBValueFactory.createString("Item"));
+            obj.put("myInt", UBValueFactory.createInt(myInt));
+        }
+
+        @Override
+        public void readFromUBObject(UBObject obj) {
+            super.readFromUBObject(obj);
+            myInt = obj.get("myInt").asInt();
+        }
+
+        public int getMyInt() {
+            return myInt;
+        }
+
+        public void setMyInt(int value) {
+            myInt = value;
+            setDirty();
+        }
+    }
+
+    private static final String INDEX_NAME = "Item.myInt";
+    private static final MapFunction<Long> MY_INT_INDEX = new MapFunction<Long>() {
+        @Override
+        public void map(UBValue value, Emitter<Long> emitter) {
+            if (value != null && value.isObject()) {
+                UBObject obj = value.asObject();
+                UBValue myInt = obj.get("myInt");
+                if (myInt != null && myInt.isInteger()) {
+                    emitter.emit(myInt.asLong());
+                }
+            }
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static int count(Iterable<?> it) {
+        int retval = 0;
+        for (Object o : it) {
+            retval++;
+        }
+        return retval;
+    }
+
+    private static ArrayList<Item> load(MicroDB db, int start, int count) throws Exception {
+        ArrayList<Item> objects = new ArrayList<Item>();
+        BulkLoader loader = db.createBulkLoader();
+        for (int i = start; i < start + count; i++) {
+            Item obj = db.create(Item.class);
+            obj.setMyInt(i);
+            objects.add(obj);
+        }
+        loader.addAll(objects);
+        assertEquals(count, loader.size());
+        assertEquals(count, loader.load());
+        assertEquals(0, loader.size());
+        return objects;
+    }
+
+    @Test
+    public void testBulkLoadEmptyDB() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+        db.addIndex(INDEX_NAME, MY_INT_INDEX);
+
+        ArrayList<Item> objects = load(db, 0, 5000);
+
+        for (Item obj : objects) {
+            assertNotNull(obj.getId());
+            UBValue value = db.getDriver().get(obj.getId());
+            assertNotNull(value);
+            assertEquals(obj.getMyInt(), value.asObject().get("myInt").asInt());
+        }
+
+        assertEquals(5000, count(db.getAllOfType(Item.class)));
+        assertEquals(100, db.queryIndex(INDEX_NAME, 100L, true, 200L, false).getCount());
+
+        //indexes keep working for normal inserts after a bulk load
+        Item obj = db.insert(Item.class);
+        obj.setMyInt(150);
+        db.save(obj);
+        db.sync();
+        assertEquals(101, db.queryIndex(INDEX_NAME, 100L, true, 200L, false).getCount());
+        assertEquals(5001, count(db.getAllOfType(Item.class)));
+
+        Item first = objects.get(0);
+        UUID id = first.getId();
+        db.delete(first);
+        db.sync();
+        assertNull(db.getDriver().get(id));
+        assertEquals(5000, count(db.getAllOfType(Item.class)));
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testBulkLoadNonEmptyDB() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+        db.addIndex(INDEX_NAME, MY_INT_INDEX);
+
+        Item existing = db.insert(Item.class);
+        existing.setMyInt(-1);
+        db.save(existing);
+        db.sync();
+
+        ArrayList<Item> objects = load(db, 0, 100);
+
+        //loaded objects are live: get returns the same instance, and changes are saved
+        Item loaded = objects.get(42);
+        assertFalse(loaded.mDirty);
+        assertEquals(0, db.getNumDirtyObjects());
+        assertSame(loaded, db.get(loaded.getId()));
+        loaded.setMyInt(1000);
+        db.flush();
+        assertEquals(1000, db.getDriver().get(loaded.getId()).asObject().get("myInt").asInt());
+        assertEquals(1000, db.<Item>get(loaded.getId()).getMyInt());
+
+        assertEquals(101, count(db.getAllOfType(Item.class)));
+        assertEquals(10, db.queryIndex(INDEX_NAME, 0L, true, 10L, false).getCount());
+        assertNotNull(db.getDriver().get(existing.getId()));
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testBulkLoadFileDB() throws Exception {
+        File file = new File(mTempFolder.getRoot(), "items.db");
+        MicroDB db = DBBuilder.builder()
+                .build(file);
+        db.addIndex(INDEX_NAME, MY_INT_INDEX);
+        ArrayList<Item> objects = load(db, 0, 2000);
+
+        //the pumped tree keeps values in its nodes, and takes updates and inserts like any other
+        Item updated = objects.get(1000);
+        updated.setMyInt(-5);
+        Item inserted = db.insert(Item.class);
+        inserted.setMyInt(5000);
+        db.sync();
+        final UUID deletedId = objects.get(7).getId();
+        db.delete(objects.get(7));
+        db.sync();
+        db.close();
+
+        db = DBBuilder.builder()
+                .build(file);
+        db.addIndex(INDEX_NAME, MY_INT_INDEX);
+        assertEquals(2000, count(db.getAllOfType(Item.class)));
+        assertEquals(-5, db.<Item>get(updated.getId()).getMyInt());
+        assertEquals(5000, db.<Item>get(inserted.getId()).getMyInt());
+        assertNull(db.get(deletedId));
+        assertEquals(42, db.<Item>get(objects.get(42).getId()).getMyInt());
+        assertEquals(1, db.queryIndex(INDEX_NAME, -5L, true, -5L, true).getCount());
+        db.close();
+    }
+
+    @Test
+    public void testBulkLoadWritesRecordsLikeInsert() throws Exception {
+        File file = new File(mTempFolder.getRoot(), "arrays.db");
+        final int[] samples = new int[10000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = i * 31;
+        }
+
+        MicroDB db = DBBuilder.builder()
+                .outOfLineArrays(1024)
+                .build(file);
+        BulkLoader loader = db.createBulkLoader();
+        MyDBObj loaded = db.create(MyDBObj.class);
+        loaded.setMyInt(7);
+        loaded.setMyIntArray(samples);
+        loader.add(loaded);
+        assertEquals(1, loader.load());
+
+        MyDBObj inserted = db.insert(MyDBObj.class);
+        inserted.setMyInt(7);
+        inserted.setMyIntArray(samples);
+        db.flush();
+
+        final UUID id = loaded.getId();
+        final UUID insertedId = inserted.getId();
+        db.close();
+        db.shutdown();
+
+        //both were written through the binary codec, with the array stored out of line
+        db = DBBuilder.builder()
+                .outOfLineArrays(1024)
+                .build(file);
+        MapDBDriver driver = (MapDBDriver) db.getDriver();
+        byte[] loadedRecord = ((LazyUBObject) driver.get(id)).getRecord();
+        byte[] insertedRecord = ((LazyUBObject) driver.get(insertedId)).getRecord();
+        assertTrue(loadedRecord.length < 1024);
+        assertEquals(insertedRecord.length, loadedRecord.length);
+        assertNotNull(driver.mArrays.get(id, "myIntArray"));
+
+        MyDBObj obj = db.get(id, new MyDBObj());
+        assertEquals(7, obj.getMyInt());
+        assertTrue(Arrays.equals(samples, obj.getMyIntArray()));
+        db.close();
+        db.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddInsertedObject() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+        try {
+            Item obj = db.insert(Item.class);
+            db.createBulkLoader().add(obj);
+        } finally {
+            db.shutdown();
+        }
+    }
+}
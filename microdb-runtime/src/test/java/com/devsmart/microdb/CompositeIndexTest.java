@@ -0,0 +1,140 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CompositeIndexTest {
+
+    private static final String INDEX_NAME = "Order.customerId_createdAt_idx";
+
+    private static final MapFunction<CompositeKey> MAP_FUNCTION = new MapFunction<CompositeKey>() {
+        @Override
+        public void map(UBValue value, Emitter<CompositeKey> emitter) {
+            if (value != null && value.isObject()) {
+                UBObject obj = value.asObject();
+                UBValue customerId = obj.get("customerId");
+                UBValue createdAt = obj.get("createdAt");
+                if (customerId != null && customerId.isString() && createdAt != null && createdAt.isInteger()) {
+                    emitter.emit(CompositeKey.of(customerId.asString(), createdAt.asLong()));
+                }
+            }
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static UUID insert(String customerId, long createdAt, MapDBDriver driver) throws IOException {
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString("Order"));
+        obj.put("customerId", UBValueFactory.createString(customerId));
+        obj.put("createdAt", UBValueFactory.createInt(createdAt));
+
+        final UUID id = driver.genId();
+        driver.insert(id, obj);
+        return id;
+    }
+
+    private static ArrayList<Long> createdAt(Cursor cursor) {
+        ArrayList<Long> retval = new ArrayList<Long>();
+        Row r;
+        while ((r = cursor.get()) != null) {
+            CompositeKey key = r.getSecondaryKey();
+            retval.add((Long) key.get(1));
+            if (!cursor.next()) {
+                break;
+            }
+        }
+        return retval;
+    }
+
+    private static ArrayList<Long> list(long... values) {
+        ArrayList<Long> retval = new ArrayList<Long>();
+        for (long value : values) {
+            retval.add(value);
+        }
+        return retval;
+    }
+
+    @Test
+    public void testCompareTo() {
+        assertTrue(CompositeKey.of("a", 2L).compareTo(CompositeKey.of("b", 1L)) < 0);
+        assertTrue(CompositeKey.of("a", 2L).compareTo(CompositeKey.of("a", 1L)) > 0);
+        assertTrue(CompositeKey.of("a").compareTo(CompositeKey.of("a", 1L)) < 0);
+        assertEquals(0, CompositeKey.of("a", 1L).compareTo(CompositeKey.of("a", 1L)));
+        assertEquals(CompositeKey.of("a", 1L), CompositeKey.of("a", 1L));
+        assertEquals(CompositeKey.of("a", 1L).hashCode(), CompositeKey.of("a", 1L).hashCode());
+    }
+
+    @Test
+    public void testPrefixAndRange() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "orders.db");
+        DB mapdb = DBMaker.newFileDB(file).make();
+        MapDBDriver driver = new MapDBDriver(mapdb);
+        driver.addIndex(INDEX_NAME, MAP_FUNCTION);
+
+        insert("bob", 10, driver);
+        insert("alice", 30, driver);
+        insert("bob", 20, driver);
+        insert("alice", 10, driver);
+        insert("bob", 30, driver);
+        insert("carl", 20, driver);
+        UUID late = insert("bob", 40, driver);
+
+        Cursor cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of("bob"), null, false, null, false);
+        assertEquals(4, cursor.getCount());
+        assertEquals(list(10, 20, 30, 40), createdAt(cursor));
+
+        cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of("bob"), 20L, true, 30L, true);
+        assertEquals(list(20, 30), createdAt(cursor));
+
+        cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of("bob"), 20L, false, 40L, false);
+        assertEquals(list(30), createdAt(cursor));
+
+        cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of("bob"), 25L, true, null, false);
+        assertEquals(list(30, 40), createdAt(cursor));
+
+        cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of("alice"), null, false, 10L, true);
+        assertEquals(list(10), createdAt(cursor));
+
+        cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of("dave"), null, false, null, false);
+        assertEquals(0, cursor.getCount());
+        assertNull(cursor.get());
+
+        //a range over the leading value, with no prefix
+        cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of(), "alice", false, "bob", true);
+        assertEquals(4, cursor.getCount());
+
+        //whole keys work with the single value query too
+        cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of("bob", 40L), true, CompositeKey.of("bob", 40L), true);
+        assertEquals(1, cursor.getCount());
+        assertEquals(late, cursor.get().getPrimaryKey());
+        assertEquals(CompositeKey.of("bob", 40L), cursor.get().getSecondaryKey());
+
+        driver.delete(late);
+        mapdb.commit();
+        mapdb.close();
+
+        mapdb = DBMaker.newFileDB(file).make();
+        driver = new MapDBDriver(mapdb);
+        driver.addIndex(INDEX_NAME, MAP_FUNCTION);
+
+        cursor = driver.queryIndex(INDEX_NAME, CompositeKey.of("bob"), 20L, true, null, false);
+        assertEquals(list(20, 30), createdAt(cursor));
+        mapdb.close();
+    }
+}
@@ -0,0 +1,169 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CoveringIndexTest {
+
+    private static final String INDEX_NAME = "Person.lastName_idx";
+
+    private static final MapFunction<String> MAP_FUNCTION = new MapFunction<String>() {
+        @Override
+        public void map(UBValue value, Emitter<String> emitter) {
+            if (value != null && value.isObject()) {
+                UBValue lastName = value.asObject().get("lastName");
+                if (lastName != null && lastName.isString()) {
+                    emitter.emit(lastName.asString());
+                }
+            }
+        }
+    };
+
+    /**
+     * counts the objects read, which a covering query should not need
+     */
+    private static class CountingDriver extends MapDBDriver {
+        int gets;
+
+        CountingDriver(DB mapdb) {
+            super(mapdb);
+        }
+
+        @Override
+        public UBValue get(UUID key) throws IOException {
+            gets++;
+            return super.get(key);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static UBObject createPerson(String firstName, String lastName, int age) {
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString("Person"));
+        obj.put("firstName", UBValueFactory.createString(firstName));
+        obj.put("lastName", UBValueFactory.createString(lastName));
+        obj.put("age", UBValueFactory.createInt(age));
+        return obj;
+    }
+
+    private static UUID insert(String firstName, String lastName, int age, MapDBDriver driver) throws IOException {
+        final UUID id = driver.genId();
+        driver.insert(id, createPerson(firstName, lastName, age));
+        return id;
+    }
+
+    private static ArrayList<String> firstNames(Cursor cursor) {
+        ArrayList<String> retval = new ArrayList<String>();
+        Row r;
+        while ((r = cursor.get()) != null) {
+            retval.add(r.getField("firstName").asString());
+            if (!cursor.next()) {
+                break;
+            }
+        }
+        return retval;
+    }
+
+    @Test
+    public void testIncludedFieldsServedFromIndex() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "people.db");
+        DB mapdb = DBMaker.newFileDB(file).make();
+        CountingDriver driver = new CountingDriver(mapdb);
+        driver.addIndex(INDEX_NAME, MAP_FUNCTION, "firstName", "age");
+
+        insert("Paul", "Soucy", 40, driver);
+        UUID greg = insert("Greg", "Soucy", 35, driver);
+        insert("Paul", "Simon", 70, driver);
+
+        driver.gets = 0;
+        Cursor cursor = driver.queryIndex(INDEX_NAME, "Soucy", true, "Soucy", true);
+        assertEquals(2, cursor.getCount());
+        ArrayList<String> names = firstNames(cursor);
+        assertTrue(names.contains("Paul"));
+        assertTrue(names.contains("Greg"));
+        cursor.seekToBegining();
+        final int age = cursor.get().getField("age").asInt();
+        assertTrue(age == 40 || age == 35);
+        assertEquals(0, driver.gets);
+
+        //fields that are not included load the object
+        assertEquals("Soucy", cursor.get().getField("lastName").asString());
+        assertEquals(1, driver.gets);
+
+        //an update that keeps the key still refreshes the included fields
+        driver.update(greg, createPerson("Gregory", "Soucy", 36));
+        cursor = driver.queryIndex(INDEX_NAME, "Soucy", true, "Soucy", true);
+        assertTrue(firstNames(cursor).contains("Gregory"));
+
+        driver.delete(greg);
+        mapdb.commit();
+        mapdb.close();
+
+        mapdb = DBMaker.newFileDB(file).make();
+        driver = new CountingDriver(mapdb);
+        driver.addIndex(INDEX_NAME, MAP_FUNCTION, "firstName", "age");
+
+        cursor = driver.queryIndex(INDEX_NAME, "Simon", true, "Soucy", true);
+        assertEquals("[Paul, Paul]", firstNames(cursor).toString());
+        assertEquals(0, driver.gets);
+        mapdb.close();
+
+        //including other fields rebuilds the index
+        mapdb = DBMaker.newFileDB(file).make();
+        driver = new CountingDriver(mapdb);
+        driver.addIndex(INDEX_NAME, MAP_FUNCTION, "age");
+        cursor = driver.queryIndex(INDEX_NAME, "Simon", true, "Simon", true);
+        assertEquals(70, cursor.get().getField("age").asInt());
+        assertEquals(0, driver.gets);
+        assertEquals("Paul", cursor.get().getField("firstName").asString());
+        assertEquals(1, driver.gets);
+        mapdb.close();
+    }
+
+    @Test
+    public void testBulkInsertBuildsCoveringIndex() throws IOException {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        driver.addIndex(INDEX_NAME, MAP_FUNCTION, "firstName");
+
+        ArrayList<Map.Entry<UUID, UBValue>> values = new ArrayList<Map.Entry<UUID, UBValue>>();
+        values.add(new AbstractMap.SimpleEntry<UUID, UBValue>(driver.genId(), createPerson("Alex", "Murphy", 30)));
+        values.add(new AbstractMap.SimpleEntry<UUID, UBValue>(driver.genId(), createPerson("Patrick", "Vin", 20)));
+        values.add(new AbstractMap.SimpleEntry<UUID, UBValue>(driver.genId(), createPerson("Anne", "Lewis", 25)));
+        //bulk inserts come sorted by id
+        Collections.sort(values, new Comparator<Map.Entry<UUID, UBValue>>() {
+            @Override
+            public int compare(Map.Entry<UUID, UBValue> lhs, Map.Entry<UUID, UBValue> rhs) {
+                return lhs.getKey().compareTo(rhs.getKey());
+            }
+        });
+        driver.bulkInsert(values);
+
+        Cursor cursor = driver.queryIndex(INDEX_NAME, null, false, null, false);
+        assertEquals("[Anne, Alex, Patrick]", firstNames(cursor).toString());
+
+        //the listener keeps the rebuilt index up to date
+        insert("Dick", "Jones", 50, driver);
+        cursor = driver.queryIndex(INDEX_NAME, "Jones", true, "Jones", true);
+        assertEquals("[Dick]", firstNames(cursor).toString());
+    }
+}
@@ -0,0 +1,126 @@
+package com.devsmart.microdb;
+
+
+import example.MyDBObj;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class DurabilityTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private void testReopen(DBBuilder.Durability durability) throws Exception {
+        File dbFile = new File(mTempFolder.getRoot(), durability.name() + ".db");
+
+        MicroDB db = DBBuilder.builder()
+                .durability(durability)
+                .build(dbFile);
+
+        final int[] samples = new int[10000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = i * 31;
+        }
+
+        MyDBObj obj = db.insert(MyDBObj.class);
+        obj.setMyInt(42);
+        obj.setMyIntArray(samples);
+        final UUID id = obj.getId();
+        db.sync();
+        db.close();
+        db.shutdown();
+
+        db = DBBuilder.builder()
+                .durability(durability)
+                .build(dbFile);
+        MapDBDriver driver = (MapDBDriver) db.getDriver();
+        assertEquals(42, driver.get(id).asObject().get("myInt").asInt());
+
+        //stored as a schema record with its array out of line, whichever thread MapDB
+        //serialized it on
+        LazyUBObject stored = (LazyUBObject) driver.get(id);
+        assertNotNull(stored.getSchemaType());
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_SCHEMA, stored.getRecord()[0] & 0xFF);
+        assertTrue(stored.getRecord().length < 1024);
+        assertNotNull(driver.mArrays.get(id, "myIntArray"));
+        assertTrue(Arrays.equals(samples, db.get(id, new MyDBObj()).getMyIntArray()));
+        db.close();
+        db.shutdown();
+    }
+
+    @Test
+    public void testFullWAL() throws Exception {
+        testReopen(DBBuilder.Durability.FullWAL);
+    }
+
+    @Test
+    public void testAsyncWAL() throws Exception {
+        testReopen(DBBuilder.Durability.AsyncWAL);
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        testReopen(DBBuilder.Durability.Checkpoint);
+    }
+
+    @Test
+    public void testMemoryMapped() throws Exception {
+        testReopen(DBBuilder.Durability.MemoryMapped);
+    }
+
+    @Test
+    public void testPeriodicCheckpoint() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .durability(DBBuilder.Durability.Checkpoint)
+                .checkpointInterval(500)
+                .build(new File(mTempFolder.getRoot(), "checkpoint.db"));
+
+        WriteQueueStats stats = db.getWriteQueueStats();
+        final long commitsBefore = stats.getNumCommits();
+
+        db.insert(MyDBObj.class);
+        db.sync();
+        //sync does not commit in this profile
+        assertEquals(commitsBefore, stats.getNumCommits());
+
+        final long deadline = System.currentTimeMillis() + 3000;
+        while (stats.getNumCommits() == commitsBefore && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(commitsBefore + 1, stats.getNumCommits());
+
+        db.close();
+        db.shutdown();
+    }
+
+    @Test
+    public void testUpgradeRunsWithSettings() throws Exception {
+        final long[] commits = new long[]{-1};
+        MicroDB db = DBBuilder.builder()
+                .durability(DBBuilder.Durability.Checkpoint)
+                .checkpointInterval(60 * 1000)
+                .callback(new DBCallback() {
+                    @Override
+                    public void onUpgrade(MicroDB db, int oldVersion, int newVersion) throws IOException {
+                        db.insert(MyDBObj.class);
+                        db.sync();
+                        commits[0] = db.getWriteQueueStats().getNumCommits();
+                    }
+                })
+                .build(new File(mTempFolder.getRoot(), "upgrade.db"));
+
+        //the database was configured before it was opened, so the upgrade's sync did not commit
+        assertEquals(0, commits[0]);
+
+        db.close();
+        db.shutdown();
+    }
+}
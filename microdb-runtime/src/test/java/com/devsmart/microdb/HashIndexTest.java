@@ -0,0 +1,147 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class HashIndexTest {
+
+    private static final String INDEX_NAME = "Person.email_idx";
+    private static final String COMPOSITE_INDEX_NAME = "Person.lastName_age_idx";
+
+    private static final MapFunction<String> EMAIL_INDEX = new MapFunction<String>() {
+        @Override
+        public void map(UBValue value, Emitter<String> emitter) {
+            if (value != null && value.isObject()) {
+                UBValue email = value.asObject().get("email");
+                if (email != null && email.isString()) {
+                    emitter.emit(email.asString());
+                }
+            }
+        }
+    };
+
+    private static final MapFunction<CompositeKey> LAST_NAME_AGE_INDEX = new MapFunction<CompositeKey>() {
+        @Override
+        public void map(UBValue value, Emitter<CompositeKey> emitter) {
+            if (value != null && value.isObject()) {
+                UBObject obj = value.asObject();
+                UBValue lastName = obj.get("lastName");
+                UBValue age = obj.get("age");
+                if (lastName != null && lastName.isString() && age != null && age.isInteger()) {
+                    emitter.emit(CompositeKey.of(lastName.asString(), age.asInt()));
+                }
+            }
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static UBObject createPerson(String email, String lastName, int age) {
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString("Person"));
+        obj.put("email", UBValueFactory.createString(email));
+        obj.put("lastName", UBValueFactory.createString(lastName));
+        obj.put("age", UBValueFactory.createInt(age));
+        return obj;
+    }
+
+    private static UUID insert(String email, String lastName, int age, MapDBDriver driver) throws IOException {
+        final UUID id = driver.genId();
+        driver.insert(id, createPerson(email, lastName, age));
+        return id;
+    }
+
+    private static MapDBDriver open(DB mapdb) throws IOException {
+        MapDBDriver driver = new MapDBDriver(mapdb);
+        driver.addIndex(INDEX_NAME, MicroDB.IndexKind.Hash, EMAIL_INDEX);
+        driver.addIndex(COMPOSITE_INDEX_NAME, MicroDB.IndexKind.Hash, LAST_NAME_AGE_INDEX);
+        return driver;
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "people.db");
+        DB mapdb = DBMaker.newFileDB(file).make();
+        MapDBDriver driver = open(mapdb);
+        assertTrue(mapdb.get(INDEX_NAME) instanceof HTreeMap);
+
+        UUID paul = insert("paul@example.com", "Soucy", 40, driver);
+        UUID greg = insert("greg@example.com", "Soucy", 40, driver);
+        UUID shared = insert("shared@example.com", "Simon", 70, driver);
+        UUID shared2 = insert("shared@example.com", "Simon", 71, driver);
+
+        assertEquals(1, driver.lookupIndex(INDEX_NAME, "paul@example.com").size());
+        assertEquals(paul, driver.lookupIndex(INDEX_NAME, "paul@example.com").get(0));
+        assertEquals(2, driver.lookupIndex(INDEX_NAME, "shared@example.com").size());
+        assertTrue(driver.lookupIndex(INDEX_NAME, "nobody@example.com").isEmpty());
+
+        List<UUID> soucys = driver.lookupIndex(COMPOSITE_INDEX_NAME, CompositeKey.of("Soucy", 40));
+        assertEquals(2, soucys.size());
+        assertTrue(soucys.contains(paul));
+        assertTrue(soucys.contains(greg));
+
+        //equality queries work through a cursor too
+        Cursor cursor = driver.queryIndex(INDEX_NAME, "greg@example.com", true, "greg@example.com", true);
+        assertEquals(1, cursor.getCount());
+        assertEquals(greg, cursor.get().getPrimaryKey());
+        assertEquals("greg@example.com", cursor.get().getSecondaryKey());
+
+        cursor = driver.queryIndex(COMPOSITE_INDEX_NAME, CompositeKey.of("Simon"), 71, true, 71, true);
+        assertEquals(shared2, cursor.get().getPrimaryKey());
+        assertEquals(CompositeKey.of("Simon", 71), cursor.get().getSecondaryKey());
+
+        try {
+            driver.queryIndex(INDEX_NAME, "a", true, "z", true);
+            fail("hash indexes can not answer range queries");
+        } catch (IllegalArgumentException e) {
+        }
+
+        //updates and deletes move the ids
+        driver.update(greg, createPerson("gregory@example.com", "Soucy", 41));
+        driver.delete(shared);
+        assertTrue(driver.lookupIndex(INDEX_NAME, "greg@example.com").isEmpty());
+        assertEquals(greg, driver.lookupIndex(INDEX_NAME, "gregory@example.com").get(0));
+        assertEquals(shared2, driver.lookupIndex(INDEX_NAME, "shared@example.com").get(0));
+        assertEquals(1, driver.lookupIndex(COMPOSITE_INDEX_NAME, CompositeKey.of("Soucy", 40)).size());
+
+        mapdb.commit();
+        mapdb.close();
+
+        mapdb = DBMaker.newFileDB(file).make();
+        driver = open(mapdb);
+        assertEquals(greg, driver.lookupIndex(INDEX_NAME, "gregory@example.com").get(0));
+        assertEquals(paul, driver.lookupIndex(COMPOSITE_INDEX_NAME, CompositeKey.of("Soucy", 40)).get(0));
+        mapdb.close();
+
+        //an index changed to a tree index is rebuilt as one
+        mapdb = DBMaker.newFileDB(file).make();
+        driver = new MapDBDriver(mapdb);
+        driver.addIndex(INDEX_NAME, EMAIL_INDEX);
+        assertFalse(mapdb.get(INDEX_NAME) instanceof HTreeMap);
+        assertEquals(3, driver.queryIndex(INDEX_NAME, "a", true, "z", true).getCount());
+        assertEquals(paul, driver.lookupIndex(INDEX_NAME, "paul@example.com").get(0));
+        mapdb.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHashIndexCanNotInclude() throws IOException {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        driver.addIndex(INDEX_NAME, MicroDB.IndexKind.Hash, EMAIL_INDEX, "lastName");
+    }
+}
@@ -0,0 +1,285 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IndexBackfillTest {
+
+    private static final String INDEX_NAME = "Person.age_idx";
+    private static final int NUM_OBJECTS = 2500;
+
+    /**
+     * indexes the age of people. Calls made by the index builder are counted, and can be
+     * held up or made to fail, from one call on or just once.
+     */
+    private static class AgeIndex implements MapFunction<Integer> {
+        final AtomicInteger builderCalls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean hold;
+        volatile int failAfter = Integer.MAX_VALUE;
+        volatile int failOnce = -1;
+
+        @Override
+        public void map(UBValue value, Emitter<Integer> emitter) {
+            if ("MicroDB Index Builder".equals(Thread.currentThread().getName())) {
+                if (hold) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                final int call = builderCalls.incrementAndGet();
+                if (call > failAfter || call == failOnce) {
+                    throw new IllegalStateException("index build stopped");
+                }
+            }
+            if (value != null && value.isObject()) {
+                UBValue age = value.asObject().get("age");
+                if (age != null && age.isInteger()) {
+                    emitter.emit(age.asInt());
+                }
+            }
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static UUID insert(int age, MapDBDriver driver) throws IOException {
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString("Person"));
+        obj.put("age", UBValueFactory.createInt(age));
+
+        final UUID id = driver.genId();
+        driver.insert(id, obj);
+        return id;
+    }
+
+    private File createPeople() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "people.db");
+        MapDBDriver driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+        for (int i = 0; i < NUM_OBJECTS; i++) {
+            insert(i % 50, driver);
+        }
+        driver.commitTransaction();
+        driver.close();
+        return file;
+    }
+
+    private static void waitUntilReady(MapDBDriver driver) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        while (!driver.isIndexReady(INDEX_NAME)) {
+            assertTrue("index build timed out", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testQueriesScanUntilReady() throws Exception {
+        File file = createPeople();
+        DB mapdb = DBMaker.newFileDB(file).make();
+        MapDBDriver driver = new MapDBDriver(mapdb);
+
+        AgeIndex ageIndex = new AgeIndex();
+        ageIndex.hold = true;
+        driver.addIndex(INDEX_NAME, ageIndex);
+        assertFalse(driver.isIndexReady(INDEX_NAME));
+
+        assertEquals(50, driver.queryIndex(INDEX_NAME, 7, true, 7, true).getCount());
+        assertEquals(50, driver.lookupIndex(INDEX_NAME, 7).size());
+
+        //writes go on while the index is built, waiting at most for the current step
+        final MapDBDriver writer = driver;
+        final UUID[] late = new UUID[1];
+        Thread writeThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    late[0] = insert(7, writer);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writeThread.start();
+        ageIndex.release.countDown();
+        writeThread.join();
+        assertEquals(51, driver.queryIndex(INDEX_NAME, 7, true, 7, true).getCount());
+
+        waitUntilReady(driver);
+        assertTrue(ageIndex.builderCalls.get() >= NUM_OBJECTS);
+        assertNull(driver.mIndexBuilds.get(INDEX_NAME));
+
+        NavigableSet<?> index = (NavigableSet<?>) mapdb.get(INDEX_NAME);
+        assertEquals(NUM_OBJECTS + 1, index.size());
+        assertTrue(driver.lookupIndex(INDEX_NAME, 7).contains(late[0]));
+        assertEquals(51, driver.queryIndex(INDEX_NAME, 7, true, 7, true).getCount());
+
+        driver.delete(late[0]);
+        assertEquals(50, driver.lookupIndex(INDEX_NAME, 7).size());
+        driver.close();
+    }
+
+    @Test
+    public void testBuildResumesAfterReopen() throws Exception {
+        File file = createPeople();
+        MapDBDriver driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+
+        AgeIndex ageIndex = new AgeIndex();
+        ageIndex.failAfter = MapDBDriver.BACKFILL_STEP_SIZE + 10;
+        driver.addIndex(INDEX_NAME, ageIndex);
+
+        final long end = System.currentTimeMillis() + 10000;
+        while (ageIndex.builderCalls.get() <= ageIndex.failAfter) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        assertFalse(driver.isIndexReady(INDEX_NAME));
+        assertNotNull(driver.mIndexBuilds.get(INDEX_NAME));
+        driver.commitTransaction();
+        driver.close();
+
+        driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+        ageIndex = new AgeIndex();
+        driver.addIndex(INDEX_NAME, ageIndex);
+        waitUntilReady(driver);
+
+        //only the objects after the first step are indexed again
+        assertEquals(NUM_OBJECTS - MapDBDriver.BACKFILL_STEP_SIZE, ageIndex.builderCalls.get());
+        assertEquals(50, driver.lookupIndex(INDEX_NAME, 7).size());
+        assertEquals(NUM_OBJECTS, driver.queryIndex(INDEX_NAME, null, false, null, false).getCount());
+        driver.close();
+    }
+
+    @Test
+    public void testBuildsOfIndexesNotAddedAreIgnored() throws Exception {
+        File file = createPeople();
+        MapDBDriver driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+
+        AgeIndex ageIndex = new AgeIndex();
+        ageIndex.failAfter = MapDBDriver.BACKFILL_STEP_SIZE + 10;
+        driver.addIndex(INDEX_NAME, ageIndex);
+
+        final long end = System.currentTimeMillis() + 10000;
+        while (ageIndex.builderCalls.get() <= ageIndex.failAfter) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        //left over by an index whose collection was deleted
+        driver.mIndexBuilds.put("Gone.idx", UUID.randomUUID());
+        driver.commitTransaction();
+        driver.close();
+
+        driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+        assertNull(driver.mIndexBuilds.get("Gone.idx"));
+        assertNotNull(driver.mIndexBuilds.get(INDEX_NAME));
+        assertFalse(driver.isBuildingIndex());
+
+        //the build can still resume once the index is added again
+        ageIndex = new AgeIndex();
+        driver.addIndex(INDEX_NAME, ageIndex);
+        waitUntilReady(driver);
+        assertFalse(driver.isBuildingIndex());
+        assertTrue(driver.mIndexBuilds.isEmpty());
+        assertEquals(NUM_OBJECTS - MapDBDriver.BACKFILL_STEP_SIZE, ageIndex.builderCalls.get());
+        driver.close();
+    }
+
+    @Test
+    public void testFailedBuildIsRetried() throws Exception {
+        File file = createPeople();
+        MapDBDriver driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+        driver.mBackfillRetryDelayMillis = 10;
+
+        AgeIndex ageIndex = new AgeIndex();
+        ageIndex.failOnce = MapDBDriver.BACKFILL_STEP_SIZE + 11;
+        driver.addIndex(INDEX_NAME, ageIndex);
+        waitUntilReady(driver);
+
+        //the second step failed once, and was tried again from where the first one ended
+        assertEquals(NUM_OBJECTS + 11, ageIndex.builderCalls.get());
+        assertEquals(50, driver.lookupIndex(INDEX_NAME, 7).size());
+        assertEquals(NUM_OBJECTS, driver.queryIndex(INDEX_NAME, null, false, null, false).getCount());
+        driver.close();
+    }
+
+    @Test
+    public void testFailedBuildIsReported() throws Exception {
+        File file = createPeople();
+        MapDBDriver driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+        driver.mBackfillRetryDelayMillis = 1;
+
+        AgeIndex ageIndex = new AgeIndex();
+        ageIndex.failAfter = MapDBDriver.BACKFILL_STEP_SIZE + 10;
+        driver.addIndex(INDEX_NAME, ageIndex);
+
+        final long end = System.currentTimeMillis() + 10000;
+        IOException failure = null;
+        while (failure == null) {
+            assertTrue("index build did not give up", System.currentTimeMillis() < end);
+            try {
+                driver.lookupIndex(INDEX_NAME, 7);
+                Thread.sleep(10);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        assertTrue(failure.getCause() instanceof IllegalStateException);
+        assertFalse(driver.isIndexReady(INDEX_NAME));
+        assertEquals(MapDBDriver.BACKFILL_STEP_SIZE + 10 + MapDBDriver.BACKFILL_ATTEMPTS, ageIndex.builderCalls.get());
+
+        //recomputing the index starts over
+        ageIndex.failAfter = Integer.MAX_VALUE;
+        driver.recomputeIndex(INDEX_NAME);
+        waitUntilReady(driver);
+        assertEquals(50, driver.lookupIndex(INDEX_NAME, 7).size());
+        driver.close();
+    }
+
+    @Test
+    public void testRecomputeIndexRebuildsInBackground() throws Exception {
+        File file = createPeople();
+        MapDBDriver driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+        AgeIndex ageIndex = new AgeIndex();
+        driver.addIndex(INDEX_NAME, ageIndex);
+        waitUntilReady(driver);
+
+        ageIndex.hold = true;
+        driver.recomputeIndex(INDEX_NAME);
+        assertFalse(driver.isIndexReady(INDEX_NAME));
+        assertEquals(50, driver.lookupIndex(INDEX_NAME, 7).size());
+
+        ageIndex.release.countDown();
+        waitUntilReady(driver);
+        assertEquals(50, driver.lookupIndex(INDEX_NAME, 7).size());
+        driver.close();
+    }
+
+    @Test
+    public void testNewDatabaseIsReady() throws IOException {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        AgeIndex ageIndex = new AgeIndex();
+        driver.addIndex(INDEX_NAME, ageIndex);
+        assertTrue(driver.isIndexReady(INDEX_NAME));
+        insert(7, driver);
+        assertEquals(1, driver.lookupIndex(INDEX_NAME, 7).size());
+        assertEquals(0, ageIndex.builderCalls.get());
+    }
+}
@@ -0,0 +1,108 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.junit.Test;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LazyUBObjectTest {
+
+    private static UBObject createValue() {
+        UBObject nested = UBValueFactory.createObject();
+        nested.put("a", UBValueFactory.createInt(1));
+
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString("thing"));
+        obj.put("count", UBValueFactory.createInt(100000));
+        obj.put("ratio", UBValueFactory.createFloat64(0.5));
+        obj.put("data", UBValueFactory.createArray(new int[]{1, 2, 3}));
+        obj.put("nested", nested);
+        return obj;
+    }
+
+    private static byte[] serialize(UBValue value) throws IOException {
+        DataOutput2 out = new DataOutput2();
+        MapDBDriver.SERIALIZER_UBVALUE.serialize(out, value);
+        return out.copyBytes();
+    }
+
+    private static UBValue deserialize(byte[] data) throws IOException {
+        return MapDBDriver.SERIALIZER_UBVALUE.deserialize(new DataInput2(ByteBuffer.wrap(data), 0), data.length);
+    }
+
+    @Test
+    public void testLazyGet() throws IOException {
+        UBValue value = deserialize(serialize(createValue()));
+        assertTrue(value instanceof LazyUBObject);
+
+        UBObject obj = value.asObject();
+        assertEquals(5, obj.size());
+        assertTrue(obj.containsKey("ratio"));
+        assertFalse(obj.containsKey("missing"));
+        assertNull(obj.get("missing"));
+        assertEquals("thing", obj.get("type").asString());
+        assertEquals(100000, obj.get("count").asInt());
+        assertEquals(0.5, obj.get("ratio").asFloat64(), 0);
+        assertTrue(Arrays.equals(new int[]{1, 2, 3}, obj.get("data").asInt32Array()));
+        assertEquals(1, obj.get("nested").asObject().get("a").asInt());
+        assertEquals(createValue(), obj);
+    }
+
+    @Test
+    public void testUnmodifiedKeepsEncoding() throws IOException {
+        byte[] data = serialize(createValue());
+        UBValue value = deserialize(data);
+        value.asObject().get("type");
+        assertTrue(Arrays.equals(data, serialize(value)));
+    }
+
+    @Test
+    public void testModify() throws IOException {
+        UBObject obj = deserialize(serialize(createValue())).asObject();
+        obj.put("count", UBValueFactory.createInt(5));
+        obj.remove("ratio");
+        assertEquals(4, obj.size());
+
+        UBObject copy = deserialize(serialize(obj)).asObject();
+        assertEquals(5, copy.get("count").asInt());
+        assertFalse(copy.containsKey("ratio"));
+        assertEquals("thing", copy.get("type").asString());
+        assertEquals(obj, copy);
+    }
+
+    @Test
+    public void testNestedChangeIsWritten() throws IOException {
+        UBObject obj = deserialize(serialize(createValue())).asObject();
+        obj.get("nested").asObject().put("a", UBValueFactory.createInt(2));
+
+        UBObject copy = deserialize(serialize(obj)).asObject();
+        assertEquals(2, copy.get("nested").asObject().get("a").asInt());
+    }
+
+    @Test
+    public void testOptimizedContainers() throws IOException {
+        //{#i2 i1'x' i7  i1'y' [$i#i3 1 2 3}, written by hand since UBWriter may not use them
+        byte[] data = new byte[]{
+                (byte) MapDBDriver.UBValueSerializer.FORMAT_V1,
+                '{', '#', 'i', 2,
+                'i', 1, 'x', 'i', 7,
+                'i', 1, 'y', '[', '$', 'i', '#', 'i', 3, 1, 2, 3,
+                'Z'
+        };
+        DataInput2 in = new DataInput2(ByteBuffer.wrap(data), 0);
+        UBObject obj = MapDBDriver.SERIALIZER_UBVALUE.deserialize(in, data.length).asObject();
+        assertEquals(data.length - 1, in.pos);
+        assertEquals(2, obj.size());
+        assertEquals(7, obj.get("x").asInt());
+        assertEquals(3, obj.get("y").asArray().size());
+    }
+}
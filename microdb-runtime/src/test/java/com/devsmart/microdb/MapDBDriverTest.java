@@ -2,12 +2,20 @@ package com.devsmart.microdb;
 
 
 import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
 import com.devsmart.ubjson.UBValueFactory;
+import com.devsmart.ubjson.UBWriter;
 import org.junit.Test;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
@@ -33,7 +41,7 @@ public class MapDBDriverTest {
                 .make();
 
         MapDBDriver dbDriver = new MapDBDriver(mapdb);
-        dbDriver.addIndex("type", MicroDB.INDEX_OBJECT_TYPE);
+        dbDriver.addIndex(MicroDB.INDEX_TYPE_ID, MicroDB.createTypeIndex(dbDriver));
 
         insert("dog", "fido", dbDriver);
         insert("cat", "whiskers", dbDriver);
@@ -42,23 +50,73 @@ public class MapDBDriverTest {
         insert("dog", "mondo", dbDriver);
         insert("dog", "bolt", dbDriver);
 
-        Cursor rows = dbDriver.queryIndex("type", "dog", true, "dog", true);
+        final Integer dog = dbDriver.getTypeId("dog");
+        final Integer cat = dbDriver.getTypeId("cat");
+        assertEquals(-1, dbDriver.getTypeId("bird"));
+
+        Cursor rows = dbDriver.queryIndex(MicroDB.INDEX_TYPE_ID, dog, true, dog, true);
         int dogCount = 0;
         do {
             Row r = rows.get();
-            assertEquals("dog", r.getSecondaryKey());
+            assertEquals(dog, r.getSecondaryKey());
             dogCount++;
         } while(rows.next());
         assertEquals(3, dogCount);
 
-        rows = dbDriver.queryIndex("type", "cat", true, "cat", true);
+        rows = dbDriver.queryIndex(MicroDB.INDEX_TYPE_ID, cat, true, cat, true);
         int catCount = 0;
         do {
             Row r = rows.get();
-            assertEquals("cat", r.getSecondaryKey());
+            assertEquals(cat, r.getSecondaryKey());
             catCount++;
         } while(rows.next());
         assertEquals(3, catCount);
 
     }
+
+    private static UBObject createValue(int i) {
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString("thing"));
+        obj.put("value", UBValueFactory.createInt(i));
+        return obj;
+    }
+
+    @Test
+    public void serializerRoundTrip() throws IOException {
+        MapDBDriver.UBValueSerializer serializer = new MapDBDriver.UBValueSerializer();
+
+        DataOutput2 out = new DataOutput2();
+        serializer.serialize(out, createValue(1));
+        serializer.serialize(out, createValue(2));
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_V1, out.buf[0] & 0xFF);
+
+        //records are self-delimiting, so two of them can be read back to back
+        DataInput2 in = new DataInput2(ByteBuffer.wrap(out.copyBytes()), 0);
+        assertEquals(1, serializer.deserialize(in, -1).asObject().get("value").asInt());
+        assertEquals(2, serializer.deserialize(in, -1).asObject().get("value").asInt());
+
+        //any other DataInput works too
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(out.copyBytes()));
+        assertEquals(1, serializer.deserialize(stream, -1).asObject().get("value").asInt());
+        assertEquals(2, serializer.deserialize(stream, -1).asObject().get("value").asInt());
+    }
+
+    @Test
+    public void serializerReadsLegacyRecords() throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        UBWriter writer = new UBWriter(encoded);
+        writer.write(createValue(7));
+        writer.close();
+
+        //the old format: int length followed by the UBJSON bytes
+        DataOutput2 out = new DataOutput2();
+        out.writeInt(encoded.size());
+        out.write(encoded.toByteArray());
+
+        MapDBDriver.UBValueSerializer serializer = new MapDBDriver.UBValueSerializer();
+        DataInput2 in = new DataInput2(ByteBuffer.wrap(out.copyBytes()), 0);
+        UBValue value = serializer.deserialize(in, out.pos);
+        assertEquals(7, value.asObject().get("value").asInt());
+        assertEquals(out.pos, in.pos);
+    }
 }
@@ -4,13 +4,32 @@ package com.devsmart.microdb;
 import com.devsmart.ubjson.UBObject;
 import com.devsmart.ubjson.UBValueFactory;
 import example.MyDBObj;
+import org.junit.Rule;
 import org.junit.Test;
-
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ReadWriteTest {
 
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
     @Test
     public void testWriteEmbeddedObj() throws Exception {
 
@@ -60,4 +79,172 @@ public class ReadWriteTest {
         assertNotNull(dobj1.get("myDBO"));
         assertTrue(dobj1.get("myDBO").isString());
     }
+
+    @Test
+    public void testConcurrentGetReturnsSameInstance() throws Exception {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+
+        MicroDB db = new MicroDB(driver, 0, new DBBuilder.NullCallback());
+        final UUID id = db.insert(MyDBObj.class).getId();
+        db.sync();
+        db.shutdown();
+
+        //a fresh MicroDB has no live objects, so every thread misses the cache
+        final MicroDB db2 = new MicroDB(driver, 0, new DBBuilder.NullCallback());
+        final int numThreads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<MyDBObj>> results = new ArrayList<Future<MyDBObj>>();
+        for (int i = 0; i < numThreads; i++) {
+            results.add(executor.submit(new Callable<MyDBObj>() {
+                @Override
+                public MyDBObj call() throws Exception {
+                    start.await();
+                    return db2.get(id, new MyDBObj());
+                }
+            }));
+        }
+        start.countDown();
+
+        MyDBObj first = results.get(0).get();
+        assertNotNull(first);
+        for (Future<MyDBObj> result : results) {
+            assertSame(first, result.get());
+        }
+        executor.shutdown();
+
+        db2.delete(first);
+        assertNull(db2.get(id, new MyDBObj()));
+
+        db2.shutdown();
+    }
+
+    @Test
+    public void testAutoSave() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .autoSave(200, 1000)
+                .buildMemoryDB();
+
+        MyDBObj obj = db.insert(MyDBObj.class);
+        final UUID id = obj.getId();
+        db.sync();
+
+        //modified objects are written without an explicit save and without waiting for the GC,
+        //but not on their first change
+        obj.setMyInt(5);
+        obj.setMyString("autosave");
+        obj = null;
+        db.sync();
+        assertEquals(0, db.getDriver().get(id).asObject().get("myInt").asInt());
+        assertEquals(1, db.getNumDirtyObjects());
+
+        waitUntilWritten(db);
+        UBObject data = db.getDriver().get(id).asObject();
+        assertEquals(5, data.get("myInt").asInt());
+        assertEquals("autosave", data.get("myString").asString());
+
+        db.shutdown();
+    }
+
+    private static void waitUntilWritten(MicroDB db) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        while (db.getNumDirtyObjects() > 0) {
+            assertTrue("autosave timed out", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        db.sync();
+    }
+
+    @Test
+    public void testAutoSaveThreshold() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .autoSave(60 * 60 * 1000, 10)
+                .buildMemoryDB();
+
+        ArrayList<MyDBObj> objs = new ArrayList<MyDBObj>();
+        for (int i = 0; i < 10; i++) {
+            objs.add(db.insert(MyDBObj.class));
+        }
+        db.sync();
+
+        for (int i = 0; i < 9; i++) {
+            objs.get(i).setMyInt(i + 1);
+        }
+        db.sync();
+        assertEquals(9, db.getNumDirtyObjects());
+
+        //the tenth changed object writes them all, long before the delay
+        objs.get(9).setMyInt(10);
+        waitUntilWritten(db);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, db.getDriver().get(objs.get(i).getId()).asObject().get("myInt").asInt());
+        }
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testShutdownWritesChanges() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .autoSave(60 * 60 * 1000, 1000)
+                .buildMemoryDB();
+
+        MyDBObj obj = db.insert(MyDBObj.class);
+        db.sync();
+        obj.setMyInt(5);
+        Driver driver = db.getDriver();
+        db.shutdown();
+        assertEquals(0, db.getNumDirtyObjects());
+        assertEquals(5, driver.get(obj.getId()).asObject().get("myInt").asInt());
+    }
+
+    @Test
+    public void testTypeIndexUpgrade() throws Exception {
+        File file = new File(mTempFolder.getRoot(), "upgrade.db");
+
+        //a database from before types had ids, indexed by type name
+        MapDBDriver driver = new MapDBDriver(DBMaker.newFileDB(file).make());
+        UBObject meta = driver.getMeta();
+        meta.put("instance", UBValueFactory.createString(UUID.randomUUID().toString()));
+        meta.put("schema_version", UBValueFactory.createInt(0));
+        driver.saveMeta(meta);
+        driver.getDB().createTreeSet("type").make();
+        List<UUID> ids = new ArrayList<UUID>();
+        for (int i = 0; i < 3; i++) {
+            MyDBObj obj = new MyDBObj();
+            obj.setMyInt(i);
+            UBObject data = UBValueFactory.createObject();
+            obj.writeToUBObject(data);
+            UUID id = driver.genId();
+            driver.insert(id, data);
+            ids.add(id);
+        }
+        driver.commitTransaction();
+        driver.close();
+
+        MicroDB db = DBBuilder.builder().build(file);
+        int count = 0;
+        for (MyDBObj obj : db.getAllOfType(MyDBObj.class)) {
+            assertTrue(ids.contains(obj.getId()));
+            count++;
+        }
+        assertEquals(3, count);
+        MapDBDriver upgraded = (MapDBDriver) db.getDriver();
+        assertTrue(upgraded.getDB().exists(MicroDB.INDEX_TYPE_ID));
+        assertTrue(!upgraded.getDB().exists("type"));
+
+        db.insert(MyDBObj.class);
+        db.sync();
+        db.close();
+        db.shutdown();
+
+        db = DBBuilder.builder().build(file);
+        count = 0;
+        for (MyDBObj obj : db.getAllOfType(MyDBObj.class)) {
+            count++;
+        }
+        assertEquals(4, count);
+        db.close();
+        db.shutdown();
+    }
 }
@@ -0,0 +1,148 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RecordCompressorTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static UBObject createCustomer(int i) {
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString("Customer"));
+        obj.put("name", UBValueFactory.createString("Customer number " + i));
+        obj.put("street", UBValueFactory.createString("1234 Main Street, Springfield"));
+        obj.put("email", UBValueFactory.createString("customer" + i + "@example.com"));
+        obj.put("status", UBValueFactory.createString(i % 2 == 0 ? "active" : "inactive"));
+        obj.put("visits", UBValueFactory.createInt(i));
+        return obj;
+    }
+
+    private static void assertCustomer(int i, UBValue value) {
+        UBObject obj = value.asObject();
+        assertEquals("Customer", obj.get("type").asString());
+        assertEquals("Customer number " + i, obj.get("name").asString());
+        assertEquals("customer" + i + "@example.com", obj.get("email").asString());
+        assertEquals(i, obj.get("visits").asInt());
+    }
+
+    private static MapDBDriver open(File file, int minRecordSize) throws IOException {
+        MapDBDriver retval = new MapDBDriver(DBMaker.newFileDB(file).make());
+        retval.setCompression(minRecordSize);
+        retval.commitTransaction();
+        return retval;
+    }
+
+    private static ArrayList<UUID> insertCustomers(MapDBDriver driver, int count) throws IOException {
+        ArrayList<UUID> retval = new ArrayList<UUID>(count);
+        for (int i = 0; i < count; i++) {
+            UUID id = driver.genId();
+            driver.insert(id, createCustomer(i));
+            retval.add(id);
+        }
+        return retval;
+    }
+
+    @Test
+    public void testCompressType() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "compress.db");
+        MapDBDriver driver = open(file, 32);
+        ArrayList<UUID> ids = insertCustomers(driver, 50);
+        final int rawSize = driver.encode(ids.get(7), driver.get(ids.get(7))).length;
+
+        assertTrue(driver.compressType("Customer"));
+        byte[] record = driver.encode(ids.get(7), driver.get(ids.get(7)));
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_COMPRESSED, record[0] & 0xFF);
+        assertTrue(record.length < rawSize);
+        for (int i = 0; i < ids.size(); i++) {
+            assertCustomer(i, driver.get(ids.get(i)));
+        }
+
+        //new records use the dictionary too
+        UUID id = driver.genId();
+        driver.insert(id, createCustomer(1000));
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_COMPRESSED, driver.encode(null, createCustomer(1000))[0] & 0xFF);
+        driver.commitTransaction();
+        driver.close();
+
+        //dictionaries are kept in the database, and are needed even if compression is off
+        driver = open(file, 0);
+        for (int i = 0; i < ids.size(); i++) {
+            assertCustomer(i, driver.get(ids.get(i)));
+        }
+        assertCustomer(1000, driver.get(id));
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_SCHEMA, driver.encode(null, createCustomer(1))[0] & 0xFF);
+        driver.close();
+    }
+
+    @Test
+    public void testSmallRecordsStayRaw() throws IOException {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        driver.setCompression(1024);
+        insertCustomers(driver, 50);
+        assertTrue(driver.compressType("Customer"));
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_SCHEMA, driver.encode(null, createCustomer(1))[0] & 0xFF);
+        driver.close();
+    }
+
+    @Test
+    public void testRollbackForgetsDictionary() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "rollback.db");
+        MapDBDriver driver = open(file, 32);
+        ArrayList<UUID> ids = insertCustomers(driver, 50);
+        driver.commitTransaction();
+
+        assertTrue(driver.compressType("Customer"));
+        driver.rollbackTransaction();
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_SCHEMA, driver.encode(null, createCustomer(1))[0] & 0xFF);
+        assertCustomer(3, driver.get(ids.get(3)));
+        driver.close();
+    }
+
+    @Test
+    public void testBackgroundTraining() throws Exception {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        driver.setCompression(32);
+        ArrayList<UUID> ids = insertCustomers(driver, RecordCompressor.TRAINING_THRESHOLD);
+
+        final long end = System.currentTimeMillis() + 10000;
+        while (!driver.mCompressor.hasDictionary(driver.mSchema.getType("Customer"))
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(driver.mCompressor.hasDictionary(driver.mSchema.getType("Customer")));
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_COMPRESSED, driver.encode(null, createCustomer(1))[0] & 0xFF);
+        assertCustomer(5, driver.get(ids.get(5)));
+        driver.close();
+    }
+
+    @Test
+    public void testTrainFindsCommonBytes() {
+        ArrayList<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; i++) {
+            samples.add(("{\"common prefix\":" + i + ",\"and a common suffix\"}").getBytes());
+        }
+        String dictionary = new String(RecordCompressor.train(samples, 1024));
+        assertTrue(dictionary.contains("common prefix"));
+        assertTrue(dictionary.contains("and a common suffix"));
+
+        samples.clear();
+        samples.add("nothing".getBytes());
+        samples.add("in common".getBytes());
+        assertNull(RecordCompressor.train(samples, 1024));
+    }
+}
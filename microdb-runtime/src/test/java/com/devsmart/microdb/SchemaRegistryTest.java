@@ -0,0 +1,195 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DBMaker;
+import org.mapdb.DataOutput2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SchemaRegistryTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static UBObject createValue(String type, UUID ref, int count) {
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString(type));
+        obj.put("ref", UBValueFactory.createString(ref.toString()));
+        obj.put("count", UBValueFactory.createInt(count));
+        obj.put("name", UBValueFactory.createString("not-a-uuid"));
+        return obj;
+    }
+
+    private static void assertValue(String type, UUID ref, int count, UBValue value) {
+        UBObject obj = value.asObject();
+        assertEquals(4, obj.size());
+        assertEquals(type, obj.get("type").asString());
+        assertEquals(ref.toString(), obj.get("ref").asString());
+        assertEquals(count, obj.get("count").asInt());
+        assertEquals("not-a-uuid", obj.get("name").asString());
+    }
+
+    private static MapDBDriver open(File file) throws IOException {
+        MapDBDriver retval = new MapDBDriver(DBMaker.newFileDB(file).make());
+        retval.commitTransaction();
+        return retval;
+    }
+
+    @Test
+    public void testCompactRecords() throws IOException {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        final UUID ref = UUID.randomUUID();
+        UBObject value = createValue("Thing", ref, 5);
+
+        byte[] record = driver.encode(null, value);
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_SCHEMA, record[0] & 0xFF);
+
+        DataOutput2 plain = new DataOutput2();
+        MapDBDriver.SERIALIZER_UBVALUE.serialize(plain, value);
+        assertTrue(record.length < plain.pos);
+
+        UUID id = driver.genId();
+        driver.insert(id, value);
+        assertValue("Thing", ref, 5, driver.get(id));
+
+        //objects without a type are stored as plain UBJSON
+        UBObject untyped = UBValueFactory.createObject();
+        untyped.put("count", UBValueFactory.createInt(1));
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_V1, driver.encode(null, untyped)[0] & 0xFF);
+
+        driver.close();
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "schema.db");
+        final UUID ref = UUID.randomUUID();
+
+        MapDBDriver driver = open(file);
+        UUID thing = driver.genId();
+        driver.insert(thing, createValue("Thing", ref, 1));
+        UUID other = driver.genId();
+        driver.insert(other, createValue("Other", ref, 2));
+        driver.commitTransaction();
+        driver.close();
+
+        driver = open(file);
+        UBObject value = driver.get(thing).asObject();
+        assertValue("Thing", ref, 1, value);
+        assertValue("Other", ref, 2, driver.get(other));
+
+        //a field the type did not have before gets a new id
+        value.put("extra", UBValueFactory.createBool(true));
+        driver.update(thing, value);
+        driver.commitTransaction();
+        driver.close();
+
+        driver = open(file);
+        value = driver.get(thing).asObject();
+        assertTrue(value.get("extra").asBool());
+        assertEquals(ref.toString(), value.get("ref").asString());
+        driver.close();
+    }
+
+    @Test
+    public void testRollbackForgetsUnsavedIds() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "rollback.db");
+        MapDBDriver driver = open(file);
+
+        UUID id = driver.genId();
+        driver.insert(id, createValue("Thing", UUID.randomUUID(), 1));
+        driver.rollbackTransaction();
+        assertNull(driver.mSchema.getType(0));
+
+        driver.insert(id, createValue("Other", UUID.randomUUID(), 1));
+        driver.commitTransaction();
+        assertEquals("Other", driver.mSchema.getType(0).name);
+        assertEquals("Other", driver.get(id).asObject().get("type").asString());
+        driver.close();
+    }
+
+    private static LazyUBObject writePlain(String[] keys, int[] values) throws IOException {
+        DataOutput2 out = new DataOutput2();
+        UBCodec.writeObjectStart(out);
+        for (int i = 0; i < keys.length; i++) {
+            UBCodec.writeKey(out, keys[i]);
+            UBCodec.writeInt(out, values[i]);
+        }
+        UBCodec.writeKey(out, "type");
+        UBCodec.writeString(out, "Thing");
+        UBCodec.writeObjectEnd(out);
+        return LazyUBObject.wrap(out.buf, out.pos);
+    }
+
+    @Test
+    public void testTranscodeMatchesKeyBytes() throws IOException {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        LazyUBObject first = writePlain(new String[]{"a", "b", "c"}, new int[]{1, 2, 3});
+        assertEquals("Thing", first.getTypeName());
+        UUID id = driver.genId();
+        driver.insert(id, first);
+
+        //other order, a new field, and a key that is not ASCII
+        LazyUBObject second = writePlain(new String[]{"c", "ä", "a", "b"}, new int[]{30, 40, 10, 20});
+        UUID id2 = driver.genId();
+        driver.insert(id2, second);
+
+        SchemaRegistry.TypeSchema type = driver.mSchema.getType("Thing");
+        assertEquals("ä", type.getFieldName(3));
+        UBObject value = driver.get(id2).asObject();
+        assertEquals(10, value.get("a").asInt());
+        assertEquals(20, value.get("b").asInt());
+        assertEquals(30, value.get("c").asInt());
+        assertEquals(40, value.get("ä").asInt());
+        assertEquals(2, driver.get(id).asObject().get("b").asInt());
+        driver.close();
+    }
+
+    @Test
+    public void testTypeSet() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "types.db");
+        MapDBDriver driver = open(file);
+        TypeSet types = new TypeSet("Thing", "Other");
+        assertTrue(types.contains(createValue("Thing", UUID.randomUUID(), 1)));
+        assertFalse(types.contains(createValue("Nope", UUID.randomUUID(), 1)));
+        assertFalse(types.contains(UBValueFactory.createString("Thing")));
+
+        UUID thing = driver.genId();
+        driver.insert(thing, createValue("Thing", UUID.randomUUID(), 1));
+        UUID nope = driver.genId();
+        driver.insert(nope, createValue("Nope", UUID.randomUUID(), 1));
+        driver.commitTransaction();
+        driver.close();
+
+        //stored objects are checked by type id
+        driver = open(file);
+        LazyUBObject value = (LazyUBObject) driver.get(thing);
+        assertNotNull(value.getKnownType());
+        assertTrue(types.contains(value));
+        assertFalse(types.contains(driver.get(nope)));
+
+        //a fresh snapshot knows its id once written, and new types are picked up
+        LazyUBObject snapshot = writePlain(new String[]{"a"}, new int[]{1});
+        assertNull(snapshot.getKnownType());
+        driver.insert(driver.genId(), snapshot);
+        assertEquals(driver.mSchema.getType("Thing"), snapshot.getKnownType());
+        assertTrue(types.contains(snapshot));
+
+        UUID other = driver.genId();
+        driver.insert(other, createValue("Other", UUID.randomUUID(), 1));
+        assertEquals(2, driver.getTypeId("Other"));
+        assertTrue(types.contains(driver.get(other)));
+        assertTrue(types.contains(driver.get(thing)));
+        driver.close();
+    }
+}
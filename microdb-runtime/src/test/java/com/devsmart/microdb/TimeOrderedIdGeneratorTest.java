@@ -0,0 +1,111 @@
+package com.devsmart.microdb;
+
+
+import example.MyDBObj;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class TimeOrderedIdGeneratorTest {
+
+    private static class FixedClock extends TimeOrderedIdGenerator {
+        long mMillis;
+
+        @Override
+        protected long currentTimeMillis() {
+            return mMillis;
+        }
+    }
+
+    @Test
+    public void testLayout() {
+        final long before = System.currentTimeMillis();
+        UUID id = new TimeOrderedIdGenerator().generateId();
+        final long after = System.currentTimeMillis();
+
+        assertEquals(7, id.version());
+        assertEquals(2, id.variant());
+        final long timestamp = TimeOrderedIdGenerator.getTimestamp(id);
+        assertTrue(timestamp >= before && timestamp <= after);
+    }
+
+    @Test
+    public void testMonotonic() {
+        FixedClock generator = new FixedClock();
+        generator.mMillis = 1000;
+        UUID previous = generator.generateId();
+
+        //more ids in one millisecond than the counter holds, then a clock that goes back
+        for (int i = 0; i < 10000; i++) {
+            if (i == 5000) {
+                generator.mMillis = 500;
+            }
+            UUID id = generator.generateId();
+            assertTrue(id.compareTo(previous) > 0);
+            assertEquals(7, id.version());
+            previous = id;
+        }
+
+        generator.mMillis = 2000;
+        UUID id = generator.generateId();
+        assertTrue(id.compareTo(previous) > 0);
+        assertEquals(2000, TimeOrderedIdGenerator.getTimestamp(id));
+    }
+
+    @Test
+    public void testUniqueAcrossThreads() throws Exception {
+        final TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<List<UUID>>> results = new ArrayList<Future<List<UUID>>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<List<UUID>>() {
+                @Override
+                public List<UUID> call() throws Exception {
+                    List<UUID> retval = new ArrayList<UUID>();
+                    for (int j = 0; j < 20000; j++) {
+                        retval.add(generator.generateId());
+                    }
+                    return retval;
+                }
+            }));
+        }
+        Set<UUID> ids = new HashSet<UUID>();
+        for (Future<List<UUID>> result : results) {
+            ids.addAll(result.get());
+        }
+        executor.shutdown();
+        assertEquals(4 * 20000, ids.size());
+    }
+
+    @Test
+    public void testInsertOrder() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .idGenerator(new TimeOrderedIdGenerator())
+                .buildMemoryDB();
+
+        List<UUID> ids = new ArrayList<UUID>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(db.insert(MyDBObj.class).getId());
+        }
+        List<UUID> sorted = new ArrayList<UUID>(ids);
+        Collections.sort(sorted);
+        assertEquals(ids, sorted);
+
+        db.sync();
+        for (UUID id : ids) {
+            assertNotNull(db.getDriver().get(id));
+        }
+        db.shutdown();
+    }
+}
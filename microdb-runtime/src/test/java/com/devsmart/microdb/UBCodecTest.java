@@ -0,0 +1,138 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import com.devsmart.ubjson.UBWriter;
+import example.ExtendObj;
+import example.MyDBObj;
+import org.junit.Test;
+import org.mapdb.DBMaker;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class UBCodecTest {
+
+    private static MyDBObj createObj() {
+        MyDBObj obj = new MyDBObj();
+        obj.setMyBool(true);
+        obj.setMyByte((byte) -3);
+        obj.setMyChar('x');
+        obj.setMyShort((short) 1000);
+        obj.setMyInt(-100000);
+        obj.setMyLong(1L << 40);
+        obj.setMyFloat(1.5f);
+        obj.setMyDouble(-2.25);
+        obj.setMyString("héllo");
+        obj.setMyBoolArray(new boolean[]{true, false});
+        obj.setMyByteArray(new byte[]{1, -2, 3});
+        obj.setMyShortArray(new short[]{-300, 300});
+        obj.setMyIntArray(new int[]{1, 2, 100000});
+        obj.setMyLongArray(new long[]{-1L << 50});
+        obj.setMyFloatArray(new float[]{0.5f});
+        obj.setMyDoubleArray(new double[]{0.25, 8});
+
+        MyDBObj embedded = new MyDBObj();
+        embedded.setMyInt(7);
+        obj.setMyDBO(embedded);
+        return obj;
+    }
+
+    private static void assertFields(MyDBObj expected, MyDBObj actual) {
+        assertEquals(expected.getMyBool(), actual.getMyBool());
+        assertEquals(expected.getMyByte(), actual.getMyByte());
+        assertEquals(expected.getMyChar(), actual.getMyChar());
+        assertEquals(expected.getMyShort(), actual.getMyShort());
+        assertEquals(expected.getMyInt(), actual.getMyInt());
+        assertEquals(expected.getMyLong(), actual.getMyLong());
+        assertEquals(expected.getMyFloat(), actual.getMyFloat(), 0);
+        assertEquals(expected.getMyDouble(), actual.getMyDouble(), 0);
+        assertEquals(expected.getMyString(), actual.getMyString());
+        assertTrue(Arrays.equals(expected.getMyBoolArray(), actual.getMyBoolArray()));
+        assertTrue(Arrays.equals(expected.getMyByteArray(), actual.getMyByteArray()));
+        assertTrue(Arrays.equals(expected.getMyShortArray(), actual.getMyShortArray()));
+        assertTrue(Arrays.equals(expected.getMyIntArray(), actual.getMyIntArray()));
+        assertTrue(Arrays.equals(expected.getMyLongArray(), actual.getMyLongArray()));
+        assertTrue(Arrays.equals(expected.getMyFloatArray(), actual.getMyFloatArray()));
+        assertTrue(Arrays.equals(expected.getMyDoubleArray(), actual.getMyDoubleArray()));
+        assertEquals(expected.getMyDBO().getMyInt(), actual.getMyDBO().getMyInt());
+        assertNull(actual.getMyExtendo());
+        assertNull(actual.getMyExtendoArray());
+    }
+
+    private static MyDBObj read(byte[] data) throws IOException {
+        MyDBObj retval = new MyDBObj();
+        DataInput2 in = new DataInput2(ByteBuffer.wrap(data), 0);
+        retval.readFrom(in);
+        assertEquals(data.length, in.pos);
+        return retval;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        MyDBObj obj = createObj();
+        DataOutput2 out = new DataOutput2();
+        obj.writeTo(out);
+        assertFields(obj, read(out.copyBytes()));
+    }
+
+    @Test
+    public void testReadsUBObjectEncoding() throws IOException {
+        MyDBObj obj = createObj();
+        UBObject data = UBValueFactory.createObject();
+        obj.writeToUBObject(data);
+        data.put("unknown", UBValueFactory.createArray(new int[]{1, 2}));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UBWriter writer = new UBWriter(out);
+        writer.write(data);
+        writer.close();
+        assertFields(obj, read(out.toByteArray()));
+    }
+
+    @Test
+    public void testOnlyDeclaringClassesUseCodec() {
+        assertTrue(MicroDB.hasBinaryCodec(MyDBObj.class));
+        //ExtendObj adds fields through writeToUBObject only
+        assertFalse(MicroDB.hasBinaryCodec(ExtendObj.class));
+    }
+
+    @Test
+    public void testSchemaRecord() throws IOException {
+        MyDBObj obj = createObj();
+        DataOutput2 out = new DataOutput2();
+        UBCodec.writeObjectStart(out);
+        ((DBObject) obj).writeFields(out);
+        UBCodec.writeKey(out, "ref");
+        UBCodec.writeUUID(out, UUID.randomUUID());
+        UBCodec.writeKey(out, "type");
+        UBCodec.writeString(out, "MyDBObj");
+        UBCodec.writeObjectEnd(out);
+        LazyUBObject data = LazyUBObject.wrap(out.buf, out.pos);
+
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        byte[] record = driver.encode(null, data);
+        assertEquals(MapDBDriver.UBValueSerializer.FORMAT_SCHEMA, record[0] & 0xFF);
+        assertTrue(record.length < data.getRecord().length);
+
+        UUID id = driver.genId();
+        driver.insert(id, data);
+        UBValue value = driver.get(id);
+        assertEquals("MyDBObj", value.asObject().get("type").asString());
+        assertEquals(data.get("ref").asString(), value.asObject().get("ref").asString());
+
+        MyDBObj copy = new MyDBObj();
+        assertTrue(((LazyUBObject) value).readInto(copy));
+        assertFields(obj, copy);
+        driver.close();
+    }
+}
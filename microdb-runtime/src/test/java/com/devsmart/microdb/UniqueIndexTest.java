@@ -0,0 +1,186 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.devsmart.ubjson.UBValue;
+import com.devsmart.ubjson.UBValueFactory;
+import com.google.common.util.concurrent.ListenableFuture;
+import example.MyDBObj;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UniqueIndexTest {
+
+    private static final String INDEX_NAME = "Person.email_idx";
+
+    private static final MapFunction<String> EMAIL_INDEX = new MapFunction<String>() {
+        @Override
+        public void map(UBValue value, Emitter<String> emitter) {
+            if (value != null && value.isObject()) {
+                UBValue email = value.asObject().get("email");
+                if (email != null && email.isString()) {
+                    emitter.emit(email.asString());
+                }
+            }
+        }
+    };
+
+    private static final MapFunction<String> MY_STRING_INDEX = new MapFunction<String>() {
+        @Override
+        public void map(UBValue value, Emitter<String> emitter) {
+            if (value != null && value.isObject()) {
+                UBValue myString = value.asObject().get("myString");
+                if (myString != null && myString.isString()) {
+                    emitter.emit(myString.asString());
+                }
+            }
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static UBObject createPerson(String email) {
+        UBObject obj = UBValueFactory.createObject();
+        obj.put("type", UBValueFactory.createString("Person"));
+        obj.put("email", UBValueFactory.createString(email));
+        return obj;
+    }
+
+    private static UUID insert(String email, MapDBDriver driver) throws IOException {
+        final UUID id = driver.genId();
+        driver.insert(id, createPerson(email));
+        return id;
+    }
+
+    @Test
+    public void testDriverEnforcesUniqueKeys() throws IOException {
+        File file = new File(mTempFolder.getRoot(), "people.db");
+        DB mapdb = DBMaker.newFileDB(file).make();
+        MapDBDriver driver = new MapDBDriver(mapdb);
+        driver.addIndex(INDEX_NAME, MicroDB.IndexKind.Unique, EMAIL_INDEX);
+
+        UUID paul = insert("paul@example.com", driver);
+        UUID greg = insert("greg@example.com", driver);
+        assertEquals(paul, driver.lookupUniqueKey(INDEX_NAME, "paul@example.com"));
+        assertNull(driver.lookupUniqueKey(INDEX_NAME, "nobody@example.com"));
+
+        final UUID dup = driver.genId();
+        try {
+            driver.insert(dup, createPerson("paul@example.com"));
+            fail("the key is taken");
+        } catch (UniqueConstraintException e) {
+            assertEquals(INDEX_NAME, e.getIndexName());
+            assertEquals("paul@example.com", e.getKey());
+        }
+        assertNull(driver.get(dup));
+        assertEquals(paul, driver.lookupUniqueKey(INDEX_NAME, "paul@example.com"));
+
+        try {
+            driver.update(greg, createPerson("paul@example.com"));
+            fail("the key is taken");
+        } catch (UniqueConstraintException e) {
+        }
+        assertEquals("greg@example.com", driver.get(greg).asObject().get("email").asString());
+
+        //an object may keep its own key, and a freed key may be taken
+        driver.update(paul, createPerson("paul@example.com"));
+        driver.update(greg, createPerson("gregory@example.com"));
+        UUID newGreg = insert("greg@example.com", driver);
+        assertEquals(newGreg, driver.lookupUniqueKey(INDEX_NAME, "greg@example.com"));
+        assertEquals(greg, driver.lookupUniqueKey(INDEX_NAME, "gregory@example.com"));
+        assertEquals(1, driver.lookupIndex(INDEX_NAME, "greg@example.com").size());
+
+        driver.delete(paul);
+        assertNull(driver.lookupUniqueKey(INDEX_NAME, "paul@example.com"));
+
+        mapdb.commit();
+        mapdb.close();
+
+        mapdb = DBMaker.newFileDB(file).make();
+        driver = new MapDBDriver(mapdb);
+        driver.addIndex(INDEX_NAME, MicroDB.IndexKind.Unique, EMAIL_INDEX);
+        assertEquals(greg, driver.lookupUniqueKey(INDEX_NAME, "gregory@example.com"));
+        try {
+            insert("gregory@example.com", driver);
+            fail("the key is taken");
+        } catch (UniqueConstraintException e) {
+        }
+        mapdb.close();
+    }
+
+    @Test
+    public void testBulkInsertChecksEveryValue() throws IOException {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        driver.addIndex(INDEX_NAME, MicroDB.IndexKind.Unique, EMAIL_INDEX);
+
+        ArrayList<Map.Entry<UUID, UBValue>> values = new ArrayList<Map.Entry<UUID, UBValue>>();
+        values.add(new AbstractMap.SimpleEntry<UUID, UBValue>(driver.genId(), createPerson("a@example.com")));
+        values.add(new AbstractMap.SimpleEntry<UUID, UBValue>(driver.genId(), createPerson("a@example.com")));
+        try {
+            driver.bulkInsert(values);
+            fail("the values share a key");
+        } catch (UniqueConstraintException e) {
+        }
+        assertNull(driver.get(values.get(0).getKey()));
+
+        values.remove(1);
+        driver.bulkInsert(values);
+        assertEquals(values.get(0).getKey(), driver.lookupUniqueKey(INDEX_NAME, "a@example.com"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLookupUniqueKeyOfTreeIndex() throws IOException {
+        MapDBDriver driver = new MapDBDriver(DBMaker.newMemoryDB().make());
+        driver.addIndex(INDEX_NAME, EMAIL_INDEX);
+        driver.lookupUniqueKey(INDEX_NAME, "paul@example.com");
+    }
+
+    @Test
+    public void testWriteOperationFails() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+        db.addIndex("MyDBObj.myString_idx", MicroDB.IndexKind.Unique, MY_STRING_INDEX);
+
+        MyDBObj first = db.insert(MyDBObj.class);
+        first.setMyString("taken");
+        db.flush();
+        assertSame(first, db.getByUniqueKey("MyDBObj.myString_idx", "taken", new MyDBObj()));
+
+        MyDBObj second = db.insert(MyDBObj.class);
+        second.setMyString("free");
+        db.flush();
+
+        second.setMyString("taken");
+        ListenableFuture<Void> op = db.save(second);
+        try {
+            op.get(1, TimeUnit.SECONDS);
+            fail("the key is taken");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UniqueConstraintException);
+        }
+
+        //the refused values are not what is read back
+        MyDBObj reloaded = db.getByUniqueKey("MyDBObj.myString_idx", "free", new MyDBObj());
+        assertNotSame(second, reloaded);
+        assertEquals(second.getId(), reloaded.getId());
+        assertEquals("free", reloaded.getMyString());
+        assertSame(first, db.getByUniqueKey("MyDBObj.myString_idx", "taken", new MyDBObj()));
+
+        db.shutdown();
+    }
+}
@@ -170,4 +170,95 @@ public class VersionManagerTest {
         assertEquals("fido", fido.get("name").asString());
 
     }
+
+    private static Change getChange(VersionManager vm, UUID objId) {
+        for (Change c : vm.getChanges(vm.getHead().getId())) {
+            if (c.getObjId().equals(objId)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testUpdatesStorePatches() throws Exception {
+        DB mapdb = DBMaker.newMemoryDB()
+                .make();
+
+        MapDBDriver dbDriver = new MapDBDriver(mapdb);
+        MicroDB db = new MicroDB(dbDriver, 0, new DBBuilder.NullCallback());
+        VersionManager vm = new VersionManager(db, dbDriver);
+
+        MyDBObj obj = db.insert(MyDBObj.class);
+        obj.setMyString("fido");
+        db.flush();
+        assertEquals(Change.TYPE_INSERT, getChange(vm, obj.getId()).getType());
+        vm.commit();
+        db.sync();
+
+        obj.setMyInt(5);
+        db.flush();
+        Change c = getChange(vm, obj.getId());
+        assertEquals(Change.TYPE_PATCH, c.getType());
+        UBObject set = c.getObjValue().asObject().get("set").asObject();
+        assertEquals(1, set.size());
+        assertEquals(5, set.get("myInt").asInt());
+
+        //later updates in the same version are merged into the patch
+        obj.setMyString("rex");
+        db.flush();
+        set = getChange(vm, obj.getId()).getObjValue().asObject().get("set").asObject();
+        assertEquals(2, set.size());
+        assertEquals(5, set.get("myInt").asInt());
+        assertEquals("rex", set.get("myString").asString());
+
+        //an object that existed before the version was deleted in it
+        db.delete(obj);
+        db.flush();
+        assertEquals(Change.TYPE_DELETE, getChange(vm, obj.getId()).getType());
+    }
+
+    @Test
+    public void testMoveAppliesPatches() throws Exception {
+        DB mapdb = DBMaker.newMemoryDB()
+                .make();
+
+        MapDBDriver dbDriver = new MapDBDriver(mapdb);
+        MicroDB db = new MicroDB(dbDriver, 0, new DBBuilder.NullCallback());
+        VersionManager vm = new VersionManager(db, dbDriver);
+
+        UBObject fido = createObj("dog", "fido");
+        fido.put("age", UBValueFactory.createInt(3));
+        final UUID fidoId = dbDriver.genId();
+        dbDriver.insert(fidoId, fido);
+        final UUID commitId = vm.commit();
+        db.sync();
+
+        UBObject rex = createObj("dog", "rex");
+        rex.put("owner", UBValueFactory.createString("bob"));
+        Change first = Change.createPatchChange(fidoId, fido, rex);
+        assertEquals(Change.TYPE_PATCH, first.getType());
+        assertNull(Change.createPatchChange(fidoId, rex, rex));
+
+        Commit next = Commit.withParent(commitId);
+        vm.addChanges(next.getId(), Lists.newArrayList(first));
+        vm.addCommit(next);
+
+        UBObject older = createObj("dog", "max");
+        older.put("owner", UBValueFactory.createString("bob"));
+        Commit last = Commit.withParent(next);
+        vm.addChanges(last.getId(), Lists.newArrayList(Change.createPatchChange(fidoId, rex, older)));
+        vm.addCommit(last);
+
+        vm.moveTo(last.getId());
+        db.sync();
+
+        assertEquals(last.getId(), vm.getHead().getId());
+        UBObject value = dbDriver.get(fidoId).asObject();
+        assertEquals(3, value.size());
+        assertEquals("dog", value.get("type").asString());
+        assertEquals("max", value.get("name").asString());
+        assertEquals("bob", value.get("owner").asString());
+        assertNull(value.get("age"));
+    }
 }
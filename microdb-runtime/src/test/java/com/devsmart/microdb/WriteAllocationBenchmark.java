@@ -0,0 +1,74 @@
+package com.devsmart.microdb;
+
+
+import example.ExtendObj;
+import example.MyDBObj;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures how many bytes the whole write path allocates per {@link MicroDB#save(DBObject)},
+ * counted over every thread (the caller, the write thread and MapDB's own). Run it with a
+ * HotSpot JVM, which reports allocations per thread:
+ * <pre>
+ * java -cp ... com.devsmart.microdb.WriteAllocationBenchmark [saves]
+ * </pre>
+ */
+public class WriteAllocationBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        long retval = 0;
+        for (long size : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            if (size > 0) {
+                retval += size;
+            }
+        }
+        return retval;
+    }
+
+    private static MyDBObj createObj(MicroDB db, Class<? extends MyDBObj> type) {
+        MyDBObj obj = db.insert(type);
+        obj.setMyString("the quick brown fox jumps over the lazy dog");
+        obj.setMyIntArray(new int[]{1, 2, 3, 4, 5, 6, 7, 8});
+        obj.setMyDoubleArray(new double[]{0.5, 1.5, 2.5});
+        return obj;
+    }
+
+    /**
+     * @return the average number of bytes allocated per save of {@code obj}
+     */
+    private static long measure(MicroDB db, MyDBObj obj, int saves) throws Exception {
+        final long start = allocatedBytes();
+        for (int i = 0; i < saves; i++) {
+            obj.setMyInt(i);
+            db.save(obj).get();
+        }
+        return (allocatedBytes() - start) / saves;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int saves = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        MicroDB db = DBBuilder.builder().buildMemoryDB();
+        try {
+            MyDBObj generated = createObj(db, MyDBObj.class);
+            MyDBObj handWritten = createObj(db, ExtendObj.class);
+            db.sync();
+
+            //warm up the JIT and the per thread buffers
+            measure(db, generated, saves);
+            measure(db, handWritten, saves);
+
+            System.out.println("generated codec:      " + measure(db, generated, saves) + " bytes/save");
+            System.out.println("writeToUBObject only: " + measure(db, handWritten, saves) + " bytes/save");
+        } finally {
+            db.close();
+            db.shutdown();
+        }
+    }
+}
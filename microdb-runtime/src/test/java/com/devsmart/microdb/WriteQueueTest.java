@@ -0,0 +1,430 @@
+package com.devsmart.microdb;
+
+
+import com.devsmart.ubjson.UBObject;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import example.MyDBObj;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WriteQueueTest {
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .groupCommit(1000, 200)
+                .buildMemoryDB();
+
+        final long commitsBefore = db.getWriteQueueStats().getNumCommits();
+
+        ArrayList<UUID> ids = new ArrayList<UUID>();
+        ArrayList<ListenableFuture<Void>> commits = new ArrayList<ListenableFuture<Void>>();
+        for (int i = 0; i < 10; i++) {
+            MyDBObj obj = db.insert(MyDBObj.class);
+            obj.setMyInt(i);
+            ids.add(obj.getId());
+            commits.add(db.commit());
+        }
+
+        for (ListenableFuture<Void> op : commits) {
+            db.waitForCompletion(op);
+        }
+
+        WriteQueueStats stats = db.getWriteQueueStats();
+        final long numCommits = stats.getNumCommits() - commitsBefore;
+        assertTrue(numCommits >= 1);
+        assertTrue(numCommits < 10);
+        assertTrue(stats.getMaxCommitSize() > 1);
+
+        for (UUID id : ids) {
+            assertNotNull(db.getDriver().get(id));
+        }
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testSyncWithoutGroupCommit() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+
+        final long commitsBefore = db.getWriteQueueStats().getNumCommits();
+
+        MyDBObj obj = db.insert(MyDBObj.class);
+        db.sync();
+
+        WriteQueueStats stats = db.getWriteQueueStats();
+        assertEquals(1, stats.getNumCommits() - commitsBefore);
+        assertEquals(1, stats.getLastCommitSize());
+        assertNotNull(db.getDriver().get(obj.getId()));
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testWriteFutures() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+
+        MyDBObj obj = db.insertAsync(MyDBObj.class).get(1, TimeUnit.SECONDS);
+        assertNotNull(obj.getId());
+        assertNotNull(db.getDriver().get(obj.getId()));
+
+        obj.setMyInt(42);
+        db.save(obj).get(1, TimeUnit.SECONDS);
+        assertEquals(42, db.getDriver().get(obj.getId()).asObject().get("myInt").asInt());
+
+        db.delete(obj).get(1, TimeUnit.SECONDS);
+        assertNull(db.getDriver().get(obj.getId()));
+
+        db.commit().get(1, TimeUnit.SECONDS);
+
+        db.shutdown();
+    }
+
+    private static CountDownLatch blockWriteThread(MicroDB db) {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        db.enqueueOperation(new MicroDB.Operation(MicroDB.OperationType.Write) {
+            @Override
+            void doIt() throws IOException {
+                started.countDown();
+                Uninterruptibles.awaitUninterruptibly(latch);
+            }
+        });
+        Uninterruptibles.awaitUninterruptibly(started);
+        return latch;
+    }
+
+    @Test
+    public void testCoalesceWrites() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+
+        MyDBObj obj = db.insert(MyDBObj.class);
+        db.sync();
+
+        final long coalescedBefore = db.getWriteQueueStats().getNumCoalescedWrites();
+        CountDownLatch latch = blockWriteThread(db);
+
+        ListenableFuture<Void> first = null;
+        for (int i = 0; i < 10; i++) {
+            obj.setMyInt(i);
+            ListenableFuture<Void> op = db.save(obj);
+            if (first == null) {
+                first = op;
+            } else {
+                assertSame(first, op);
+            }
+        }
+        //every save after the first merges into its write
+        assertEquals(9, db.getWriteQueueStats().getNumCoalescedWrites() - coalescedBefore);
+
+        latch.countDown();
+        db.sync();
+        assertEquals(9, db.getDriver().get(obj.getId()).asObject().get("myInt").asInt());
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testCoalesceWritesKeepsDeleteOrder() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+
+        MyDBObj obj = db.insert(MyDBObj.class);
+        db.sync();
+
+        CountDownLatch latch = blockWriteThread(db);
+
+        obj.setMyInt(1);
+        ListenableFuture<Void> beforeDelete = db.save(obj);
+        db.delete(obj);
+        obj.setMyInt(2);
+        ListenableFuture<Void> afterDelete = db.save(obj);
+        assertNotSame(beforeDelete, afterDelete);
+
+        latch.countDown();
+        db.sync();
+
+        //the save queued after the delete re-creates the object
+        assertEquals(2, db.getDriver().get(obj.getId()).asObject().get("myInt").asInt());
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testFlushDirtyObjects() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+
+        ArrayList<MyDBObj> objects = new ArrayList<MyDBObj>();
+        for (int i = 0; i < 10; i++) {
+            objects.add(db.insert(MyDBObj.class));
+        }
+        db.sync();
+        assertEquals(0, db.getNumDirtyObjects());
+
+        CountDownLatch latch = blockWriteThread(db);
+        for (int i = 0; i < 3; i++) {
+            objects.get(i).setMyInt(i + 1);
+        }
+        assertEquals(3, db.getNumDirtyObjects());
+
+        latch.countDown();
+        db.flush();
+        assertEquals(0, db.getNumDirtyObjects());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, db.getDriver().get(objects.get(i).getId()).asObject().get("myInt").asInt());
+        }
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testFlushAfterDelete() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .buildMemoryDB();
+
+        ArrayList<MyDBObj> objects = new ArrayList<MyDBObj>();
+        for (int i = 0; i < 50; i++) {
+            objects.add(db.insert(MyDBObj.class));
+        }
+        db.sync();
+
+        //changes not saved before the delete are not written after it
+        for (MyDBObj obj : objects) {
+            obj.setMyInt(5);
+            db.delete(obj);
+            db.flush();
+            assertNull(db.getDriver().get(obj.getId()));
+        }
+        assertEquals(0, db.getNumDirtyObjects());
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testFailFastWhenQueueFull() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .writeQueueCapacity(2, MicroDB.OverflowPolicy.FailFast)
+                .buildMemoryDB();
+
+        CountDownLatch latch = blockWriteThread(db);
+        db.insert(MyDBObj.class);
+        db.insert(MyDBObj.class);
+
+        WriteQueueStats stats = db.getWriteQueueStats();
+        assertEquals(2, stats.getQueueDepth());
+        try {
+            db.insert(MyDBObj.class);
+            fail("expected WriteQueueFullException");
+        } catch (WriteQueueFullException e) {
+            //expected
+        }
+        assertEquals(1, stats.getNumRejectedWrites());
+
+        //commits are never refused
+        ListenableFuture<Void> commit = db.commit();
+
+        latch.countDown();
+        commit.get(1, TimeUnit.SECONDS);
+        assertEquals(0, stats.getQueueDepth());
+        assertTrue(stats.getMaxQueueDepth() >= 3);
+        assertTrue(stats.getMaxTimeInQueueMillis() > 0);
+
+        db.insert(MyDBObj.class);
+        db.sync();
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testAutoSaveRetriesWhenQueueFull() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .writeQueueCapacity(1, MicroDB.OverflowPolicy.FailFast)
+                .autoSave(50, 1000)
+                .buildMemoryDB();
+
+        MyDBObj a = db.insert(MyDBObj.class);
+        db.sync();
+        MyDBObj b = db.insert(MyDBObj.class);
+        db.sync();
+
+        CountDownLatch latch = blockWriteThread(db);
+        a.setMyInt(1);
+        db.save(a);
+
+        //the autosave of b finds the queue full
+        WriteQueueStats stats = db.getWriteQueueStats();
+        b.setMyInt(2);
+        long end = System.currentTimeMillis() + 10000;
+        while (stats.getNumRejectedWrites() == 0) {
+            assertTrue("autosave not attempted", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        latch.countDown();
+
+        //and is tried again, although b does not change again
+        end = System.currentTimeMillis() + 10000;
+        while (db.getNumDirtyObjects() > 0) {
+            assertTrue("autosave not retried", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        db.sync();
+        assertEquals(2, db.getDriver().get(b.getId()).asObject().get("myInt").asInt());
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testBlockWithTimeout() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .writeQueueCapacity(1, MicroDB.OverflowPolicy.BlockWithTimeout, 50)
+                .buildMemoryDB();
+
+        CountDownLatch latch = blockWriteThread(db);
+        db.insert(MyDBObj.class);
+
+        final long start = System.nanoTime();
+        try {
+            db.insert(MyDBObj.class);
+            fail("expected WriteQueueFullException");
+        } catch (WriteQueueFullException e) {
+            //expected
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+
+        latch.countDown();
+        db.sync();
+        db.shutdown();
+    }
+
+    @Test
+    public void testBlockWhenQueueFull() throws Exception {
+        final MicroDB db = DBBuilder.builder()
+                .writeQueueCapacity(1, MicroDB.OverflowPolicy.Block)
+                .buildMemoryDB();
+
+        final CountDownLatch latch = blockWriteThread(db);
+        db.insert(MyDBObj.class);
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                db.insert(MyDBObj.class);
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        latch.countDown();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+
+        db.sync();
+        db.shutdown();
+    }
+
+    @Test
+    public void testFlushWhenQueueFull() throws Exception {
+        final MicroDB db = DBBuilder.builder()
+                .writeQueueCapacity(1, MicroDB.OverflowPolicy.Block)
+                .buildMemoryDB();
+
+        final ArrayList<MyDBObj> objects = new ArrayList<MyDBObj>();
+        for (int i = 0; i < 4; i++) {
+            objects.add(db.insert(MyDBObj.class));
+            db.sync();
+        }
+
+        //flush waits for room without holding the lock the write thread needs to snapshot
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (final MyDBObj obj : objects) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 5000; i++) {
+                        obj.setMyInt(i);
+                        db.flush();
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(20000);
+            assertFalse("deadlocked", thread.isAlive());
+        }
+
+        for (MyDBObj obj : objects) {
+            assertEquals(5000, db.getDriver().get(obj.getId()).asObject().get("myInt").asInt());
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void testParallelSerializationOfOneObject() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .parallelSerialization(4)
+                .buildMemoryDB();
+
+        MyDBObj obj = db.insert(MyDBObj.class);
+        db.sync();
+
+        //writes of the same object may be taken off the queue together, and the last one wins
+        for (int i = 1; i <= 2000; i++) {
+            obj.setMyInt(i);
+            db.save(obj);
+        }
+        db.sync();
+        assertEquals(0, db.getNumDirtyObjects());
+        assertEquals(2000, db.getDriver().get(obj.getId()).asObject().get("myInt").asInt());
+
+        db.shutdown();
+    }
+
+    @Test
+    public void testParallelSerialization() throws Exception {
+        MicroDB db = DBBuilder.builder()
+                .parallelSerialization(4)
+                .buildMemoryDB();
+
+        ArrayList<MyDBObj> objects = new ArrayList<MyDBObj>();
+        for (int i = 0; i < 200; i++) {
+            MyDBObj obj = db.insert(MyDBObj.class);
+            obj.setMyString("obj" + i);
+            objects.add(obj);
+        }
+        db.sync();
+
+        for (int i = 0; i < objects.size(); i++) {
+            MyDBObj obj = objects.get(i);
+            obj.setMyInt(i);
+            db.save(obj);
+        }
+        db.delete(objects.get(0));
+        db.sync();
+
+        assertNull(db.getDriver().get(objects.get(0).getId()));
+        for (int i = 1; i < objects.size(); i++) {
+            UBObject data = db.getDriver().get(objects.get(i).getId()).asObject();
+            assertEquals(i, data.get("myInt").asInt());
+            assertEquals("obj" + i, data.get("myString").asString());
+        }
+        assertEquals(0, db.getNumDirtyObjects());
+
+        db.shutdown();
+    }
+}